@@ -12,6 +12,22 @@ public class Account
 
     private boolean activated;
 
+    private long version;
+
+    public Account()
+    {
+    }
+
+    public Account( Account other )
+    {
+        this.id = other.id;
+        this.name = other.name;
+        this.email = other.email;
+        this.password = other.password;
+        this.activated = other.activated;
+        this.version = other.version;
+    }
+
     public String getId()
     {
         return id;
@@ -61,4 +77,18 @@ public class Account
     {
         this.activated = activated;
     }
+
+    /**
+     * Incremented by the persist service on every successful write, see
+     * {@link AccountPersistService#compareAndUpdate(long, Account)}. Accounts stored before versioning read as 0.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion( long version )
+    {
+        this.version = version;
+    }
 }
@@ -0,0 +1,24 @@
+package com.juvenxu.mvnbook.account.persist;
+
+/**
+ * A bounded store of account copies used by {@link CachingAccountPersistServiceImpl}, which decides what to put and
+ * when to remove it. Implementations are thread safe and choose what to evict.
+ */
+interface AccountCache
+{
+    /**
+     * A copy of the cached account, or null.
+     */
+    Account get( String id );
+
+    /**
+     * Offers the account to the cache, which may keep a copy or turn it away.
+     */
+    void put( Account account );
+
+    void remove( String id );
+
+    int size();
+
+    long getEvictions();
+}
@@ -0,0 +1,58 @@
+package com.juvenxu.mvnbook.account.persist;
+
+/**
+ * One buffered change of an {@link AccountTransaction}: a create or update carries the account, a delete only the id.
+ */
+public final class AccountChange
+{
+    public enum Kind
+    {
+        CREATE, UPDATE, DELETE
+    }
+
+    private final Kind kind;
+
+    private final String id;
+
+    private final Account account;
+
+    private AccountChange( Kind kind, String id, Account account )
+    {
+        this.kind = kind;
+        this.id = id;
+        this.account = account;
+    }
+
+    static AccountChange create( Account account )
+    {
+        return new AccountChange( Kind.CREATE, account.getId(), account );
+    }
+
+    static AccountChange update( Account account )
+    {
+        return new AccountChange( Kind.UPDATE, account.getId(), account );
+    }
+
+    static AccountChange delete( String id )
+    {
+        return new AccountChange( Kind.DELETE, id, null );
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * The account to create or update, <code>null</code> for a delete.
+     */
+    public Account getAccount()
+    {
+        return account;
+    }
+}
@@ -0,0 +1,17 @@
+package com.juvenxu.mvnbook.account.persist;
+
+/**
+ * Turns an {@link Account} into bytes and back, for the files and caches of the persist layer that store accounts
+ * one by one. Implementations are stateless and thread safe.
+ */
+public interface AccountCodec
+{
+    byte[] encode( Account account );
+
+    /**
+     * Reads an account from <code>length</code> bytes at <code>offset</code>, as written by {@link #encode(Account)}.
+     *
+     * @throws IllegalArgumentException if the bytes are no account in this encoding
+     */
+    Account decode( byte[] data, int offset, int length );
+}
@@ -0,0 +1,239 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of JDBC connections for the database backed services. At most <code>size</code> connections are
+ * open, they are opened on first demand and kept, and a caller finding all of them in use waits up to a timeout
+ * instead of opening another one. Every connection keeps its last <code>statementCacheSize</code> prepared
+ * statements, so a statement is parsed and planned once per connection instead of once per call.
+ */
+final class AccountConnectionPool
+{
+    /**
+     * A pooled connection with its statement cache. Used by one thread at a time, between borrow and release.
+     */
+    static final class PooledConnection
+    {
+        private final Connection connection;
+
+        private final Map<String, PreparedStatement> statements;
+
+        private PooledConnection( Connection connection, final int statementCacheSize )
+        {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>( 16, 0.75f, true )
+            {
+                protected boolean removeEldestEntry( Map.Entry<String, PreparedStatement> eldest )
+                {
+                    if ( size() <= statementCacheSize )
+                    {
+                        return false;
+                    }
+
+                    closeQuietly( eldest.getValue() );
+
+                    return true;
+                }
+            };
+        }
+
+        Connection getConnection()
+        {
+            return connection;
+        }
+
+        /**
+         * The cached statement for the SQL, prepared on first use. Parameters left from the previous use are cleared.
+         */
+        PreparedStatement prepare( String sql )
+            throws SQLException
+        {
+            PreparedStatement statement = statements.get( sql );
+
+            if ( statement == null )
+            {
+                statement = connection.prepareStatement( sql );
+                statements.put( sql, statement );
+            }
+            else
+            {
+                statement.clearParameters();
+            }
+
+            return statement;
+        }
+
+        int cachedStatements()
+        {
+            return statements.size();
+        }
+
+        private void close()
+        {
+            for ( PreparedStatement statement : statements.values() )
+            {
+                closeQuietly( statement );
+            }
+            statements.clear();
+
+            try
+            {
+                connection.close();
+            }
+            catch ( SQLException e )
+            {
+                // the database drops it either way
+            }
+        }
+    }
+
+    private final String url;
+
+    private final String user;
+
+    private final String password;
+
+    private final int statementCacheSize;
+
+    private final BlockingQueue<PooledConnection> idle;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    AccountConnectionPool( String url, String user, String password, int size, int statementCacheSize )
+    {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.statementCacheSize = statementCacheSize;
+        this.idle = new ArrayBlockingQueue<PooledConnection>( size );
+        this.permits = new Semaphore( size, true );
+    }
+
+    /**
+     * An idle connection, a new one while fewer than <code>size</code> are open, else the next one released within
+     * <code>timeout</code> milliseconds.
+     */
+    PooledConnection borrow( long timeout )
+        throws AccountPersistException
+    {
+        try
+        {
+            if ( !permits.tryAcquire( timeout, TimeUnit.MILLISECONDS ) )
+            {
+                throw new AccountPersistException( "No database connection free after " + timeout + " ms" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+
+            throw new AccountPersistException( "Interrupted waiting for a database connection", e );
+        }
+
+        if ( closed )
+        {
+            permits.release();
+
+            throw new AccountPersistException( "Connection pool is closed" );
+        }
+
+        PooledConnection connection = idle.poll();
+
+        if ( connection != null )
+        {
+            return connection;
+        }
+
+        try
+        {
+            connection = new PooledConnection( DriverManager.getConnection( url, user, password ), statementCacheSize );
+            openConnections.incrementAndGet();
+
+            return connection;
+        }
+        catch ( SQLException e )
+        {
+            permits.release();
+
+            throw new AccountPersistException( "Unable to connect to " + url, e );
+        }
+    }
+
+    /**
+     * Hands the connection back. After a failure it is checked and closed instead when no longer usable. A pool
+     * closed while the connection was put back may have drained the idle queue already, so the connection is taken
+     * back out and closed here unless {@link #close()} got it first.
+     */
+    void release( PooledConnection connection, boolean failed )
+    {
+        if ( closed || ( failed && !isValid( connection ) ) || !idle.offer( connection )
+            || ( closed && idle.remove( connection ) ) )
+        {
+            connection.close();
+            openConnections.decrementAndGet();
+        }
+
+        permits.release();
+    }
+
+    /**
+     * Closes the idle connections at once and the borrowed ones as they are released.
+     */
+    void close()
+    {
+        closed = true;
+
+        for ( PooledConnection connection; ( connection = idle.poll() ) != null; )
+        {
+            connection.close();
+            openConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Connections currently open, idle or borrowed, for tests and monitoring.
+     */
+    int getOpenConnections()
+    {
+        return openConnections.get();
+    }
+
+    private static boolean isValid( PooledConnection connection )
+    {
+        try
+        {
+            return connection.getConnection().isValid( 1 );
+        }
+        catch ( SQLException e )
+        {
+            return false;
+        }
+    }
+
+    private static void closeQuietly( PreparedStatement statement )
+    {
+        try
+        {
+            statement.close();
+        }
+        catch ( SQLException e )
+        {
+            // closed along with its connection at the latest
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directory of a persist file and runs a callback on a daemon thread after the file was created, replaced
+ * or modified. Events are collected until the directory has been quiet for <code>quietPeriod</code> milliseconds, so
+ * an editor or a restore writing the file in several steps triggers a single callback. The callback also runs for
+ * the service's own writes, it tells them apart with {@link AccountXmlFile#isChangedExternally()}.
+ */
+final class AccountFileWatcher
+{
+    /**
+     * Reacts to a change of the file. A failure is ignored, the next change runs the callback again.
+     */
+    interface Listener
+    {
+        void fileChanged()
+            throws AccountPersistException;
+    }
+
+    static final long DEFAULT_QUIET_PERIOD = 200;
+
+    private final Path directory;
+
+    private final Path fileName;
+
+    private final long quietPeriod;
+
+    private final Listener listener;
+
+    private WatchService watchService;
+
+    private Thread thread;
+
+    AccountFileWatcher( File file, long quietPeriod, Listener listener )
+    {
+        Path path = file.toPath().toAbsolutePath();
+
+        this.directory = path.getParent();
+        this.fileName = path.getFileName();
+        this.quietPeriod = quietPeriod;
+        this.listener = listener;
+    }
+
+    void start()
+        throws AccountPersistException
+    {
+        try
+        {
+            directory.toFile().mkdirs();
+
+            watchService = FileSystems.getDefault().newWatchService();
+
+            directory.register( watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY );
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to watch persist file " + fileName, e );
+        }
+
+        thread = new Thread( this::watch, "account-persist-watcher" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    void close()
+    {
+        try
+        {
+            watchService.close();
+        }
+        catch ( IOException e )
+        {
+            // the thread stops either way
+        }
+    }
+
+    private void watch()
+    {
+        try
+        {
+            while ( true )
+            {
+                boolean changed = concernsFile( watchService.take() );
+
+                for ( WatchKey key; ( key = watchService.poll( quietPeriod, TimeUnit.MILLISECONDS ) ) != null; )
+                {
+                    changed |= concernsFile( key );
+                }
+
+                if ( changed )
+                {
+                    try
+                    {
+                        listener.fileChanged();
+                    }
+                    catch ( AccountPersistException | RuntimeException e )
+                    {
+                        // e.g. a file still being written by hand, its next change triggers another attempt
+                    }
+                }
+            }
+        }
+        catch ( InterruptedException | ClosedWatchServiceException e )
+        {
+            // closed
+        }
+    }
+
+    private boolean concernsFile( WatchKey key )
+    {
+        boolean concerns = false;
+
+        for ( WatchEvent<?> event : key.pollEvents() )
+        {
+            concerns |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals( event.context() );
+        }
+
+        key.reset();
+
+        return concerns;
+    }
+}
@@ -0,0 +1,118 @@
+package com.juvenxu.mvnbook.account.persist;
+
+/**
+ * Estimates how often each account id was accessed recently, in a count-min sketch of four bit counters: four
+ * counters per id, in four rows, the estimate being the smallest of them. Once ten times as many accesses as the
+ * sketch was sized for have been counted all counters are halved, so old popularity fades and the counters never
+ * saturate for long.
+ * <p>
+ * Not thread safe: callers hold the lock of the cache using it.
+ */
+final class AccountFrequencySketch
+{
+    private static final int MAX_COUNT = 15;
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long[] SEEDS =
+        { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    AccountFrequencySketch( int maximumSize )
+    {
+        int size = Integer.highestOneBit( Math.max( 16, Math.min( maximumSize, 1 << 26 ) ) - 1 ) << 1;
+
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * Math.max( 16, maximumSize );
+    }
+
+    /**
+     * The estimated number of recent accesses to the id, at most 15.
+     */
+    int frequency( String id )
+    {
+        int hash = spread( id.hashCode() );
+        int frequency = MAX_COUNT;
+
+        for ( int row = 0; row < 4; row++ )
+        {
+            int index = index( hash, row );
+            int shift = offset( hash, row ) << 2;
+
+            frequency = Math.min( frequency, (int) ( ( table[index] >>> shift ) & 0xfL ) );
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Counts an access to the id.
+     */
+    void increment( String id )
+    {
+        int hash = spread( id.hashCode() );
+        boolean added = false;
+
+        for ( int row = 0; row < 4; row++ )
+        {
+            int index = index( hash, row );
+            int shift = offset( hash, row ) << 2;
+
+            if ( ( ( table[index] >>> shift ) & 0xfL ) != MAX_COUNT )
+            {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+
+        if ( added && ++additions == sampleSize )
+        {
+            reset();
+        }
+    }
+
+    private void reset()
+    {
+        for ( int i = 0; i < table.length; i++ )
+        {
+            table[i] = ( table[i] >>> 1 ) & RESET_MASK;
+        }
+
+        additions /= 2;
+    }
+
+    /**
+     * The table slot of the id's counter in the row, each row seeding the hash differently.
+     */
+    private int index( int hash, int row )
+    {
+        long h = ( hash + SEEDS[row] ) * SEEDS[row];
+        h += h >>> 32;
+
+        return (int) h & tableMask;
+    }
+
+    /**
+     * Which of the sixteen counters in the slot belongs to the row.
+     */
+    private static int offset( int hash, int row )
+    {
+        return ( ( hash >>> ( row << 3 ) ) & 3 ) + ( row << 2 );
+    }
+
+    private static int spread( int hash )
+    {
+        hash = ( ( hash >>> 16 ) ^ hash ) * 0x45d9f3b;
+        hash = ( ( hash >>> 16 ) ^ hash ) * 0x45d9f3b;
+
+        return ( hash >>> 16 ) ^ hash;
+    }
+}
@@ -0,0 +1,125 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.Collection;
+
+/**
+ * A Bloom filter of account ids. {@link #mightContain(String)} never answers false for an id that was put, and
+ * answers true for an id that was not with about the false positive rate it was sized for, as long as no more than
+ * its capacity of ids were put. Ids cannot be removed, a deleted id only costs a false positive until the filter is
+ * rebuilt.
+ * <p>
+ * Not thread safe: callers put under a write lock and ask under the matching read lock.
+ */
+final class AccountIdFilter
+{
+    private static final int MIN_CAPACITY = 1024;
+
+    private final long[] bits;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    private final int capacity;
+
+    private int size;
+
+    AccountIdFilter( int capacity, double falsePositiveRate )
+    {
+        if ( falsePositiveRate <= 0 || falsePositiveRate >= 1 )
+        {
+            throw new IllegalArgumentException( "False positive rate must be between 0 and 1: " + falsePositiveRate );
+        }
+
+        this.capacity = Math.max( MIN_CAPACITY, capacity );
+
+        double ln2 = Math.log( 2 );
+        long optimalBits = (long) Math.ceil( -this.capacity * Math.log( falsePositiveRate ) / ( ln2 * ln2 ) );
+
+        this.bits = new long[(int) ( ( optimalBits + 63 ) / 64 )];
+        this.bitCount = bits.length * 64L;
+        this.hashCount = Math.max( 1, (int) Math.round( (double) bitCount / this.capacity * ln2 ) );
+    }
+
+    /**
+     * A filter holding the ids, with room for as many again before it is full.
+     */
+    static AccountIdFilter of( Collection<String> ids, double falsePositiveRate )
+    {
+        AccountIdFilter filter = new AccountIdFilter( ids.size() * 2, falsePositiveRate );
+
+        for ( String id : ids )
+        {
+            filter.put( id );
+        }
+
+        return filter;
+    }
+
+    void put( String id )
+    {
+        long hash = hash( id );
+        long h1 = (int) hash;
+        long h2 = (int) ( hash >>> 32 );
+
+        for ( int i = 0; i < hashCount; i++ )
+        {
+            long bit = Math.floorMod( h1 + i * h2, bitCount );
+            bits[(int) ( bit >>> 6 )] |= 1L << bit;
+        }
+
+        size++;
+    }
+
+    /**
+     * False when the id was certainly never put.
+     */
+    boolean mightContain( String id )
+    {
+        long hash = hash( id );
+        long h1 = (int) hash;
+        long h2 = (int) ( hash >>> 32 );
+
+        for ( int i = 0; i < hashCount; i++ )
+        {
+            long bit = Math.floorMod( h1 + i * h2, bitCount );
+
+            if ( ( bits[(int) ( bit >>> 6 )] & ( 1L << bit ) ) == 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * True once as many ids were put as the filter was sized for, beyond that the false positive rate climbs.
+     */
+    boolean isFull()
+    {
+        return size >= capacity;
+    }
+
+    /**
+     * FNV-1a over the characters, finished with the MurmurHash3 mix so that both halves are usable hashes.
+     */
+    private static long hash( String id )
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for ( int i = 0; i < id.length(); i++ )
+        {
+            hash ^= id.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+}
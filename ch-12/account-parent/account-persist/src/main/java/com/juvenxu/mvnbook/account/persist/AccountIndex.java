@@ -0,0 +1,317 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * An id keyed map of whatever a persist service keeps per account, together with a secondary email to id index that
+ * every mutation keeps consistent. Lookups are lock free. A mutation only locks the map bins of its own id and emails,
+ * so writers of different accounts do not contend. Emails are matched case insensitively; several accounts may share
+ * one email.
+ */
+class AccountIndex<V>
+{
+    private static final String[] NO_IDS = new String[0];
+
+    private static final class Entry<V>
+    {
+        private final String email;
+
+        private final V value;
+
+        private Entry( String email, V value )
+        {
+            this.email = email;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Entry<V>> byId = new ConcurrentHashMap<String, Entry<V>>();
+
+    private final Map<String, String[]> byEmail = new ConcurrentHashMap<String, String[]>();
+
+    static String normalizeEmail( String email )
+    {
+        return email == null ? null : email.trim().toLowerCase( Locale.ROOT );
+    }
+
+    V get( String id )
+    {
+        Entry<V> entry = byId.get( id );
+
+        return entry == null ? null : entry.value;
+    }
+
+    boolean containsId( String id )
+    {
+        return byId.containsKey( id );
+    }
+
+    /**
+     * The id of an account registered with the given email, or <code>null</code>.
+     */
+    String idForEmail( String email )
+    {
+        String key = normalizeEmail( email );
+
+        if ( key == null )
+        {
+            return null;
+        }
+
+        String[] ids = byEmail.getOrDefault( key, NO_IDS );
+
+        return ids.length == 0 ? null : ids[0];
+    }
+
+    /**
+     * True when the email belongs to an account other than <code>id</code>.
+     */
+    boolean isEmailTaken( String email, String id )
+    {
+        String key = normalizeEmail( email );
+
+        return key != null && isTaken( byEmail.get( key ), id );
+    }
+
+    /**
+     * Puts the value unless the email belongs to an account other than <code>id</code>, checking and linking the
+     * email in one step, so of two concurrent puts of one email only the first succeeds.
+     *
+     * @return <code>false</code>, leaving the index as it was, if the email is taken
+     */
+    boolean putIfEmailFree( String id, String email, V value )
+    {
+        String key = normalizeEmail( email );
+        boolean[] taken = new boolean[1];
+
+        byId.compute( id, ( k, old ) -> {
+            if ( key != null )
+            {
+                byEmail.compute( key, ( e, ids ) -> {
+                    if ( isTaken( ids, id ) )
+                    {
+                        taken[0] = true;
+                        return ids;
+                    }
+
+                    return ids == null ? new String[] { id } : ids;
+                } );
+            }
+
+            if ( taken[0] )
+            {
+                return old;
+            }
+
+            if ( old != null && !Objects.equals( key, old.email ) )
+            {
+                unlinkEmail( old.email, id );
+            }
+
+            return new Entry<V>( key, value );
+        } );
+
+        return !taken[0];
+    }
+
+    V put( String id, String email, V value )
+    {
+        String key = normalizeEmail( email );
+        List<V> previous = new ArrayList<V>( 1 );
+
+        byId.compute( id, ( k, old ) -> {
+            if ( old != null )
+            {
+                previous.add( old.value );
+                unlinkEmail( old.email, id );
+            }
+
+            linkEmail( key, id );
+
+            return new Entry<V>( key, value );
+        } );
+
+        return previous.isEmpty() ? null : previous.get( 0 );
+    }
+
+    /**
+     * Replaces the value of an existing id only, returning the previous value or <code>null</code> if there was none.
+     */
+    V replace( String id, String email, V value )
+    {
+        String key = normalizeEmail( email );
+        List<V> previous = new ArrayList<V>( 1 );
+
+        byId.computeIfPresent( id, ( k, old ) -> {
+            previous.add( old.value );
+            unlinkEmail( old.email, id );
+            linkEmail( key, id );
+
+            return new Entry<V>( key, value );
+        } );
+
+        return previous.isEmpty() ? null : previous.get( 0 );
+    }
+
+    /**
+     * Replaces the value of an id only while it is still <code>expected</code>, compared by identity, and the email
+     * does not belong to another account. Like {@link #putIfEmailFree(String, String, Object)} the email is checked
+     * and linked in one step.
+     *
+     * @return <code>false</code>, leaving the index as it was, if the value changed or the email is taken
+     */
+    boolean replace( String id, String email, V expected, V value )
+    {
+        String key = normalizeEmail( email );
+        boolean[] replaced = new boolean[1];
+
+        byId.computeIfPresent( id, ( k, old ) -> {
+            if ( old.value != expected )
+            {
+                return old;
+            }
+
+            if ( !Objects.equals( key, old.email ) )
+            {
+                if ( key != null )
+                {
+                    boolean[] taken = new boolean[1];
+
+                    byEmail.compute( key, ( e, ids ) -> {
+                        if ( isTaken( ids, id ) )
+                        {
+                            taken[0] = true;
+                            return ids;
+                        }
+
+                        return ids == null ? new String[] { id } : ids;
+                    } );
+
+                    if ( taken[0] )
+                    {
+                        return old;
+                    }
+                }
+
+                unlinkEmail( old.email, id );
+            }
+
+            replaced[0] = true;
+
+            return new Entry<V>( key, value );
+        } );
+
+        return replaced[0];
+    }
+
+    V remove( String id )
+    {
+        List<V> previous = new ArrayList<V>( 1 );
+
+        byId.computeIfPresent( id, ( k, old ) -> {
+            previous.add( old.value );
+            unlinkEmail( old.email, id );
+
+            return null;
+        } );
+
+        return previous.isEmpty() ? null : previous.get( 0 );
+    }
+
+    void clear()
+    {
+        for ( String id : byId.keySet() )
+        {
+            remove( id );
+        }
+    }
+
+    int size()
+    {
+        return byId.size();
+    }
+
+    Collection<String> ids()
+    {
+        return byId.keySet();
+    }
+
+    List<V> values()
+    {
+        List<V> values = new ArrayList<V>( byId.size() );
+
+        for ( Entry<V> entry : byId.values() )
+        {
+            values.add( entry.value );
+        }
+
+        return values;
+    }
+
+    /**
+     * The values, split along the bins of the id map when processed in parallel.
+     */
+    Stream<V> stream()
+    {
+        return byId.values().stream().map( entry -> entry.value );
+    }
+
+    private static boolean isTaken( String[] ids, String id )
+    {
+        if ( ids != null )
+        {
+            for ( String owner : ids )
+            {
+                if ( !owner.equals( id ) )
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void linkEmail( String email, String id )
+    {
+        if ( email == null )
+        {
+            return;
+        }
+
+        byEmail.compute( email, ( k, ids ) -> {
+            if ( ids == null )
+            {
+                return new String[] { id };
+            }
+
+            String[] linked = Arrays.copyOf( ids, ids.length + 1 );
+            linked[ids.length] = id;
+
+            return linked;
+        } );
+    }
+
+    private void unlinkEmail( String email, String id )
+    {
+        if ( email == null )
+        {
+            return;
+        }
+
+        byEmail.computeIfPresent( email, ( k, ids ) -> {
+            List<String> remaining = new ArrayList<String>( Arrays.asList( ids ) );
+            remaining.remove( id );
+
+            return remaining.isEmpty() ? null : remaining.toArray( NO_IDS );
+        } );
+    }
+}
@@ -0,0 +1,230 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary copy of every account in persist-data.xml, kept next to it as persist-data.xml.idx, so that services
+ * loading all accounts at startup can skip parsing the XML. The index records the size, modification time and file
+ * key of the data file as it was when the accounts were read from or written to it, see {@link AccountXmlFile#stamp()},
+ * and ends with a CRC32 of its content. It is memory mapped and validated against both on startup, any mismatch means
+ * the XML is parsed again and a fresh index written.
+ * <p>
+ * Layout: <code>[magic][format][data file stamp][count] records [crc]</code>, each record as its length followed by
+ * its {@link BinaryAccountCodec} encoding.
+ */
+final class AccountIndexFile
+{
+    private static final int MAGIC = 0x41434958;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final AccountCodec CODEC = new BinaryAccountCodec();
+
+    private final AccountXmlFile xmlFile;
+
+    private final File dataFile;
+
+    private final File file;
+
+    AccountIndexFile( AccountXmlFile xmlFile )
+    {
+        this.xmlFile = xmlFile;
+        this.dataFile = new File( xmlFile.getFile() );
+        this.file = new File( xmlFile.getFile() + ".idx" );
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Every account of the data file, from the index when it is still valid, else parsed from the XML, in which case
+     * the index is rewritten for the next start.
+     */
+    Map<String, Account> loadAccounts()
+        throws AccountPersistException
+    {
+        if ( !dataFile.exists() )
+        {
+            return xmlFile.readAccounts();
+        }
+
+        Map<String, Account> accounts = read();
+
+        if ( accounts == null )
+        {
+            // taken before parsing, so a change made meanwhile leaves an index that no longer matches
+            String stamp = xmlFile.stampQuietly();
+
+            accounts = xmlFile.readAccounts();
+
+            try
+            {
+                write( accounts.values(), stamp );
+            }
+            catch ( AccountPersistException e )
+            {
+                // the next start parses the XML again
+            }
+        }
+
+        return accounts;
+    }
+
+    /**
+     * The accounts as of the index, or null when there is no index, it is corrupt or the data file changed since it
+     * was written.
+     */
+    Map<String, Account> read()
+    {
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+        {
+            long size = channel.size();
+
+            if ( size < 12 || size > Integer.MAX_VALUE )
+            {
+                return null;
+            }
+
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+
+            CRC32 crc = new CRC32();
+            crc.update( buffer.duplicate().limit( (int) size - 4 ) );
+
+            if ( (int) crc.getValue() != buffer.getInt( (int) size - 4 ) )
+            {
+                return null;
+            }
+
+            DataInputStream in = new DataInputStream( new BufferInputStream( buffer.limit( (int) size - 4 ) ) );
+
+            String stamp = xmlFile.stamp();
+
+            if ( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals( stamp ) )
+            {
+                return null;
+            }
+
+            Map<String, Account> accounts = new LinkedHashMap<String, Account>();
+
+            for ( int i = in.readInt(); i > 0; i-- )
+            {
+                byte[] record = new byte[in.readInt()];
+                in.readFully( record );
+
+                Account account = CODEC.decode( record, 0, record.length );
+
+                accounts.put( account.getId(), account );
+            }
+
+            xmlFile.markKnown( stamp );
+
+            return accounts;
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index for the accounts the data file held when it had the given stamp, taken before they were read
+     * from it or right after they were written to it. A <code>null</code> stamp, or a missing data file, removes the
+     * index instead.
+     */
+    void write( Collection<Account> accounts, String stamp )
+        throws AccountPersistException
+    {
+        if ( stamp == null || !dataFile.exists() )
+        {
+            file.delete();
+
+            return;
+        }
+
+        File tempFile = new File( file.getPath() + ".tmp" );
+
+        try
+        {
+            try ( FileOutputStream fileOut = new FileOutputStream( tempFile ) )
+            {
+                CheckedOutputStream checked =
+                    new CheckedOutputStream( new BufferedOutputStream( fileOut ), new CRC32() );
+                DataOutputStream out = new DataOutputStream( checked );
+
+                out.writeInt( MAGIC );
+                out.writeInt( FORMAT_VERSION );
+                out.writeUTF( stamp );
+                out.writeInt( accounts.size() );
+
+                for ( Account account : accounts )
+                {
+                    byte[] record = CODEC.encode( account );
+
+                    out.writeInt( record.length );
+                    out.write( record );
+                }
+
+                out.flush();
+                new DataOutputStream( fileOut ).writeInt( (int) checked.getChecksum().getValue() );
+                fileOut.getFD().sync();
+            }
+
+            Files.move( tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e )
+        {
+            tempFile.delete();
+
+            throw new AccountPersistException( "Unable to write persist index " + file.getName(), e );
+        }
+    }
+
+    private static final class BufferInputStream
+        extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        BufferInputStream( ByteBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read( byte[] b, int off, int len )
+        {
+            if ( !buffer.hasRemaining() )
+            {
+                return -1;
+            }
+
+            int count = Math.min( len, buffer.remaining() );
+            buffer.get( b, off, count );
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of account records. Records are framed as <code>[length][crc32]([op][account])+</code>, so a
+ * frame torn by a crash is detected and cut off on replay. A frame usually holds one record, the records appended
+ * together by {@link #append(byte[], Account[])} share one and are replayed all or not at all.
+ * <p>
+ * An appended record is handed to the operating system at once but only durable after {@link #sync(GroupCommit.Batch)},
+ * which forces the file to disk through a {@link GroupCommit}: writers appending concurrently share one fsync, and
+ * appending does not wait for an fsync in progress.
+ */
+final class AccountLogFile
+{
+    interface RecordHandler
+    {
+        void apply( byte op, Account account );
+    }
+
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+    private final File file;
+
+    private FileOutputStream fileOut;
+
+    private DataOutputStream out;
+
+    private long length;
+
+    private final GroupCommit<Long> syncs = new GroupCommit<Long>( appended -> force(), 0 );
+
+    AccountLogFile( File file )
+    {
+        this.file = file;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Feeds every intact record to the handler, truncates anything after the last intact one and returns the number
+     * of records replayed.
+     */
+    int replay( RecordHandler handler )
+        throws AccountPersistException
+    {
+        if ( !file.exists() )
+        {
+            return 0;
+        }
+
+        int records = 0;
+        long validLength = 0;
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+        {
+            while ( true )
+            {
+                byte[] bytes;
+                int checksum;
+
+                try
+                {
+                    int length = in.readInt();
+
+                    if ( length <= 0 || length > MAX_RECORD_LENGTH )
+                    {
+                        break;
+                    }
+
+                    bytes = new byte[length];
+                    checksum = in.readInt();
+                    in.readFully( bytes );
+                }
+                catch ( EOFException e )
+                {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update( bytes );
+
+                if ( (int) crc.getValue() != checksum )
+                {
+                    break;
+                }
+
+                DataInputStream frame = new DataInputStream( new ByteArrayInputStream( bytes ) );
+
+                while ( frame.available() > 0 )
+                {
+                    byte op = frame.readByte();
+                    handler.apply( op, BinaryAccountCodec.readAccount( frame ) );
+
+                    records++;
+                }
+
+                validLength += 8 + bytes.length;
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to replay persist log", e );
+        }
+
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+        {
+            if ( raf.length() > validLength )
+            {
+                raf.setLength( validLength );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to truncate persist log", e );
+        }
+
+        return records;
+    }
+
+    /**
+     * Opens the file for appending, keeping what is already there.
+     */
+    synchronized void open()
+        throws AccountPersistException
+    {
+        open( true );
+    }
+
+    /**
+     * Drops every record and keeps the file open for appending.
+     */
+    synchronized void reset()
+        throws AccountPersistException
+    {
+        close();
+        open( false );
+    }
+
+    /**
+     * Writes the record and returns the batch to {@link #sync(GroupCommit.Batch)} on to make it durable.
+     */
+    GroupCommit.Batch append( byte op, Account account )
+        throws AccountPersistException
+    {
+        return append( new byte[] { op }, new Account[] { account } );
+    }
+
+    /**
+     * Writes the records in one frame, so a crash keeps either all of them or none, and returns the batch to
+     * {@link #sync(GroupCommit.Batch)} on to make them durable.
+     */
+    synchronized GroupCommit.Batch append( byte[] ops, Account[] accounts )
+        throws AccountPersistException
+    {
+        try
+        {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream( 128 * ops.length );
+            DataOutputStream payload = new DataOutputStream( buffer );
+
+            for ( int i = 0; i < ops.length; i++ )
+            {
+                payload.writeByte( ops[i] );
+                BinaryAccountCodec.writeAccount( payload, accounts[i] );
+            }
+
+            byte[] bytes = buffer.toByteArray();
+
+            if ( bytes.length > MAX_RECORD_LENGTH )
+            {
+                throw new AccountPersistException( "Too many changes for one persist log record: " + bytes.length
+                    + " bytes" );
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update( bytes );
+
+            out.writeInt( bytes.length );
+            out.writeInt( (int) crc.getValue() );
+            out.write( bytes );
+            out.flush();
+
+            length += 8 + bytes.length;
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to append to persist log", e );
+        }
+
+        return syncs.submit( length );
+    }
+
+    /**
+     * Blocks until the records appended before the batch was handed out are on disk.
+     */
+    void sync( GroupCommit.Batch batch )
+        throws AccountPersistException
+    {
+        syncs.await( batch );
+    }
+
+    /**
+     * Forces the remaining records to disk and closes the file. Syncing afterwards has nothing left to do.
+     */
+    synchronized void close()
+        throws AccountPersistException
+    {
+        if ( out == null )
+        {
+            return;
+        }
+
+        try
+        {
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to close persist log", e );
+        }
+        finally
+        {
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    /**
+     * Forces the channel taken under the lock, but outside it, so appends carry on during the fsync.
+     */
+    private void force()
+        throws AccountPersistException
+    {
+        FileChannel channel;
+
+        synchronized ( this )
+        {
+            if ( out == null )
+            {
+                // closed, which forced the file
+                return;
+            }
+
+            channel = fileOut.getChannel();
+        }
+
+        try
+        {
+            channel.force( false );
+        }
+        catch ( ClosedByInterruptException e )
+        {
+            throw new AccountPersistException( "Interrupted while syncing persist log", e );
+        }
+        catch ( ClosedChannelException e )
+        {
+            // closed or reset meanwhile, which forced the file
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to sync persist log", e );
+        }
+    }
+
+    private synchronized void open( boolean append )
+        throws AccountPersistException
+    {
+        try
+        {
+            fileOut = new FileOutputStream( file, append );
+            out = new DataOutputStream( new BufferedOutputStream( fileOut ) );
+            length = append ? file.length() : 0;
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to open persist log", e );
+        }
+    }
+}
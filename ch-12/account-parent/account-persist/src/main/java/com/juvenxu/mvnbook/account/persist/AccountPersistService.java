@@ -1,16 +1,214 @@
 package com.juvenxu.mvnbook.account.persist;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
 public interface AccountPersistService
 {
+    /**
+     * Stores the account with version 1. Its email must not belong to another account, ignoring case: the check is
+     * made atomically with the create, which otherwise fails with a {@link DuplicateEmailException} and changes
+     * nothing.
+     */
     Account createAccount( Account account )
     	throws AccountPersistException;
 
     Account readAccount( String id )
     	throws AccountPersistException;
 
+    /**
+     * Replaces the stored account, or returns null when there is none. Like a create, the update fails with a
+     * {@link DuplicateEmailException} and changes nothing when the new email belongs to another account.
+     */
     Account updateAccount( Account account )
     	throws AccountPersistException;
 
     void deleteAccount( String id )
     	throws AccountPersistException;
+
+    /**
+     * Updates the account only if its stored version still equals <code>expectedVersion</code>, which lets
+     * concurrent read-modify-write cycles on one account detect each other without locking. On success the new
+     * version is set on the given account.
+     *
+     * @return <code>false</code> if the account does not exist or was changed since <code>expectedVersion</code>
+     */
+    boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException;
+
+    /**
+     * Finds an account by its email, ignoring case. Creates and updates keep emails unique, so at most one matches.
+     */
+    Account findAccountByEmail( String email )
+        throws AccountPersistException;
+
+    /**
+     * Streams every account straight from the storage, without collecting them first. The stream splits along the
+     * storage's own structure, so it can be processed in parallel, and it may hold files or a read snapshot open: close
+     * it, for example with try-with-resources. The order is up to the implementation. A storage failure while the
+     * stream is consumed surfaces as an {@link IllegalStateException} caused by an {@link AccountPersistException}.
+     */
+    Stream<Account> scanAccounts()
+        throws AccountPersistException;
+
+    /**
+     * A page of at most <code>limit</code> accounts with ids greater than <code>afterId</code>, in id order. Pass
+     * <code>null</code> for the first page and the last id of a page for the next one. This default scans every
+     * account and keeps the page in a bounded heap, services that store accounts in id order override it.
+     */
+    default List<Account> listAccounts( String afterId, int limit )
+        throws AccountPersistException
+    {
+        Comparator<Account> byId = Comparator.comparing( Account::getId );
+        PriorityQueue<Account> page = new PriorityQueue<Account>( Math.max( 1, limit + 1 ), byId.reversed() );
+
+        if ( limit > 0 )
+        {
+            try ( Stream<Account> accounts = scanAccounts() )
+            {
+                accounts.sequential()
+                    .filter( account -> afterId == null || account.getId().compareTo( afterId ) > 0 )
+                    .forEach( account -> {
+                        page.offer( account );
+
+                        if ( page.size() > limit )
+                        {
+                            page.poll();
+                        }
+                    } );
+            }
+            catch ( IllegalStateException e )
+            {
+                if ( e.getCause() instanceof AccountPersistException )
+                {
+                    throw (AccountPersistException) e.getCause();
+                }
+
+                throw e;
+            }
+        }
+
+        List<Account> results = new ArrayList<Account>( page );
+        results.sort( byId );
+
+        return results;
+    }
+
+    /**
+     * Whether {@link #applyChanges(List)} applies all changes or none. Services that override it say so.
+     */
+    default boolean isTransactional()
+    {
+        return false;
+    }
+
+    /**
+     * Starts a unit of work that buffers changes until {@link AccountTransaction#commit()}.
+     *
+     * @throws UnsupportedOperationException if the service is not {@link #isTransactional() transactional}, so no
+     *             transaction is handed out that could never commit
+     */
+    default AccountTransaction beginTransaction()
+    {
+        if ( !isTransactional() )
+        {
+            throw new UnsupportedOperationException( getClass().getSimpleName() + " cannot apply changes atomically" );
+        }
+
+        return new AccountTransaction( this );
+    }
+
+    /**
+     * Applies the changes of a committed {@link AccountTransaction} in order, all of them or none. An update of an
+     * account that does not exist fails the commit. Services that can write every change at once override this
+     * default and {@link #isTransactional()}, the default refuses the changes rather than leave part of them applied
+     * when one fails.
+     */
+    default void applyChanges( List<AccountChange> changes )
+        throws AccountPersistException
+    {
+        throw new AccountPersistException( getClass().getSimpleName() + " cannot apply " + changes.size()
+            + " changes atomically" );
+    }
+
+    /**
+     * Creates every account. The result holds the created accounts in the order given. This default calls
+     * {@link #createAccount(Account)} once per account, so it costs as much as creating them one by one and a failure
+     * leaves the accounts before it created. Services that can write a batch at once override it.
+     */
+    default List<Account> createAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        List<Account> results = new ArrayList<Account>( accounts.size() );
+
+        for ( Account account : accounts )
+        {
+            results.add( createAccount( account ) );
+        }
+
+        return results;
+    }
+
+    /**
+     * Reads every id. The result is in the order given, with <code>null</code> for unknown ids. This default calls
+     * {@link #readAccount(String)} once per id.
+     */
+    default List<Account> readAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        List<Account> results = new ArrayList<Account>( ids.size() );
+
+        for ( String id : ids )
+        {
+            results.add( readAccount( id ) );
+        }
+
+        return results;
+    }
+
+    /**
+     * Updates every account. The result is in the order given, with <code>null</code> for accounts that do not exist.
+     * This default calls {@link #updateAccount(Account)} once per account, so it costs as much as updating them one
+     * by one and a failure leaves the accounts before it updated.
+     */
+    default List<Account> updateAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        List<Account> results = new ArrayList<Account>( accounts.size() );
+
+        for ( Account account : accounts )
+        {
+            results.add( updateAccount( account ) );
+        }
+
+        return results;
+    }
+
+    /**
+     * Deletes every id. The result tells, in the order given, whether each account existed. This default reads each
+     * id to find out and then deletes the accounts that exist one by one, so it costs a read and a write per id.
+     */
+    default List<Boolean> deleteAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        List<Boolean> results = new ArrayList<Boolean>( ids.size() );
+
+        for ( String id : ids )
+        {
+            boolean existed = readAccount( id ) != null;
+
+            if ( existed )
+            {
+                deleteAccount( id );
+            }
+
+            results.add( existed );
+        }
+
+        return results;
+    }
 }
@@ -1,32 +1,77 @@
 package com.juvenxu.mvnbook.account.persist;
 
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.ELEMENT_ACCOUNT;
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.ELEMENT_ACCOUNTS;
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.ELEMENT_ACCOUNT_EMAIL;
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.ELEMENT_ACCOUNT_ID;
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.buildAccount;
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.buildAccountElement;
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.elementVersion;
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.indexAccountElements;
+import static com.juvenxu.mvnbook.account.persist.AccountXmlFile.updateAccountElement;
+
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Keeps accounts in a single persist-data.xml. The bean is shared by every request thread: reads of the file run in
+ * parallel under a read lock, while each read-modify-write of the document holds the write lock, so concurrent
+ * writers cannot overwrite each other's changes.
+ * <p>
+ * Writes replace the file atomically and are group committed: a writer hands its document to a {@link GroupCommit}
+ * and waits for it outside the lock, so writers arriving meanwhile build on that document and share the next fsync.
+ * <p>
+ * A Bloom filter of the known ids answers reads of ids that were never created without touching the file, which
+ * is what logins with a wrong id mostly ask for. An index of the emails answers lookups by email with a read of the
+ * one account, and lets a create check that its email is free in the same write lock. Both are dropped and rebuilt
+ * when someone else changes the file, which <code>watchFile</code> notices right away and every write checks. The id
+ * filter's answer that an id is unknown is only trusted after checking that the file is still as last seen.
+ */
+public class AccountPersistServiceImpl
+        implements AccountPersistService, InitializingBean, DisposableBean {
+    private String file;
 
-import org.dom4j.DocumentException;
-import org.dom4j.DocumentHelper;
-import org.dom4j.io.OutputFormat;
-import org.dom4j.io.SAXReader;
-import org.dom4j.io.XMLWriter;
+    private AccountXmlFile xmlFile;
 
-public class AccountPersistServiceImpl
-        implements AccountPersistService {
-    private static final String ELEMENT_ROOT = "account-persist";
-    private static final String ELEMENT_ACCOUNTS = "accounts";
-    private static final String ELEMENT_ACCOUNT = "account";
-    private static final String ELEMENT_ACCOUNT_ID = "id";
-    private static final String ELEMENT_ACCOUNT_NAME = "name";
-    private static final String ELEMENT_ACCOUNT_EMAIL = "email";
-    private static final String ELEMENT_ACCOUNT_PASSWORD = "password";
-    private static final String ELEMENT_ACCOUNT_ACTIVATED = "activated";
+    private boolean streamingRead;
 
-    private String file;
+    private long commitWindow;
+
+    private GroupCommit<org.dom4j.Document> groupCommit = createGroupCommit();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private double idFilterFalsePositiveRate = 0.01;
+
+    /**
+     * Built on first read, then updated by every create under the write lock.
+     */
+    private volatile AccountIdFilter idFilter;
 
-    private SAXReader reader = new SAXReader();
+    /**
+     * Email to id of every account in the latest document, built on first use and then kept up to date by every write
+     * under the write lock. Dropped when someone else changed the file or a commit failed.
+     */
+    private volatile AccountIndex<Boolean> emailIndex;
+
+    private final AtomicLong savedLookups = new AtomicLong();
+
+    private boolean watchFile;
+
+    private AccountFileWatcher watcher;
 
     public String getFile() {
         return file;
@@ -34,132 +79,740 @@ public class AccountPersistServiceImpl
 
     public void setFile(String file) {
         this.file = file;
+        this.xmlFile = new AccountXmlFile(file);
+    }
+
+    public boolean isStreamingRead() {
+        return streamingRead;
+    }
+
+    /**
+     * When set, readAccount scans the file with a StAX cursor and stops at the matching account instead of building
+     * a dom4j document of every account.
+     */
+    public void setStreamingRead(boolean streamingRead) {
+        this.streamingRead = streamingRead;
+    }
+
+    public long getCommitWindow() {
+        return commitWindow;
+    }
+
+    /**
+     * How many milliseconds the leading writer waits for other writers to join its commit. Writers queueing up
+     * behind a running commit are grouped even when this is 0.
+     */
+    public void setCommitWindow(long commitWindow) {
+        this.commitWindow = commitWindow;
+        this.groupCommit = createGroupCommit();
+    }
+
+    public double getIdFilterFalsePositiveRate() {
+        return idFilterFalsePositiveRate;
+    }
+
+    /**
+     * How often the id filter may let an unknown id through to the file, 0.01 by default. 0 turns the filter off.
+     */
+    public void setIdFilterFalsePositiveRate(double idFilterFalsePositiveRate) {
+        if (idFilterFalsePositiveRate < 0 || idFilterFalsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be at least 0 and below 1: "
+                    + idFilterFalsePositiveRate);
+        }
+
+        this.idFilterFalsePositiveRate = idFilterFalsePositiveRate;
+        this.idFilter = null;
+    }
+
+    /**
+     * Number of reads the id filter answered without reading the file.
+     */
+    public long getSavedLookups() {
+        return savedLookups.get();
+    }
+
+    public boolean isWatchFile() {
+        return watchFile;
+    }
+
+    public void setWatchFile(boolean watchFile) {
+        this.watchFile = watchFile;
+    }
+
+    public void afterPropertiesSet()
+            throws Exception {
+        if (watchFile) {
+            watcher = new AccountFileWatcher(new File(file), AccountFileWatcher.DEFAULT_QUIET_PERIOD,
+                    this::fileChanged);
+            watcher.start();
+        }
+    }
+
+    public void destroy() {
+        if (watcher != null) {
+            watcher.close();
+        }
     }
 
     public Account createAccount(Account account)
             throws AccountPersistException {
-        org.dom4j.Document doc = readDocument();
+        GroupCommit.Batch batch;
+
+        lock.writeLock().lock();
+
+        try {
+            org.dom4j.Document doc = readLatestDocument();
+
+            AccountIndex<Boolean> emails = emailIndex(doc);
+
+            if (emails.isEmailTaken(account.getEmail(), account.getId())) {
+                throw new DuplicateEmailException(account.getEmail());
+            }
 
-        org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+            org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
 
-        accountsEle.add(buildAccountElement(account));
+            account.setVersion(1);
+            accountsEle.add(buildAccountElement(account));
 
-        writeDocument(doc);
+            batch = writeDocument(doc);
+
+            rememberId(doc, account.getId());
+            emails.put(account.getId(), account.getEmail(), Boolean.TRUE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        awaitCommit(batch);
 
         return account;
     }
 
     public void deleteAccount(String id)
             throws AccountPersistException {
-        org.dom4j.Document doc = readDocument();
+        GroupCommit.Batch batch = null;
+
+        lock.writeLock().lock();
+
+        try {
+            org.dom4j.Document doc = readLatestDocument();
+
+            org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
 
-        org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+            for (Iterator<org.dom4j.Element> it = accountsEle.elementIterator(ELEMENT_ACCOUNT); it.hasNext();) {
+                org.dom4j.Element accountEle = it.next();
+                if (accountEle.elementText(ELEMENT_ACCOUNT_ID).equals(id)) {
+                    accountsEle.remove(accountEle);
 
-        for (Iterator<org.dom4j.Element> it = accountsEle.elementIterator(ELEMENT_ACCOUNT); it.hasNext();) {
-            org.dom4j.Element accountEle = it.next();
-            if (accountEle.elementText(ELEMENT_ACCOUNT_ID).equals(id)) {
-                accountsEle.remove(accountEle);
+                    batch = writeDocument(doc);
 
-                writeDocument(doc);
+                    forgetEmail(id);
 
-                return;
+                    break;
+                }
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (batch != null) {
+            awaitCommit(batch);
         }
     }
 
     public Account readAccount(String id)
             throws AccountPersistException {
-        org.dom4j.Document doc = readDocument();
+        prepareIdFilter();
 
-        org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+        lock.readLock().lock();
 
-        for (Iterator<org.dom4j.Element> it = accountsEle.elementIterator(ELEMENT_ACCOUNT); it.hasNext();) {
-            org.dom4j.Element accountEle = it.next();
-            if (accountEle.elementText(ELEMENT_ACCOUNT_ID).equals(id)) {
-                return buildAccount(accountEle);
+        try {
+            if (isUnknownId(id)) {
+                return null;
             }
+
+            if (streamingRead) {
+                return xmlFile.findAccount(id);
+            }
+
+            org.dom4j.Document doc = readDocument();
+
+            org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+
+            for (Iterator<org.dom4j.Element> it = accountsEle.elementIterator(ELEMENT_ACCOUNT); it.hasNext();) {
+                org.dom4j.Element accountEle = it.next();
+                if (accountEle.elementText(ELEMENT_ACCOUNT_ID).equals(id)) {
+                    return buildAccount(accountEle);
+                }
+            }
+
+            return null;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
+
+    /**
+     * Looks the id up in the email index and reads that account only.
+     */
+    public Account findAccountByEmail(String email)
+            throws AccountPersistException {
+        String id = prepareEmailIndex().idForEmail(email);
 
-        return null;
+        if (id == null) {
+            return null;
+        }
+
+        Account account = readAccount(id);
+
+        // the account may have changed its email since the lookup
+        if (account == null || !AccountIndex.normalizeEmail(email).equals(
+                AccountIndex.normalizeEmail(account.getEmail()))) {
+            return null;
+        }
+
+        return account;
     }
 
+    /**
+     * Streams the file with a StAX cursor, one account in memory at a time. Writers replace the file rather than
+     * rewrite it, so the stream keeps reading the version that was current when it was opened.
+     */
+    public Stream<Account> scanAccounts()
+            throws AccountPersistException {
+        lock.readLock().lock();
+
+        try {
+            return xmlFile.streamAccounts();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Overwrites the account element in place, in the same single pass over the document as any other write.
+     */
     public Account updateAccount(Account account)
             throws AccountPersistException {
-        if (readAccount(account.getId()) != null) {
-            deleteAccount(account.getId());
+        return update(account, -1) ? account : null;
+    }
+
+    public boolean compareAndUpdate(long expectedVersion, Account account)
+            throws AccountPersistException {
+        return update(account, expectedVersion);
+    }
+
+    /**
+     * Updates the account element if it exists and, unless expectedVersion is negative, still has that version.
+     */
+    private boolean update(Account account, long expectedVersion)
+            throws AccountPersistException {
+        GroupCommit.Batch batch;
+
+        lock.writeLock().lock();
+
+        try {
+            org.dom4j.Document doc = readLatestDocument();
+
+            org.dom4j.Element accountEle = null;
+
+            org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+
+            for (Iterator<org.dom4j.Element> it = accountsEle.elementIterator(ELEMENT_ACCOUNT); it.hasNext();) {
+                org.dom4j.Element candidate = it.next();
+                if (candidate.elementText(ELEMENT_ACCOUNT_ID).equals(account.getId())) {
+                    accountEle = candidate;
+                    break;
+                }
+            }
+
+            if (accountEle == null || (expectedVersion >= 0 && elementVersion(accountEle) != expectedVersion)) {
+                return false;
+            }
+
+            if (emailIndex(doc).isEmailTaken(account.getEmail(), account.getId())) {
+                throw new DuplicateEmailException(account.getEmail());
+            }
+
+            updateAccountElement(accountEle, account);
+
+            batch = writeDocument(doc);
+
+            indexEmail(account);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        awaitCommit(batch);
+
+        return true;
+    }
+
+    public List<Account> createAccounts(Collection<Account> accounts)
+            throws AccountPersistException {
+        GroupCommit.Batch batch;
+
+        lock.writeLock().lock();
+
+        try {
+            org.dom4j.Document doc = readLatestDocument();
+
+            AccountIndex<Boolean> emails = emailIndex(doc);
+            EmailClaims claims = new EmailClaims(emails::isEmailTaken);
+
+            for (Account account : accounts) {
+                claims.claim(account);
+            }
+
+            org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+
+            for (Account account : accounts) {
+                account.setVersion(1);
+                accountsEle.add(buildAccountElement(account));
+            }
+
+            batch = writeDocument(doc);
 
-            return createAccount(account);
+            for (Account account : accounts) {
+                rememberId(doc, account.getId());
+                emails.put(account.getId(), account.getEmail(), Boolean.TRUE);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
 
-        return null;
+        awaitCommit(batch);
+
+        return new ArrayList<Account>(accounts);
     }
 
-    private Account buildAccount(org.dom4j.Element element) {
-        Account account = new Account();
+    public List<Account> readAccounts(Collection<String> ids)
+            throws AccountPersistException {
+        prepareIdFilter();
 
-        account.setId(element.elementText(ELEMENT_ACCOUNT_ID));
-        account.setName(element.elementText(ELEMENT_ACCOUNT_NAME));
-        account.setEmail(element.elementText(ELEMENT_ACCOUNT_EMAIL));
-        account.setPassword(element.elementText(ELEMENT_ACCOUNT_PASSWORD));
-        account.setActivated(("true".equals(element.elementText(ELEMENT_ACCOUNT_ACTIVATED)) ? true : false));
+        lock.readLock().lock();
 
-        return account;
+        try {
+            Map<String, org.dom4j.Element> elements = null;
+
+            List<Account> results = new ArrayList<Account>(ids.size());
+
+            for (String id : ids) {
+                if (isUnknownId(id)) {
+                    results.add(null);
+                    continue;
+                }
+
+                if (elements == null) {
+                    elements = indexAccountElements(readDocument());
+                }
+
+                org.dom4j.Element accountEle = elements.get(id);
+                results.add(accountEle == null ? null : buildAccount(accountEle));
+            }
+
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Account> updateAccounts(Collection<Account> accounts)
+            throws AccountPersistException {
+        List<Account> results = new ArrayList<Account>(accounts.size());
+        GroupCommit.Batch batch = null;
+
+        lock.writeLock().lock();
+
+        try {
+            org.dom4j.Document doc = readLatestDocument();
+
+            Map<String, org.dom4j.Element> elements = indexAccountElements(doc);
+            boolean changed = false;
+
+            EmailClaims claims = new EmailClaims(emailIndex(doc)::isEmailTaken);
+
+            for (Account account : accounts) {
+                if (elements.containsKey(account.getId())) {
+                    claims.claim(account);
+                }
+            }
+
+            for (Account account : accounts) {
+                org.dom4j.Element accountEle = elements.get(account.getId());
+
+                if (accountEle == null) {
+                    results.add(null);
+                } else {
+                    updateAccountElement(accountEle, account);
+                    indexEmail(account);
+                    results.add(account);
+                    changed = true;
+                }
+            }
+
+            if (changed) {
+                batch = writeDocument(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (batch != null) {
+            awaitCommit(batch);
+        }
+
+        return results;
     }
 
-    private org.dom4j.Element buildAccountElement(Account account) {
-        org.dom4j.Element element = DocumentHelper.createElement(ELEMENT_ACCOUNT);
+    public List<Boolean> deleteAccounts(Collection<String> ids)
+            throws AccountPersistException {
+        List<Boolean> results = new ArrayList<Boolean>(ids.size());
+        GroupCommit.Batch batch = null;
+
+        lock.writeLock().lock();
+
+        try {
+            org.dom4j.Document doc = readLatestDocument();
+
+            org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+
+            Map<String, org.dom4j.Element> elements = indexAccountElements(doc);
 
-        element.addElement(ELEMENT_ACCOUNT_ID).setText(account.getId());
-        element.addElement(ELEMENT_ACCOUNT_NAME).setText(account.getName());
-        element.addElement(ELEMENT_ACCOUNT_EMAIL).setText(account.getEmail());
-        element.addElement(ELEMENT_ACCOUNT_PASSWORD).setText(account.getPassword());
-        element.addElement(ELEMENT_ACCOUNT_ACTIVATED).setText(account.isActivated() ? "true" : "false");
+            for (String id : ids) {
+                org.dom4j.Element accountEle = elements.remove(id);
 
-        return element;
+                if (accountEle == null) {
+                    results.add(false);
+                } else {
+                    accountsEle.remove(accountEle);
+                    forgetEmail(id);
+                    results.add(true);
+                }
+            }
+
+            if (results.contains(Boolean.TRUE)) {
+                batch = writeDocument(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (batch != null) {
+            awaitCommit(batch);
+        }
+
+        return results;
+    }
+
+    public boolean isTransactional() {
+        return true;
+    }
+
+    /**
+     * Applies every change to one document and writes it once, so either all of them land or, when an update finds
+     * no account, a create or an update finds its email taken or the write fails, none.
+     */
+    public void applyChanges(List<AccountChange> changes)
+            throws AccountPersistException {
+        GroupCommit.Batch batch;
+
+        lock.writeLock().lock();
+
+        try {
+            org.dom4j.Document doc = readLatestDocument();
+
+            org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+
+            Map<String, org.dom4j.Element> elements = indexAccountElements(doc);
+
+            checkChanges(changes, elements.keySet(), emailIndex(doc));
+
+            for (AccountChange change : changes) {
+                Account account = change.getAccount();
+
+                if (change.getKind() == AccountChange.Kind.CREATE) {
+                    account.setVersion(1);
+                    org.dom4j.Element accountEle = buildAccountElement(account);
+                    accountsEle.add(accountEle);
+                    elements.put(account.getId(), accountEle);
+                } else if (change.getKind() == AccountChange.Kind.UPDATE) {
+                    updateAccountElement(elements.get(account.getId()), account);
+                } else {
+                    org.dom4j.Element accountEle = elements.remove(change.getId());
+                    if (accountEle != null) {
+                        accountsEle.remove(accountEle);
+                    }
+                }
+            }
+
+            batch = writeDocument(doc);
+
+            for (AccountChange change : changes) {
+                if (change.getKind() == AccountChange.Kind.CREATE) {
+                    rememberId(doc, change.getId());
+                }
+
+                if (change.getKind() == AccountChange.Kind.DELETE) {
+                    forgetEmail(change.getId());
+                } else {
+                    indexEmail(change.getAccount());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        awaitCommit(batch);
     }
 
+    /**
+     * Fails before anything is touched when an update would find no account or a create or an update an email taken,
+     * tracking the ids the changes create and delete along the way.
+     */
+    private static void checkChanges(List<AccountChange> changes, Set<String> existingIds,
+            AccountIndex<Boolean> emails)
+            throws AccountPersistException {
+        Set<String> ids = new HashSet<String>(existingIds);
+        EmailClaims claims = new EmailClaims(emails::isEmailTaken);
+
+        for (AccountChange change : changes) {
+            if (change.getKind() == AccountChange.Kind.CREATE) {
+                claims.claim(change.getAccount());
+                ids.add(change.getId());
+            } else if (change.getKind() == AccountChange.Kind.DELETE) {
+                ids.remove(change.getId());
+            } else if (!ids.contains(change.getId())) {
+                throw new AccountPersistException("No account " + change.getId() + " to update");
+            } else {
+                claims.claim(change.getAccount());
+            }
+        }
+    }
+
+    /**
+     * The committed document, as seen by readers.
+     */
     private org.dom4j.Document readDocument()
             throws AccountPersistException {
-        File dataFile = new File(file);
+        return xmlFile.readDocument();
+    }
 
-        if (!dataFile.exists()) {
-            dataFile.getParentFile().mkdirs();
+    /**
+     * The document writers build on: the newest one still waiting for its group commit, else the committed one.
+     * Callers hold the write lock. Drops the id filter and the email index when someone else changed the file, as a
+     * write or an index built from this document makes the file known again.
+     */
+    private org.dom4j.Document readLatestDocument()
+            throws AccountPersistException {
+        if (xmlFile.isChangedExternally()) {
+            idFilter = null;
+            emailIndex = null;
+        }
 
-            org.dom4j.Element rootEle = DocumentHelper.createElement(ELEMENT_ROOT);
-            rootEle.addElement(ELEMENT_ACCOUNTS);
-            org.dom4j.Document doc = DocumentHelper.createDocument(rootEle);
+        org.dom4j.Document pending = groupCommit.pending();
 
-            writeDocument(doc);
+        if (pending != null) {
+            return (org.dom4j.Document) pending.clone();
         }
 
+        return xmlFile.readDocument();
+    }
+
+    /**
+     * Builds the id filter on first use. Building takes the write lock, so that the filter covers documents still
+     * waiting for their group commit and no create can slip in between.
+     */
+    private void prepareIdFilter()
+            throws AccountPersistException {
+        if (idFilter != null || idFilterFalsePositiveRate == 0) {
+            return;
+        }
+
+        lock.writeLock().lock();
+
         try {
-            return reader.read(new File(file));
-        } catch (DocumentException e) {
-            throw new AccountPersistException("Unable to read persist data xml", e);
+            if (idFilter == null && idFilterFalsePositiveRate > 0) {
+                String stamp = xmlFile.stampQuietly();
+                boolean fromDisk = groupCommit.pending() == null;
+
+                AccountIdFilter filter = AccountIdFilter.of(indexAccountElements(readLatestDocument()).keySet(),
+                        idFilterFalsePositiveRate);
+
+                markRead(stamp, fromDisk);
+                idFilter = filter;
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    private void writeDocument(org.dom4j.Document doc)
+    /**
+     * True when the email belongs to an account other than <code>id</code>, as the email index tells.
+     */
+    boolean isEmailTaken(String email, String id)
             throws AccountPersistException {
-        Writer out = null;
+        return prepareEmailIndex().isEmailTaken(email, id);
+    }
+
+    /**
+     * Builds the email index on first use, or again once someone else changed the file. Building takes the write lock
+     * like {@link #prepareIdFilter()}, and only marks the file as known when it was read from disk.
+     */
+    private AccountIndex<Boolean> prepareEmailIndex()
+            throws AccountPersistException {
+        AccountIndex<Boolean> emails = emailIndex;
+
+        if (emails != null && !xmlFile.isChangedExternally()) {
+            return emails;
+        }
+
+        lock.writeLock().lock();
 
         try {
-            out = new OutputStreamWriter(new FileOutputStream(file), "utf-8");
-
-            OutputFormat format = OutputFormat.createPrettyPrint();
-            XMLWriter writer = new XMLWriter(out, format);
-            writer.write(doc);
-            writer.close();
-        } catch (IOException e) {
-            throw new AccountPersistException("Unable to write persist data xml", e);
+            String stamp = xmlFile.stampQuietly();
+            boolean fromDisk = groupCommit.pending() == null;
+
+            emails = emailIndex(readLatestDocument());
+
+            markRead(stamp, fromDisk);
+
+            return emails;
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-            } catch (IOException e) {
-                throw new AccountPersistException("Unable to close persist data xml writer", e);
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes the file known as of the stamp taken before an index was built from it, so the indexes are trusted until
+     * someone else changes it again. Not when the index came from a document still waiting for its commit, which
+     * makes the file known once written. Callers hold the write lock.
+     */
+    private void markRead(String stamp, boolean fromDisk) {
+        if (fromDisk && stamp != null) {
+            xmlFile.markKnown(stamp);
+        }
+    }
+
+    /**
+     * The email index, built from the latest document when there is none. Callers hold the write lock.
+     */
+    private AccountIndex<Boolean> emailIndex(org.dom4j.Document doc) {
+        AccountIndex<Boolean> emails = emailIndex;
+
+        if (emails == null) {
+            emails = new AccountIndex<Boolean>();
+
+            org.dom4j.Element accountsEle = doc.getRootElement().element(ELEMENT_ACCOUNTS);
+
+            for (Iterator<org.dom4j.Element> it = accountsEle.elementIterator(ELEMENT_ACCOUNT); it.hasNext();) {
+                org.dom4j.Element accountEle = it.next();
+                emails.put(accountEle.elementText(ELEMENT_ACCOUNT_ID), accountEle.elementText(ELEMENT_ACCOUNT_EMAIL),
+                        Boolean.TRUE);
+            }
+
+            emailIndex = emails;
+        }
+
+        return emails;
+    }
+
+    /**
+     * Moves a written account to its email in the email index, if there is one. Callers hold the write lock.
+     */
+    private void indexEmail(Account account) {
+        AccountIndex<Boolean> emails = emailIndex;
+
+        if (emails != null) {
+            emails.put(account.getId(), account.getEmail(), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Removes a deleted account from the email index, if there is one. Callers hold the write lock.
+     */
+    private void forgetEmail(String id) {
+        AccountIndex<Boolean> emails = emailIndex;
+
+        if (emails != null) {
+            emails.remove(id);
+        }
+    }
+
+    /**
+     * Drops the id filter and the email index when someone else changed the file, the next read builds them from the
+     * file as it is now.
+     */
+    private void fileChanged() {
+        lock.writeLock().lock();
+
+        try {
+            if (xmlFile.isChangedExternally()) {
+                idFilter = null;
+                emailIndex = null;
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * True when the id filter rules the id out and the file is as the filter saw it, someone else may have added the
+     * id otherwise. Callers hold the read lock.
+     */
+    private boolean isUnknownId(String id) {
+        AccountIdFilter filter = idFilter;
+
+        if (filter == null || filter.mightContain(id)) {
+            return false;
+        }
+
+        if (xmlFile.isChangedExternally()) {
+            // the next read builds the filter again, from the file as it is now
+            idFilter = null;
+            return false;
         }
+
+        savedLookups.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Adds a created id to the filter, rebuilding a full filter from the document that now holds it. Callers hold
+     * the write lock.
+     */
+    private void rememberId(org.dom4j.Document doc, String id) {
+        AccountIdFilter filter = idFilter;
+
+        if (filter == null) {
+            return;
+        }
+
+        if (filter.isFull()) {
+            idFilter = AccountIdFilter.of(indexAccountElements(doc).keySet(), idFilterFalsePositiveRate);
+        } else {
+            filter.put(id);
+        }
+    }
+
+    /**
+     * Waits for the batch to be written. A failed commit drops the email index, which already holds its changes.
+     */
+    private void awaitCommit(GroupCommit.Batch batch)
+            throws AccountPersistException {
+        try {
+            groupCommit.await(batch);
+        } catch (AccountPersistException e) {
+            emailIndex = null;
+            throw e;
+        }
+    }
+
+    private GroupCommit<org.dom4j.Document> createGroupCommit() {
+        return new GroupCommit<org.dom4j.Document>(doc -> xmlFile.writeDocument(doc), commitWindow);
+    }
+
+    private GroupCommit.Batch writeDocument(org.dom4j.Document doc) {
+        return groupCommit.submit(doc);
     }
 }
@@ -0,0 +1,28 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.stream.Stream;
+
+/**
+ * A consistent, read only view of every account as of one committed version. Writes committed after the view was
+ * opened are not visible through it, and they are never blocked by it. Iterating visits every account of that
+ * version once, in no particular order. Close the view when done, the versions it pins are kept until then.
+ */
+public interface AccountReadTransaction
+    extends Iterable<Account>, AutoCloseable
+{
+    /**
+     * The commit version this view reads at.
+     */
+    long getVersion();
+
+    Account readAccount( String id );
+
+    Account findAccountByEmail( String email );
+
+    /**
+     * The accounts of this version, like iterating, split by id for parallel processing.
+     */
+    Stream<Account> stream();
+
+    void close();
+}
@@ -0,0 +1,472 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable file of account records sorted by id, as written by the LSM engine. Every
+ * <code>indexInterval</code>th id goes into a sparse index at the end of the file, so a lookup reads a single block of
+ * records instead of the whole segment. Deleted accounts are kept as tombstones until compaction drops them.
+ * <p>
+ * Layout: <code>records, index entries [id][offset], footer [indexOffset][recordCount][magic]</code>.
+ */
+final class AccountSegment
+{
+    /**
+     * Value standing in for a deleted account, in segments as well as in the memtable.
+     */
+    static final Account TOMBSTONE = new Account();
+
+    private static final int MAGIC = 0x4c534d32;
+
+    private static final int FOOTER_SIZE = 16;
+
+    private static final byte RECORD_LIVE = 1;
+
+    private static final byte RECORD_DELETED = 0;
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final String[] blockIds;
+
+    private final long[] blockOffsets;
+
+    private final long dataEnd;
+
+    private final int recordCount;
+
+    /**
+     * The owning service holds one reference, every scan using the segment another.
+     */
+    private final AtomicInteger references = new AtomicInteger( 1 );
+
+    private volatile boolean retired;
+
+    private AccountSegment( File file, FileChannel channel, String[] blockIds, long[] blockOffsets, long dataEnd,
+                            int recordCount )
+    {
+        this.file = file;
+        this.channel = channel;
+        this.blockIds = blockIds;
+        this.blockOffsets = blockOffsets;
+        this.dataEnd = dataEnd;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Writes the entries, which must come in ascending id order, to a new segment file and opens it.
+     */
+    static AccountSegment write( File file, Iterator<Map.Entry<String, Account>> entries, int indexInterval )
+        throws AccountPersistException
+    {
+        List<String> ids = new ArrayList<String>();
+        List<Long> offsets = new ArrayList<Long>();
+        int count = 0;
+
+        try ( FileOutputStream fileOut = new FileOutputStream( file ) )
+        {
+            CountingOutputStream counter = new CountingOutputStream( new BufferedOutputStream( fileOut ) );
+            DataOutputStream out = new DataOutputStream( counter );
+
+            while ( entries.hasNext() )
+            {
+                Map.Entry<String, Account> entry = entries.next();
+
+                if ( count % indexInterval == 0 )
+                {
+                    ids.add( entry.getKey() );
+                    offsets.add( counter.count );
+                }
+
+                writeRecord( out, entry.getKey(), entry.getValue() );
+                count++;
+            }
+
+            long indexOffset = counter.count;
+
+            out.writeInt( ids.size() );
+            for ( int i = 0; i < ids.size(); i++ )
+            {
+                out.writeUTF( ids.get( i ) );
+                out.writeLong( offsets.get( i ) );
+            }
+
+            out.writeLong( indexOffset );
+            out.writeInt( count );
+            out.writeInt( MAGIC );
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        catch ( IOException e )
+        {
+            file.delete();
+
+            throw new AccountPersistException( "Unable to write persist segment " + file.getName(), e );
+        }
+
+        return open( file );
+    }
+
+    static AccountSegment open( File file )
+        throws AccountPersistException
+    {
+        FileChannel channel = null;
+
+        try
+        {
+            channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+
+            long size = channel.size();
+            if ( size < FOOTER_SIZE + 4 )
+            {
+                throw new IOException( "segment is truncated" );
+            }
+
+            DataInputStream footer = read( channel, size - FOOTER_SIZE, FOOTER_SIZE );
+            long indexOffset = footer.readLong();
+            int recordCount = footer.readInt();
+            if ( footer.readInt() != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER_SIZE - 4 )
+            {
+                throw new IOException( "segment footer is corrupt" );
+            }
+
+            DataInputStream index = read( channel, indexOffset, (int) ( size - FOOTER_SIZE - indexOffset ) );
+            int blocks = index.readInt();
+            String[] blockIds = new String[blocks];
+            long[] blockOffsets = new long[blocks];
+            for ( int i = 0; i < blocks; i++ )
+            {
+                blockIds[i] = index.readUTF();
+                blockOffsets[i] = index.readLong();
+            }
+
+            return new AccountSegment( file, channel, blockIds, blockOffsets, indexOffset, recordCount );
+        }
+        catch ( IOException e )
+        {
+            closeQuietly( channel );
+
+            throw new AccountPersistException( "Unable to open persist segment " + file.getName(), e );
+        }
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    int size()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Returns the account, {@link #TOMBSTONE} when the segment records it as deleted, or null when the segment does
+     * not know the id.
+     */
+    Account get( String id )
+        throws AccountPersistException
+    {
+        int block = floorBlock( id );
+
+        if ( block < 0 )
+        {
+            return null;
+        }
+
+        for ( Map.Entry<String, Account> entry : readBlock( block ) )
+        {
+            int order = entry.getKey().compareTo( id );
+
+            if ( order == 0 )
+            {
+                return entry.getValue();
+            }
+            if ( order > 0 )
+            {
+                break;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Iterates over every record, tombstones included, in id order, reading one block at a time.
+     */
+    Iterator<Map.Entry<String, Account>> iterator()
+    {
+        return iterator( null );
+    }
+
+    /**
+     * Iterates like {@link #iterator()}, starting at the first id not less than <code>from</code>, read from the index
+     * block that may hold it.
+     */
+    Iterator<Map.Entry<String, Account>> iterator( final String from )
+    {
+        return new Iterator<Map.Entry<String, Account>>()
+        {
+            private int nextBlock = from == null ? 0 : Math.max( 0, floorBlock( from ) );
+
+            private Iterator<Map.Entry<String, Account>> current = Collections.emptyIterator();
+
+            private Map.Entry<String, Account> next;
+
+            public boolean hasNext()
+            {
+                while ( next == null )
+                {
+                    while ( !current.hasNext() && nextBlock < blockIds.length )
+                    {
+                        try
+                        {
+                            current = readBlock( nextBlock++ ).iterator();
+                        }
+                        catch ( AccountPersistException e )
+                        {
+                            throw new IllegalStateException( e.getMessage(), e );
+                        }
+                    }
+
+                    if ( !current.hasNext() )
+                    {
+                        return false;
+                    }
+
+                    Map.Entry<String, Account> entry = current.next();
+
+                    if ( from == null || entry.getKey().compareTo( from ) >= 0 )
+                    {
+                        next = entry;
+                    }
+                }
+
+                return true;
+            }
+
+            public Map.Entry<String, Account> next()
+            {
+                if ( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+
+                Map.Entry<String, Account> entry = next;
+                next = null;
+
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * The indexed id in the middle of those strictly between the bounds, a null bound being open, or null when no
+     * indexed id lies in between. Used to split a scan into halves of about the same number of blocks.
+     */
+    String middleIndexedId( String from, String to )
+    {
+        int first = from == null ? 0 : floorBlock( from ) + 1;
+        int last = blockIds.length - 1;
+
+        if ( to != null )
+        {
+            int pos = Arrays.binarySearch( blockIds, to );
+            last = pos >= 0 ? pos - 1 : -pos - 2;
+        }
+
+        return first > last ? null : blockIds[( first + last ) / 2];
+    }
+
+    /**
+     * Keeps the segment open for a scan until {@link #release()}. Returns false once the segment is closed.
+     */
+    boolean retain()
+    {
+        while ( true )
+        {
+            int count = references.get();
+
+            if ( count == 0 )
+            {
+                return false;
+            }
+
+            if ( references.compareAndSet( count, count + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    void release()
+    {
+        if ( references.decrementAndGet() == 0 )
+        {
+            closeQuietly( channel );
+
+            if ( retired )
+            {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Drops the owner's reference to a segment that has been replaced. It is closed and deleted as soon as no scan
+     * uses it any more.
+     */
+    void retire()
+    {
+        retired = true;
+
+        release();
+    }
+
+    void close()
+    {
+        closeQuietly( channel );
+    }
+
+    /**
+     * The index block whose first id is the greatest one not greater than the id, or -1.
+     */
+    private int floorBlock( String id )
+    {
+        int block = Arrays.binarySearch( blockIds, id );
+
+        return block >= 0 ? block : -block - 2;
+    }
+
+    private List<Map.Entry<String, Account>> readBlock( int block )
+        throws AccountPersistException
+    {
+        long start = blockOffsets[block];
+        long end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : dataEnd;
+
+        List<Map.Entry<String, Account>> entries = new ArrayList<Map.Entry<String, Account>>();
+
+        try
+        {
+            DataInputStream in = read( channel, start, (int) ( end - start ) );
+
+            while ( in.available() > 0 )
+            {
+                entries.add( readRecord( in ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to read persist segment " + file.getName(), e );
+        }
+
+        return entries;
+    }
+
+    private static void writeRecord( DataOutputStream out, String id, Account account )
+        throws IOException
+    {
+        if ( account == TOMBSTONE )
+        {
+            out.writeByte( RECORD_DELETED );
+            out.writeUTF( id );
+        }
+        else
+        {
+            out.writeByte( RECORD_LIVE );
+            BinaryAccountCodec.writeAccount( out, account );
+        }
+    }
+
+    private static Map.Entry<String, Account> readRecord( DataInputStream in )
+        throws IOException
+    {
+        if ( in.readByte() == RECORD_DELETED )
+        {
+            return new AbstractMap.SimpleImmutableEntry<String, Account>( in.readUTF(), TOMBSTONE );
+        }
+
+        Account account = BinaryAccountCodec.readAccount( in );
+
+        return new AbstractMap.SimpleImmutableEntry<String, Account>( account.getId(), account );
+    }
+
+    private static DataInputStream read( FileChannel channel, long position, int length )
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( length );
+
+        while ( buffer.hasRemaining() )
+        {
+            if ( channel.read( buffer, position + buffer.position() ) < 0 )
+            {
+                throw new IOException( "unexpected end of segment" );
+            }
+        }
+
+        return new DataInputStream( new ByteArrayInputStream( buffer.array() ) );
+    }
+
+    private static void closeQuietly( FileChannel channel )
+    {
+        if ( channel == null )
+        {
+            return;
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch ( IOException e )
+        {
+            // nothing left to read from it
+        }
+    }
+
+    private static final class CountingOutputStream
+        extends FilterOutputStream
+    {
+        private long count;
+
+        CountingOutputStream( OutputStream out )
+        {
+            super( out );
+        }
+
+        public void write( int b )
+            throws IOException
+        {
+            out.write( b );
+            count++;
+        }
+
+        public void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            out.write( b, off, len );
+            count += len;
+        }
+    }
+}
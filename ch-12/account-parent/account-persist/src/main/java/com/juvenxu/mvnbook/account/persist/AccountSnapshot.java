@@ -0,0 +1,91 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Every account as of one version, immutable once built. Writers copy the accounts, change the copy and build the
+ * next snapshot, so a reader holding a snapshot never needs a lock. The accounts inside must not be modified, hand
+ * out copies.
+ */
+final class AccountSnapshot
+{
+    static final AccountSnapshot EMPTY = new AccountSnapshot( 0, new LinkedHashMap<String, Account>() );
+
+    private final long version;
+
+    private final Map<String, Account> accounts;
+
+    private final Map<String, String> idsByEmail;
+
+    /**
+     * Takes ownership of the map, which nobody may modify afterwards.
+     */
+    AccountSnapshot( long version, Map<String, Account> accounts )
+    {
+        this.version = version;
+        this.accounts = Collections.unmodifiableMap( accounts );
+
+        Map<String, String> emails = new HashMap<String, String>( accounts.size() * 4 / 3 + 1 );
+        for ( Account account : accounts.values() )
+        {
+            String email = AccountIndex.normalizeEmail( account.getEmail() );
+
+            if ( email != null )
+            {
+                emails.putIfAbsent( email, account.getId() );
+            }
+        }
+        this.idsByEmail = emails;
+    }
+
+    long getVersion()
+    {
+        return version;
+    }
+
+    Account get( String id )
+    {
+        return accounts.get( id );
+    }
+
+    Account findByEmail( String email )
+    {
+        String key = AccountIndex.normalizeEmail( email );
+        String id = key == null ? null : idsByEmail.get( key );
+
+        return id == null ? null : accounts.get( id );
+    }
+
+    /**
+     * True when the email belongs to an account other than <code>id</code>.
+     */
+    boolean isEmailTaken( String email, String id )
+    {
+        String key = AccountIndex.normalizeEmail( email );
+        String owner = key == null ? null : idsByEmail.get( key );
+
+        return owner != null && !owner.equals( id );
+    }
+
+    Collection<Account> accounts()
+    {
+        return accounts.values();
+    }
+
+    int size()
+    {
+        return accounts.size();
+    }
+
+    /**
+     * A modifiable copy of the accounts, in the same order, to build the next snapshot from.
+     */
+    Map<String, Account> copyAccounts()
+    {
+        return new LinkedHashMap<String, Account>( accounts );
+    }
+}
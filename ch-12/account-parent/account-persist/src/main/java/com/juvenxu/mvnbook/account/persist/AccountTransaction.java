@@ -0,0 +1,126 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A unit of work over an {@link AccountPersistService}: creates, updates and deletes are buffered in memory, in
+ * order, and handed to {@link AccountPersistService#applyChanges(List)} together on {@link #commit()}, so bulk changes
+ * cost a single write and land all or not at all. Services that cannot write them at once refuse the commit. Reads
+ * through the transaction see its own buffered changes. The accounts given are read at commit, when their new
+ * versions are set on them. Not thread safe, use one transaction per thread.
+ */
+public final class AccountTransaction
+    implements AutoCloseable
+{
+    private final AccountPersistService service;
+
+    private final List<AccountChange> changes = new ArrayList<AccountChange>();
+
+    private boolean open = true;
+
+    AccountTransaction( AccountPersistService service )
+    {
+        this.service = service;
+    }
+
+    public void createAccount( Account account )
+    {
+        checkOpen();
+
+        changes.add( AccountChange.create( account ) );
+    }
+
+    /**
+     * Buffers an update. Committing fails if the account does not exist by then.
+     */
+    public void updateAccount( Account account )
+    {
+        checkOpen();
+
+        changes.add( AccountChange.update( account ) );
+    }
+
+    public void deleteAccount( String id )
+    {
+        checkOpen();
+
+        changes.add( AccountChange.delete( id ) );
+    }
+
+    /**
+     * The account as this transaction would leave it, read from the service unless the transaction changed it.
+     */
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        checkOpen();
+
+        for ( int i = changes.size() - 1; i >= 0; i-- )
+        {
+            AccountChange change = changes.get( i );
+
+            if ( change.getId().equals( id ) )
+            {
+                return change.getAccount() == null ? null : new Account( change.getAccount() );
+            }
+        }
+
+        return service.readAccount( id );
+    }
+
+    /**
+     * The buffered changes, in order.
+     */
+    public List<AccountChange> getChanges()
+    {
+        return Collections.unmodifiableList( changes );
+    }
+
+    /**
+     * Applies every buffered change and ends the transaction, also when applying fails.
+     */
+    public void commit()
+        throws AccountPersistException
+    {
+        checkOpen();
+
+        open = false;
+
+        if ( !changes.isEmpty() )
+        {
+            service.applyChanges( getChanges() );
+        }
+    }
+
+    /**
+     * Discards the buffered changes and ends the transaction.
+     */
+    public void rollback()
+    {
+        checkOpen();
+
+        open = false;
+        changes.clear();
+    }
+
+    /**
+     * Rolls back unless the transaction has ended already.
+     */
+    public void close()
+    {
+        if ( open )
+        {
+            rollback();
+        }
+    }
+
+    private void checkOpen()
+    {
+        if ( !open )
+        {
+            throw new IllegalStateException( "Transaction has ended" );
+        }
+    }
+}
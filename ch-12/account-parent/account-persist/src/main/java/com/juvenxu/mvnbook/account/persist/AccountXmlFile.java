@@ -0,0 +1,641 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.dom4j.io.XMLWriter;
+
+/**
+ * The persist-data.xml layout shared by the XML backed persist services.
+ */
+class AccountXmlFile
+{
+    static final String ELEMENT_ROOT = "account-persist";
+
+    static final String ELEMENT_ACCOUNTS = "accounts";
+
+    static final String ELEMENT_ACCOUNT = "account";
+
+    static final String ELEMENT_ACCOUNT_ID = "id";
+
+    static final String ELEMENT_ACCOUNT_NAME = "name";
+
+    static final String ELEMENT_ACCOUNT_EMAIL = "email";
+
+    static final String ELEMENT_ACCOUNT_PASSWORD = "password";
+
+    static final String ELEMENT_ACCOUNT_ACTIVATED = "activated";
+
+    static final String ELEMENT_ACCOUNT_VERSION = "version";
+
+    private static final XMLInputFactory STAX = createInputFactory();
+
+    private final String file;
+
+    /**
+     * Stamp of the file as this process last wrote or fully read it.
+     */
+    private volatile String knownStamp;
+
+    AccountXmlFile( String file )
+    {
+        this.file = file;
+    }
+
+    String getFile()
+    {
+        return file;
+    }
+
+    Document readDocument()
+        throws AccountPersistException
+    {
+        File dataFile = new File( file );
+
+        if ( !dataFile.exists() )
+        {
+            createEmptyFile( dataFile );
+        }
+
+        try
+        {
+            // SAXReader is not thread safe, and readers of the same file may run in parallel
+            return new SAXReader().read( dataFile );
+        }
+        catch ( DocumentException e )
+        {
+            throw new AccountPersistException( "Unable to read persist data xml", e );
+        }
+    }
+
+    private synchronized void createEmptyFile( File dataFile )
+        throws AccountPersistException
+    {
+        if ( dataFile.exists() )
+        {
+            return;
+        }
+
+        dataFile.getAbsoluteFile().getParentFile().mkdirs();
+
+        Element rootEle = DocumentHelper.createElement( ELEMENT_ROOT );
+        rootEle.addElement( ELEMENT_ACCOUNTS );
+
+        writeDocument( DocumentHelper.createDocument( rootEle ) );
+    }
+
+    /**
+     * Replaces the file atomically: the document goes to a temporary file in the same directory, which is fsynced and
+     * then renamed over the old file, so a crash leaves either the old or the new content but never a torn file.
+     */
+    void writeDocument( Document doc )
+        throws AccountPersistException
+    {
+        Path target = Paths.get( file ).toAbsolutePath();
+        Path temp = null;
+
+        try
+        {
+            temp = Files.createTempFile( target.getParent(), target.getFileName().toString(), ".tmp" );
+
+            try ( FileOutputStream fileOut = new FileOutputStream( temp.toFile() );
+                  Writer out = new OutputStreamWriter( fileOut, "utf-8" ) )
+            {
+                OutputFormat format = OutputFormat.createPrettyPrint();
+                XMLWriter writer = new XMLWriter( out, format );
+                writer.write( doc );
+                writer.flush();
+
+                fileOut.getFD().sync();
+            }
+
+            try
+            {
+                Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch ( AtomicMoveNotSupportedException e )
+            {
+                Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING );
+            }
+
+            syncDirectory( target.getParent() );
+
+            knownStamp = stampQuietly();
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to write persist data xml", e );
+        }
+        finally
+        {
+            try
+            {
+                if ( temp != null )
+                {
+                    Files.deleteIfExists( temp );
+                }
+            }
+            catch ( IOException e )
+            {
+                // the rename already happened or the write failed with a more interesting exception
+            }
+        }
+    }
+
+    /**
+     * Size, modification time and file key of the file. Writes replace the file, which gives it a new key, so even a
+     * rewrite of the same size within the clock resolution changes the stamp.
+     */
+    String stamp()
+        throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes( Paths.get( file ), BasicFileAttributes.class );
+
+        return attributes.size() + "/" + attributes.lastModifiedTime().to( TimeUnit.NANOSECONDS ) + "/"
+            + attributes.fileKey();
+    }
+
+    /**
+     * The stamp of the file as this process last wrote or fully read it, <code>null</code> before either.
+     */
+    String getKnownStamp()
+    {
+        return knownStamp;
+    }
+
+    /**
+     * Records that this process has seen the file with the given stamp.
+     */
+    void markKnown( String stamp )
+    {
+        knownStamp = stamp;
+    }
+
+    /**
+     * True when the file is not as this process last wrote or fully read it, that is someone else changed it.
+     */
+    boolean isChangedExternally()
+    {
+        return !Objects.equals( stampQuietly(), knownStamp );
+    }
+
+    /**
+     * The stamp, or <code>null</code> when the file cannot be read.
+     */
+    String stampQuietly()
+    {
+        try
+        {
+            return stamp();
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Makes the rename itself durable. Not every platform can open a directory, in which case this is a no-op.
+     */
+    static void syncDirectory( Path dir )
+    {
+        try ( FileChannel channel = FileChannel.open( dir, StandardOpenOption.READ ) )
+        {
+            channel.force( true );
+        }
+        catch ( IOException e )
+        {
+            // not supported here, e.g. on Windows
+        }
+    }
+
+    /**
+     * Parses the whole file once, keyed by account id in document order.
+     */
+    Map<String, Account> readAccounts()
+        throws AccountPersistException
+    {
+        String stamp = stampQuietly();
+        Map<String, Account> accounts = new LinkedHashMap<String, Account>();
+
+        Element accountsEle = readDocument().getRootElement().element( ELEMENT_ACCOUNTS );
+
+        for ( Iterator<Element> it = accountsEle.elementIterator( ELEMENT_ACCOUNT ); it.hasNext(); )
+        {
+            Account account = buildAccount( it.next() );
+
+            accounts.put( account.getId(), account );
+        }
+
+        // a change made while reading leaves a stamp that no longer matches
+        markKnown( stamp );
+
+        return accounts;
+    }
+
+    void writeAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        Element rootEle = DocumentHelper.createElement( ELEMENT_ROOT );
+        Element accountsEle = rootEle.addElement( ELEMENT_ACCOUNTS );
+
+        for ( Account account : accounts )
+        {
+            accountsEle.add( buildAccountElement( account ) );
+        }
+
+        writeDocument( DocumentHelper.createDocument( rootEle ) );
+    }
+
+    /**
+     * Looks up a single account with a StAX cursor. Parsing stops at the matching account, and accounts with another
+     * id are skipped without building any objects for them.
+     */
+    Account findAccount( String id )
+        throws AccountPersistException
+    {
+        return findAccount( ELEMENT_ACCOUNT_ID, id::equals );
+    }
+
+    /**
+     * Streams every account with a StAX cursor, in document order, holding one account in memory at a time. The file
+     * is opened once, so a write replacing it meanwhile does not affect the stream. The stream must be closed.
+     */
+    Stream<Account> streamAccounts()
+        throws AccountPersistException
+    {
+        File dataFile = new File( file );
+
+        if ( !dataFile.exists() )
+        {
+            return Stream.empty();
+        }
+
+        InputStream in = null;
+
+        try
+        {
+            in = new FileInputStream( dataFile );
+
+            AccountCursor cursor = new AccountCursor( in, STAX.createXMLStreamReader( in ) );
+
+            return StreamSupport.stream( Spliterators.spliteratorUnknownSize( cursor, Spliterator.ORDERED
+                | Spliterator.NONNULL ), false ).onClose( cursor::close );
+        }
+        catch ( IOException | XMLStreamException e )
+        {
+            if ( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch ( IOException suppressed )
+                {
+                    e.addSuppressed( suppressed );
+                }
+            }
+
+            throw new AccountPersistException( "Unable to read persist data xml", e );
+        }
+    }
+
+    private Account findAccount( String keyElement, Predicate<String> matches )
+        throws AccountPersistException
+    {
+        File dataFile = new File( file );
+
+        if ( !dataFile.exists() )
+        {
+            return null;
+        }
+
+        try ( InputStream in = new FileInputStream( dataFile ) )
+        {
+            XMLStreamReader xml = STAX.createXMLStreamReader( in );
+
+            try
+            {
+                while ( xml.hasNext() )
+                {
+                    if ( xml.next() == XMLStreamConstants.START_ELEMENT
+                        && ELEMENT_ACCOUNT.equals( xml.getLocalName() ) )
+                    {
+                        Account account = readAccountIfMatches( xml, keyElement, matches );
+
+                        if ( account != null )
+                        {
+                            return account;
+                        }
+                    }
+                }
+
+                return null;
+            }
+            finally
+            {
+                xml.close();
+            }
+        }
+        catch ( IOException | XMLStreamException e )
+        {
+            throw new AccountPersistException( "Unable to read persist data xml", e );
+        }
+    }
+
+    /**
+     * Reads the children of the current <code>account</code> element, returning <code>null</code> and skipping to
+     * its end tag as soon as the key element turns out not to match.
+     */
+    private static Account readAccountIfMatches( XMLStreamReader xml, String keyElement, Predicate<String> matches )
+        throws XMLStreamException
+    {
+        Account account = new Account();
+        boolean matched = false;
+
+        while ( xml.nextTag() == XMLStreamConstants.START_ELEMENT )
+        {
+            String name = xml.getLocalName();
+            String text = xml.getElementText();
+
+            if ( keyElement.equals( name ) )
+            {
+                if ( !matches.test( text ) )
+                {
+                    skipToEndOfAccount( xml );
+
+                    return null;
+                }
+
+                matched = true;
+            }
+
+            if ( ELEMENT_ACCOUNT_ID.equals( name ) )
+            {
+                account.setId( text );
+            }
+            else if ( ELEMENT_ACCOUNT_NAME.equals( name ) )
+            {
+                account.setName( text );
+            }
+            else if ( ELEMENT_ACCOUNT_EMAIL.equals( name ) )
+            {
+                account.setEmail( text );
+            }
+            else if ( ELEMENT_ACCOUNT_PASSWORD.equals( name ) )
+            {
+                account.setPassword( text );
+            }
+            else if ( ELEMENT_ACCOUNT_ACTIVATED.equals( name ) )
+            {
+                account.setActivated( "true".equals( text ) );
+            }
+            else if ( ELEMENT_ACCOUNT_VERSION.equals( name ) )
+            {
+                account.setVersion( parseVersion( text ) );
+            }
+        }
+
+        return matched ? account : null;
+    }
+
+    private static void skipToEndOfAccount( XMLStreamReader xml )
+        throws XMLStreamException
+    {
+        int depth = 1;
+
+        while ( depth > 0 )
+        {
+            int event = xml.next();
+
+            if ( event == XMLStreamConstants.START_ELEMENT )
+            {
+                depth++;
+            }
+            else if ( event == XMLStreamConstants.END_ELEMENT )
+            {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads one <code>account</code> element after the other from an open file.
+     */
+    private static final class AccountCursor
+        implements Iterator<Account>
+    {
+        private final InputStream in;
+
+        private final XMLStreamReader xml;
+
+        private Account next;
+
+        AccountCursor( InputStream in, XMLStreamReader xml )
+        {
+            this.in = in;
+            this.xml = xml;
+        }
+
+        public boolean hasNext()
+        {
+            try
+            {
+                while ( next == null && xml.hasNext() )
+                {
+                    if ( xml.next() == XMLStreamConstants.START_ELEMENT
+                        && ELEMENT_ACCOUNT.equals( xml.getLocalName() ) )
+                    {
+                        next = readAccountIfMatches( xml, ELEMENT_ACCOUNT_ID, id -> true );
+                    }
+                }
+            }
+            catch ( XMLStreamException e )
+            {
+                throw new IllegalStateException( "Unable to read persist data xml",
+                                                 new AccountPersistException( "Unable to read persist data xml", e ) );
+            }
+
+            return next != null;
+        }
+
+        public Account next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+
+            Account account = next;
+            next = null;
+
+            return account;
+        }
+
+        void close()
+        {
+            try
+            {
+                xml.close();
+                in.close();
+            }
+            catch ( XMLStreamException | IOException e )
+            {
+                // nothing was written, nothing to lose
+            }
+        }
+    }
+
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+
+        factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+        factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+        factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE );
+
+        return factory;
+    }
+
+    static Account buildAccount( Element element )
+    {
+        Account account = new Account();
+
+        account.setId( element.elementText( ELEMENT_ACCOUNT_ID ) );
+        account.setName( element.elementText( ELEMENT_ACCOUNT_NAME ) );
+        account.setEmail( element.elementText( ELEMENT_ACCOUNT_EMAIL ) );
+        account.setPassword( element.elementText( ELEMENT_ACCOUNT_PASSWORD ) );
+        account.setActivated( "true".equals( element.elementText( ELEMENT_ACCOUNT_ACTIVATED ) ) );
+        account.setVersion( parseVersion( element.elementText( ELEMENT_ACCOUNT_VERSION ) ) );
+
+        return account;
+    }
+
+    /**
+     * True when both accounts hold the same values in every field the file stores.
+     */
+    static boolean sameAccount( Account a, Account b )
+    {
+        return Objects.equals( a.getId(), b.getId() ) && Objects.equals( a.getName(), b.getName() )
+            && Objects.equals( a.getEmail(), b.getEmail() ) && Objects.equals( a.getPassword(), b.getPassword() )
+            && a.isActivated() == b.isActivated() && a.getVersion() == b.getVersion();
+    }
+
+    /**
+     * Indexes the <code>account</code> elements of a document by id, in document order.
+     */
+    static Map<String, Element> indexAccountElements( Document doc )
+    {
+        Map<String, Element> elements = new LinkedHashMap<String, Element>();
+
+        Element accountsEle = doc.getRootElement().element( ELEMENT_ACCOUNTS );
+
+        for ( Iterator<Element> it = accountsEle.elementIterator( ELEMENT_ACCOUNT ); it.hasNext(); )
+        {
+            Element accountEle = it.next();
+
+            elements.putIfAbsent( accountEle.elementText( ELEMENT_ACCOUNT_ID ), accountEle );
+        }
+
+        return elements;
+    }
+
+    static long elementVersion( Element element )
+    {
+        return parseVersion( element.elementText( ELEMENT_ACCOUNT_VERSION ) );
+    }
+
+    /**
+     * Overwrites the fields of an existing <code>account</code> element, keeping its position in the document, and
+     * bumps its version. The new version is also set on the given account.
+     */
+    static void updateAccountElement( Element element, Account account )
+    {
+        account.setVersion( elementVersion( element ) + 1 );
+
+        setChildText( element, ELEMENT_ACCOUNT_NAME, account.getName() );
+        setChildText( element, ELEMENT_ACCOUNT_EMAIL, account.getEmail() );
+        setChildText( element, ELEMENT_ACCOUNT_PASSWORD, account.getPassword() );
+        setChildText( element, ELEMENT_ACCOUNT_ACTIVATED, account.isActivated() ? "true" : "false" );
+        setChildText( element, ELEMENT_ACCOUNT_VERSION, String.valueOf( account.getVersion() ) );
+    }
+
+    private static void setChildText( Element element, String name, String text )
+    {
+        Element child = element.element( name );
+
+        if ( child == null )
+        {
+            child = element.addElement( name );
+        }
+
+        child.setText( text );
+    }
+
+    static Element buildAccountElement( Account account )
+    {
+        Element element = DocumentHelper.createElement( ELEMENT_ACCOUNT );
+
+        element.addElement( ELEMENT_ACCOUNT_ID ).setText( account.getId() );
+        element.addElement( ELEMENT_ACCOUNT_NAME ).setText( account.getName() );
+        element.addElement( ELEMENT_ACCOUNT_EMAIL ).setText( account.getEmail() );
+        element.addElement( ELEMENT_ACCOUNT_PASSWORD ).setText( account.getPassword() );
+        element.addElement( ELEMENT_ACCOUNT_ACTIVATED ).setText( account.isActivated() ? "true" : "false" );
+        element.addElement( ELEMENT_ACCOUNT_VERSION ).setText( String.valueOf( account.getVersion() ) );
+
+        return element;
+    }
+
+    private static long parseVersion( String text )
+    {
+        if ( text == null || text.trim().isEmpty() )
+        {
+            return 0;
+        }
+
+        try
+        {
+            return Long.parseLong( text.trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The account operations of {@link AccountPersistService} without blocking the calling thread. Every method returns at
+ * once with a future that completes when the operation has run, exceptionally with an {@link AccountPersistException}
+ * if it failed or could not be queued.
+ */
+public interface AsyncAccountPersistService
+{
+    CompletableFuture<Account> createAccount( Account account );
+
+    /**
+     * Completes with <code>null</code> if there is no such account.
+     */
+    CompletableFuture<Account> readAccount( String id );
+
+    /**
+     * Completes with <code>null</code> if there is no such account.
+     */
+    CompletableFuture<Account> updateAccount( Account account );
+
+    CompletableFuture<Void> deleteAccount( String id );
+
+    CompletableFuture<Account> findAccountByEmail( String email );
+}
@@ -0,0 +1,255 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Runs the operations of a blocking {@link AccountPersistService} on <code>threads</code> dedicated I/O threads, so a
+ * slow disk holds those threads instead of the request threads. At most <code>queueCapacity</code> operations wait
+ * for a thread; beyond that an operation is refused at once with a failed future rather than queued without bound, so
+ * callers see the backlog and can shed load.
+ * <p>
+ * The futures complete on <code>callbackThreads</code> separate callback threads, so the dependent stages a caller
+ * chains on without an executor run there rather than on the I/O threads. Those threads are shared by all callers: a
+ * stage that blocks or runs long belongs on the caller's own executor, through the <code>*Async</code> methods of
+ * the future.
+ */
+public class AsyncAccountPersistServiceImpl
+    implements AsyncAccountPersistService, InitializingBean, DisposableBean
+{
+    /**
+     * An operation of the blocking service.
+     */
+    private interface Operation<T>
+    {
+        T run()
+            throws AccountPersistException;
+    }
+
+    /**
+     * A queued operation together with the future its caller holds, so an operation that never ran can still be
+     * failed.
+     */
+    private final class Task<T>
+        implements Runnable
+    {
+        private final Operation<T> operation;
+
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        Task( Operation<T> operation )
+        {
+            this.operation = operation;
+        }
+
+        public void run()
+        {
+            T result;
+
+            try
+            {
+                result = operation.run();
+            }
+            catch ( Throwable e )
+            {
+                complete( () -> future.completeExceptionally( e ) );
+                return;
+            }
+
+            complete( () -> future.complete( result ) );
+        }
+
+        /**
+         * Hands the completion to a callback thread, or completes here once those are shut down.
+         */
+        private void complete( Runnable completion )
+        {
+            try
+            {
+                callbacks.execute( completion );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                completion.run();
+            }
+        }
+    }
+
+    private AccountPersistService accountPersistService;
+
+    private int threads = 4;
+
+    private int queueCapacity = 1000;
+
+    private int callbackThreads = 2;
+
+    private long shutdownTimeout = 5000;
+
+    private ThreadPoolExecutor executor;
+
+    private ExecutorService callbacks;
+
+    public AccountPersistService getAccountPersistService()
+    {
+        return accountPersistService;
+    }
+
+    public void setAccountPersistService( AccountPersistService accountPersistService )
+    {
+        this.accountPersistService = accountPersistService;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity( int queueCapacity )
+    {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getCallbackThreads()
+    {
+        return callbackThreads;
+    }
+
+    public void setCallbackThreads( int callbackThreads )
+    {
+        this.callbackThreads = callbackThreads;
+    }
+
+    public long getShutdownTimeout()
+    {
+        return shutdownTimeout;
+    }
+
+    /**
+     * How many milliseconds {@link #destroy()} waits for queued operations to finish.
+     */
+    public void setShutdownTimeout( long shutdownTimeout )
+    {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                                           new ArrayBlockingQueue<Runnable>( queueCapacity ),
+                                           threadFactory( "account-persist-io-" ),
+                                           new ThreadPoolExecutor.AbortPolicy() );
+
+        callbacks = Executors.newFixedThreadPool( callbackThreads, threadFactory( "account-persist-callback-" ) );
+    }
+
+    private static ThreadFactory threadFactory( String prefix )
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+
+        return r -> {
+            Thread thread = new Thread( r, prefix + threadCount.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        };
+    }
+
+    /**
+     * Stops taking operations and waits up to <code>shutdownTimeout</code> for the queued ones. Operations still
+     * queued then are dropped and their futures fail, running ones are interrupted. The callback threads finish the
+     * completions handed to them before they stop.
+     */
+    public void destroy()
+        throws Exception
+    {
+        executor.shutdown();
+
+        if ( !executor.awaitTermination( shutdownTimeout, TimeUnit.MILLISECONDS ) )
+        {
+            for ( Runnable dropped : executor.shutdownNow() )
+            {
+                ( (Task<?>) dropped ).future.completeExceptionally(
+                    new AccountPersistException( "Persist service shut down before the operation ran" ) );
+            }
+        }
+
+        callbacks.shutdown();
+        callbacks.awaitTermination( shutdownTimeout, TimeUnit.MILLISECONDS );
+    }
+
+    public CompletableFuture<Account> createAccount( Account account )
+    {
+        return submit( () -> accountPersistService.createAccount( account ) );
+    }
+
+    public CompletableFuture<Account> readAccount( String id )
+    {
+        return submit( () -> accountPersistService.readAccount( id ) );
+    }
+
+    public CompletableFuture<Account> updateAccount( Account account )
+    {
+        return submit( () -> accountPersistService.updateAccount( account ) );
+    }
+
+    public CompletableFuture<Void> deleteAccount( String id )
+    {
+        return submit( () -> {
+            accountPersistService.deleteAccount( id );
+            return null;
+        } );
+    }
+
+    public CompletableFuture<Account> findAccountByEmail( String email )
+    {
+        return submit( () -> accountPersistService.findAccountByEmail( email ) );
+    }
+
+    /**
+     * Number of operations waiting for an I/O thread.
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    private <T> CompletableFuture<T> submit( Operation<T> operation )
+    {
+        Task<T> task = new Task<T>( operation );
+        CompletableFuture<T> future = task.future;
+
+        try
+        {
+            executor.execute( task );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            String message = executor.isShutdown() ? "Persist service is shut down"
+                            : "Persist queue is full, " + queueCapacity + " operations are waiting";
+
+            future.completeExceptionally( new AccountPersistException( message, e ) );
+        }
+
+        return future;
+    }
+}
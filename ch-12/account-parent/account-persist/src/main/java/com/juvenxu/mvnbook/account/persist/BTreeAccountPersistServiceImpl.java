@@ -0,0 +1,1634 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Stores accounts in the leaves of a B+tree keyed by account id, in a file of fixed size pages. A lookup reads one
+ * page per tree level, through a page cache bounded to <code>cachePages</code> pages, so neither its cost nor the heap
+ * grows with the number of accounts.
+ * <p>
+ * Page 0 is a header holding a magic number, the format version, the page size, the root page, the page count and the
+ * first free page. Every write copies the pages it changed into a journal file and syncs it before overwriting them in
+ * place, and a complete journal found on startup is written again, so a crash never leaves a half split tree. Deletes
+ * leave underfull leaves as they are, the space is reused by later inserts into the same key range. A leaf that
+ * becomes empty is unlinked from the tree though, along with internal pages left without children, and their pages
+ * are chained into a free list that splits take pages from before growing the file.
+ * <p>
+ * Emails are indexed in memory, built by walking the leaves at startup and kept up to date by every write under the
+ * write lock, so a lookup by email reads a single account and a create checks its email is free without a scan.
+ */
+public class BTreeAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean, DisposableBean
+{
+    static final int MAGIC = 0x41425054;
+
+    static final int FORMAT_VERSION = 3;
+
+    private static final int NO_PAGE = -1;
+
+    private static final AccountCodec CODEC = new BinaryAccountCodec();
+
+    private static final byte PAGE_LEAF = 1;
+
+    private static final byte PAGE_INTERNAL = 2;
+
+    private static final byte PAGE_FREE = 3;
+
+    private static final int NODE_HEADER_SIZE = 7;
+
+    private String file;
+
+    private int pageSize = 4096;
+
+    private int cachePages = 256;
+
+    private FileChannel channel;
+
+    private File journalFile;
+
+    private int root;
+
+    private int pageCount;
+
+    private int freePage = NO_PAGE;
+
+    private PageCache cache;
+
+    /**
+     * Pages changed by the write in progress, read before the cache, until the write is committed or discarded.
+     */
+    private final Map<Integer, Node> dirty = new LinkedHashMap<Integer, Node>();
+
+    private final AtomicLong pageReads = new AtomicLong();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Email to id of every stored account, changed only under the write lock.
+     */
+    private final AccountIndex<Boolean> emails = new AccountIndex<Boolean>();
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public void setFile( String file )
+    {
+        this.file = file;
+    }
+
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Size of a page in bytes, fixed when the file is created. A single account may take at most a quarter of it.
+     */
+    public void setPageSize( int pageSize )
+    {
+        this.pageSize = pageSize;
+    }
+
+    public int getCachePages()
+    {
+        return cachePages;
+    }
+
+    /**
+     * How many pages are kept in memory, least recently used pages are dropped first.
+     */
+    public void setCachePages( int cachePages )
+    {
+        this.cachePages = cachePages;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        File dataFile = new File( file );
+
+        if ( dataFile.getParentFile() != null )
+        {
+            dataFile.getParentFile().mkdirs();
+        }
+
+        journalFile = new File( file + ".journal" );
+        cache = new PageCache( cachePages );
+
+        channel = FileChannel.open( dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE );
+
+        recover();
+
+        if ( channel.size() == 0 )
+        {
+            root = 1;
+            pageCount = 2;
+            freePage = NO_PAGE;
+
+            dirty.put( root, Node.leaf() );
+            commit();
+        }
+        else
+        {
+            readHeader();
+        }
+
+        indexEmails();
+    }
+
+    public void destroy()
+        throws Exception
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            channel.close();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            if ( emails.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            account.setVersion( 1 );
+
+            try
+            {
+                put( account );
+            }
+            catch ( AccountPersistException e )
+            {
+                discardChanges( e );
+
+                throw e;
+            }
+
+            commit();
+
+            emails.put( account.getId(), account.getEmail(), Boolean.TRUE );
+
+            return account;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            Node leaf = findLeaf( id, null );
+            int pos = Collections.binarySearch( leaf.keys, id );
+
+            return pos < 0 ? null : decode( leaf.values.get( pos ) );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        return update( account, -1 ) ? account : null;
+    }
+
+    public boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        return update( account, expectedVersion );
+    }
+
+    private boolean update( Account account, long expectedVersion )
+        throws AccountPersistException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Node leaf = findLeaf( account.getId(), null );
+            int pos = Collections.binarySearch( leaf.keys, account.getId() );
+
+            if ( pos < 0 )
+            {
+                return false;
+            }
+
+            long version = decode( leaf.values.get( pos ) ).getVersion();
+
+            if ( expectedVersion >= 0 && version != expectedVersion )
+            {
+                return false;
+            }
+
+            if ( emails.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            account.setVersion( version + 1 );
+
+            try
+            {
+                put( account );
+            }
+            catch ( AccountPersistException e )
+            {
+                discardChanges( e );
+
+                throw e;
+            }
+
+            commit();
+
+            emails.put( account.getId(), account.getEmail(), Boolean.TRUE );
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            try
+            {
+                if ( !remove( id ) )
+                {
+                    return;
+                }
+            }
+            catch ( AccountPersistException e )
+            {
+                discardChanges( e );
+
+                throw e;
+            }
+
+            commit();
+
+            emails.remove( id );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Creates the accounts as one transaction, through a single journal, so a taken email creates none of them.
+     */
+    public List<Account> createAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        List<AccountChange> changes = new ArrayList<AccountChange>( accounts.size() );
+
+        for ( Account account : accounts )
+        {
+            changes.add( AccountChange.create( account ) );
+        }
+
+        applyChanges( changes );
+
+        return new ArrayList<Account>( accounts );
+    }
+
+    /**
+     * Updates the accounts that exist and commits the changed pages once, through a single journal. A taken email
+     * updates none of them.
+     */
+    public List<Account> updateAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        List<Account> results = new ArrayList<Account>( accounts.size() );
+        long[] versions = new long[accounts.size()];
+
+        lock.writeLock().lock();
+
+        try
+        {
+            EmailClaims claims = new EmailClaims( emails::isEmailTaken );
+
+            try
+            {
+                for ( Account account : accounts )
+                {
+                    Node leaf = findLeaf( account.getId(), null );
+                    int pos = Collections.binarySearch( leaf.keys, account.getId() );
+
+                    if ( pos < 0 )
+                    {
+                        results.add( null );
+                        continue;
+                    }
+
+                    claims.claim( account );
+
+                    Account next = new Account( account );
+                    next.setVersion( decode( leaf.values.get( pos ) ).getVersion() + 1 );
+                    put( next );
+
+                    versions[results.size()] = next.getVersion();
+                    results.add( account );
+                }
+            }
+            catch ( AccountPersistException e )
+            {
+                discardChanges( e );
+
+                throw e;
+            }
+
+            if ( dirty.isEmpty() )
+            {
+                return results;
+            }
+
+            commit();
+
+            for ( int i = 0; i < versions.length; i++ )
+            {
+                Account account = results.get( i );
+
+                if ( account != null )
+                {
+                    account.setVersion( versions[i] );
+                    emails.put( account.getId(), account.getEmail(), Boolean.TRUE );
+                }
+            }
+
+            return results;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the accounts that exist and commits the changed pages once, through a single journal.
+     */
+    public List<Boolean> deleteAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        List<Boolean> results = new ArrayList<Boolean>( ids.size() );
+
+        lock.writeLock().lock();
+
+        try
+        {
+            try
+            {
+                for ( String id : ids )
+                {
+                    results.add( remove( id ) );
+                }
+            }
+            catch ( AccountPersistException e )
+            {
+                discardChanges( e );
+
+                throw e;
+            }
+
+            if ( dirty.isEmpty() )
+            {
+                return results;
+            }
+
+            commit();
+
+            for ( String id : ids )
+            {
+                emails.remove( id );
+            }
+
+            return results;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isTransactional()
+    {
+        return true;
+    }
+
+    /**
+     * Applies every change to the pages and commits them together, through one journal, so either all of them land
+     * or, when an update finds no account, a create or an update finds its email taken or the write fails, none. The
+     * accounts get their new versions once committed.
+     */
+    public void applyChanges( List<AccountChange> changes )
+        throws AccountPersistException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            EmailClaims claims = new EmailClaims( emails::isEmailTaken );
+            long[] versions = new long[changes.size()];
+
+            try
+            {
+                for ( int i = 0; i < versions.length; i++ )
+                {
+                    AccountChange change = changes.get( i );
+
+                    if ( change.getKind() == AccountChange.Kind.DELETE )
+                    {
+                        remove( change.getId() );
+                        continue;
+                    }
+
+                    Account account = new Account( change.getAccount() );
+
+                    if ( change.getKind() == AccountChange.Kind.CREATE )
+                    {
+                        claims.claim( account );
+                        account.setVersion( 1 );
+                    }
+                    else
+                    {
+                        Node leaf = findLeaf( account.getId(), null );
+                        int pos = Collections.binarySearch( leaf.keys, account.getId() );
+
+                        if ( pos < 0 )
+                        {
+                            throw new AccountPersistException( "No account " + change.getId() + " to update" );
+                        }
+
+                        claims.claim( account );
+                        account.setVersion( decode( leaf.values.get( pos ) ).getVersion() + 1 );
+                    }
+
+                    put( account );
+                    versions[i] = account.getVersion();
+                }
+            }
+            catch ( AccountPersistException e )
+            {
+                discardChanges( e );
+
+                throw e;
+            }
+
+            commit();
+
+            for ( int i = 0; i < versions.length; i++ )
+            {
+                AccountChange change = changes.get( i );
+
+                if ( change.getAccount() == null )
+                {
+                    emails.remove( change.getId() );
+                }
+                else
+                {
+                    change.getAccount().setVersion( versions[i] );
+                    emails.put( change.getId(), change.getAccount().getEmail(), Boolean.TRUE );
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks the id up in the email index and descends to that account only.
+     */
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            String id = emails.idForEmail( email );
+
+            return id == null ? null : readAccount( id );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Streams the accounts in id order, one leaf at a time: each step takes the read lock, descends to the leaf after
+     * the last id handed out and copies it, so the lock is never held between leaves. The stream splits at separator
+     * ids of the highest tree level inside its range.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        return StreamSupport.stream( new RangeSpliterator( null, null, null ), false );
+    }
+
+    /**
+     * Descends straight to the leaf after <code>afterId</code> and follows the leaf links.
+     */
+    public List<Account> listAccounts( String afterId, int limit )
+        throws AccountPersistException
+    {
+        List<Account> page = new ArrayList<Account>();
+        RangeSpliterator accounts = new RangeSpliterator( null, afterId, null );
+
+        try
+        {
+            boolean more = true;
+
+            while ( more && page.size() < limit )
+            {
+                more = accounts.tryAdvance( page::add );
+            }
+        }
+        catch ( IllegalStateException e )
+        {
+            if ( e.getCause() instanceof AccountPersistException )
+            {
+                throw (AccountPersistException) e.getCause();
+            }
+
+            throw e;
+        }
+
+        return page;
+    }
+
+    /**
+     * Number of pages read from the file since startup, for tests and monitoring.
+     */
+    long getPageReads()
+    {
+        return pageReads.get();
+    }
+
+    /**
+     * Drops every cached page.
+     */
+    void clearCache()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Walks the leaves from left to right into the email index, at startup.
+     */
+    private void indexEmails()
+        throws AccountPersistException
+    {
+        emails.clear();
+
+        for ( Node node = leftmostLeaf();; node = page( node.next ) )
+        {
+            for ( byte[] value : node.values )
+            {
+                Account account = decode( value );
+
+                emails.put( account.getId(), account.getEmail(), Boolean.TRUE );
+            }
+
+            if ( node.next == NO_PAGE )
+            {
+                return;
+            }
+        }
+    }
+
+    private Node leftmostLeaf()
+        throws AccountPersistException
+    {
+        Node node = page( root );
+
+        while ( node.children != null )
+        {
+            node = page( node.children.get( 0 ) );
+        }
+
+        return node;
+    }
+
+    /**
+     * Descends to the leaf that holds or would hold the id, pushing the page numbers of the path when asked to, the
+     * leaf on top.
+     */
+    private Node findLeaf( String id, Deque<Integer> path )
+        throws AccountPersistException
+    {
+        int pageNo = root;
+        Node node = page( pageNo );
+
+        while ( node.children != null )
+        {
+            if ( path != null )
+            {
+                path.push( pageNo );
+            }
+
+            pageNo = node.children.get( childIndex( node, id ) );
+            node = page( pageNo );
+        }
+
+        if ( path != null )
+        {
+            path.push( pageNo );
+        }
+
+        return node;
+    }
+
+    /**
+     * Inserts or replaces the account in its leaf and splits every page on the way up that no longer fits. The
+     * changed pages are left to {@link #commit()}.
+     */
+    private void put( Account account )
+        throws AccountPersistException
+    {
+        String id = account.getId();
+        byte[] record = encode( account );
+
+        if ( entrySize( id, record.length ) > ( pageSize - NODE_HEADER_SIZE ) / 4 )
+        {
+            throw new AccountPersistException( "Account " + id + " is too large for a " + pageSize + " byte page" );
+        }
+
+        insert( id, record );
+    }
+
+    private void insert( String id, byte[] record )
+        throws AccountPersistException
+    {
+        Deque<Integer> path = new ArrayDeque<Integer>();
+        Node node = findLeaf( id, path );
+        int pageNo = path.pop();
+
+        int pos = Collections.binarySearch( node.keys, id );
+        if ( pos >= 0 )
+        {
+            node.values.set( pos, record );
+        }
+        else
+        {
+            node.keys.add( -pos - 1, id );
+            node.values.add( -pos - 1, record );
+        }
+
+        dirty.put( pageNo, node );
+
+        while ( node.size() > pageSize )
+        {
+            int rightNo = allocatePage();
+            String separator;
+            Node right;
+
+            if ( node.children == null )
+            {
+                right = node.splitLeaf();
+                right.next = node.next;
+                node.next = rightNo;
+                separator = right.keys.get( 0 );
+            }
+            else
+            {
+                int middle = node.splitPoint();
+                separator = node.keys.get( middle );
+                right = node.splitInternal( middle );
+            }
+
+            dirty.put( rightNo, right );
+
+            if ( path.isEmpty() )
+            {
+                Node newRoot = Node.internal();
+                newRoot.keys.add( separator );
+                newRoot.children.add( pageNo );
+                newRoot.children.add( rightNo );
+
+                root = allocatePage();
+                dirty.put( root, newRoot );
+
+                break;
+            }
+
+            int parentNo = path.pop();
+            Node parent = page( parentNo );
+            int childPos = parent.children.indexOf( pageNo );
+            parent.keys.add( childPos, separator );
+            parent.children.add( childPos + 1, rightNo );
+            dirty.put( parentNo, parent );
+
+            pageNo = parentNo;
+            node = parent;
+        }
+    }
+
+    /**
+     * Removes the account from its leaf, unlinking the leaf if that empties it. The changed pages are left to
+     * {@link #commit()}.
+     *
+     * @return whether there was such an account
+     */
+    private boolean remove( String id )
+        throws AccountPersistException
+    {
+        Deque<Integer> path = new ArrayDeque<Integer>();
+        Node leaf = findLeaf( id, path );
+        int pos = Collections.binarySearch( leaf.keys, id );
+
+        if ( pos < 0 )
+        {
+            return false;
+        }
+
+        leaf.keys.remove( pos );
+        leaf.values.remove( pos );
+
+        int leafNo = path.pop();
+
+        if ( leaf.keys.isEmpty() && !path.isEmpty() )
+        {
+            unlinkLeaf( leafNo, leaf, path );
+        }
+        else
+        {
+            dirty.put( leafNo, leaf );
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes an emptied leaf out of the tree: the leaf before it links past it, its parent drops it, parents left
+     * without children are dropped in turn and a root left with a single child hands over to that child. Freed pages
+     * go to the free list. <code>path</code> holds the ancestors, the parent on top.
+     */
+    private void unlinkLeaf( int leafNo, Node leaf, Deque<Integer> path )
+        throws AccountPersistException
+    {
+        int child = leafNo;
+
+        for ( int ancestorNo : path )
+        {
+            Node ancestor = page( ancestorNo );
+            int pos = ancestor.children.indexOf( child );
+
+            if ( pos > 0 )
+            {
+                // the rightmost leaf of the subtree left of the path is the one linking to this leaf
+                int previousNo = ancestor.children.get( pos - 1 );
+                Node previous = page( previousNo );
+
+                while ( previous.children != null )
+                {
+                    previousNo = previous.children.get( previous.children.size() - 1 );
+                    previous = page( previousNo );
+                }
+
+                previous.next = leaf.next;
+                dirty.put( previousNo, previous );
+
+                break;
+            }
+
+            child = ancestorNo;
+        }
+
+        child = leafNo;
+        boolean emptied = true;
+
+        for ( int parentNo : path )
+        {
+            Node parent = page( parentNo );
+            int pos = parent.children.indexOf( child );
+
+            parent.children.remove( pos );
+            if ( !parent.keys.isEmpty() )
+            {
+                parent.keys.remove( Math.max( 0, pos - 1 ) );
+            }
+
+            releasePage( child );
+
+            if ( !parent.children.isEmpty() )
+            {
+                dirty.put( parentNo, parent );
+                emptied = false;
+
+                break;
+            }
+
+            child = parentNo;
+        }
+
+        if ( emptied )
+        {
+            dirty.put( root, Node.leaf() );
+
+            return;
+        }
+
+        for ( Node top = page( root ); top.children != null && top.children.size() == 1; top = page( root ) )
+        {
+            int only = top.children.get( 0 );
+
+            releasePage( root );
+            root = only;
+        }
+    }
+
+    /**
+     * A page for a new node, taken from the free list before the file grows.
+     */
+    private int allocatePage()
+        throws AccountPersistException
+    {
+        if ( freePage == NO_PAGE )
+        {
+            return pageCount++;
+        }
+
+        int pageNo = freePage;
+        freePage = page( pageNo ).next;
+
+        return pageNo;
+    }
+
+    /**
+     * Puts the page at the head of the free list, written with the rest of the change.
+     */
+    private void releasePage( int pageNo )
+    {
+        dirty.put( pageNo, Node.free( freePage ) );
+        freePage = pageNo;
+    }
+
+    /**
+     * Number of pages in the file, for tests and monitoring.
+     */
+    int getPageCount()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return pageCount;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Journals the changed pages and the header, then writes them in place. On failure the cached pages may hold the
+     * half applied change, so they are dropped and the file is recovered.
+     */
+    private void commit()
+        throws AccountPersistException
+    {
+        Map<Integer, byte[]> images = new LinkedHashMap<Integer, byte[]>();
+        images.put( 0, headerImage() );
+        for ( Map.Entry<Integer, Node> entry : dirty.entrySet() )
+        {
+            images.put( entry.getKey(), entry.getValue().toPage( pageSize ) );
+        }
+
+        try
+        {
+            writeJournal( images );
+            writePages( images );
+            channel.force( false );
+            journalFile.delete();
+        }
+        catch ( IOException e )
+        {
+            AccountPersistException failure = new AccountPersistException( "Unable to write persist pages", e );
+
+            discardChanges( failure );
+
+            throw failure;
+        }
+
+        for ( Map.Entry<Integer, Node> entry : dirty.entrySet() )
+        {
+            cache.put( entry.getKey(), entry.getValue() );
+        }
+
+        dirty.clear();
+    }
+
+    /**
+     * Forgets cached pages and header fields a failed write may have changed, and reloads them from the file.
+     */
+    private void discardChanges( AccountPersistException failure )
+    {
+        dirty.clear();
+        cache.clear();
+
+        try
+        {
+            recover();
+            readHeader();
+        }
+        catch ( AccountPersistException e )
+        {
+            failure.addSuppressed( e );
+        }
+    }
+
+    private void writeJournal( Map<Integer, byte[]> images )
+        throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream( images.size() * ( pageSize + 4 ) + 12 );
+        DataOutputStream out = new DataOutputStream( buffer );
+
+        out.writeInt( images.size() );
+        for ( Map.Entry<Integer, byte[]> image : images.entrySet() )
+        {
+            out.writeInt( image.getKey() );
+            out.write( image.getValue() );
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( buffer.toByteArray() );
+        out.writeLong( crc.getValue() );
+
+        try ( FileChannel journal = FileChannel.open( journalFile.toPath(), StandardOpenOption.CREATE,
+                                                      StandardOpenOption.WRITE,
+                                                      StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            ByteBuffer bytes = ByteBuffer.wrap( buffer.toByteArray() );
+            while ( bytes.hasRemaining() )
+            {
+                journal.write( bytes );
+            }
+            journal.force( false );
+        }
+
+        // the journal must still be there after a crash once pages are overwritten
+        AccountXmlFile.syncDirectory( journalFile.getAbsoluteFile().toPath().getParent() );
+    }
+
+    private void writePages( Map<Integer, byte[]> images )
+        throws IOException
+    {
+        for ( Map.Entry<Integer, byte[]> image : images.entrySet() )
+        {
+            ByteBuffer bytes = ByteBuffer.wrap( image.getValue() );
+            long position = (long) image.getKey() * pageSize;
+
+            while ( bytes.hasRemaining() )
+            {
+                channel.write( bytes, position + bytes.position() );
+            }
+        }
+    }
+
+    /**
+     * Writes the pages of a complete journal again, a journal torn before its checksum never reached the file.
+     */
+    private void recover()
+        throws AccountPersistException
+    {
+        if ( !journalFile.exists() )
+        {
+            return;
+        }
+
+        try
+        {
+            byte[] bytes = Files.readAllBytes( journalFile.toPath() );
+
+            if ( bytes.length >= 12 )
+            {
+                CRC32 crc = new CRC32();
+                crc.update( bytes, 0, bytes.length - 8 );
+
+                if ( ByteBuffer.wrap( bytes, bytes.length - 8, 8 ).getLong() == crc.getValue() )
+                {
+                    DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+                    int count = in.readInt();
+                    int imageSize = ( bytes.length - 12 ) / count - 4;
+
+                    Map<Integer, byte[]> images = new LinkedHashMap<Integer, byte[]>();
+                    for ( int i = 0; i < count; i++ )
+                    {
+                        int pageNo = in.readInt();
+                        byte[] image = new byte[imageSize];
+                        in.readFully( image );
+                        images.put( pageNo, image );
+                    }
+
+                    writePages( images );
+                    channel.force( false );
+                }
+            }
+
+            journalFile.delete();
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to recover persist pages from " + journalFile, e );
+        }
+    }
+
+    private void readHeader()
+        throws AccountPersistException
+    {
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate( 24 );
+            channel.read( header, 0 );
+            header.flip();
+
+            if ( header.remaining() < 24 || header.getInt() != MAGIC )
+            {
+                throw new AccountPersistException( "Not a B+tree account file: " + file );
+            }
+
+            int version = header.getInt();
+            if ( version != FORMAT_VERSION )
+            {
+                throw new AccountPersistException( "File " + file + " has format version " + version
+                    + ", expected " + FORMAT_VERSION );
+            }
+
+            int filePageSize = header.getInt();
+            if ( filePageSize != pageSize )
+            {
+                throw new AccountPersistException( "File " + file + " uses " + filePageSize
+                    + " byte pages, configured for " + pageSize );
+            }
+
+            root = header.getInt();
+            pageCount = header.getInt();
+            freePage = header.getInt();
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to read persist header", e );
+        }
+    }
+
+    private byte[] headerImage()
+    {
+        ByteBuffer header = ByteBuffer.allocate( pageSize );
+        header.putInt( MAGIC ).putInt( FORMAT_VERSION ).putInt( pageSize ).putInt( root ).putInt( pageCount )
+            .putInt( freePage );
+
+        return header.array();
+    }
+
+    private Node page( int pageNo )
+        throws AccountPersistException
+    {
+        Node node = dirty.get( pageNo );
+
+        if ( node == null )
+        {
+            node = cache.get( pageNo );
+        }
+
+        if ( node != null )
+        {
+            return node;
+        }
+
+        try
+        {
+            ByteBuffer bytes = ByteBuffer.allocate( pageSize );
+            while ( bytes.hasRemaining() )
+            {
+                if ( channel.read( bytes, (long) pageNo * pageSize + bytes.position() ) < 0 )
+                {
+                    throw new IOException( "page " + pageNo + " is beyond the end of the file" );
+                }
+            }
+
+            pageReads.incrementAndGet();
+
+            node = Node.fromPage( bytes.array() );
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to read persist page " + pageNo, e );
+        }
+
+        cache.put( pageNo, node );
+
+        return node;
+    }
+
+    /**
+     * Index of the child to descend into: keys equal to a separator live in the right subtree.
+     */
+    private static int childIndex( Node node, String id )
+    {
+        int pos = Collections.binarySearch( node.keys, id );
+
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    private static int entrySize( String key, int valueSize )
+    {
+        return 2 + key.getBytes( StandardCharsets.UTF_8 ).length + 2 + valueSize;
+    }
+
+    private static byte[] encode( Account account )
+    {
+        return CODEC.encode( account );
+    }
+
+    private static Account decode( byte[] record )
+        throws AccountPersistException
+    {
+        try
+        {
+            return CODEC.decode( record, 0, record.length );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new AccountPersistException( "Unable to decode account record", e );
+        }
+    }
+
+    /**
+     * Accounts with ids from <code>from</code>, inclusive, or after <code>after</code> once some were handed out, up
+     * to <code>to</code>, exclusive, a null bound being open.
+     */
+    private final class RangeSpliterator
+        implements Spliterator<Account>
+    {
+        private String from;
+
+        private String after;
+
+        private final String to;
+
+        private Iterator<Account> leaf = Collections.emptyIterator();
+
+        private boolean exhausted;
+
+        RangeSpliterator( String from, String after, String to )
+        {
+            this.from = from;
+            this.after = after;
+            this.to = to;
+        }
+
+        public boolean tryAdvance( Consumer<? super Account> action )
+        {
+            if ( !leaf.hasNext() && !exhausted )
+            {
+                try
+                {
+                    leaf = nextLeaf().iterator();
+                }
+                catch ( AccountPersistException e )
+                {
+                    throw new IllegalStateException( e.getMessage(), e );
+                }
+            }
+
+            if ( !leaf.hasNext() )
+            {
+                return false;
+            }
+
+            action.accept( leaf.next() );
+
+            return true;
+        }
+
+        /**
+         * Copies the accounts in range from the next leaf holding any, skipping leaves emptied by deletes.
+         */
+        private List<Account> nextLeaf()
+            throws AccountPersistException
+        {
+            List<Account> accounts = new ArrayList<Account>();
+
+            lock.readLock().lock();
+
+            try
+            {
+                String start = after != null ? after : from;
+                Node node = start == null ? leftmostLeaf() : findLeaf( start, null );
+
+                while ( true )
+                {
+                    for ( int i = 0; i < node.keys.size() && !exhausted; i++ )
+                    {
+                        String id = node.keys.get( i );
+
+                        if ( after != null ? id.compareTo( after ) <= 0 : from != null && id.compareTo( from ) < 0 )
+                        {
+                            continue;
+                        }
+
+                        if ( to != null && id.compareTo( to ) >= 0 )
+                        {
+                            exhausted = true;
+                        }
+                        else
+                        {
+                            accounts.add( decode( node.values.get( i ) ) );
+                        }
+                    }
+
+                    if ( node.next == NO_PAGE )
+                    {
+                        exhausted = true;
+                    }
+
+                    if ( exhausted || !accounts.isEmpty() )
+                    {
+                        break;
+                    }
+
+                    node = page( node.next );
+                }
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+
+            if ( !accounts.isEmpty() )
+            {
+                after = accounts.get( accounts.size() - 1 ).getId();
+            }
+
+            return accounts;
+        }
+
+        /**
+         * Hands the lower half of the range to a new spliterator, split at the middle separator of the highest level
+         * that has one inside the range. Only before the first account was handed out.
+         */
+        public Spliterator<Account> trySplit()
+        {
+            if ( after != null || exhausted || leaf.hasNext() )
+            {
+                return null;
+            }
+
+            String middle;
+
+            lock.readLock().lock();
+
+            try
+            {
+                middle = splitId();
+            }
+            catch ( AccountPersistException e )
+            {
+                return null;
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+
+            if ( middle == null )
+            {
+                return null;
+            }
+
+            RangeSpliterator lower = new RangeSpliterator( from, null, middle );
+            from = middle;
+
+            return lower;
+        }
+
+        private String splitId()
+            throws AccountPersistException
+        {
+            Node node = page( root );
+
+            while ( true )
+            {
+                List<String> inside = new ArrayList<String>();
+
+                for ( String id : node.keys )
+                {
+                    if ( ( from == null || id.compareTo( from ) > 0 ) && ( to == null || id.compareTo( to ) < 0 ) )
+                    {
+                        inside.add( id );
+                    }
+                }
+
+                if ( !inside.isEmpty() && ( node.children != null || inside.size() > 1 ) )
+                {
+                    return inside.get( inside.size() / 2 );
+                }
+
+                if ( node.children == null )
+                {
+                    return null;
+                }
+
+                node = page( node.children.get( from == null ? 0 : childIndex( node, from ) ) );
+            }
+        }
+
+        public long estimateSize()
+        {
+            return Long.MAX_VALUE;
+        }
+
+        public int characteristics()
+        {
+            return Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+
+    /**
+     * A page in memory. Leaves hold ids with their account records and link to the next leaf, internal pages hold
+     * separator ids with one more child page than separators. A free page is an empty leaf that links to the next
+     * free page.
+     * <p>
+     * Layout: <code>[type][count][next leaf or first child]</code> followed by <code>[id][record]</code> entries in
+     * leaves and <code>[id][child]</code> entries in internal pages.
+     */
+    private static final class Node
+    {
+        final List<String> keys = new ArrayList<String>();
+
+        final List<byte[]> values;
+
+        final List<Integer> children;
+
+        int next = NO_PAGE;
+
+        boolean free;
+
+        private Node( boolean leaf )
+        {
+            values = leaf ? new ArrayList<byte[]>() : null;
+            children = leaf ? null : new ArrayList<Integer>();
+        }
+
+        static Node leaf()
+        {
+            return new Node( true );
+        }
+
+        static Node internal()
+        {
+            return new Node( false );
+        }
+
+        static Node free( int next )
+        {
+            Node node = new Node( true );
+            node.free = true;
+            node.next = next;
+
+            return node;
+        }
+
+        int size()
+        {
+            int size = NODE_HEADER_SIZE;
+
+            for ( int i = 0; i < keys.size(); i++ )
+            {
+                size += entrySize( i );
+            }
+
+            return size;
+        }
+
+        private int entrySize( int i )
+        {
+            return children == null ? BTreeAccountPersistServiceImpl.entrySize( keys.get( i ), values.get( i ).length )
+                            : 2 + keys.get( i ).getBytes( StandardCharsets.UTF_8 ).length + 4;
+        }
+
+        /**
+         * Index of the first entry past half of the page's bytes, never the first or the last entry.
+         */
+        int splitPoint()
+        {
+            int half = ( size() - NODE_HEADER_SIZE ) / 2;
+            int bytes = 0;
+            int i = 0;
+
+            while ( i < keys.size() - 1 && bytes < half )
+            {
+                bytes += entrySize( i++ );
+            }
+
+            return Math.max( 1, Math.min( i, keys.size() - 1 ) );
+        }
+
+        /**
+         * Moves the upper half of the entries into a new leaf.
+         */
+        Node splitLeaf()
+        {
+            int middle = splitPoint();
+            Node right = leaf();
+
+            List<String> movedKeys = keys.subList( middle, keys.size() );
+            List<byte[]> movedValues = values.subList( middle, values.size() );
+            right.keys.addAll( movedKeys );
+            right.values.addAll( movedValues );
+            movedKeys.clear();
+            movedValues.clear();
+
+            return right;
+        }
+
+        /**
+         * Moves the entries after the separator at middle into a new internal page, the separator itself moves up.
+         */
+        Node splitInternal( int middle )
+        {
+            Node right = internal();
+
+            List<String> movedKeys = keys.subList( middle + 1, keys.size() );
+            List<Integer> movedChildren = children.subList( middle + 1, children.size() );
+            right.keys.addAll( movedKeys );
+            right.children.addAll( movedChildren );
+            movedKeys.clear();
+            movedChildren.clear();
+            keys.remove( middle );
+
+            return right;
+        }
+
+        byte[] toPage( int pageSize )
+        {
+            ByteBuffer page = ByteBuffer.allocate( pageSize );
+
+            page.put( free ? PAGE_FREE : children == null ? PAGE_LEAF : PAGE_INTERNAL );
+            page.putShort( (short) keys.size() );
+            page.putInt( children == null ? next : children.get( 0 ) );
+
+            for ( int i = 0; i < keys.size(); i++ )
+            {
+                byte[] key = keys.get( i ).getBytes( StandardCharsets.UTF_8 );
+                page.putShort( (short) key.length );
+                page.put( key );
+
+                if ( children == null )
+                {
+                    page.putShort( (short) values.get( i ).length );
+                    page.put( values.get( i ) );
+                }
+                else
+                {
+                    page.putInt( children.get( i + 1 ) );
+                }
+            }
+
+            return page.array();
+        }
+
+        static Node fromPage( byte[] bytes )
+            throws IOException
+        {
+            ByteBuffer page = ByteBuffer.wrap( bytes );
+            byte type = page.get();
+
+            if ( type != PAGE_LEAF && type != PAGE_INTERNAL && type != PAGE_FREE )
+            {
+                throw new IOException( "unknown page type " + type );
+            }
+
+            Node node = new Node( type != PAGE_INTERNAL );
+            node.free = type == PAGE_FREE;
+            int count = page.getShort() & 0xffff;
+            int link = page.getInt();
+
+            if ( node.children == null )
+            {
+                node.next = link;
+            }
+            else
+            {
+                node.children.add( link );
+            }
+
+            for ( int i = 0; i < count; i++ )
+            {
+                byte[] key = new byte[page.getShort() & 0xffff];
+                page.get( key );
+                node.keys.add( new String( key, StandardCharsets.UTF_8 ) );
+
+                if ( node.children == null )
+                {
+                    byte[] value = new byte[page.getShort() & 0xffff];
+                    page.get( value );
+                    node.values.add( value );
+                }
+                else
+                {
+                    node.children.add( page.getInt() );
+                }
+            }
+
+            return node;
+        }
+    }
+
+    /**
+     * Least recently used pages, bounded to a fixed number. Readers share it, so access is synchronized.
+     */
+    private static final class PageCache
+    {
+        private final Map<Integer, Node> pages;
+
+        PageCache( final int capacity )
+        {
+            pages = new LinkedHashMap<Integer, Node>( 16, 0.75f, true )
+            {
+                protected boolean removeEldestEntry( Map.Entry<Integer, Node> eldest )
+                {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized Node get( int pageNo )
+        {
+            return pages.get( pageNo );
+        }
+
+        synchronized void put( int pageNo, Node node )
+        {
+            pages.put( pageNo, node );
+        }
+
+        synchronized void clear()
+        {
+            pages.clear();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes an account in a compact length-prefixed form: a flags byte for the activated flag and the fields that are
+ * null, the version as a variable length number, then id, name, email and password unless null, each as its UTF-8
+ * length, again variable length, followed by the bytes. A typical account takes about 80 bytes, against about 220 as
+ * XML. Every binary file of the persist layer stores accounts in this encoding.
+ */
+public final class BinaryAccountCodec
+    implements AccountCodec
+{
+    private static final int ACTIVATED = 1;
+
+    private static final int NO_ID = 1 << 1;
+
+    private static final int NO_NAME = 1 << 2;
+
+    private static final int NO_EMAIL = 1 << 3;
+
+    private static final int NO_PASSWORD = 1 << 4;
+
+    /**
+     * Longest record {@link #readAccount(DataInput)} accepts, far beyond any real account.
+     */
+    private static final int MAX_ACCOUNT_LENGTH = 1 << 20;
+
+    private static final BinaryAccountCodec CODEC = new BinaryAccountCodec();
+
+    public byte[] encode( Account account )
+    {
+        int flags = ( account.isActivated() ? ACTIVATED : 0 ) | ( account.getId() == null ? NO_ID : 0 )
+            | ( account.getName() == null ? NO_NAME : 0 ) | ( account.getEmail() == null ? NO_EMAIL : 0 )
+            | ( account.getPassword() == null ? NO_PASSWORD : 0 );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 96 );
+        out.write( flags );
+        writeNumber( out, account.getVersion() );
+        writeString( out, account.getId() );
+        writeString( out, account.getName() );
+        writeString( out, account.getEmail() );
+        writeString( out, account.getPassword() );
+
+        return out.toByteArray();
+    }
+
+    public Account decode( byte[] data, int offset, int length )
+    {
+        if ( offset < 0 || length < 1 || length > data.length - offset )
+        {
+            throw new IllegalArgumentException( "No account in " + length + " bytes at " + offset + " of "
+                + data.length );
+        }
+
+        int[] pos = { offset };
+        int end = offset + length;
+
+        int flags = data[pos[0]++];
+
+        Account account = new Account();
+        account.setActivated( ( flags & ACTIVATED ) != 0 );
+        account.setVersion( readNumber( data, pos, end ) );
+        account.setId( ( flags & NO_ID ) != 0 ? null : readString( data, pos, end ) );
+        account.setName( ( flags & NO_NAME ) != 0 ? null : readString( data, pos, end ) );
+        account.setEmail( ( flags & NO_EMAIL ) != 0 ? null : readString( data, pos, end ) );
+        account.setPassword( ( flags & NO_PASSWORD ) != 0 ? null : readString( data, pos, end ) );
+
+        if ( pos[0] != end )
+        {
+            throw new IllegalArgumentException( "Account takes " + ( pos[0] - offset ) + " of " + length + " bytes" );
+        }
+
+        return account;
+    }
+
+    /**
+     * Writes the account as the length of its encoding followed by the encoding, for files that store accounts back
+     * to back.
+     */
+    static void writeAccount( DataOutput out, Account account )
+        throws IOException
+    {
+        byte[] bytes = CODEC.encode( account );
+
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    /**
+     * Reads an account written by {@link #writeAccount(DataOutput, Account)}.
+     *
+     * @throws IOException also if the bytes are no account
+     */
+    static Account readAccount( DataInput in )
+        throws IOException
+    {
+        int length = in.readInt();
+
+        if ( length < 1 || length > MAX_ACCOUNT_LENGTH )
+        {
+            throw new IOException( "Account record of " + length + " bytes" );
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+
+        try
+        {
+            return CODEC.decode( bytes, 0, length );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new IOException( "Corrupt account record", e );
+        }
+    }
+
+    private static void writeString( ByteArrayOutputStream out, String value )
+    {
+        if ( value != null )
+        {
+            byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+
+            writeNumber( out, bytes.length );
+            out.write( bytes, 0, bytes.length );
+        }
+    }
+
+    private static String readString( byte[] data, int[] pos, int end )
+    {
+        long length = readNumber( data, pos, end );
+
+        if ( length < 0 || length > end - pos[0] )
+        {
+            throw new IllegalArgumentException( "Field of " + length + " bytes exceeds the account" );
+        }
+
+        String value = new String( data, pos[0], (int) length, StandardCharsets.UTF_8 );
+        pos[0] += (int) length;
+
+        return value;
+    }
+
+    /**
+     * Seven bits per byte, low bits first, the high bit set on every byte but the last.
+     */
+    private static void writeNumber( ByteArrayOutputStream out, long value )
+    {
+        while ( ( value & ~0x7fL ) != 0 )
+        {
+            out.write( (int) ( value & 0x7f ) | 0x80 );
+            value >>>= 7;
+        }
+
+        out.write( (int) value );
+    }
+
+    private static long readNumber( byte[] data, int[] pos, int end )
+    {
+        long value = 0;
+
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            if ( pos[0] >= end )
+            {
+                throw new IllegalArgumentException( "Number runs past the end of the account" );
+            }
+
+            byte b = data[pos[0]++];
+            value |= (long) ( b & 0x7f ) << shift;
+
+            if ( b >= 0 )
+            {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException( "Number longer than 64 bits" );
+    }
+}
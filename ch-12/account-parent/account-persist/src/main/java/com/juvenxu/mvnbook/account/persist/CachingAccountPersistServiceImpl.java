@@ -0,0 +1,376 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Caches accounts read through another {@link AccountPersistService}, so repeated reads of popular accounts never
+ * reach the storage. By default up to <code>maximumSize</code> accounts are kept on the heap in a
+ * {@link TinyLfuAccountCache}; with <code>maximumOffHeapBytes</code> set they are kept serialized outside the heap in
+ * an {@link OffHeapAccountCache} instead, where millions of them add nothing to garbage collection.
+ * <p>
+ * Writes go to the storage first and then drop the account from the cache, the next read loads it again. A read only
+ * caches what it loaded if no write happened meanwhile, so a slow reader cannot put back an outdated account.
+ */
+public class CachingAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean
+{
+    private AccountPersistService accountPersistService;
+
+    private int maximumSize = 10000;
+
+    private long maximumOffHeapBytes;
+
+    private AccountCodec offHeapCodec = new BinaryAccountCodec();
+
+    private AccountCache cache;
+
+    /**
+     * Changed by every write, a read only caches what it loaded if no write happened meanwhile.
+     */
+    private final AtomicLong writes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public AccountPersistService getAccountPersistService()
+    {
+        return accountPersistService;
+    }
+
+    public void setAccountPersistService( AccountPersistService accountPersistService )
+    {
+        this.accountPersistService = accountPersistService;
+    }
+
+    public int getMaximumSize()
+    {
+        return maximumSize;
+    }
+
+    public void setMaximumSize( int maximumSize )
+    {
+        this.maximumSize = maximumSize;
+    }
+
+    public long getMaximumOffHeapBytes()
+    {
+        return maximumOffHeapBytes;
+    }
+
+    /**
+     * Bytes of direct memory to cache serialized accounts in, instead of <code>maximumSize</code> accounts on the
+     * heap. 0, the default, caches on the heap.
+     */
+    public void setMaximumOffHeapBytes( long maximumOffHeapBytes )
+    {
+        this.maximumOffHeapBytes = maximumOffHeapBytes;
+    }
+
+    public AccountCodec getOffHeapCodec()
+    {
+        return offHeapCodec;
+    }
+
+    /**
+     * How accounts are serialized off the heap, {@link BinaryAccountCodec} by default.
+     */
+    public void setOffHeapCodec( AccountCodec offHeapCodec )
+    {
+        this.offHeapCodec = offHeapCodec;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        cache = maximumOffHeapBytes > 0 ? new OffHeapAccountCache( maximumOffHeapBytes, offHeapCodec )
+                        : new TinyLfuAccountCache( maximumSize );
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictions()
+    {
+        return cache.getEvictions();
+    }
+
+    /**
+     * Hits among all reads so far, 0 before the first read.
+     */
+    public double getHitRate()
+    {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Accounts currently cached.
+     */
+    public int size()
+    {
+        return cache.size();
+    }
+
+    public Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        try
+        {
+            return accountPersistService.createAccount( account );
+        }
+        finally
+        {
+            invalidate( account.getId() );
+        }
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        Account cached = cache.get( id );
+
+        if ( cached != null )
+        {
+            hits.increment();
+
+            return cached;
+        }
+
+        misses.increment();
+
+        long writeCount = writes.get();
+        Account account = accountPersistService.readAccount( id );
+
+        if ( account != null )
+        {
+            admit( account, writeCount );
+        }
+
+        return account;
+    }
+
+    public Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        try
+        {
+            return accountPersistService.updateAccount( account );
+        }
+        finally
+        {
+            invalidate( account.getId() );
+        }
+    }
+
+    public boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        try
+        {
+            return accountPersistService.compareAndUpdate( expectedVersion, account );
+        }
+        finally
+        {
+            invalidate( account.getId() );
+        }
+    }
+
+    public void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        try
+        {
+            accountPersistService.deleteAccount( id );
+        }
+        finally
+        {
+            invalidate( id );
+        }
+    }
+
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        return accountPersistService.findAccountByEmail( email );
+    }
+
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        return accountPersistService.scanAccounts();
+    }
+
+    public List<Account> listAccounts( String afterId, int limit )
+        throws AccountPersistException
+    {
+        return accountPersistService.listAccounts( afterId, limit );
+    }
+
+    public boolean isTransactional()
+    {
+        return accountPersistService.isTransactional();
+    }
+
+    public void applyChanges( List<AccountChange> changes )
+        throws AccountPersistException
+    {
+        try
+        {
+            accountPersistService.applyChanges( changes );
+        }
+        finally
+        {
+            for ( AccountChange change : changes )
+            {
+                invalidate( change.getId() );
+            }
+        }
+    }
+
+    public List<Account> createAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        try
+        {
+            return accountPersistService.createAccounts( accounts );
+        }
+        finally
+        {
+            for ( Account account : accounts )
+            {
+                invalidate( account.getId() );
+            }
+        }
+    }
+
+    /**
+     * Answers the cached ids from the cache and reads the others from the storage in one batch.
+     */
+    public List<Account> readAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        List<Account> results = new ArrayList<Account>( ids.size() );
+        List<String> missing = new ArrayList<String>();
+
+        for ( String id : ids )
+        {
+            Account cached = cache.get( id );
+
+            if ( cached == null )
+            {
+                missing.add( id );
+            }
+            else
+            {
+                hits.increment();
+            }
+            results.add( cached );
+        }
+
+        if ( missing.isEmpty() )
+        {
+            return results;
+        }
+
+        misses.add( missing.size() );
+
+        long writeCount = writes.get();
+        Iterator<Account> loaded = accountPersistService.readAccounts( missing ).iterator();
+
+        for ( int i = 0; i < results.size(); i++ )
+        {
+            if ( results.get( i ) == null )
+            {
+                Account account = loaded.next();
+
+                if ( account != null )
+                {
+                    admit( account, writeCount );
+                }
+                results.set( i, account );
+            }
+        }
+
+        return results;
+    }
+
+    public List<Account> updateAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        try
+        {
+            return accountPersistService.updateAccounts( accounts );
+        }
+        finally
+        {
+            for ( Account account : accounts )
+            {
+                invalidate( account.getId() );
+            }
+        }
+    }
+
+    public List<Boolean> deleteAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        try
+        {
+            return accountPersistService.deleteAccounts( ids );
+        }
+        finally
+        {
+            for ( String id : ids )
+            {
+                invalidate( id );
+            }
+        }
+    }
+
+    /**
+     * Drops the account from the cache, for writes made to the storage behind the cache's back.
+     */
+    public void invalidate( String id )
+    {
+        writes.incrementAndGet();
+
+        cache.remove( id );
+    }
+
+    /**
+     * Caches an account loaded when the write count was <code>writeCount</code>. A write since then may have changed
+     * it; its invalidation counts first and removes second, so checking the count after caching catches every such
+     * write, either here or by the invalidation coming after.
+     */
+    private void admit( Account account, long writeCount )
+    {
+        if ( writes.get() != writeCount )
+        {
+            return;
+        }
+
+        cache.put( account );
+
+        if ( writes.get() != writeCount )
+        {
+            cache.remove( account.getId() );
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An account packed into a single byte array, for services that hold every account in memory. An {@link Account}
+ * costs an object and five strings with their arrays, this costs one small object and one array: strings are stored
+ * as Latin-1 when they fit and as UTF-8 otherwise, the email domain as a code into a {@link Domains} dictionary
+ * shared by all accounts of a service, the flag as a bit and the version as a variable length number.
+ * {@link #toAccount(Domains)} materializes a new account on every call, so callers get a copy for free.
+ * <p>
+ * Layout: <code>flags, version, domain code, then id, name, email local part and password unless null, each as
+ * [length and charset][bytes]</code>.
+ */
+final class CompactAccount
+{
+    private static final int ACTIVATED = 1;
+
+    private static final int NO_ID = 1 << 1;
+
+    private static final int NO_NAME = 1 << 2;
+
+    private static final int NO_EMAIL = 1 << 3;
+
+    private static final int NO_PASSWORD = 1 << 4;
+
+    /**
+     * Email domains by code, codes are handed out in order and never reused. Lookups are lock free, adding a domain
+     * locks the dictionary.
+     */
+    static final class Domains
+    {
+        private final Map<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+
+        private volatile String[] domains = new String[16];
+
+        private int size;
+
+        int encode( String domain )
+        {
+            Integer code = codes.get( domain );
+
+            return code != null ? code : add( domain );
+        }
+
+        String decode( int code )
+        {
+            return domains[code];
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        private synchronized int add( String domain )
+        {
+            Integer code = codes.get( domain );
+
+            if ( code != null )
+            {
+                return code;
+            }
+
+            String[] current = domains;
+            if ( size == current.length )
+            {
+                current = Arrays.copyOf( current, size * 2 );
+            }
+            current[size] = domain;
+
+            // publishes the new entry to lock free decoders
+            domains = current;
+            codes.put( domain, size );
+
+            return size++;
+        }
+    }
+
+    private final byte[] data;
+
+    private CompactAccount( byte[] data )
+    {
+        this.data = data;
+    }
+
+    static CompactAccount of( Account account, Domains domains )
+    {
+        String email = account.getEmail();
+        int at = email == null ? -1 : email.lastIndexOf( '@' );
+
+        int flags = ( account.isActivated() ? ACTIVATED : 0 ) | ( account.getId() == null ? NO_ID : 0 )
+            | ( account.getName() == null ? NO_NAME : 0 ) | ( email == null ? NO_EMAIL : 0 )
+            | ( account.getPassword() == null ? NO_PASSWORD : 0 );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 64 );
+        out.write( flags );
+        writeNumber( out, account.getVersion() );
+        // 0 when the email has no domain
+        writeNumber( out, at < 0 ? 0 : domains.encode( email.substring( at + 1 ) ) + 1 );
+        writeString( out, account.getId() );
+        writeString( out, account.getName() );
+        writeString( out, at < 0 ? email : email.substring( 0, at ) );
+        writeString( out, account.getPassword() );
+
+        return new CompactAccount( out.toByteArray() );
+    }
+
+    /**
+     * The version, read without materializing the account.
+     */
+    long getVersion()
+    {
+        return readNumber( new int[] { 1 } );
+    }
+
+    Account toAccount( Domains domains )
+    {
+        int flags = data[0];
+        int[] pos = { 1 };
+
+        Account account = new Account();
+        account.setActivated( ( flags & ACTIVATED ) != 0 );
+        account.setVersion( readNumber( pos ) );
+
+        int domain = (int) readNumber( pos );
+
+        account.setId( ( flags & NO_ID ) != 0 ? null : readString( pos ) );
+        account.setName( ( flags & NO_NAME ) != 0 ? null : readString( pos ) );
+
+        if ( ( flags & NO_EMAIL ) == 0 )
+        {
+            String local = readString( pos );
+            account.setEmail( domain == 0 ? local : local + '@' + domains.decode( domain - 1 ) );
+        }
+
+        account.setPassword( ( flags & NO_PASSWORD ) != 0 ? null : readString( pos ) );
+
+        return account;
+    }
+
+    /**
+     * Bytes held by the packed form, for tests and sizing.
+     */
+    int size()
+    {
+        return data.length;
+    }
+
+    private static void writeString( ByteArrayOutputStream out, String value )
+    {
+        if ( value == null )
+        {
+            return;
+        }
+
+        boolean latin1 = true;
+        for ( int i = 0; i < value.length() && latin1; i++ )
+        {
+            latin1 = value.charAt( i ) < 0x100;
+        }
+
+        byte[] bytes = value.getBytes( latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8 );
+
+        writeNumber( out, ( (long) bytes.length << 1 ) | ( latin1 ? 0 : 1 ) );
+        out.write( bytes, 0, bytes.length );
+    }
+
+    private String readString( int[] pos )
+    {
+        long header = readNumber( pos );
+        int length = (int) ( header >>> 1 );
+
+        String value = new String( data, pos[0], length,
+                                   ( header & 1 ) == 0 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8 );
+        pos[0] += length;
+
+        return value;
+    }
+
+    /**
+     * Seven bits per byte, low bits first, the high bit set on every byte but the last.
+     */
+    private static void writeNumber( ByteArrayOutputStream out, long value )
+    {
+        while ( ( value & ~0x7fL ) != 0 )
+        {
+            out.write( (int) ( value & 0x7f ) | 0x80 );
+            value >>>= 7;
+        }
+
+        out.write( (int) value );
+    }
+
+    private long readNumber( int[] pos )
+    {
+        long value = 0;
+
+        for ( int shift = 0;; shift += 7 )
+        {
+            byte b = data[pos[0]++];
+            value |= (long) ( b & 0x7f ) << shift;
+
+            if ( b >= 0 )
+            {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.juvenxu.mvnbook.account.persist;
+
+/**
+ * Thrown when creating an account whose email already belongs to another account.
+ */
+public class DuplicateEmailException
+    extends AccountPersistException
+{
+    private static final long serialVersionUID = 3524137582418542219L;
+
+    private final String email;
+
+    public DuplicateEmailException( String email )
+    {
+        super( "Email " + email + " is already registered" );
+
+        this.email = email;
+    }
+
+    public String getEmail()
+    {
+        return email;
+    }
+}
@@ -0,0 +1,53 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks the emails of the accounts a batch creates or updates before any of it is written: each email must belong
+ * neither to another stored account nor to another account of the same batch. An email the batch frees by a delete or
+ * an update only becomes available once the batch is applied.
+ */
+final class EmailClaims
+{
+    interface Owners
+    {
+        /**
+         * True when the stored email belongs to an account other than <code>id</code>.
+         */
+        boolean isTaken( String email, String id )
+            throws AccountPersistException;
+    }
+
+    private final Owners stored;
+
+    private final Map<String, String> claimed = new HashMap<String, String>();
+
+    EmailClaims( Owners stored )
+    {
+        this.stored = stored;
+    }
+
+    /**
+     * Claims the email of an account the batch creates or updates.
+     *
+     * @throws DuplicateEmailException if the email is taken
+     */
+    void claim( Account account )
+        throws AccountPersistException
+    {
+        String email = AccountIndex.normalizeEmail( account.getEmail() );
+
+        if ( email == null )
+        {
+            return;
+        }
+
+        String owner = claimed.putIfAbsent( email, account.getId() );
+
+        if ( owner == null ? stored.isTaken( email, account.getId() ) : !owner.equals( account.getId() ) )
+        {
+            throw new DuplicateEmailException( account.getEmail() );
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.juvenxu.mvnbook.account.persist;
+
+/**
+ * Lets concurrent writers share one durable write. Each writer submits the complete state it produced and then waits;
+ * the first waiter becomes the leader, optionally lingers for <code>window</code> milliseconds so more writers can
+ * join, and writes only the latest submitted state on behalf of everybody who submitted before it.
+ */
+class GroupCommit<T>
+{
+    interface Sink<T>
+    {
+        void write( T state )
+            throws AccountPersistException;
+    }
+
+    static final class Batch
+    {
+        private boolean done;
+
+        private AccountPersistException error;
+    }
+
+    private final Sink<T> sink;
+
+    private final long window;
+
+    private Batch open = new Batch();
+
+    private T pending;
+
+    private boolean committing;
+
+    GroupCommit( Sink<T> sink, long window )
+    {
+        this.sink = sink;
+        this.window = window;
+    }
+
+    /**
+     * Registers a new state, superseding any state still waiting to be written.
+     */
+    synchronized Batch submit( T state )
+    {
+        pending = state;
+
+        return open;
+    }
+
+    /**
+     * The newest submitted state that has not been written yet, or <code>null</code>.
+     */
+    synchronized T pending()
+    {
+        return pending;
+    }
+
+    /**
+     * Blocks until the batch holding the caller's state has been written, leading the write if nobody else does. An
+     * interrupt does not withdraw the state, which later submissions build on, so the caller keeps waiting for the
+     * batch and returns with its interrupt flag set.
+     */
+    void await( Batch batch )
+        throws AccountPersistException
+    {
+        boolean interrupted = false;
+
+        try
+        {
+            synchronized ( this )
+            {
+                while ( !batch.done && committing )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        interrupted = true;
+                    }
+                }
+
+                if ( !batch.done )
+                {
+                    committing = true;
+                }
+            }
+
+            if ( !batch.done )
+            {
+                lead();
+            }
+        }
+        finally
+        {
+            if ( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if ( batch.error != null )
+        {
+            throw new AccountPersistException( "Group commit failed", batch.error );
+        }
+    }
+
+    private void lead()
+    {
+        if ( window > 0 )
+        {
+            try
+            {
+                Thread.sleep( window );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Batch closing;
+        T state;
+
+        synchronized ( this )
+        {
+            closing = open;
+            state = pending;
+            open = new Batch();
+        }
+
+        try
+        {
+            sink.write( state );
+        }
+        catch ( AccountPersistException e )
+        {
+            closing.error = e;
+        }
+        catch ( RuntimeException e )
+        {
+            closing.error = new AccountPersistException( "Unable to write group commit", e );
+        }
+
+        synchronized ( this )
+        {
+            if ( closing.error != null && pending != state )
+            {
+                // everything submitted meanwhile was built on top of the state that failed to be written
+                open.error = closing.error;
+                open.done = true;
+                open = new Batch();
+            }
+
+            if ( closing.error != null || pending == state )
+            {
+                pending = null;
+            }
+
+            closing.done = true;
+            committing = false;
+
+            notifyAll();
+        }
+    }
+}
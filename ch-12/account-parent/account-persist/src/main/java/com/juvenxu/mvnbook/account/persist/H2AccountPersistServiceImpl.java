@@ -0,0 +1,705 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Persists accounts in an embedded H2 database in file mode, so no database server has to run. Accounts live in an
+ * <code>accounts</code> table keyed by id with a unique index on the normalized email, which makes lookups by either
+ * an index seek, keeps emails unique even between concurrent transactions and lets writers to different accounts
+ * proceed concurrently under row locks. A database whose accounts share an email cannot be opened until the
+ * duplicates are removed. Connections come from an
+ * {@link AccountConnectionPool} of <code>poolSize</code> connections, each caching its prepared statements.
+ */
+public class H2AccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean, DisposableBean
+{
+    private static final String COLUMNS = "id, name, email, email_key, password, activated, version";
+
+    private static final String SQL_CREATE_TABLE =
+        "CREATE TABLE IF NOT EXISTS accounts (id VARCHAR PRIMARY KEY, name VARCHAR, email VARCHAR, "
+            + "email_key VARCHAR, password VARCHAR, activated BOOLEAN NOT NULL, version BIGINT NOT NULL)";
+
+    private static final String SQL_CREATE_EMAIL_INDEX =
+        "CREATE UNIQUE INDEX IF NOT EXISTS accounts_email_unique ON accounts (email_key)";
+
+    private static final String SQL_INSERT = "INSERT INTO accounts (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_SELECT_BY_ID = "SELECT " + COLUMNS + " FROM accounts WHERE id = ?";
+
+    private static final String SQL_SELECT_BY_EMAIL =
+        "SELECT " + COLUMNS + " FROM accounts WHERE email_key = ? FETCH FIRST 1 ROWS ONLY";
+
+    private static final String SQL_SELECT_PAGE =
+        "SELECT " + COLUMNS + " FROM accounts WHERE id > ? ORDER BY id FETCH FIRST ? ROWS ONLY";
+
+    private static final String SQL_SELECT_FIRST_PAGE =
+        "SELECT " + COLUMNS + " FROM accounts ORDER BY id FETCH FIRST ? ROWS ONLY";
+
+    private static final String SQL_SELECT_EMAIL_OWNER =
+        "SELECT id FROM accounts WHERE email_key = ? AND id <> ? FETCH FIRST 1 ROWS ONLY";
+
+    private static final String SQL_SELECT_VERSION = "SELECT version FROM accounts WHERE id = ?";
+
+    private static final String SQL_UPDATE =
+        "UPDATE accounts SET name = ?, email = ?, email_key = ?, password = ?, activated = ?, version = version + 1 "
+            + "WHERE id = ?";
+
+    private static final String SQL_COMPARE_AND_UPDATE =
+        "UPDATE accounts SET name = ?, email = ?, email_key = ?, password = ?, activated = ?, version = ? "
+            + "WHERE id = ? AND version = ?";
+
+    private static final String SQL_DELETE = "DELETE FROM accounts WHERE id = ?";
+
+    private static final int SCAN_PAGE_SIZE = 1000;
+
+    private static final String SQL_STATE_UNIQUE_VIOLATION = "23505";
+
+    /**
+     * Work done on a borrowed connection.
+     */
+    private interface Work<T>
+    {
+        T run( AccountConnectionPool.PooledConnection connection )
+            throws SQLException, AccountPersistException;
+    }
+
+    private String file;
+
+    private String user = "sa";
+
+    private String password = "";
+
+    private int poolSize = 8;
+
+    private long connectionTimeout = 5000;
+
+    private int statementCacheSize = 32;
+
+    private AccountConnectionPool pool;
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    /**
+     * The database file, without H2's <code>.mv.db</code> suffix.
+     */
+    public void setFile( String file )
+    {
+        this.file = file;
+    }
+
+    public String getUser()
+    {
+        return user;
+    }
+
+    public void setUser( String user )
+    {
+        this.user = user;
+    }
+
+    public String getPassword()
+    {
+        return password;
+    }
+
+    public void setPassword( String password )
+    {
+        this.password = password;
+    }
+
+    public int getPoolSize()
+    {
+        return poolSize;
+    }
+
+    public void setPoolSize( int poolSize )
+    {
+        this.poolSize = poolSize;
+    }
+
+    public long getConnectionTimeout()
+    {
+        return connectionTimeout;
+    }
+
+    /**
+     * How many milliseconds an operation waits for a connection when all <code>poolSize</code> are in use.
+     */
+    public void setConnectionTimeout( long connectionTimeout )
+    {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public int getStatementCacheSize()
+    {
+        return statementCacheSize;
+    }
+
+    public void setStatementCacheSize( int statementCacheSize )
+    {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Connections currently open, for tests and monitoring.
+     */
+    public int getOpenConnections()
+    {
+        return pool.getOpenConnections();
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        // H2 refuses database paths that are implicitly relative to the working directory
+        pool = new AccountConnectionPool( "jdbc:h2:file:" + new File( file ).getAbsolutePath(), user, password,
+                                          poolSize, statementCacheSize );
+
+        execute( false, connection -> {
+            try ( Statement statement = connection.getConnection().createStatement() )
+            {
+                statement.execute( SQL_CREATE_TABLE );
+                statement.execute( SQL_CREATE_EMAIL_INDEX );
+            }
+            return null;
+        } );
+    }
+
+    public void destroy()
+        throws Exception
+    {
+        pool.close();
+    }
+
+    public Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        account.setVersion( 1 );
+
+        execute( false, connection -> {
+            insert( connection, account );
+            return null;
+        } );
+
+        return account;
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        return execute( false, connection -> {
+            PreparedStatement statement = connection.prepare( SQL_SELECT_BY_ID );
+            statement.setString( 1, id );
+
+            return first( statement );
+        } );
+    }
+
+    public Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        return execute( true, connection -> update( connection, account ) ) ? account : null;
+    }
+
+    public boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        return execute( false, connection -> {
+            PreparedStatement statement = connection.prepare( SQL_COMPARE_AND_UPDATE );
+            bindValues( statement, account );
+            statement.setLong( 6, expectedVersion + 1 );
+            statement.setString( 7, account.getId() );
+            statement.setLong( 8, expectedVersion );
+
+            if ( write( statement, account ) == 0 )
+            {
+                return false;
+            }
+
+            account.setVersion( expectedVersion + 1 );
+
+            return true;
+        } );
+    }
+
+    public void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        execute( false, connection -> {
+            PreparedStatement statement = connection.prepare( SQL_DELETE );
+            statement.setString( 1, id );
+            statement.executeUpdate();
+            return null;
+        } );
+    }
+
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        if ( email == null )
+        {
+            return null;
+        }
+
+        return execute( false, connection -> {
+            PreparedStatement statement = connection.prepare( SQL_SELECT_BY_EMAIL );
+            statement.setString( 1, AccountIndex.normalizeEmail( email ) );
+
+            return first( statement );
+        } );
+    }
+
+    /**
+     * Streams the accounts in id order, reading a page at a time on a connection borrowed per page, so an open stream
+     * holds no connection. Each page is consistent in itself, writes between pages show up in later pages.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        Spliterator<Account> pages =
+            new Spliterators.AbstractSpliterator<Account>( Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL )
+            {
+                private Iterator<Account> page = Collections.emptyIterator();
+
+                private String lastId;
+
+                private boolean lastPage;
+
+                public boolean tryAdvance( Consumer<? super Account> action )
+                {
+                    if ( !page.hasNext() )
+                    {
+                        if ( lastPage )
+                        {
+                            return false;
+                        }
+
+                        try
+                        {
+                            List<Account> next = listAccounts( lastId, SCAN_PAGE_SIZE );
+
+                            lastPage = next.size() < SCAN_PAGE_SIZE;
+                            page = next.iterator();
+                        }
+                        catch ( AccountPersistException e )
+                        {
+                            throw new IllegalStateException( e.getMessage(), e );
+                        }
+
+                        if ( !page.hasNext() )
+                        {
+                            return false;
+                        }
+                    }
+
+                    Account account = page.next();
+                    lastId = account.getId();
+                    action.accept( account );
+
+                    return true;
+                }
+            };
+
+        return StreamSupport.stream( pages, false );
+    }
+
+    /**
+     * Seeks the primary key index to <code>afterId</code> and reads the page from there.
+     */
+    public List<Account> listAccounts( String afterId, int limit )
+        throws AccountPersistException
+    {
+        if ( limit <= 0 )
+        {
+            return new ArrayList<Account>();
+        }
+
+        return execute( false, connection -> {
+            PreparedStatement statement;
+
+            if ( afterId == null )
+            {
+                statement = connection.prepare( SQL_SELECT_FIRST_PAGE );
+                statement.setInt( 1, limit );
+            }
+            else
+            {
+                statement = connection.prepare( SQL_SELECT_PAGE );
+                statement.setString( 1, afterId );
+                statement.setInt( 2, limit );
+            }
+
+            return all( statement );
+        } );
+    }
+
+    /**
+     * Inserts every account in one JDBC batch and one database transaction, which a taken email or an existing id
+     * rolls back.
+     */
+    public List<Account> createAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        execute( true, connection -> {
+            PreparedStatement statement = connection.prepare( SQL_INSERT );
+
+            for ( Account account : accounts )
+            {
+                account.setVersion( 1 );
+                bindAccount( statement, account ).addBatch();
+            }
+
+            try
+            {
+                statement.executeBatch();
+            }
+            catch ( SQLException e )
+            {
+                if ( isUniqueViolation( e ) )
+                {
+                    // the failed rows are not in the transaction, the rows of the batch before them are
+                    for ( Account account : accounts )
+                    {
+                        if ( isEmailTaken( connection, account ) )
+                        {
+                            throw new DuplicateEmailException( account.getEmail() );
+                        }
+                    }
+
+                    throw new AccountPersistException( "An account of the batch already exists", e );
+                }
+
+                throw e;
+            }
+            return null;
+        } );
+
+        return new ArrayList<Account>( accounts );
+    }
+
+    public boolean isTransactional()
+    {
+        return true;
+    }
+
+    /**
+     * Applies the changes in one database transaction, so either all of them land or, when an update finds no account,
+     * a create or an update finds its email taken or a statement fails, none. The accounts get their new versions once
+     * committed.
+     */
+    public void applyChanges( List<AccountChange> changes )
+        throws AccountPersistException
+    {
+        long[] versions = new long[changes.size()];
+
+        execute( true, connection -> {
+            for ( int i = 0; i < versions.length; i++ )
+            {
+                AccountChange change = changes.get( i );
+
+                if ( change.getKind() == AccountChange.Kind.DELETE )
+                {
+                    PreparedStatement statement = connection.prepare( SQL_DELETE );
+                    statement.setString( 1, change.getId() );
+                    statement.executeUpdate();
+                    continue;
+                }
+
+                Account account = new Account( change.getAccount() );
+
+                if ( change.getKind() == AccountChange.Kind.CREATE )
+                {
+                    account.setVersion( 1 );
+                    insert( connection, account );
+                }
+                else if ( !update( connection, account ) )
+                {
+                    throw new AccountPersistException( "No account " + change.getId() + " to update" );
+                }
+
+                versions[i] = account.getVersion();
+            }
+            return null;
+        } );
+
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            if ( changes.get( i ).getAccount() != null )
+            {
+                changes.get( i ).getAccount().setVersion( versions[i] );
+            }
+        }
+    }
+
+    /**
+     * Inserts the account. The primary key rejects an id that exists and the unique email index an email another
+     * account holds, even one a concurrent transaction has not committed yet. Which of the two failed is told by
+     * looking the id up.
+     */
+    private static void insert( AccountConnectionPool.PooledConnection connection, Account account )
+        throws SQLException, AccountPersistException
+    {
+        try
+        {
+            bindAccount( connection.prepare( SQL_INSERT ), account ).executeUpdate();
+        }
+        catch ( SQLException e )
+        {
+            if ( !isUniqueViolation( e ) )
+            {
+                throw e;
+            }
+
+            if ( exists( connection, account.getId() ) )
+            {
+                throw new AccountPersistException( "Account " + account.getId() + " already exists", e );
+            }
+
+            throw new DuplicateEmailException( account.getEmail() );
+        }
+    }
+
+    private static boolean exists( AccountConnectionPool.PooledConnection connection, String id )
+        throws SQLException
+    {
+        PreparedStatement statement = connection.prepare( SQL_SELECT_VERSION );
+        statement.setString( 1, id );
+
+        try ( ResultSet rs = statement.executeQuery() )
+        {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Runs a statement that writes the account and returns the rows it changed. The unique email index rejects an
+     * email another account holds, even one a concurrent transaction has not committed yet.
+     */
+    private static int write( PreparedStatement statement, Account account )
+        throws SQLException, AccountPersistException
+    {
+        try
+        {
+            return statement.executeUpdate();
+        }
+        catch ( SQLException e )
+        {
+            if ( isUniqueViolation( e ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            throw e;
+        }
+    }
+
+    private static boolean isEmailTaken( AccountConnectionPool.PooledConnection connection, Account account )
+        throws SQLException
+    {
+        PreparedStatement statement = connection.prepare( SQL_SELECT_EMAIL_OWNER );
+        statement.setString( 1, AccountIndex.normalizeEmail( account.getEmail() ) );
+        statement.setString( 2, account.getId() );
+
+        try ( ResultSet rs = statement.executeQuery() )
+        {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Whether the failure, or one chained to it as a batch reports them, is a unique index violation.
+     */
+    private static boolean isUniqueViolation( SQLException e )
+    {
+        for ( Throwable cause = e; cause != null; cause = cause.getCause() )
+        {
+            if ( cause instanceof SQLException )
+            {
+                for ( SQLException next = (SQLException) cause; next != null; next = next.getNextException() )
+                {
+                    if ( SQL_STATE_UNIQUE_VIOLATION.equals( next.getSQLState() ) )
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Updates the row and reads back its new version, which the row lock taken by the update keeps stable until the
+     * surrounding transaction ends.
+     */
+    private boolean update( AccountConnectionPool.PooledConnection connection, Account account )
+        throws SQLException, AccountPersistException
+    {
+        PreparedStatement statement = connection.prepare( SQL_UPDATE );
+        bindValues( statement, account );
+        statement.setString( 6, account.getId() );
+
+        if ( write( statement, account ) == 0 )
+        {
+            return false;
+        }
+
+        PreparedStatement select = connection.prepare( SQL_SELECT_VERSION );
+        select.setString( 1, account.getId() );
+
+        try ( ResultSet rs = select.executeQuery() )
+        {
+            rs.next();
+            account.setVersion( rs.getLong( 1 ) );
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs the work on a pooled connection, in a transaction of its own when asked to.
+     */
+    private <T> T execute( boolean transactional, Work<T> work )
+        throws AccountPersistException
+    {
+        AccountConnectionPool.PooledConnection pooled = pool.borrow( connectionTimeout );
+        Connection connection = pooled.getConnection();
+        boolean failed = true;
+
+        try
+        {
+            if ( transactional )
+            {
+                connection.setAutoCommit( false );
+            }
+
+            T result = work.run( pooled );
+
+            if ( transactional )
+            {
+                connection.commit();
+            }
+
+            failed = false;
+
+            return result;
+        }
+        catch ( SQLException e )
+        {
+            throw new AccountPersistException( "Unable to access persist database", e );
+        }
+        finally
+        {
+            if ( transactional )
+            {
+                restoreAutoCommit( connection, failed );
+            }
+
+            pool.release( pooled, failed );
+        }
+    }
+
+    private static void restoreAutoCommit( Connection connection, boolean rollback )
+    {
+        try
+        {
+            if ( rollback )
+            {
+                connection.rollback();
+            }
+
+            connection.setAutoCommit( true );
+        }
+        catch ( SQLException e )
+        {
+            // the pool checks failed connections before reuse
+        }
+    }
+
+    private static PreparedStatement bindAccount( PreparedStatement statement, Account account )
+        throws SQLException
+    {
+        statement.setString( 1, account.getId() );
+        statement.setString( 2, account.getName() );
+        statement.setString( 3, account.getEmail() );
+        statement.setString( 4, AccountIndex.normalizeEmail( account.getEmail() ) );
+        statement.setString( 5, account.getPassword() );
+        statement.setBoolean( 6, account.isActivated() );
+        statement.setLong( 7, account.getVersion() );
+
+        return statement;
+    }
+
+    /**
+     * Binds the changeable columns to parameters 1 to 5.
+     */
+    private static void bindValues( PreparedStatement statement, Account account )
+        throws SQLException
+    {
+        statement.setString( 1, account.getName() );
+        statement.setString( 2, account.getEmail() );
+        statement.setString( 3, AccountIndex.normalizeEmail( account.getEmail() ) );
+        statement.setString( 4, account.getPassword() );
+        statement.setBoolean( 5, account.isActivated() );
+    }
+
+    private static Account first( PreparedStatement statement )
+        throws SQLException
+    {
+        try ( ResultSet rs = statement.executeQuery() )
+        {
+            return rs.next() ? buildAccount( rs ) : null;
+        }
+    }
+
+    private static List<Account> all( PreparedStatement statement )
+        throws SQLException
+    {
+        List<Account> accounts = new ArrayList<Account>();
+
+        try ( ResultSet rs = statement.executeQuery() )
+        {
+            while ( rs.next() )
+            {
+                accounts.add( buildAccount( rs ) );
+            }
+        }
+
+        return accounts;
+    }
+
+    private static Account buildAccount( ResultSet rs )
+        throws SQLException
+    {
+        Account account = new Account();
+        account.setId( rs.getString( 1 ) );
+        account.setName( rs.getString( 2 ) );
+        account.setEmail( rs.getString( 3 ) );
+        account.setPassword( rs.getString( 5 ) );
+        account.setActivated( rs.getBoolean( 6 ) );
+        account.setVersion( rs.getLong( 7 ) );
+
+        return account;
+    }
+}
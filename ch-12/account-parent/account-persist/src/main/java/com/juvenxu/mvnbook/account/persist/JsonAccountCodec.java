@@ -0,0 +1,303 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes an account as a flat JSON object in UTF-8, for example <code>{"id":"juven","name":"Juven Xu",
+ * "email":"juven@changeme.com","password":null,"activated":true,"version":1}</code>.
+ * Decoding accepts the fields in any order and skips unknown ones with simple values, so other tools can produce and
+ * extend it.
+ */
+public final class JsonAccountCodec
+    implements AccountCodec
+{
+    public byte[] encode( Account account )
+    {
+        StringBuilder json = new StringBuilder( 160 );
+
+        json.append( "{\"id\":" );
+        appendString( json, account.getId() );
+        json.append( ",\"name\":" );
+        appendString( json, account.getName() );
+        json.append( ",\"email\":" );
+        appendString( json, account.getEmail() );
+        json.append( ",\"password\":" );
+        appendString( json, account.getPassword() );
+        json.append( ",\"activated\":" ).append( account.isActivated() );
+        json.append( ",\"version\":" ).append( account.getVersion() ).append( '}' );
+
+        return json.toString().getBytes( StandardCharsets.UTF_8 );
+    }
+
+    public Account decode( byte[] data, int offset, int length )
+    {
+        Parser parser = new Parser( new String( data, offset, length, StandardCharsets.UTF_8 ) );
+        Account account = new Account();
+
+        parser.expect( '{' );
+
+        if ( !parser.skipIf( '}' ) )
+        {
+            do
+            {
+                String field = parser.readString();
+                parser.expect( ':' );
+
+                switch ( field )
+                {
+                    case "id":
+                        account.setId( parser.readNullableString() );
+                        break;
+                    case "name":
+                        account.setName( parser.readNullableString() );
+                        break;
+                    case "email":
+                        account.setEmail( parser.readNullableString() );
+                        break;
+                    case "password":
+                        account.setPassword( parser.readNullableString() );
+                        break;
+                    case "activated":
+                        account.setActivated( "true".equals( parser.readLiteral() ) );
+                        break;
+                    case "version":
+                        account.setVersion( parser.readNumber() );
+                        break;
+                    default:
+                        parser.skipValue();
+                }
+            }
+            while ( parser.skipIf( ',' ) );
+
+            parser.expect( '}' );
+        }
+
+        parser.expectEnd();
+
+        return account;
+    }
+
+    private static void appendString( StringBuilder json, String value )
+    {
+        if ( value == null )
+        {
+            json.append( "null" );
+            return;
+        }
+
+        json.append( '"' );
+
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+
+            if ( c == '"' || c == '\\' )
+            {
+                json.append( '\\' ).append( c );
+            }
+            else if ( c < 0x20 )
+            {
+                json.append( String.format( "\\u%04x", (int) c ) );
+            }
+            else
+            {
+                json.append( c );
+            }
+        }
+
+        json.append( '"' );
+    }
+
+    /**
+     * Reads the few JSON constructs an account needs. Every read skips the whitespace before it.
+     */
+    private static final class Parser
+    {
+        private final String json;
+
+        private int pos;
+
+        Parser( String json )
+        {
+            this.json = json;
+        }
+
+        void expect( char c )
+        {
+            if ( !skipIf( c ) )
+            {
+                throw error( "'" + c + "' expected" );
+            }
+        }
+
+        boolean skipIf( char c )
+        {
+            skipWhitespace();
+
+            if ( pos < json.length() && json.charAt( pos ) == c )
+            {
+                pos++;
+                return true;
+            }
+
+            return false;
+        }
+
+        void expectEnd()
+        {
+            skipWhitespace();
+
+            if ( pos != json.length() )
+            {
+                throw error( "end expected" );
+            }
+        }
+
+        String readNullableString()
+        {
+            skipWhitespace();
+
+            if ( json.startsWith( "null", pos ) )
+            {
+                pos += 4;
+                return null;
+            }
+
+            return readString();
+        }
+
+        String readString()
+        {
+            expect( '"' );
+
+            StringBuilder value = new StringBuilder();
+
+            while ( true )
+            {
+                if ( pos >= json.length() )
+                {
+                    throw error( "unterminated string" );
+                }
+
+                char c = json.charAt( pos++ );
+
+                if ( c == '"' )
+                {
+                    return value.toString();
+                }
+
+                if ( c != '\\' )
+                {
+                    value.append( c );
+                    continue;
+                }
+
+                if ( pos >= json.length() )
+                {
+                    throw error( "unterminated escape" );
+                }
+
+                char escaped = json.charAt( pos++ );
+
+                switch ( escaped )
+                {
+                    case 'b':
+                        value.append( '\b' );
+                        break;
+                    case 'f':
+                        value.append( '\f' );
+                        break;
+                    case 'n':
+                        value.append( '\n' );
+                        break;
+                    case 'r':
+                        value.append( '\r' );
+                        break;
+                    case 't':
+                        value.append( '\t' );
+                        break;
+                    case 'u':
+                        if ( pos + 4 > json.length() )
+                        {
+                            throw error( "truncated unicode escape" );
+                        }
+                        try
+                        {
+                            value.append( (char) Integer.parseInt( json.substring( pos, pos + 4 ), 16 ) );
+                        }
+                        catch ( NumberFormatException e )
+                        {
+                            throw error( "malformed unicode escape" );
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        value.append( escaped );
+                }
+            }
+        }
+
+        /**
+         * A literal or number, as the characters up to the next delimiter.
+         */
+        String readLiteral()
+        {
+            skipWhitespace();
+
+            int start = pos;
+
+            while ( pos < json.length() && ",}] \t\r\n".indexOf( json.charAt( pos ) ) < 0 )
+            {
+                pos++;
+            }
+
+            if ( start == pos )
+            {
+                throw error( "value expected" );
+            }
+
+            return json.substring( start, pos );
+        }
+
+        long readNumber()
+        {
+            String literal = readLiteral();
+
+            try
+            {
+                return Long.parseLong( literal );
+            }
+            catch ( NumberFormatException e )
+            {
+                throw error( "number expected, found " + literal );
+            }
+        }
+
+        void skipValue()
+        {
+            skipWhitespace();
+
+            if ( pos < json.length() && json.charAt( pos ) == '"' )
+            {
+                readString();
+            }
+            else
+            {
+                readLiteral();
+            }
+        }
+
+        private void skipWhitespace()
+        {
+            while ( pos < json.length() && Character.isWhitespace( json.charAt( pos ) ) )
+            {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error( String message )
+        {
+            return new IllegalArgumentException( "Malformed account json at " + pos + ": " + message );
+        }
+    }
+}
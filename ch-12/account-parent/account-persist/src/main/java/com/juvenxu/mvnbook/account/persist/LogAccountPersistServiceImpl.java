@@ -0,0 +1,405 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Persists accounts as an append-only log of create, update and delete records, so a write costs the size of one
+ * record instead of a rewrite of every account. The log is folded into a snapshot file once
+ * <code>snapshotThreshold</code> records have been appended, and snapshot plus log are replayed into memory on
+ * startup. Every record carries a CRC32, a torn record at the end of the log is discarded during replay. In memory
+ * the accounts are held as {@link CompactAccount}s.
+ * <p>
+ * A write returns once its record has been forced to disk. Records are appended under the service lock but synced
+ * after it is released, so concurrent writers share one fsync.
+ */
+public class LogAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean, DisposableBean
+{
+    static final String SNAPSHOT_FILE = "accounts.snapshot";
+
+    static final String LOG_FILE = "accounts.log";
+
+    private static final byte OP_CREATE = 1;
+
+    private static final byte OP_UPDATE = 2;
+
+    private static final byte OP_DELETE = 3;
+
+    private String directory;
+
+    private int snapshotThreshold = 10000;
+
+    private final AccountIndex<CompactAccount> accounts = new AccountIndex<CompactAccount>();
+
+    private final CompactAccount.Domains domains = new CompactAccount.Domains();
+
+    private File snapshotFile;
+
+    private AccountLogFile log;
+
+    private int appendedRecords;
+
+    public String getDirectory()
+    {
+        return directory;
+    }
+
+    public void setDirectory( String directory )
+    {
+        this.directory = directory;
+    }
+
+    public int getSnapshotThreshold()
+    {
+        return snapshotThreshold;
+    }
+
+    public void setSnapshotThreshold( int snapshotThreshold )
+    {
+        this.snapshotThreshold = snapshotThreshold;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        File dir = new File( directory );
+        dir.mkdirs();
+
+        snapshotFile = new File( dir, SNAPSHOT_FILE );
+        log = new AccountLogFile( new File( dir, LOG_FILE ) );
+
+        readSnapshot();
+        appendedRecords = log.replay( this::applyRecord );
+
+        log.open();
+    }
+
+    public synchronized void destroy()
+        throws Exception
+    {
+        log.close();
+    }
+
+    public Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        GroupCommit.Batch batch;
+
+        synchronized ( this )
+        {
+            if ( accounts.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            account.setVersion( 1 );
+
+            batch = append( OP_CREATE, account );
+
+            accounts.put( account.getId(), account.getEmail(), CompactAccount.of( account, domains ) );
+
+            snapshotIfDue();
+        }
+
+        log.sync( batch );
+
+        return account;
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        CompactAccount account = accounts.get( id );
+
+        return account == null ? null : account.toAccount( domains );
+    }
+
+    public Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        return update( account, -1 ) ? account : null;
+    }
+
+    public boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        return update( account, expectedVersion );
+    }
+
+    private boolean update( Account account, long expectedVersion )
+        throws AccountPersistException
+    {
+        GroupCommit.Batch batch;
+
+        synchronized ( this )
+        {
+            CompactAccount current = accounts.get( account.getId() );
+
+            if ( current == null || ( expectedVersion >= 0 && current.getVersion() != expectedVersion ) )
+            {
+                return false;
+            }
+
+            if ( accounts.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            account.setVersion( current.getVersion() + 1 );
+
+            batch = append( OP_UPDATE, account );
+
+            accounts.put( account.getId(), account.getEmail(), CompactAccount.of( account, domains ) );
+
+            snapshotIfDue();
+        }
+
+        log.sync( batch );
+
+        return true;
+    }
+
+    public void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        GroupCommit.Batch batch;
+
+        synchronized ( this )
+        {
+            if ( !accounts.containsId( id ) )
+            {
+                return;
+            }
+
+            Account tombstone = new Account();
+            tombstone.setId( id );
+
+            batch = append( OP_DELETE, tombstone );
+
+            accounts.remove( id );
+
+            snapshotIfDue();
+        }
+
+        log.sync( batch );
+    }
+
+    public boolean isTransactional()
+    {
+        return true;
+    }
+
+    /**
+     * Appends every change as one log record, so either all of them land or, when an update finds no account, a
+     * create or an update finds its email taken or the append fails, none. The accounts get their new versions once
+     * synced.
+     */
+    public void applyChanges( List<AccountChange> changes )
+        throws AccountPersistException
+    {
+        GroupCommit.Batch batch;
+        byte[] ops = new byte[changes.size()];
+        Account[] records = new Account[changes.size()];
+
+        synchronized ( this )
+        {
+            EmailClaims claims = new EmailClaims( accounts::isEmailTaken );
+            Map<String, Account> changed = new HashMap<String, Account>();
+
+            for ( int i = 0; i < records.length; i++ )
+            {
+                AccountChange change = changes.get( i );
+
+                if ( change.getKind() == AccountChange.Kind.DELETE )
+                {
+                    ops[i] = OP_DELETE;
+                    records[i] = new Account();
+                    records[i].setId( change.getId() );
+
+                    changed.put( change.getId(), null );
+                    continue;
+                }
+
+                Account account = new Account( change.getAccount() );
+
+                if ( change.getKind() == AccountChange.Kind.CREATE )
+                {
+                    claims.claim( account );
+
+                    ops[i] = OP_CREATE;
+                    account.setVersion( 1 );
+                }
+                else
+                {
+                    Account current = changed.containsKey( account.getId() ) ? changed.get( account.getId() )
+                                    : readAccount( account.getId() );
+
+                    if ( current == null )
+                    {
+                        throw new AccountPersistException( "No account " + change.getId() + " to update" );
+                    }
+
+                    claims.claim( account );
+
+                    ops[i] = OP_UPDATE;
+                    account.setVersion( current.getVersion() + 1 );
+                }
+
+                records[i] = account;
+                changed.put( account.getId(), account );
+            }
+
+            batch = log.append( ops, records );
+
+            appendedRecords += records.length;
+
+            for ( int i = 0; i < records.length; i++ )
+            {
+                applyRecord( ops[i], records[i] );
+            }
+
+            snapshotIfDue();
+        }
+
+        log.sync( batch );
+
+        for ( int i = 0; i < records.length; i++ )
+        {
+            if ( changes.get( i ).getAccount() != null )
+            {
+                changes.get( i ).getAccount().setVersion( records[i].getVersion() );
+            }
+        }
+    }
+
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        String id = accounts.idForEmail( email );
+
+        return id == null ? null : readAccount( id );
+    }
+
+    /**
+     * Streams copies of the accounts in memory. Writes made meanwhile may or may not show up.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        return accounts.stream().map( account -> account.toAccount( domains ) );
+    }
+
+    /**
+     * Writes every live account to a fresh snapshot and truncates the log.
+     */
+    public synchronized void snapshot()
+        throws AccountPersistException
+    {
+        File tempFile = new File( snapshotFile.getPath() + ".tmp" );
+
+        try
+        {
+            List<CompactAccount> live = accounts.values();
+
+            try ( FileOutputStream fileOut = new FileOutputStream( tempFile );
+                  DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fileOut ) ) )
+            {
+                out.writeInt( live.size() );
+
+                for ( CompactAccount account : live )
+                {
+                    BinaryAccountCodec.writeAccount( out, account.toAccount( domains ) );
+                }
+
+                out.flush();
+                fileOut.getFD().sync();
+            }
+
+            Files.move( tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+
+            // the rename must be durable before the log it replaces is truncated
+            AccountXmlFile.syncDirectory( snapshotFile.getAbsoluteFile().toPath().getParent() );
+
+            // replaying the old log over the new snapshot is harmless, every record is idempotent
+            log.reset();
+
+            appendedRecords = 0;
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to write persist snapshot", e );
+        }
+    }
+
+    private GroupCommit.Batch append( byte op, Account account )
+        throws AccountPersistException
+    {
+        GroupCommit.Batch batch = log.append( op, account );
+
+        appendedRecords++;
+
+        return batch;
+    }
+
+    private void snapshotIfDue()
+        throws AccountPersistException
+    {
+        if ( appendedRecords >= snapshotThreshold )
+        {
+            snapshot();
+        }
+    }
+
+    private void readSnapshot()
+        throws AccountPersistException
+    {
+        if ( !snapshotFile.exists() )
+        {
+            return;
+        }
+
+        try ( DataInputStream in =
+            new DataInputStream( new BufferedInputStream( new FileInputStream( snapshotFile ) ) ) )
+        {
+            for ( int i = in.readInt(); i > 0; i-- )
+            {
+                Account account = BinaryAccountCodec.readAccount( in );
+
+                accounts.put( account.getId(), account.getEmail(), CompactAccount.of( account, domains ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to read persist snapshot", e );
+        }
+    }
+
+    private void applyRecord( byte op, Account account )
+    {
+        if ( op == OP_DELETE )
+        {
+            accounts.remove( account.getId() );
+        }
+        else
+        {
+            accounts.put( account.getId(), account.getEmail(), CompactAccount.of( account, domains ) );
+        }
+    }
+}
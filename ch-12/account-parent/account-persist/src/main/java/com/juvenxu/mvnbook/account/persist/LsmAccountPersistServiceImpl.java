@@ -0,0 +1,1517 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Persists accounts as a log-structured merge tree. Writes go to a write-ahead log and a sorted in-memory memtable,
+ * so their cost does not depend on how many accounts are stored. A write returns once the log is synced, an fsync
+ * concurrent writers share. A full memtable is written out in the background as an immutable, sorted
+ * {@link AccountSegment}. Segments are merged on a thread of their own that writers never wait for: once
+ * <code>compactionThreshold</code> adjacent segments of about the same size have piled up they are merged into one,
+ * so each merge reads a bounded tier rather than every segment, and an account is rewritten about once per tier.
+ * Deleted accounts are dropped for good when the merge reaches the oldest segment.
+ * <p>
+ * A read looks at the memtable, the memtable being flushed, then the segments from newest to oldest, and each
+ * segment probe reads a single index block. The live segments are listed in a manifest that is replaced atomically,
+ * so a crash during a flush or compaction leaves the previous set of segments plus the write-ahead logs to replay.
+ * <p>
+ * An in-memory index maps every email to its id. It is built from the segments and logs at startup and kept up to
+ * date by every write, so findAccountByEmail reads a single account and a create checks its email is free without a
+ * scan.
+ */
+public class LsmAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean, DisposableBean
+{
+    static final String MANIFEST_FILE = "manifest.properties";
+
+    private static final Pattern DATA_FILE = Pattern.compile( "(segment|wal)-(\\d+)\\.(seg|log)" );
+
+    private static final byte OP_PUT = 1;
+
+    private static final byte OP_DELETE = 2;
+
+    /**
+     * Largest to smallest segment size within a tier that is merged.
+     */
+    private static final int TIER_RATIO = 2;
+
+    private String directory;
+
+    private int memtableSize = 10000;
+
+    private int compactionThreshold = 4;
+
+    private int indexInterval = 16;
+
+    private File dir;
+
+    private final AtomicLong nextFileId = new AtomicLong( 1 );
+
+    private volatile ConcurrentSkipListMap<String, Account> memtable = new ConcurrentSkipListMap<String, Account>();
+
+    private AccountLogFile wal;
+
+    private long walId;
+
+    private volatile ConcurrentSkipListMap<String, Account> flushing;
+
+    private long flushingId;
+
+    private Future<?> pendingFlush;
+
+    /**
+     * Live segments, newest first. Replaced, never modified, and only while holding the manifest lock: a flush puts
+     * its segment in front, a compaction replaces a run of adjacent segments in place.
+     */
+    private volatile List<AccountSegment> segments = Collections.emptyList();
+
+    private long flushedId;
+
+    /**
+     * Held for reading while probing segments, and for writing while compaction closes the segments it replaced.
+     */
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes changes to the segment list and the manifest between the flusher and the compactor.
+     */
+    private final Object manifestLock = new Object();
+
+    private ExecutorService flusher;
+
+    private ExecutorService compactor;
+
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+
+    /**
+     * Email to id of every live account, changed only while holding the monitor.
+     */
+    private final AccountIndex<Boolean> emails = new AccountIndex<Boolean>();
+
+    public String getDirectory()
+    {
+        return directory;
+    }
+
+    public void setDirectory( String directory )
+    {
+        this.directory = directory;
+    }
+
+    public int getMemtableSize()
+    {
+        return memtableSize;
+    }
+
+    /**
+     * How many accounts the memtable holds before it is flushed to a segment.
+     */
+    public void setMemtableSize( int memtableSize )
+    {
+        this.memtableSize = memtableSize;
+    }
+
+    public int getCompactionThreshold()
+    {
+        return compactionThreshold;
+    }
+
+    /**
+     * How many segments of about the same size may pile up before they are merged into one.
+     */
+    public void setCompactionThreshold( int compactionThreshold )
+    {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public int getIndexInterval()
+    {
+        return indexInterval;
+    }
+
+    /**
+     * How many records of a segment share one sparse index entry, which bounds the block a lookup reads.
+     */
+    public void setIndexInterval( int indexInterval )
+    {
+        this.indexInterval = indexInterval;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        dir = new File( directory );
+        dir.mkdirs();
+
+        readManifest();
+
+        TreeMap<Long, File> logs = new TreeMap<Long, File>();
+
+        for ( File file : listDataFiles() )
+        {
+            long id = dataFileId( file );
+            nextFileId.set( Math.max( nextFileId.get(), id + 1 ) );
+
+            if ( file.getName().endsWith( ".log" ) )
+            {
+                if ( id <= flushedId )
+                {
+                    file.delete();
+                }
+                else
+                {
+                    logs.put( id, file );
+                }
+            }
+            else if ( !isLive( file ) )
+            {
+                // left behind by a flush or compaction that never made it into the manifest
+                file.delete();
+            }
+        }
+
+        for ( File file : logs.values() )
+        {
+            new AccountLogFile( file ).replay( this::applyRecord );
+        }
+
+        indexEmails();
+
+        // older logs are all in the memtable now and go away once it is flushed
+        walId = logs.isEmpty() ? nextFileId.getAndIncrement() : logs.lastKey();
+        wal = new AccountLogFile( logFile( walId ) );
+        wal.open();
+
+        flusher = Executors.newSingleThreadExecutor( r -> {
+            Thread thread = new Thread( r, "account-persist-flusher" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        compactor = Executors.newSingleThreadExecutor( r -> {
+            Thread thread = new Thread( r, "account-persist-compactor" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+        scheduleCompaction();
+    }
+
+    public synchronized void destroy()
+        throws Exception
+    {
+        // the flusher schedules compactions, so it stops first
+        flusher.shutdown();
+        flusher.awaitTermination( 1, TimeUnit.MINUTES );
+        compactor.shutdown();
+        compactor.awaitTermination( 1, TimeUnit.MINUTES );
+
+        wal.close();
+
+        for ( AccountSegment segment : segments )
+        {
+            segment.close();
+        }
+    }
+
+    public Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        AccountLogFile log;
+        GroupCommit.Batch batch;
+
+        synchronized ( this )
+        {
+            if ( emails.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            makeRoomForWrite();
+
+            account.setVersion( 1 );
+
+            log = wal;
+            batch = log.append( OP_PUT, account );
+
+            memtable.put( account.getId(), new Account( account ) );
+            emails.put( account.getId(), account.getEmail(), Boolean.TRUE );
+        }
+
+        log.sync( batch );
+
+        return account;
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        Account account = lookup( id );
+
+        return account == null ? null : new Account( account );
+    }
+
+    public Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        return update( account, -1 ) ? account : null;
+    }
+
+    public boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        return update( account, expectedVersion );
+    }
+
+    private boolean update( Account account, long expectedVersion )
+        throws AccountPersistException
+    {
+        AccountLogFile log;
+        GroupCommit.Batch batch;
+
+        synchronized ( this )
+        {
+            Account current = lookup( account.getId() );
+
+            if ( current == null || ( expectedVersion >= 0 && current.getVersion() != expectedVersion ) )
+            {
+                return false;
+            }
+
+            if ( emails.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            makeRoomForWrite();
+
+            account.setVersion( current.getVersion() + 1 );
+
+            log = wal;
+            batch = log.append( OP_PUT, account );
+
+            memtable.put( account.getId(), new Account( account ) );
+            emails.put( account.getId(), account.getEmail(), Boolean.TRUE );
+        }
+
+        log.sync( batch );
+
+        return true;
+    }
+
+    public void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        AccountLogFile log;
+        GroupCommit.Batch batch;
+
+        synchronized ( this )
+        {
+            if ( lookup( id ) == null )
+            {
+                return;
+            }
+
+            makeRoomForWrite();
+
+            Account tombstone = new Account();
+            tombstone.setId( id );
+
+            log = wal;
+            batch = log.append( OP_DELETE, tombstone );
+
+            memtable.put( id, AccountSegment.TOMBSTONE );
+            emails.remove( id );
+        }
+
+        log.sync( batch );
+    }
+
+    /**
+     * Creates the accounts as one transaction, with one write-ahead log record, so a taken email creates none of them.
+     */
+    public List<Account> createAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        List<AccountChange> changes = new ArrayList<AccountChange>( accounts.size() );
+
+        for ( Account account : accounts )
+        {
+            changes.add( AccountChange.create( account ) );
+        }
+
+        applyChanges( changes );
+
+        return new ArrayList<Account>( accounts );
+    }
+
+    /**
+     * Updates the accounts that exist with one write-ahead log record and one sync. A taken email updates none of
+     * them.
+     */
+    public List<Account> updateAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        List<Account> results = new ArrayList<Account>( accounts.size() );
+        List<Account> records = new ArrayList<Account>( accounts.size() );
+        AccountLogFile log;
+        GroupCommit.Batch batch;
+
+        synchronized ( this )
+        {
+            EmailClaims claims = new EmailClaims( emails::isEmailTaken );
+            Map<String, Account> changed = new HashMap<String, Account>();
+
+            for ( Account account : accounts )
+            {
+                Account current = changed.get( account.getId() );
+
+                if ( current == null )
+                {
+                    current = lookup( account.getId() );
+                }
+
+                if ( current == null )
+                {
+                    results.add( null );
+                    continue;
+                }
+
+                claims.claim( account );
+
+                Account next = new Account( account );
+                next.setVersion( current.getVersion() + 1 );
+
+                records.add( next );
+                changed.put( next.getId(), next );
+                results.add( account );
+            }
+
+            if ( records.isEmpty() )
+            {
+                return results;
+            }
+
+            makeRoomForWrite();
+
+            byte[] ops = new byte[records.size()];
+            Arrays.fill( ops, OP_PUT );
+
+            log = wal;
+            batch = log.append( ops, records.toArray( new Account[records.size()] ) );
+
+            for ( Account record : records )
+            {
+                memtable.put( record.getId(), record );
+                emails.put( record.getId(), record.getEmail(), Boolean.TRUE );
+            }
+        }
+
+        log.sync( batch );
+
+        Iterator<Account> written = records.iterator();
+
+        for ( Account account : results )
+        {
+            if ( account != null )
+            {
+                account.setVersion( written.next().getVersion() );
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Deletes the accounts that exist with one write-ahead log record and one sync.
+     */
+    public List<Boolean> deleteAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        List<Boolean> results = new ArrayList<Boolean>( ids.size() );
+        List<Account> tombstones = new ArrayList<Account>( ids.size() );
+        AccountLogFile log;
+        GroupCommit.Batch batch;
+
+        synchronized ( this )
+        {
+            Set<String> deleted = new HashSet<String>();
+
+            for ( String id : ids )
+            {
+                boolean existed = !deleted.contains( id ) && lookup( id ) != null;
+
+                if ( existed )
+                {
+                    Account tombstone = new Account();
+                    tombstone.setId( id );
+
+                    tombstones.add( tombstone );
+                    deleted.add( id );
+                }
+
+                results.add( existed );
+            }
+
+            if ( tombstones.isEmpty() )
+            {
+                return results;
+            }
+
+            makeRoomForWrite();
+
+            byte[] ops = new byte[tombstones.size()];
+            Arrays.fill( ops, OP_DELETE );
+
+            log = wal;
+            batch = log.append( ops, tombstones.toArray( new Account[tombstones.size()] ) );
+
+            for ( String id : deleted )
+            {
+                memtable.put( id, AccountSegment.TOMBSTONE );
+                emails.remove( id );
+            }
+        }
+
+        log.sync( batch );
+
+        return results;
+    }
+
+    public boolean isTransactional()
+    {
+        return true;
+    }
+
+    /**
+     * Appends every change to the write-ahead log as one record, so either all of them land or, when an update finds
+     * no account, a create or an update finds its email taken or the append fails, none. The accounts get their new
+     * versions once synced.
+     */
+    public void applyChanges( List<AccountChange> changes )
+        throws AccountPersistException
+    {
+        AccountLogFile log;
+        GroupCommit.Batch batch;
+        byte[] ops = new byte[changes.size()];
+        Account[] records = new Account[changes.size()];
+
+        synchronized ( this )
+        {
+            EmailClaims claims = new EmailClaims( emails::isEmailTaken );
+            Map<String, Account> changed = new HashMap<String, Account>();
+
+            for ( int i = 0; i < records.length; i++ )
+            {
+                AccountChange change = changes.get( i );
+
+                if ( change.getKind() == AccountChange.Kind.DELETE )
+                {
+                    ops[i] = OP_DELETE;
+                    records[i] = new Account();
+                    records[i].setId( change.getId() );
+
+                    changed.put( change.getId(), null );
+                    continue;
+                }
+
+                Account account = new Account( change.getAccount() );
+
+                if ( change.getKind() == AccountChange.Kind.CREATE )
+                {
+                    claims.claim( account );
+                    account.setVersion( 1 );
+                }
+                else
+                {
+                    Account current = changed.containsKey( account.getId() ) ? changed.get( account.getId() )
+                                    : lookup( account.getId() );
+
+                    if ( current == null )
+                    {
+                        throw new AccountPersistException( "No account " + change.getId() + " to update" );
+                    }
+
+                    claims.claim( account );
+                    account.setVersion( current.getVersion() + 1 );
+                }
+
+                ops[i] = OP_PUT;
+                records[i] = account;
+                changed.put( account.getId(), account );
+            }
+
+            makeRoomForWrite();
+
+            log = wal;
+            batch = log.append( ops, records );
+
+            for ( int i = 0; i < records.length; i++ )
+            {
+                if ( ops[i] == OP_DELETE )
+                {
+                    memtable.put( records[i].getId(), AccountSegment.TOMBSTONE );
+                    emails.remove( records[i].getId() );
+                }
+                else
+                {
+                    memtable.put( records[i].getId(), new Account( records[i] ) );
+                    emails.put( records[i].getId(), records[i].getEmail(), Boolean.TRUE );
+                }
+            }
+        }
+
+        log.sync( batch );
+
+        for ( int i = 0; i < records.length; i++ )
+        {
+            if ( changes.get( i ).getAccount() != null )
+            {
+                changes.get( i ).getAccount().setVersion( records[i].getVersion() );
+            }
+        }
+    }
+
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        String id = emails.idForEmail( email );
+        Account account = id == null ? null : readAccount( id );
+
+        // a write may have moved the account to another email since the lookup
+        if ( account == null
+            || !AccountIndex.normalizeEmail( email ).equals( AccountIndex.normalizeEmail( account.getEmail() ) ) )
+        {
+            return null;
+        }
+
+        return account;
+    }
+
+    /**
+     * Streams the accounts in id order. The stream works on the memtables and segments present when it was opened,
+     * and keeps those segments open until it is closed, even when compaction replaces them meanwhile. It splits at
+     * ids taken from the sparse index of the largest segment.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        ScanSources sources = openScan();
+
+        return StreamSupport.stream( new RangeSpliterator( sources, null, null ), false ).onClose( sources::release );
+    }
+
+    /**
+     * Merges forward from <code>afterId</code>, reading only the blocks the page touches.
+     */
+    public List<Account> listAccounts( String afterId, int limit )
+        throws AccountPersistException
+    {
+        List<Account> page = new ArrayList<Account>();
+
+        if ( limit <= 0 )
+        {
+            return page;
+        }
+
+        ScanSources sources = openScan();
+
+        try
+        {
+            RangeSpliterator accounts = new RangeSpliterator( sources, afterId, null );
+            boolean more = true;
+
+            while ( more && page.size() < limit )
+            {
+                more = accounts.tryAdvance( account -> {
+                    if ( !account.getId().equals( afterId ) )
+                    {
+                        page.add( account );
+                    }
+                } );
+            }
+
+            return page;
+        }
+        catch ( IllegalStateException e )
+        {
+            throw unwrap( e );
+        }
+        finally
+        {
+            sources.release();
+        }
+    }
+
+    /**
+     * Flushes the memtable to a segment and waits for it to be written.
+     */
+    public synchronized void flush()
+        throws AccountPersistException
+    {
+        awaitFlush();
+
+        if ( !memtable.isEmpty() )
+        {
+            rotateMemtable();
+            awaitFlush();
+        }
+    }
+
+    /**
+     * Merges every segment into one and waits for it, whether or not the compaction threshold has been reached.
+     */
+    public void compact()
+        throws AccountPersistException
+    {
+        try
+        {
+            compactor.submit( () -> {
+                List<AccountSegment> all = segments;
+
+                if ( all.size() > 1 )
+                {
+                    compactSegments( all );
+                }
+                return null;
+            } ).get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+
+            throw new AccountPersistException( "Interrupted while compacting persist segments", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new AccountPersistException( "Unable to compact persist segments", e.getCause() );
+        }
+    }
+
+    /**
+     * Number of live segment files, for tests and monitoring.
+     */
+    int segmentCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * Waits for the compactions scheduled so far, for tests.
+     */
+    void awaitCompaction()
+        throws Exception
+    {
+        compactor.submit( () -> {
+        } ).get();
+    }
+
+    /**
+     * The newest value for the id, or null when it does not exist or has been deleted.
+     */
+    private Account lookup( String id )
+        throws AccountPersistException
+    {
+        // memtable, flushing, segments: a flush publishes its segment before it clears flushing
+        Account account = memtable.get( id );
+
+        if ( account == null )
+        {
+            Map<String, Account> table = flushing;
+
+            if ( table != null )
+            {
+                account = table.get( id );
+            }
+        }
+
+        if ( account == null )
+        {
+            segmentLock.readLock().lock();
+
+            try
+            {
+                for ( AccountSegment segment : segments )
+                {
+                    account = segment.get( id );
+
+                    if ( account != null )
+                    {
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                segmentLock.readLock().unlock();
+            }
+        }
+
+        return account == AccountSegment.TOMBSTONE ? null : account;
+    }
+
+    /**
+     * Hands a full memtable to the flusher. Waits for the previous flush first, so at most one memtable is in
+     * flight, which throttles writers to the speed segments can be written at. Compaction is never waited for.
+     */
+    private void makeRoomForWrite()
+        throws AccountPersistException
+    {
+        if ( memtable.size() < memtableSize )
+        {
+            return;
+        }
+
+        awaitFlush();
+        rotateMemtable();
+    }
+
+    private void rotateMemtable()
+        throws AccountPersistException
+    {
+        long nextWalId = nextFileId.getAndIncrement();
+        AccountLogFile nextWal = new AccountLogFile( logFile( nextWalId ) );
+        nextWal.open();
+
+        wal.close();
+
+        flushingId = walId;
+        flushing = memtable;
+        memtable = new ConcurrentSkipListMap<String, Account>();
+
+        wal = nextWal;
+        walId = nextWalId;
+
+        pendingFlush = flusher.submit( () -> {
+            flushMemtable();
+            return null;
+        } );
+    }
+
+    /**
+     * Waits for the running flush. If it failed the memtable stays in flight and is retried, and the write that
+     * needed the room is refused.
+     */
+    private void awaitFlush()
+        throws AccountPersistException
+    {
+        if ( pendingFlush == null )
+        {
+            return;
+        }
+
+        try
+        {
+            pendingFlush.get();
+            pendingFlush = null;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+
+            throw new AccountPersistException( "Interrupted while flushing persist memtable", e );
+        }
+        catch ( ExecutionException e )
+        {
+            pendingFlush = flusher.submit( () -> {
+                flushMemtable();
+                return null;
+            } );
+
+            throw new AccountPersistException( "Unable to flush persist memtable", e.getCause() );
+        }
+    }
+
+    /**
+     * Runs on the flusher thread.
+     */
+    private void flushMemtable()
+        throws AccountPersistException
+    {
+        long id = flushingId;
+
+        AccountSegment segment =
+            AccountSegment.write( segmentFile( id ), flushing.entrySet().iterator(), indexInterval );
+
+        synchronized ( manifestLock )
+        {
+            List<AccountSegment> next = new ArrayList<AccountSegment>( segments.size() + 1 );
+            next.add( segment );
+            next.addAll( segments );
+
+            try
+            {
+                writeManifest( next, id );
+            }
+            catch ( AccountPersistException e )
+            {
+                segment.close();
+                segment.getFile().delete();
+
+                throw e;
+            }
+
+            segments = Collections.unmodifiableList( next );
+            flushedId = id;
+        }
+        flushing = null;
+
+        for ( File file : listDataFiles() )
+        {
+            if ( file.getName().endsWith( ".log" ) && dataFileId( file ) <= id )
+            {
+                file.delete();
+            }
+        }
+
+        scheduleCompaction();
+    }
+
+    /**
+     * Queues a compaction unless one is queued already. Nobody waits for it.
+     */
+    private void scheduleCompaction()
+    {
+        if ( compactionQueued.compareAndSet( false, true ) )
+        {
+            compactor.execute( this::compactTiers );
+        }
+    }
+
+    /**
+     * Runs on the compactor thread and merges tiers until none is full.
+     */
+    private void compactTiers()
+    {
+        compactionQueued.set( false );
+
+        try
+        {
+            for ( List<AccountSegment> tier = nextTier(); tier != null; tier = nextTier() )
+            {
+                compactSegments( tier );
+            }
+        }
+        catch ( AccountPersistException e )
+        {
+            // the segments are still intact, compaction is tried again after the next flush
+        }
+    }
+
+    /**
+     * The newest run of <code>compactionThreshold</code> adjacent segments whose sizes are within
+     * {@link #TIER_RATIO} of each other, or null when there is none. Freshly flushed segments are about the same size,
+     * so they form a tier, and so do the segments merged from them later on. Should sizes never line up, the newest
+     * run is merged once twice the threshold has piled up, so the number of segments stays bounded.
+     */
+    private List<AccountSegment> nextTier()
+    {
+        List<AccountSegment> current = segments;
+
+        for ( int from = 0; from + compactionThreshold <= current.size(); from++ )
+        {
+            long smallest = Long.MAX_VALUE;
+            long largest = 0;
+
+            for ( AccountSegment segment : current.subList( from, from + compactionThreshold ) )
+            {
+                smallest = Math.min( smallest, segment.size() );
+                largest = Math.max( largest, segment.size() );
+            }
+
+            if ( largest <= TIER_RATIO * Math.max( smallest, 1 ) )
+            {
+                return current.subList( from, from + compactionThreshold );
+            }
+        }
+
+        if ( current.size() >= 2 * compactionThreshold )
+        {
+            return current.subList( 0, compactionThreshold );
+        }
+
+        return null;
+    }
+
+    /**
+     * Merges a run of adjacent segments into one and puts it in their place. Runs on the compactor thread, so the
+     * run stays in the segment list meanwhile: flushes only put new segments in front of it. Tombstones must keep
+     * hiding older versions, so they are dropped only when the run reaches the oldest segment.
+     */
+    private void compactSegments( List<AccountSegment> inputs )
+        throws AccountPersistException
+    {
+        List<Iterator<Map.Entry<String, Account>>> sources = new ArrayList<Iterator<Map.Entry<String, Account>>>();
+        for ( AccountSegment segment : inputs )
+        {
+            sources.add( segment.iterator() );
+        }
+
+        List<AccountSegment> current = segments;
+        boolean oldest = current.get( current.size() - 1 ) == inputs.get( inputs.size() - 1 );
+
+        AccountSegment merged;
+
+        try
+        {
+            merged = AccountSegment.write( segmentFile( nextFileId.getAndIncrement() ),
+                                           new MergeIterator( sources, !oldest ), indexInterval );
+        }
+        catch ( IllegalStateException e )
+        {
+            throw unwrap( e );
+        }
+
+        synchronized ( manifestLock )
+        {
+            current = segments;
+            int from = current.indexOf( inputs.get( 0 ) );
+
+            List<AccountSegment> next = new ArrayList<AccountSegment>( current.size() - inputs.size() + 1 );
+            next.addAll( current.subList( 0, from ) );
+            next.add( merged );
+            next.addAll( current.subList( from + inputs.size(), current.size() ) );
+
+            try
+            {
+                writeManifest( next, flushedId );
+            }
+            catch ( AccountPersistException e )
+            {
+                merged.close();
+                merged.getFile().delete();
+
+                throw e;
+            }
+
+            segmentLock.writeLock().lock();
+
+            try
+            {
+                segments = Collections.unmodifiableList( next );
+            }
+            finally
+            {
+                segmentLock.writeLock().unlock();
+            }
+        }
+
+        for ( AccountSegment segment : inputs )
+        {
+            segment.retire();
+        }
+    }
+
+    /**
+     * Live accounts of the memtable, the flushing memtable and the segments, merged into one id-ordered iteration.
+     * Callers hold the segment read lock.
+     */
+    private Iterator<Map.Entry<String, Account>> mergedIterator()
+    {
+        List<Iterator<Map.Entry<String, Account>>> sources = new ArrayList<Iterator<Map.Entry<String, Account>>>();
+
+        Map<String, Account> table = flushing;
+        List<AccountSegment> current = segments;
+
+        sources.add( memtable.entrySet().iterator() );
+        if ( table != null )
+        {
+            sources.add( table.entrySet().iterator() );
+        }
+        for ( AccountSegment segment : current )
+        {
+            sources.add( segment.iterator() );
+        }
+
+        return new MergeIterator( sources );
+    }
+
+    /**
+     * Captures the tables and segments a scan works on, in the same order as {@link #lookup(String)}.
+     */
+    private ScanSources openScan()
+    {
+        NavigableMap<String, Account> current = memtable;
+        NavigableMap<String, Account> table = flushing;
+
+        segmentLock.readLock().lock();
+
+        try
+        {
+            List<AccountSegment> retained = new ArrayList<AccountSegment>( segments );
+
+            for ( AccountSegment segment : retained )
+            {
+                // cannot fail, segments are only retired after being swapped out under the write lock
+                segment.retain();
+            }
+
+            return new ScanSources( current, table, retained );
+        }
+        finally
+        {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the email index from every live account, at startup.
+     */
+    private void indexEmails()
+        throws AccountPersistException
+    {
+        segmentLock.readLock().lock();
+
+        try
+        {
+            for ( Iterator<Map.Entry<String, Account>> it = mergedIterator(); it.hasNext(); )
+            {
+                Account account = it.next().getValue();
+
+                emails.put( account.getId(), account.getEmail(), Boolean.TRUE );
+            }
+        }
+        catch ( IllegalStateException e )
+        {
+            throw unwrap( e );
+        }
+        finally
+        {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private void applyRecord( byte op, Account account )
+    {
+        memtable.put( account.getId(), op == OP_DELETE ? AccountSegment.TOMBSTONE : account );
+    }
+
+    private void readManifest()
+        throws AccountPersistException
+    {
+        File manifestFile = new File( dir, MANIFEST_FILE );
+
+        if ( !manifestFile.exists() )
+        {
+            return;
+        }
+
+        Properties manifest = new Properties();
+
+        try ( InputStream in = new FileInputStream( manifestFile ) )
+        {
+            manifest.load( in );
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to read persist manifest", e );
+        }
+
+        flushedId = Long.parseLong( manifest.getProperty( "flushed", "0" ) );
+
+        List<AccountSegment> live = new ArrayList<AccountSegment>();
+
+        for ( String name : manifest.getProperty( "segments", "" ).split( "," ) )
+        {
+            if ( !name.isEmpty() )
+            {
+                live.add( AccountSegment.open( new File( dir, name ) ) );
+            }
+        }
+
+        segments = Collections.unmodifiableList( live );
+    }
+
+    private void writeManifest( List<AccountSegment> live, long flushed )
+        throws AccountPersistException
+    {
+        StringBuilder names = new StringBuilder();
+        for ( AccountSegment segment : live )
+        {
+            if ( names.length() > 0 )
+            {
+                names.append( ',' );
+            }
+            names.append( segment.getFile().getName() );
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty( "segments", names.toString() );
+        manifest.setProperty( "flushed", Long.toString( flushed ) );
+
+        File manifestFile = new File( dir, MANIFEST_FILE );
+        File tempFile = new File( dir, MANIFEST_FILE + ".tmp" );
+
+        try
+        {
+            try ( FileOutputStream out = new FileOutputStream( tempFile ) )
+            {
+                manifest.store( out, "LSM account persist segments, newest first" );
+                out.getFD().sync();
+            }
+
+            Files.move( tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+            AccountXmlFile.syncDirectory( dir.toPath() );
+        }
+        catch ( IOException e )
+        {
+            throw new AccountPersistException( "Unable to write persist manifest", e );
+        }
+    }
+
+    private boolean isLive( File file )
+    {
+        for ( AccountSegment segment : segments )
+        {
+            if ( segment.getFile().getName().equals( file.getName() ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private List<File> listDataFiles()
+    {
+        List<File> files = new ArrayList<File>();
+        File[] all = dir.listFiles();
+
+        if ( all != null )
+        {
+            for ( File file : all )
+            {
+                if ( DATA_FILE.matcher( file.getName() ).matches() )
+                {
+                    files.add( file );
+                }
+            }
+        }
+
+        return files;
+    }
+
+    private static long dataFileId( File file )
+    {
+        Matcher matcher = DATA_FILE.matcher( file.getName() );
+        matcher.matches();
+
+        return Long.parseLong( matcher.group( 2 ) );
+    }
+
+    private File segmentFile( long id )
+    {
+        return new File( dir, String.format( "segment-%06d.seg", id ) );
+    }
+
+    private File logFile( long id )
+    {
+        return new File( dir, String.format( "wal-%06d.log", id ) );
+    }
+
+    private static AccountPersistException unwrap( IllegalStateException e )
+    {
+        if ( e.getCause() instanceof AccountPersistException )
+        {
+            return (AccountPersistException) e.getCause();
+        }
+
+        throw e;
+    }
+
+    /**
+     * The tables and retained segments one scan and all its splits read from, newest first.
+     */
+    private static final class ScanSources
+    {
+        final NavigableMap<String, Account> memtable;
+
+        final NavigableMap<String, Account> flushing;
+
+        final List<AccountSegment> segments;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ScanSources( NavigableMap<String, Account> memtable, NavigableMap<String, Account> flushing,
+                     List<AccountSegment> segments )
+        {
+            this.memtable = memtable;
+            this.flushing = flushing;
+            this.segments = segments;
+        }
+
+        List<Iterator<Map.Entry<String, Account>>> iterators( String from )
+        {
+            List<Iterator<Map.Entry<String, Account>>> iterators =
+                new ArrayList<Iterator<Map.Entry<String, Account>>>();
+
+            iterators.add( tail( memtable, from ) );
+            if ( flushing != null )
+            {
+                iterators.add( tail( flushing, from ) );
+            }
+            for ( AccountSegment segment : segments )
+            {
+                iterators.add( segment.iterator( from ) );
+            }
+
+            return iterators;
+        }
+
+        /**
+         * An id between the bounds to split a scan at, from the segment holding the most records.
+         */
+        String splitId( String from, String to )
+        {
+            AccountSegment largest = null;
+
+            for ( AccountSegment segment : segments )
+            {
+                if ( largest == null || segment.size() > largest.size() )
+                {
+                    largest = segment;
+                }
+            }
+
+            return largest == null ? null : largest.middleIndexedId( from, to );
+        }
+
+        void release()
+        {
+            if ( released.compareAndSet( false, true ) )
+            {
+                for ( AccountSegment segment : segments )
+                {
+                    segment.release();
+                }
+            }
+        }
+
+        private static Iterator<Map.Entry<String, Account>> tail( NavigableMap<String, Account> table, String from )
+        {
+            return ( from == null ? table : table.tailMap( from, true ) ).entrySet().iterator();
+        }
+    }
+
+    /**
+     * Live accounts with ids from <code>from</code>, inclusive, up to <code>to</code>, exclusive, a null bound being
+     * open. Until it starts merging, a spliterator hands the lower half of its range to a new one.
+     */
+    private static final class RangeSpliterator
+        implements Spliterator<Account>
+    {
+        private final ScanSources sources;
+
+        private String from;
+
+        private final String to;
+
+        private Iterator<Map.Entry<String, Account>> merged;
+
+        RangeSpliterator( ScanSources sources, String from, String to )
+        {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean tryAdvance( Consumer<? super Account> action )
+        {
+            if ( merged == null )
+            {
+                merged = new MergeIterator( sources.iterators( from ) );
+            }
+
+            if ( !merged.hasNext() )
+            {
+                return false;
+            }
+
+            Map.Entry<String, Account> entry = merged.next();
+
+            if ( to != null && entry.getKey().compareTo( to ) >= 0 )
+            {
+                merged = Collections.emptyIterator();
+
+                return false;
+            }
+
+            action.accept( new Account( entry.getValue() ) );
+
+            return true;
+        }
+
+        public Spliterator<Account> trySplit()
+        {
+            if ( merged != null )
+            {
+                return null;
+            }
+
+            String middle = sources.splitId( from, to );
+
+            if ( middle == null )
+            {
+                return null;
+            }
+
+            RangeSpliterator lower = new RangeSpliterator( sources, from, middle );
+            from = middle;
+
+            return lower;
+        }
+
+        public long estimateSize()
+        {
+            return Long.MAX_VALUE;
+        }
+
+        public int characteristics()
+        {
+            return Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+
+    /**
+     * Merges id-ordered sources, given newest first, into one id-ordered iteration where the newest source wins and
+     * deleted accounts are left out, unless the tombstones are kept for a merge that still has older segments below.
+     */
+    private static final class MergeIterator
+        implements Iterator<Map.Entry<String, Account>>
+    {
+        private static final class Cursor
+        {
+            final int rank;
+
+            final Iterator<Map.Entry<String, Account>> source;
+
+            Map.Entry<String, Account> head;
+
+            Cursor( int rank, Iterator<Map.Entry<String, Account>> source )
+            {
+                this.rank = rank;
+                this.source = source;
+            }
+
+            boolean advance()
+            {
+                head = source.hasNext() ? source.next() : null;
+
+                return head != null;
+            }
+        }
+
+        private final PriorityQueue<Cursor> queue =
+            new PriorityQueue<Cursor>( Comparator.comparing( ( Cursor c ) -> c.head.getKey() )
+                .thenComparingInt( c -> c.rank ) );
+
+        private final boolean keepTombstones;
+
+        private Map.Entry<String, Account> next;
+
+        MergeIterator( List<Iterator<Map.Entry<String, Account>>> sources )
+        {
+            this( sources, false );
+        }
+
+        MergeIterator( List<Iterator<Map.Entry<String, Account>>> sources, boolean keepTombstones )
+        {
+            this.keepTombstones = keepTombstones;
+
+            for ( int i = 0; i < sources.size(); i++ )
+            {
+                Cursor cursor = new Cursor( i, sources.get( i ) );
+
+                if ( cursor.advance() )
+                {
+                    queue.add( cursor );
+                }
+            }
+        }
+
+        public boolean hasNext()
+        {
+            while ( next == null && !queue.isEmpty() )
+            {
+                Cursor newest = queue.poll();
+                Map.Entry<String, Account> entry = newest.head;
+
+                // older versions of the same id are shadowed
+                while ( !queue.isEmpty() && queue.peek().head.getKey().equals( entry.getKey() ) )
+                {
+                    Cursor older = queue.poll();
+                    if ( older.advance() )
+                    {
+                        queue.add( older );
+                    }
+                }
+
+                if ( newest.advance() )
+                {
+                    queue.add( newest );
+                }
+
+                if ( keepTombstones || entry.getValue() != AccountSegment.TOMBSTONE )
+                {
+                    next = entry;
+                }
+            }
+
+            return next != null;
+        }
+
+        public Map.Entry<String, Account> next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+
+            Map.Entry<String, Account> entry = next;
+            next = null;
+
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+
+/**
+ * Converts an existing persist-data.xml into the slot file read by {@link MappedAccountPersistServiceImpl}.
+ * <p>
+ * Usage: <code>MappedAccountFileConverter &lt;persist-data.xml&gt; &lt;accounts.dat&gt; [slotSize]</code>
+ */
+public class MappedAccountFileConverter
+{
+    public static int convert( String xmlFile, String mappedFile, int slotSize )
+        throws Exception
+    {
+        if ( new File( mappedFile ).exists() )
+        {
+            throw new AccountPersistException( "Refusing to overwrite existing file " + mappedFile );
+        }
+
+        MappedAccountPersistServiceImpl target = new MappedAccountPersistServiceImpl();
+        target.setFile( mappedFile );
+        target.setSlotSize( slotSize );
+        target.afterPropertiesSet();
+
+        int count = 0;
+
+        try
+        {
+            for ( Account account : new AccountXmlFile( xmlFile ).readAccounts().values() )
+            {
+                target.createAccount( account );
+                count++;
+            }
+        }
+        finally
+        {
+            target.destroy();
+        }
+
+        return count;
+    }
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        if ( args.length < 2 )
+        {
+            System.err.println( "Usage: MappedAccountFileConverter <persist-data.xml> <accounts.dat> [slotSize]" );
+            System.exit( 1 );
+        }
+
+        int slotSize = args.length > 2 ? Integer.parseInt( args[2] ) : 256;
+
+        int count = convert( args[0], args[1], slotSize );
+
+        System.out.println( "Converted " + count + " accounts into " + args[1] );
+    }
+}
@@ -0,0 +1,589 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Stores accounts in fixed size slots of a memory mapped binary file. An in-memory id to slot index turns
+ * <code>readAccount</code> into a hash probe plus a direct buffer read, and deleted slots are reused. The file starts
+ * with a header holding a magic number, the format version, the slot size and the slot count, every slot starts with
+ * a used flag, the length of the account record that follows and its CRC32.
+ * <p>
+ * An update writes the new version to a free slot and only then frees the old one, so a write torn by a crash leaves
+ * a slot that fails its checksum next to the intact previous version; when both copies survive, the higher version
+ * wins. The file is mapped in chunks of at most <code>chunkSize</code> bytes holding whole slots, so it can grow
+ * beyond the 2 GB a single mapping is limited to.
+ */
+public class MappedAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean, DisposableBean
+{
+    static final int MAGIC = 0x41434354;
+
+    static final int FORMAT_VERSION = 4;
+
+    static final int HEADER_SIZE = 16;
+
+    private static final int SLOT_HEADER_SIZE = 7;
+
+    private static final byte SLOT_FREE = 0;
+
+    private static final byte SLOT_USED = 1;
+
+    private static final AccountCodec CODEC = new BinaryAccountCodec();
+
+    private String file;
+
+    private int slotSize = 256;
+
+    private int initialSlots = 1024;
+
+    private int chunkSize = 1 << 30;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer header;
+
+    /**
+     * The mapped slots, <code>slotsPerChunk</code> to a chunk, only the last one may be shorter. Replaced when the
+     * file grows, under the write lock.
+     */
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    private int slotsPerChunk;
+
+    private int slotCount;
+
+    private final AccountIndex<Integer> index = new AccountIndex<Integer>();
+
+    private final Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public void setFile( String file )
+    {
+        this.file = file;
+    }
+
+    public int getSlotSize()
+    {
+        return slotSize;
+    }
+
+    public void setSlotSize( int slotSize )
+    {
+        this.slotSize = slotSize;
+    }
+
+    public int getInitialSlots()
+    {
+        return initialSlots;
+    }
+
+    public void setInitialSlots( int initialSlots )
+    {
+        this.initialSlots = initialSlots;
+    }
+
+    /**
+     * Most bytes mapped at once, 1 GB by default, for tests.
+     */
+    void setChunkSize( int chunkSize )
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        File dataFile = new File( file );
+
+        if ( dataFile.getParentFile() != null )
+        {
+            dataFile.getParentFile().mkdirs();
+        }
+
+        boolean exists = dataFile.exists() && dataFile.length() >= HEADER_SIZE;
+
+        raf = new RandomAccessFile( dataFile, "rw" );
+        channel = raf.getChannel();
+
+        header = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE );
+
+        if ( exists )
+        {
+            if ( header.getInt( 0 ) != MAGIC )
+            {
+                throw new AccountPersistException( "Not a mapped account file: " + file );
+            }
+
+            if ( header.getInt( 4 ) != FORMAT_VERSION )
+            {
+                throw new AccountPersistException( "Mapped account file " + file + " has format version "
+                    + header.getInt( 4 ) + ", convert it again from persist-data.xml" );
+            }
+
+            slotSize = header.getInt( 8 );
+            slotCount = header.getInt( 12 );
+            slotsPerChunk = Math.max( 1, chunkSize / slotSize );
+
+            map();
+            loadIndex();
+        }
+        else
+        {
+            slotCount = initialSlots;
+            slotsPerChunk = Math.max( 1, chunkSize / slotSize );
+
+            map();
+            writeHeader();
+
+            for ( int slot = slotCount - 1; slot >= 0; slot-- )
+            {
+                freeSlots.push( slot );
+            }
+        }
+    }
+
+    public void destroy()
+        throws Exception
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            force();
+            channel.close();
+            raf.close();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        Account created = new Account( account );
+        created.setVersion( 1 );
+
+        byte[] record = encode( created );
+
+        lock.writeLock().lock();
+
+        try
+        {
+            if ( index.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            Integer previous = index.get( account.getId() );
+            int slot = allocateSlot();
+
+            writeSlot( slot, record );
+
+            account.setVersion( created.getVersion() );
+
+            index.put( account.getId(), account.getEmail(), slot );
+
+            if ( previous != null )
+            {
+                freeSlot( previous );
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        return account;
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            Integer slot = index.get( id );
+
+            return slot == null ? null : readSlot( slot );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        return update( account, -1 ) ? account : null;
+    }
+
+    public boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        return update( account, expectedVersion );
+    }
+
+    private boolean update( Account account, long expectedVersion )
+        throws AccountPersistException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Integer slot = index.get( account.getId() );
+
+            if ( slot == null )
+            {
+                return false;
+            }
+
+            long version = readSlot( slot ).getVersion();
+
+            if ( expectedVersion >= 0 && version != expectedVersion )
+            {
+                return false;
+            }
+
+            if ( index.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            Account next = new Account( account );
+            next.setVersion( version + 1 );
+
+            byte[] record = encode( next );
+            int nextSlot = allocateSlot();
+
+            writeSlot( nextSlot, record );
+            freeSlot( slot );
+
+            account.setVersion( next.getVersion() );
+
+            index.put( account.getId(), account.getEmail(), nextSlot );
+
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            String id = index.idForEmail( email );
+
+            return id == null ? null : readSlot( index.get( id ) );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Streams the ids known when the scan starts, reading each slot when its turn comes, so the stream splits like a
+     * list of ids does. An account deleted meanwhile is skipped.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        return new ArrayList<String>( index.ids() ).stream().map( id -> {
+            try
+            {
+                return readAccount( id );
+            }
+            catch ( AccountPersistException e )
+            {
+                throw new IllegalStateException( e.getMessage(), e );
+            }
+        } ).filter( Objects::nonNull );
+    }
+
+    public void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Integer slot = index.remove( id );
+
+            if ( slot != null )
+            {
+                freeSlot( slot );
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Maps the slots in chunks, keeping the full chunks mapped already.
+     */
+    private void map()
+        throws IOException
+    {
+        int chunkCount = (int) ( ( (long) slotCount + slotsPerChunk - 1 ) / slotsPerChunk );
+        MappedByteBuffer[] next = new MappedByteBuffer[chunkCount];
+
+        for ( int i = 0; i < chunkCount; i++ )
+        {
+            long bytes = Math.min( slotsPerChunk, slotCount - (long) i * slotsPerChunk ) * slotSize;
+
+            if ( i < chunks.length && chunks[i].capacity() == bytes )
+            {
+                next[i] = chunks[i];
+            }
+            else
+            {
+                next[i] = channel.map( FileChannel.MapMode.READ_WRITE, chunkPosition( i ), bytes );
+            }
+        }
+
+        chunks = next;
+    }
+
+    private void force()
+    {
+        for ( MappedByteBuffer chunk : chunks )
+        {
+            chunk.force();
+        }
+
+        header.force();
+    }
+
+    private void writeHeader()
+    {
+        header.putInt( 0, MAGIC );
+        header.putInt( 4, FORMAT_VERSION );
+        header.putInt( 8, slotSize );
+        header.putInt( 12, slotCount );
+    }
+
+    /**
+     * Indexes the newest intact copy of every account and frees the rest: slots failing their checksum and older
+     * copies a crash kept from being freed.
+     */
+    private void loadIndex()
+        throws AccountPersistException
+    {
+        Map<String, Long> versions = new HashMap<String, Long>();
+
+        for ( int slot = slotCount - 1; slot >= 0; slot-- )
+        {
+            Account account = chunk( slot ).get( slotOffset( slot ) ) == SLOT_USED ? readIntactSlot( slot ) : null;
+
+            if ( account == null )
+            {
+                freeSlot( slot );
+                continue;
+            }
+
+            Long version = versions.get( account.getId() );
+
+            if ( version == null || version < account.getVersion() )
+            {
+                Integer older = index.get( account.getId() );
+
+                if ( older != null )
+                {
+                    freeSlot( older );
+                }
+
+                versions.put( account.getId(), account.getVersion() );
+                index.put( account.getId(), account.getEmail(), slot );
+            }
+            else
+            {
+                freeSlot( slot );
+            }
+        }
+    }
+
+    private int allocateSlot()
+        throws AccountPersistException
+    {
+        if ( freeSlots.isEmpty() )
+        {
+            int oldCount = slotCount;
+
+            if ( oldCount > Integer.MAX_VALUE / 2 )
+            {
+                throw new AccountPersistException( "Mapped account file " + file + " is full" );
+            }
+
+            try
+            {
+                force();
+
+                slotCount = oldCount * 2;
+
+                map();
+                writeHeader();
+            }
+            catch ( IOException e )
+            {
+                slotCount = oldCount;
+
+                throw new AccountPersistException( "Unable to grow mapped account file", e );
+            }
+
+            for ( int slot = slotCount - 1; slot >= oldCount; slot-- )
+            {
+                freeSlots.push( slot );
+            }
+        }
+
+        return freeSlots.pop();
+    }
+
+    /**
+     * Writes the record with its checksum, then marks the slot used.
+     */
+    private void writeSlot( int slot, byte[] record )
+    {
+        ByteBuffer chunk = chunk( slot );
+        int offset = slotOffset( slot );
+
+        CRC32 crc = new CRC32();
+        crc.update( record );
+
+        chunk.putShort( offset + 1, (short) record.length );
+        chunk.putInt( offset + 3, (int) crc.getValue() );
+        chunk.put( offset + SLOT_HEADER_SIZE, record );
+        chunk.put( offset, SLOT_USED );
+    }
+
+    private void freeSlot( int slot )
+    {
+        chunk( slot ).put( slotOffset( slot ), SLOT_FREE );
+
+        freeSlots.push( slot );
+    }
+
+    private Account readSlot( int slot )
+        throws AccountPersistException
+    {
+        ByteBuffer chunk = chunk( slot );
+        int offset = slotOffset( slot );
+
+        byte[] record = new byte[chunk.getShort( offset + 1 ) & 0xFFFF];
+        chunk.get( offset + SLOT_HEADER_SIZE, record );
+
+        try
+        {
+            return CODEC.decode( record, 0, record.length );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new AccountPersistException( "Corrupt account record in slot " + slot, e );
+        }
+    }
+
+    /**
+     * The account of a used slot, or null when its length or checksum shows the write was torn.
+     */
+    private Account readIntactSlot( int slot )
+    {
+        ByteBuffer chunk = chunk( slot );
+        int offset = slotOffset( slot );
+        int length = chunk.getShort( offset + 1 ) & 0xFFFF;
+
+        if ( length > slotSize - SLOT_HEADER_SIZE )
+        {
+            return null;
+        }
+
+        byte[] record = new byte[length];
+        chunk.get( offset + SLOT_HEADER_SIZE, record );
+
+        CRC32 crc = new CRC32();
+        crc.update( record );
+
+        if ( (int) crc.getValue() != chunk.getInt( offset + 3 ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            return CODEC.decode( record, 0, record.length );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return null;
+        }
+    }
+
+    private ByteBuffer chunk( int slot )
+    {
+        return chunks[slot / slotsPerChunk];
+    }
+
+    /**
+     * Offset of the slot within its chunk.
+     */
+    private int slotOffset( int slot )
+    {
+        return ( slot % slotsPerChunk ) * slotSize;
+    }
+
+    private long chunkPosition( int chunk )
+    {
+        return HEADER_SIZE + (long) chunk * slotsPerChunk * slotSize;
+    }
+
+    private byte[] encode( Account account )
+        throws AccountPersistException
+    {
+        byte[] record = CODEC.encode( account );
+
+        if ( record.length > slotSize - SLOT_HEADER_SIZE )
+        {
+            throw new AccountPersistException( "Account " + account.getId() + " needs " + record.length
+                + " bytes, which does not fit a " + slotSize + " byte slot" );
+        }
+
+        return record;
+    }
+}
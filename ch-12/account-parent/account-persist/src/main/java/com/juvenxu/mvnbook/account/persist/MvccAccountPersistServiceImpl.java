@@ -0,0 +1,715 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Keeps a chain of committed versions per account, newest first, on top of persist-data.xml. Every committed write
+ * gets the next commit version. {@link #beginReadTransaction()} opens an {@link AccountReadTransaction} at the latest
+ * commit, which reads and iterates every account as of that commit without taking locks, while writers carry on.
+ * <p>
+ * A version is garbage once a newer version of the same account is visible to every open transaction. Writers and
+ * the close of the oldest transaction prune such versions, and drop deleted accounts altogether, so chains only grow
+ * while a long transaction is open. Writes are serialized and the file always holds the latest commit. Startup loads
+ * the accounts from an {@link AccountIndexFile} when it is still valid, which is written again on shutdown. With
+ * <code>watchFile</code> set, changes made to the file by someone else are committed as a new version, see
+ * {@link #reload()}.
+ */
+public class MvccAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean, DisposableBean
+{
+    /**
+     * One committed version of an account, <code>account</code> is null when the commit deleted it.
+     */
+    private static final class Version
+    {
+        final long commit;
+
+        final Account account;
+
+        volatile Version older;
+
+        Version( long commit, Account account, Version older )
+        {
+            this.commit = commit;
+            this.account = account;
+            this.older = older;
+        }
+
+        /**
+         * The account as seen at the snapshot version, or null.
+         */
+        Account visibleAt( long snapshot )
+        {
+            Version version = this;
+
+            while ( version != null && version.commit > snapshot )
+            {
+                version = version.older;
+            }
+
+            return version == null ? null : version.account;
+        }
+    }
+
+    private String file;
+
+    private AccountXmlFile xmlFile;
+
+    private AccountIndexFile indexFile;
+
+    private boolean watchFile;
+
+    private AccountFileWatcher watcher;
+
+    /**
+     * Version chains by id, the email index follows the newest version.
+     */
+    private final AccountIndex<Version> chains = new AccountIndex<Version>();
+
+    /**
+     * Ids whose chain holds more than one version or ends in a delete.
+     */
+    private final Set<String> garbage = ConcurrentHashMap.newKeySet();
+
+    private volatile long lastCommit;
+
+    /**
+     * Open transactions counted by snapshot version, guarded by itself.
+     */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public void setFile( String file )
+    {
+        this.file = file;
+    }
+
+    public boolean isWatchFile()
+    {
+        return watchFile;
+    }
+
+    public void setWatchFile( boolean watchFile )
+    {
+        this.watchFile = watchFile;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        xmlFile = new AccountXmlFile( file );
+        indexFile = new AccountIndexFile( xmlFile );
+
+        lastCommit = 1;
+
+        for ( Account account : indexFile.loadAccounts().values() )
+        {
+            chains.put( account.getId(), account.getEmail(), new Version( lastCommit, account, null ) );
+        }
+
+        if ( watchFile )
+        {
+            watcher = new AccountFileWatcher( new File( file ), AccountFileWatcher.DEFAULT_QUIET_PERIOD, this::reload );
+            watcher.start();
+        }
+    }
+
+    /**
+     * Writes the index for the file as the last commit left it.
+     */
+    public synchronized void destroy()
+        throws Exception
+    {
+        if ( watcher != null )
+        {
+            watcher.close();
+        }
+
+        List<Account> latest = new ArrayList<Account>( chains.size() );
+
+        for ( Version head : chains.values() )
+        {
+            if ( head.account != null )
+            {
+                latest.add( head.account );
+            }
+        }
+
+        indexFile.write( latest, xmlFile.getKnownStamp() );
+    }
+
+    /**
+     * Opens a read transaction at the latest commit. It must be closed.
+     */
+    public AccountReadTransaction beginReadTransaction()
+    {
+        long snapshot;
+
+        synchronized ( snapshots )
+        {
+            snapshot = lastCommit;
+            snapshots.merge( snapshot, 1, Integer::sum );
+        }
+
+        return new ReadTransaction( snapshot );
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        return copy( latest( id ) );
+    }
+
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        String id = chains.idForEmail( email );
+
+        return id == null ? null : readAccount( id );
+    }
+
+    public synchronized Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        if ( chains.isEmailTaken( account.getEmail(), account.getId() ) )
+        {
+            throw new DuplicateEmailException( account.getEmail() );
+        }
+
+        account.setVersion( 1 );
+
+        commit( changes( account.getId(), account ) );
+
+        return account;
+    }
+
+    public synchronized Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        return update( account, -1 ) ? account : null;
+    }
+
+    public synchronized boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        return update( account, expectedVersion );
+    }
+
+    private boolean update( Account account, long expectedVersion )
+        throws AccountPersistException
+    {
+        Account current = latest( account.getId() );
+
+        if ( current == null || ( expectedVersion >= 0 && current.getVersion() != expectedVersion ) )
+        {
+            return false;
+        }
+
+        if ( chains.isEmailTaken( account.getEmail(), account.getId() ) )
+        {
+            throw new DuplicateEmailException( account.getEmail() );
+        }
+
+        account.setVersion( current.getVersion() + 1 );
+
+        commit( changes( account.getId(), account ) );
+
+        return true;
+    }
+
+    public synchronized void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        if ( latest( id ) != null )
+        {
+            commit( changes( id, null ) );
+        }
+    }
+
+    public synchronized List<Account> createAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        EmailClaims emails = new EmailClaims( chains::isEmailTaken );
+        Map<String, Account> changes = new LinkedHashMap<String, Account>();
+
+        for ( Account account : accounts )
+        {
+            emails.claim( account );
+        }
+
+        for ( Account account : accounts )
+        {
+            account.setVersion( 1 );
+            changes.put( account.getId(), account );
+        }
+
+        commit( changes );
+
+        return new ArrayList<Account>( accounts );
+    }
+
+    public synchronized List<Account> updateAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        EmailClaims emails = new EmailClaims( chains::isEmailTaken );
+        Map<String, Account> next = new LinkedHashMap<String, Account>();
+        List<Account> results = new ArrayList<Account>( accounts.size() );
+        long[] versions = new long[accounts.size()];
+
+        for ( Account account : accounts )
+        {
+            if ( latest( account.getId() ) != null )
+            {
+                emails.claim( account );
+            }
+        }
+
+        for ( Account account : accounts )
+        {
+            Account existing =
+                next.containsKey( account.getId() ) ? next.get( account.getId() ) : latest( account.getId() );
+
+            if ( existing == null )
+            {
+                results.add( null );
+                continue;
+            }
+
+            Account updated = new Account( account );
+            updated.setVersion( existing.getVersion() + 1 );
+            next.put( updated.getId(), updated );
+
+            versions[results.size()] = updated.getVersion();
+            results.add( account );
+        }
+
+        if ( !next.isEmpty() )
+        {
+            commit( next );
+        }
+
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            if ( results.get( i ) != null )
+            {
+                results.get( i ).setVersion( versions[i] );
+            }
+        }
+
+        return results;
+    }
+
+    public synchronized List<Boolean> deleteAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        Map<String, Account> next = new LinkedHashMap<String, Account>();
+        List<Boolean> results = new ArrayList<Boolean>( ids.size() );
+
+        for ( String id : ids )
+        {
+            boolean existed = next.containsKey( id ) ? next.get( id ) != null : latest( id ) != null;
+
+            if ( existed )
+            {
+                next.put( id, null );
+            }
+            results.add( existed );
+        }
+
+        if ( !next.isEmpty() )
+        {
+            commit( next );
+        }
+
+        return results;
+    }
+
+    public boolean isTransactional()
+    {
+        return true;
+    }
+
+    /**
+     * Folds the changes into a single commit, written once, so either all of them land or, when an update finds no
+     * account, a create or an update finds its email taken or the write fails, none. The accounts get their new
+     * versions once committed.
+     */
+    public synchronized void applyChanges( List<AccountChange> changes )
+        throws AccountPersistException
+    {
+        EmailClaims emails = new EmailClaims( chains::isEmailTaken );
+        Map<String, Account> next = new LinkedHashMap<String, Account>();
+        long[] versions = new long[changes.size()];
+
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            AccountChange change = changes.get( i );
+
+            Account existing =
+                next.containsKey( change.getId() ) ? next.get( change.getId() ) : latest( change.getId() );
+
+            if ( change.getKind() == AccountChange.Kind.DELETE )
+            {
+                if ( existing != null || next.containsKey( change.getId() ) )
+                {
+                    next.put( change.getId(), null );
+                }
+                continue;
+            }
+
+            Account account = new Account( change.getAccount() );
+
+            if ( change.getKind() == AccountChange.Kind.CREATE )
+            {
+                emails.claim( account );
+                account.setVersion( 1 );
+            }
+            else if ( existing == null )
+            {
+                throw new AccountPersistException( "No account " + change.getId() + " to update" );
+            }
+            else
+            {
+                emails.claim( account );
+                account.setVersion( existing.getVersion() + 1 );
+            }
+
+            next.put( account.getId(), account );
+            versions[i] = account.getVersion();
+        }
+
+        commit( next );
+
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            if ( changes.get( i ).getAccount() != null )
+            {
+                changes.get( i ).getAccount().setVersion( versions[i] );
+            }
+        }
+    }
+
+    /**
+     * Streams the accounts in a read transaction of its own, closed along with the stream.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        AccountReadTransaction transaction = beginReadTransaction();
+
+        return transaction.stream().onClose( transaction::close );
+    }
+
+    /**
+     * Commits the changes someone else made to the file, without writing it: accounts that differ from the file get a
+     * new version, accounts no longer in it a delete, the others are left alone. Open read transactions keep seeing
+     * their version. Does nothing when the file is as this service last wrote or read it. Returns the number of
+     * accounts that changed.
+     */
+    public synchronized int reload()
+        throws AccountPersistException
+    {
+        if ( !xmlFile.isChangedExternally() )
+        {
+            return 0;
+        }
+
+        Map<String, Account> loaded = xmlFile.readAccounts();
+        Map<String, Account> changes = new LinkedHashMap<String, Account>();
+
+        for ( Account account : loaded.values() )
+        {
+            Account current = latest( account.getId() );
+
+            if ( current == null || !AccountXmlFile.sameAccount( current, account ) )
+            {
+                changes.put( account.getId(), account );
+            }
+        }
+
+        for ( String id : chains.ids() )
+        {
+            if ( latest( id ) != null && !loaded.containsKey( id ) )
+            {
+                changes.put( id, null );
+            }
+        }
+
+        if ( !changes.isEmpty() )
+        {
+            publish( changes );
+        }
+
+        return changes.size();
+    }
+
+    /**
+     * Prunes versions no open transaction can see any more. Runs after every commit and whenever the oldest read
+     * transaction closes.
+     */
+    public synchronized void collectGarbage()
+    {
+        long horizon = oldestSnapshot();
+
+        for ( Iterator<String> it = garbage.iterator(); it.hasNext(); )
+        {
+            String id = it.next();
+            Version head = chains.get( id );
+
+            if ( head == null )
+            {
+                it.remove();
+                continue;
+            }
+
+            Version version = head;
+            while ( version != null && version.commit > horizon )
+            {
+                version = version.older;
+            }
+
+            if ( version == null )
+            {
+                continue;
+            }
+
+            // every open transaction sees this version or a newer one
+            version.older = null;
+
+            if ( version == head )
+            {
+                if ( head.account == null )
+                {
+                    chains.remove( id );
+                }
+
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Number of versions kept for the id, for tests and monitoring.
+     */
+    int versionCount( String id )
+    {
+        int count = 0;
+
+        for ( Version version = chains.get( id ); version != null; version = version.older )
+        {
+            count++;
+        }
+
+        return count;
+    }
+
+    private Map<String, Account> changes( String id, Account account )
+    {
+        Map<String, Account> changes = new LinkedHashMap<String, Account>( 2 );
+        changes.put( id, account );
+
+        return changes;
+    }
+
+    /**
+     * Writes the latest state with the changes applied, then publishes them. Callers hold the monitor. A null account
+     * deletes.
+     */
+    private void commit( Map<String, Account> changes )
+        throws AccountPersistException
+    {
+        List<Account> latest = new ArrayList<Account>( chains.size() + changes.size() );
+
+        for ( Version head : chains.values() )
+        {
+            if ( head.account != null && !changes.containsKey( head.account.getId() ) )
+            {
+                latest.add( head.account );
+            }
+        }
+        for ( Account account : changes.values() )
+        {
+            if ( account != null )
+            {
+                latest.add( account );
+            }
+        }
+
+        xmlFile.writeAccounts( latest );
+
+        publish( changes );
+    }
+
+    /**
+     * Links the new versions and publishes the commit. Callers hold the monitor.
+     */
+    private void publish( Map<String, Account> changes )
+    {
+        long commit = lastCommit + 1;
+
+        for ( Map.Entry<String, Account> change : changes.entrySet() )
+        {
+            Account account = change.getValue() == null ? null : new Account( change.getValue() );
+            Version head = chains.get( change.getKey() );
+
+            chains.put( change.getKey(), account == null ? null : account.getEmail(),
+                        new Version( commit, account, head ) );
+
+            if ( head != null || account == null )
+            {
+                garbage.add( change.getKey() );
+            }
+        }
+
+        // readers pick up the new versions from here on
+        lastCommit = commit;
+
+        collectGarbage();
+    }
+
+    private long oldestSnapshot()
+    {
+        synchronized ( snapshots )
+        {
+            return snapshots.isEmpty() ? lastCommit : snapshots.firstKey();
+        }
+    }
+
+    /**
+     * The newest version, which is already in the file. Reads outside a transaction do not pin a snapshot, so they
+     * must not walk a chain that garbage collection may cut.
+     */
+    private Account latest( String id )
+    {
+        Version head = chains.get( id );
+
+        return head == null ? null : head.account;
+    }
+
+    private Account visible( String id, long snapshot )
+    {
+        Version head = chains.get( id );
+
+        return head == null ? null : head.visibleAt( snapshot );
+    }
+
+    private void release( long snapshot )
+    {
+        boolean oldest;
+
+        synchronized ( snapshots )
+        {
+            oldest = snapshots.firstKey() == snapshot;
+
+            if ( snapshots.merge( snapshot, -1, Integer::sum ) == 0 )
+            {
+                snapshots.remove( snapshot );
+            }
+            else
+            {
+                oldest = false;
+            }
+        }
+
+        if ( oldest )
+        {
+            collectGarbage();
+        }
+    }
+
+    private static Account copy( Account account )
+    {
+        return account == null ? null : new Account( account );
+    }
+
+    private final class ReadTransaction
+        implements AccountReadTransaction
+    {
+        private final long snapshot;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        ReadTransaction( long snapshot )
+        {
+            this.snapshot = snapshot;
+        }
+
+        public long getVersion()
+        {
+            return snapshot;
+        }
+
+        public Account readAccount( String id )
+        {
+            checkOpen();
+
+            return copy( visible( id, snapshot ) );
+        }
+
+        /**
+         * Scans the transaction's accounts, the email index only knows the latest commit.
+         */
+        public Account findAccountByEmail( String email )
+        {
+            String normalized = AccountIndex.normalizeEmail( email );
+
+            for ( Account account : this )
+            {
+                if ( normalized != null && normalized.equals( AccountIndex.normalizeEmail( account.getEmail() ) ) )
+                {
+                    return account;
+                }
+            }
+
+            return null;
+        }
+
+        public Iterator<Account> iterator()
+        {
+            return stream().iterator();
+        }
+
+        public Stream<Account> stream()
+        {
+            checkOpen();
+
+            return chains.ids().stream().map( id -> visible( id, snapshot ) ).filter( Objects::nonNull )
+                .map( Account::new );
+        }
+
+        public void close()
+        {
+            if ( closed.compareAndSet( false, true ) )
+            {
+                release( snapshot );
+            }
+        }
+
+        private void checkOpen()
+        {
+            if ( closed.get() )
+            {
+                throw new IllegalStateException( "Read transaction at version " + snapshot + " is closed" );
+            }
+        }
+    }
+}
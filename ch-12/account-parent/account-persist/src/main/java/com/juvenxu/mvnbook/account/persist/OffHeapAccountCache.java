@@ -0,0 +1,433 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches accounts serialized in direct memory, so that millions of cached accounts cost the garbage collector a
+ * handful of buffers instead of millions of objects to trace. Accounts are only deserialized on a hit.
+ * <p>
+ * The memory is split into segments, each guarded by its own monitor, with an arena written as a circular log and a
+ * hash index of open addressing slots, both direct buffers. A new entry is appended at the tail of the log; to make
+ * room, entries are taken from the head, where a live entry read since it was written gets a second chance and is
+ * appended again, the others are evicted. That is the CLOCK approximation of LRU, at the cost of one copy per
+ * second chance.
+ * <p>
+ * Arena entry layout, aligned to 8 bytes: <code>[size][hash][flags][pad][id length][record length][id][record]</code>
+ * with the record in the cache's {@link AccountCodec}; a negative size marks padding up to the end of the arena.
+ * Index slot: <code>[hash][arena offset + 1]</code>, 0 for an empty slot.
+ */
+final class OffHeapAccountCache
+    implements AccountCache
+{
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private static final int HEADER_SIZE = 20;
+
+    /**
+     * Smallest entry assumed when sizing the index, a typical account takes about twice that.
+     */
+    private static final int MIN_ENTRY_SIZE = 64;
+
+    private static final byte LIVE = 1;
+
+    private static final byte ACCESSED = 2;
+
+    private final AccountCodec codec;
+
+    private final Segment[] segments;
+
+    private final LongAdder evictions = new LongAdder();
+
+    OffHeapAccountCache( long maximumBytes )
+    {
+        this( maximumBytes, new BinaryAccountCodec() );
+    }
+
+    /**
+     * Takes about <code>maximumBytes</code> of direct memory, a ninth of it for the index.
+     */
+    OffHeapAccountCache( long maximumBytes, AccountCodec codec )
+    {
+        this.codec = codec;
+
+        int count = Integer.highestOneBit( (int) Math.max( 1, Math.min( 16, maximumBytes / MIN_SEGMENT_BYTES ) ) );
+
+        while ( maximumBytes / count > MAX_SEGMENT_BYTES )
+        {
+            count *= 2;
+        }
+
+        long arenaBytes = Math.max( MIN_SEGMENT_BYTES, maximumBytes / count * 8 / 9 ) & ~7L;
+
+        segments = new Segment[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            segments[i] = new Segment( (int) arenaBytes );
+        }
+    }
+
+    public Account get( String id )
+    {
+        int hash = hash( id );
+        byte[] record = segment( hash ).get( hash, id.getBytes( StandardCharsets.UTF_8 ) );
+
+        if ( record == null )
+        {
+            return null;
+        }
+
+        return codec.decode( record, 0, record.length );
+    }
+
+    public void put( Account account )
+    {
+        int hash = hash( account.getId() );
+
+        segment( hash ).put( hash, account.getId().getBytes( StandardCharsets.UTF_8 ), codec.encode( account ) );
+    }
+
+    public void remove( String id )
+    {
+        int hash = hash( id );
+
+        segment( hash ).remove( hash, id.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    public int size()
+    {
+        int size = 0;
+
+        for ( Segment segment : segments )
+        {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Direct memory taken by arenas and indexes, for tests and sizing.
+     */
+    long capacity()
+    {
+        long capacity = 0;
+
+        for ( Segment segment : segments )
+        {
+            capacity += segment.arena.capacity() + segment.index.capacity();
+        }
+
+        return capacity;
+    }
+
+    /**
+     * The segment picked by the high bits of the hash, the index slot is picked by the low bits.
+     */
+    private Segment segment( int hash )
+    {
+        return segments[(int) ( ( ( hash & 0xffffffffL ) * segments.length ) >>> 32 )];
+    }
+
+    private static int hash( String id )
+    {
+        int hash = id.hashCode() * 0x9e3779b9;
+
+        return hash ^ ( hash >>> 16 );
+    }
+
+    private final class Segment
+    {
+        private final ByteBuffer arena;
+
+        private final ByteBuffer index;
+
+        private final int slotMask;
+
+        private final int maxLive;
+
+        private long head;
+
+        private long tail;
+
+        private int live;
+
+        Segment( int arenaBytes )
+        {
+            int slots = Integer.highestOneBit( Math.max( 64, arenaBytes / MIN_ENTRY_SIZE ) );
+
+            this.arena = ByteBuffer.allocateDirect( arenaBytes );
+            this.index = ByteBuffer.allocateDirect( slots * 8 );
+            this.slotMask = slots - 1;
+            this.maxLive = slots / 4 * 3;
+        }
+
+        synchronized byte[] get( int hash, byte[] key )
+        {
+            int slot = findSlot( hash, key );
+
+            if ( slot < 0 )
+            {
+                return null;
+            }
+
+            int offset = offset( slot );
+            arena.put( offset + 8, (byte) ( LIVE | ACCESSED ) );
+
+            byte[] record = new byte[arena.getInt( offset + 16 )];
+            arena.get( offset + HEADER_SIZE + key.length, record );
+
+            return record;
+        }
+
+        synchronized void put( int hash, byte[] key, byte[] record )
+        {
+            int size = align( HEADER_SIZE + key.length + record.length );
+
+            remove( hash, key );
+
+            if ( size > arena.capacity() / 2 )
+            {
+                // would evict half the segment for one account
+                return;
+            }
+
+            while ( live >= maxLive )
+            {
+                evictOne();
+            }
+
+            makeRoom( size );
+
+            int offset = physical( tail );
+            arena.putInt( offset, size );
+            arena.putInt( offset + 4, hash );
+            arena.put( offset + 8, LIVE );
+            arena.putInt( offset + 12, key.length );
+            arena.putInt( offset + 16, record.length );
+            arena.put( offset + HEADER_SIZE, key );
+            arena.put( offset + HEADER_SIZE + key.length, record );
+            tail += size;
+
+            int slot = hash & slotMask;
+            while ( index.getLong( slot * 8 ) != 0 )
+            {
+                slot = ( slot + 1 ) & slotMask;
+            }
+            setSlot( slot, hash, offset );
+            live++;
+        }
+
+        synchronized void remove( int hash, byte[] key )
+        {
+            int slot = findSlot( hash, key );
+
+            if ( slot >= 0 )
+            {
+                arena.put( offset( slot ) + 8, (byte) 0 );
+                deleteSlot( slot );
+                live--;
+            }
+        }
+
+        synchronized int size()
+        {
+            return live;
+        }
+
+        /**
+         * Evicts from the head until <code>size</code> bytes fit at the tail, padding the end of the arena when the
+         * entry would not fit before it.
+         */
+        private void makeRoom( int size )
+        {
+            while ( true )
+            {
+                int offset = physical( tail );
+                int padding = offset + size > arena.capacity() ? arena.capacity() - offset : 0;
+
+                if ( free() >= padding + size )
+                {
+                    if ( padding > 0 )
+                    {
+                        arena.putInt( offset, -padding );
+                        tail += padding;
+                    }
+                    return;
+                }
+
+                evictOne();
+            }
+        }
+
+        /**
+         * Frees the entry at the head: padding and removed entries are skipped, a live entry read since it was
+         * written is appended again with its read flag cleared if it fits without evicting, any other is evicted.
+         */
+        private void evictOne()
+        {
+            int offset = physical( head );
+            int size = arena.getInt( offset );
+
+            if ( size < 0 )
+            {
+                head += -size;
+                return;
+            }
+
+            byte flags = arena.get( offset + 8 );
+            head += size;
+
+            if ( ( flags & LIVE ) == 0 )
+            {
+                return;
+            }
+
+            int hash = arena.getInt( offset + 4 );
+            int slot = findSlot( hash, offset );
+
+            int to = physical( tail );
+            int padding = to + size > arena.capacity() ? arena.capacity() - to : 0;
+
+            if ( ( flags & ACCESSED ) != 0 && free() >= padding + size )
+            {
+                byte[] entry = new byte[size];
+                arena.get( offset, entry );
+                entry[8] = LIVE;
+
+                if ( padding > 0 )
+                {
+                    arena.putInt( to, -padding );
+                    tail += padding;
+                    to = 0;
+                }
+
+                arena.put( to, entry );
+                tail += size;
+                setSlot( slot, hash, to );
+            }
+            else
+            {
+                deleteSlot( slot );
+                live--;
+                evictions.increment();
+            }
+        }
+
+        private int findSlot( int hash, byte[] key )
+        {
+            for ( int slot = hash & slotMask;; slot = ( slot + 1 ) & slotMask )
+            {
+                long value = index.getLong( slot * 8 );
+
+                if ( value == 0 )
+                {
+                    return -1;
+                }
+
+                if ( (int) ( value >>> 32 ) == hash && keyEquals( (int) value - 1, key ) )
+                {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * The slot pointing at the entry at the offset, which must be indexed.
+         */
+        private int findSlot( int hash, int offset )
+        {
+            int slot = hash & slotMask;
+
+            while ( offset( slot ) != offset )
+            {
+                slot = ( slot + 1 ) & slotMask;
+            }
+
+            return slot;
+        }
+
+        private boolean keyEquals( int offset, byte[] key )
+        {
+            if ( arena.getInt( offset + 12 ) != key.length )
+            {
+                return false;
+            }
+
+            for ( int i = 0; i < key.length; i++ )
+            {
+                if ( arena.get( offset + HEADER_SIZE + i ) != key[i] )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Empties the slot and shifts later slots of the probe sequence back, so lookups never stop at a gap
+         * before the entry they look for.
+         */
+        private void deleteSlot( int slot )
+        {
+            int gap = slot;
+
+            for ( int next = ( gap + 1 ) & slotMask;; next = ( next + 1 ) & slotMask )
+            {
+                long value = index.getLong( next * 8 );
+
+                if ( value == 0 )
+                {
+                    break;
+                }
+
+                int home = (int) ( value >>> 32 ) & slotMask;
+
+                // the entry may move back to the gap unless its home lies cyclically after the gap
+                boolean movable = gap <= next ? home <= gap || home > next : home <= gap && home > next;
+
+                if ( movable )
+                {
+                    index.putLong( gap * 8, value );
+                    gap = next;
+                }
+            }
+
+            index.putLong( gap * 8, 0 );
+        }
+
+        private void setSlot( int slot, int hash, int offset )
+        {
+            index.putLong( slot * 8, ( (long) hash << 32 ) | ( offset + 1 ) );
+        }
+
+        private int offset( int slot )
+        {
+            return (int) index.getLong( slot * 8 ) - 1;
+        }
+
+        private long free()
+        {
+            return arena.capacity() - ( tail - head );
+        }
+
+        private int physical( long position )
+        {
+            return (int) ( position % arena.capacity() );
+        }
+
+        private int align( int size )
+        {
+            return ( size + 7 ) & ~7;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Partitions accounts by a hash of their id over <code>shardCount</code> XML files in <code>directory</code>. Every
+ * shard is an {@link AccountPersistServiceImpl} with its own lock and group commit, so writes to different shards
+ * run in parallel and each file stays a fraction of the total size. The shard count is recorded next to the shards
+ * on first start and must not change afterwards, since it decides which file holds which id.
+ * <p>
+ * Emails do not decide the shard either. A lookup by email asks the email index of every shard, and a create holds a
+ * lock striped by email while it checks that no shard has the email and creates the account, so two creates of one
+ * email in different shards cannot both succeed.
+ */
+public class ShardedAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean
+{
+    static final String SHARDS_FILE = "shards.properties";
+
+    private String directory;
+
+    private int shardCount = 16;
+
+    private boolean streamingRead = true;
+
+    private long commitWindow;
+
+    private double idFilterFalsePositiveRate = 0.01;
+
+    private AccountPersistServiceImpl[] shards;
+
+    private final ReentrantLock[] emailLocks = new ReentrantLock[64];
+
+    public String getDirectory()
+    {
+        return directory;
+    }
+
+    public void setDirectory( String directory )
+    {
+        this.directory = directory;
+    }
+
+    public int getShardCount()
+    {
+        return shardCount;
+    }
+
+    public void setShardCount( int shardCount )
+    {
+        this.shardCount = shardCount;
+    }
+
+    public boolean isStreamingRead()
+    {
+        return streamingRead;
+    }
+
+    public void setStreamingRead( boolean streamingRead )
+    {
+        this.streamingRead = streamingRead;
+    }
+
+    public long getCommitWindow()
+    {
+        return commitWindow;
+    }
+
+    public void setCommitWindow( long commitWindow )
+    {
+        this.commitWindow = commitWindow;
+    }
+
+    public double getIdFilterFalsePositiveRate()
+    {
+        return idFilterFalsePositiveRate;
+    }
+
+    public void setIdFilterFalsePositiveRate( double idFilterFalsePositiveRate )
+    {
+        this.idFilterFalsePositiveRate = idFilterFalsePositiveRate;
+    }
+
+    /**
+     * Number of reads the id filters of all shards answered without reading a file.
+     */
+    public long getSavedLookups()
+    {
+        long saved = 0;
+
+        for ( AccountPersistServiceImpl shard : shards )
+        {
+            saved += shard.getSavedLookups();
+        }
+
+        return saved;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        File dir = new File( directory );
+        dir.mkdirs();
+
+        checkShardCount( new File( dir, SHARDS_FILE ) );
+
+        shards = new AccountPersistServiceImpl[shardCount];
+
+        for ( int i = 0; i < shardCount; i++ )
+        {
+            AccountPersistServiceImpl shard = new AccountPersistServiceImpl();
+            shard.setFile( new File( dir, String.format( "persist-data-%03d.xml", i ) ).getPath() );
+            shard.setStreamingRead( streamingRead );
+            shard.setCommitWindow( commitWindow );
+            shard.setIdFilterFalsePositiveRate( idFilterFalsePositiveRate );
+
+            shards[i] = shard;
+        }
+
+        for ( int i = 0; i < emailLocks.length; i++ )
+        {
+            emailLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        ReentrantLock emailLock = emailLock( account.getEmail() );
+
+        emailLock.lock();
+
+        try
+        {
+            if ( isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            return shardFor( account.getId() ).createAccount( account );
+        }
+        finally
+        {
+            emailLock.unlock();
+        }
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        return shardFor( id ).readAccount( id );
+    }
+
+    public Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        ReentrantLock emailLock = emailLock( account.getEmail() );
+
+        emailLock.lock();
+
+        try
+        {
+            if ( isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            return shardFor( account.getId() ).updateAccount( account );
+        }
+        finally
+        {
+            emailLock.unlock();
+        }
+    }
+
+    public void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        shardFor( id ).deleteAccount( id );
+    }
+
+    public boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        ReentrantLock emailLock = emailLock( account.getEmail() );
+
+        emailLock.lock();
+
+        try
+        {
+            if ( isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            return shardFor( account.getId() ).compareAndUpdate( expectedVersion, account );
+        }
+        finally
+        {
+            emailLock.unlock();
+        }
+    }
+
+    /**
+     * Emails do not decide the shard, so the email index of every shard is asked until one has the account.
+     */
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        for ( AccountPersistServiceImpl shard : shards )
+        {
+            Account account = shard.findAccountByEmail( email );
+
+            if ( account != null )
+            {
+                return account;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Streams one shard after the other, so a parallel stream hands whole shards to different threads.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        return Arrays.stream( shards ).flatMap( shard -> {
+            try
+            {
+                return shard.scanAccounts();
+            }
+            catch ( AccountPersistException e )
+            {
+                throw new IllegalStateException( e.getMessage(), e );
+            }
+        } );
+    }
+
+    /**
+     * Ids do not sort by shard, so every shard contributes its own page and the first <code>limit</code> of all of
+     * them are kept.
+     */
+    public List<Account> listAccounts( String afterId, int limit )
+        throws AccountPersistException
+    {
+        List<Account> page = new ArrayList<Account>();
+
+        for ( AccountPersistServiceImpl shard : shards )
+        {
+            page.addAll( shard.listAccounts( afterId, limit ) );
+        }
+
+        page.sort( Comparator.comparing( Account::getId ) );
+
+        return page.size() > limit ? new ArrayList<Account>( page.subList( 0, limit ) ) : page;
+    }
+
+    /**
+     * Checks every email before creating any account, holding the email locks of the whole batch in a fixed order.
+     */
+    public List<Account> createAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        List<List<Account>> groups = groupByShard( accounts, Account::getId );
+        List<Account> results = new ArrayList<Account>( accounts );
+        List<ReentrantLock> held = new ArrayList<ReentrantLock>();
+
+        try
+        {
+            lockEmails( accounts, held );
+
+            EmailClaims claims = new EmailClaims( this::isEmailTaken );
+
+            for ( Account account : accounts )
+            {
+                claims.claim( account );
+            }
+
+            for ( int i = 0; i < shardCount; i++ )
+            {
+                if ( !groups.get( i ).isEmpty() )
+                {
+                    shards[i].createAccounts( groups.get( i ) );
+                }
+            }
+        }
+        finally
+        {
+            for ( ReentrantLock lock : held )
+            {
+                lock.unlock();
+            }
+        }
+
+        return results;
+    }
+
+    public List<Account> readAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        List<List<String>> groups = groupByShard( ids, Function.identity() );
+        List<Account> results = new ArrayList<Account>( ids.size() );
+        List<List<Account>> shardResults = new ArrayList<List<Account>>( shardCount );
+
+        for ( int i = 0; i < shardCount; i++ )
+        {
+            shardResults.add( groups.get( i ).isEmpty() ? null : shards[i].readAccounts( groups.get( i ) ) );
+        }
+
+        int[] positions = new int[shardCount];
+
+        for ( String id : ids )
+        {
+            int shard = shardIndex( id );
+            results.add( shardResults.get( shard ).get( positions[shard]++ ) );
+        }
+
+        return results;
+    }
+
+    /**
+     * Checks every email before updating any account, like {@link #createAccounts(Collection)}. The check does not
+     * look up the accounts, so the batch also fails when an account that does not exist comes with a taken email.
+     */
+    public List<Account> updateAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        List<List<Account>> groups = groupByShard( accounts, Account::getId );
+        List<Account> results = new ArrayList<Account>( accounts.size() );
+        List<List<Account>> shardResults = new ArrayList<List<Account>>( shardCount );
+        List<ReentrantLock> held = new ArrayList<ReentrantLock>();
+
+        try
+        {
+            lockEmails( accounts, held );
+
+            EmailClaims claims = new EmailClaims( this::isEmailTaken );
+
+            for ( Account account : accounts )
+            {
+                claims.claim( account );
+            }
+
+            for ( int i = 0; i < shardCount; i++ )
+            {
+                shardResults.add( groups.get( i ).isEmpty() ? null : shards[i].updateAccounts( groups.get( i ) ) );
+            }
+        }
+        finally
+        {
+            for ( ReentrantLock lock : held )
+            {
+                lock.unlock();
+            }
+        }
+
+        int[] positions = new int[shardCount];
+
+        for ( Account account : accounts )
+        {
+            int shard = shardIndex( account.getId() );
+            results.add( shardResults.get( shard ).get( positions[shard]++ ) );
+        }
+
+        return results;
+    }
+
+    public List<Boolean> deleteAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        List<List<String>> groups = groupByShard( ids, Function.identity() );
+        List<Boolean> results = new ArrayList<Boolean>( ids.size() );
+        List<List<Boolean>> shardResults = new ArrayList<List<Boolean>>( shardCount );
+
+        for ( int i = 0; i < shardCount; i++ )
+        {
+            shardResults.add( groups.get( i ).isEmpty() ? null : shards[i].deleteAccounts( groups.get( i ) ) );
+        }
+
+        int[] positions = new int[shardCount];
+
+        for ( String id : ids )
+        {
+            int shard = shardIndex( id );
+            results.add( shardResults.get( shard ).get( positions[shard]++ ) );
+        }
+
+        return results;
+    }
+
+    AccountPersistServiceImpl shardFor( String id )
+    {
+        return shards[shardIndex( id )];
+    }
+
+    /**
+     * True when a shard holds the email for an account other than <code>id</code>.
+     */
+    private boolean isEmailTaken( String email, String id )
+        throws AccountPersistException
+    {
+        for ( AccountPersistServiceImpl shard : shards )
+        {
+            if ( shard.isEmailTaken( email, id ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Locks the email stripes of the accounts in a fixed order, adding each lock to <code>held</code> once taken.
+     */
+    private void lockEmails( Collection<Account> accounts, List<ReentrantLock> held )
+    {
+        TreeSet<Integer> stripes = new TreeSet<Integer>();
+
+        for ( Account account : accounts )
+        {
+            stripes.add( emailStripe( account.getEmail() ) );
+        }
+
+        for ( int stripe : stripes )
+        {
+            emailLocks[stripe].lock();
+            held.add( emailLocks[stripe] );
+        }
+    }
+
+    private ReentrantLock emailLock( String email )
+    {
+        return emailLocks[emailStripe( email )];
+    }
+
+    private int emailStripe( String email )
+    {
+        String key = AccountIndex.normalizeEmail( email );
+
+        return key == null ? 0 : Math.floorMod( key.hashCode(), emailLocks.length );
+    }
+
+    int shardIndex( String id )
+    {
+        int h = id.hashCode();
+
+        return Math.floorMod( h ^ ( h >>> 16 ), shardCount );
+    }
+
+    /**
+     * Splits accounts or ids into one list per shard, keeping their relative order.
+     */
+    private <T> List<List<T>> groupByShard( Collection<T> items, Function<T, String> idOf )
+    {
+        List<List<T>> groups = new ArrayList<List<T>>( shardCount );
+
+        for ( int i = 0; i < shardCount; i++ )
+        {
+            groups.add( new ArrayList<T>() );
+        }
+
+        for ( T item : items )
+        {
+            groups.get( shardIndex( idOf.apply( item ) ) ).add( item );
+        }
+
+        return groups;
+    }
+
+    private void checkShardCount( File shardsFile )
+        throws AccountPersistException
+    {
+        Properties properties = new Properties();
+
+        try
+        {
+            if ( shardsFile.exists() )
+            {
+                try ( InputStream in = new FileInputStream( shardsFile ) )
+                {
+                    properties.load( in );
+                }
+
+                int existing = Integer.parseInt( properties.getProperty( "shardCount" ) );
+
+                if ( existing != shardCount )
+                {
+                    throw new AccountPersistException( directory + " holds " + existing + " shards, but shardCount is "
+                        + shardCount );
+                }
+            }
+            else
+            {
+                properties.setProperty( "shardCount", String.valueOf( shardCount ) );
+
+                try ( OutputStream out = new FileOutputStream( shardsFile ) )
+                {
+                    properties.store( out, "Do not change, accounts are assigned to shards by this count" );
+                }
+            }
+        }
+        catch ( IOException | NumberFormatException e )
+        {
+            throw new AccountPersistException( "Unable to check shard count in " + shardsFile, e );
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Serves reads from an immutable {@link AccountSnapshot} of persist-data.xml held in an {@link AtomicReference}. A
+ * read dereferences the current snapshot and nothing else, no lock and no file access, so reads scale with the number
+ * of cores. Writers are serialized: each copies the current accounts, applies its change, writes the file and only
+ * then publishes the new snapshot, so readers never see a change that is not on disk. Suited to read mostly traffic
+ * such as logins, every write costs a copy of all accounts. Startup loads the accounts from an {@link AccountIndexFile}
+ * when it is still valid, which is written again on shutdown. With <code>watchFile</code> set, changes made to the
+ * file by someone else are picked up while the service keeps serving, see {@link #reload()}.
+ */
+public class SnapshotAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean, DisposableBean
+{
+    private String file;
+
+    private AccountXmlFile xmlFile;
+
+    private AccountIndexFile indexFile;
+
+    private boolean watchFile;
+
+    private AccountFileWatcher watcher;
+
+    private final AtomicReference<AccountSnapshot> snapshot =
+        new AtomicReference<AccountSnapshot>( AccountSnapshot.EMPTY );
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public void setFile( String file )
+    {
+        this.file = file;
+    }
+
+    public boolean isWatchFile()
+    {
+        return watchFile;
+    }
+
+    public void setWatchFile( boolean watchFile )
+    {
+        this.watchFile = watchFile;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        xmlFile = new AccountXmlFile( file );
+        indexFile = new AccountIndexFile( xmlFile );
+
+        snapshot.set( new AccountSnapshot( 1, indexFile.loadAccounts() ) );
+
+        if ( watchFile )
+        {
+            watcher = new AccountFileWatcher( new File( file ), AccountFileWatcher.DEFAULT_QUIET_PERIOD, this::reload );
+            watcher.start();
+        }
+    }
+
+    /**
+     * Writes the index for the file as the last write left it.
+     */
+    public synchronized void destroy()
+        throws Exception
+    {
+        if ( watcher != null )
+        {
+            watcher.close();
+        }
+
+        indexFile.write( snapshot.get().accounts(), xmlFile.getKnownStamp() );
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        return copy( snapshot.get().get( id ) );
+    }
+
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        return copy( snapshot.get().findByEmail( email ) );
+    }
+
+    /**
+     * Streams the snapshot current at the call, later writes do not show up in it.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        return snapshot.get().accounts().stream().map( Account::new );
+    }
+
+    /**
+     * Reads every account from the same snapshot.
+     */
+    public List<Account> readAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        AccountSnapshot current = snapshot.get();
+        List<Account> results = new ArrayList<Account>( ids.size() );
+
+        for ( String id : ids )
+        {
+            results.add( copy( current.get( id ) ) );
+        }
+
+        return results;
+    }
+
+    public synchronized Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        AccountSnapshot current = snapshot.get();
+
+        if ( current.isEmailTaken( account.getEmail(), account.getId() ) )
+        {
+            throw new DuplicateEmailException( account.getEmail() );
+        }
+
+        Map<String, Account> accounts = current.copyAccounts();
+
+        account.setVersion( 1 );
+        accounts.put( account.getId(), new Account( account ) );
+
+        publish( accounts );
+
+        return account;
+    }
+
+    public synchronized Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        return update( account, -1 ) ? account : null;
+    }
+
+    public synchronized boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        return update( account, expectedVersion );
+    }
+
+    private boolean update( Account account, long expectedVersion )
+        throws AccountPersistException
+    {
+        AccountSnapshot current = snapshot.get();
+        Account existing = current.get( account.getId() );
+
+        if ( existing == null || ( expectedVersion >= 0 && existing.getVersion() != expectedVersion ) )
+        {
+            return false;
+        }
+
+        if ( current.isEmailTaken( account.getEmail(), account.getId() ) )
+        {
+            throw new DuplicateEmailException( account.getEmail() );
+        }
+
+        Map<String, Account> accounts = current.copyAccounts();
+
+        account.setVersion( existing.getVersion() + 1 );
+        accounts.put( account.getId(), new Account( account ) );
+
+        publish( accounts );
+
+        return true;
+    }
+
+    public synchronized void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        AccountSnapshot current = snapshot.get();
+
+        if ( current.get( id ) == null )
+        {
+            return;
+        }
+
+        Map<String, Account> accounts = current.copyAccounts();
+        accounts.remove( id );
+
+        publish( accounts );
+    }
+
+    public synchronized List<Account> createAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        AccountSnapshot current = snapshot.get();
+        EmailClaims emails = new EmailClaims( current::isEmailTaken );
+
+        for ( Account account : accounts )
+        {
+            emails.claim( account );
+        }
+
+        Map<String, Account> next = current.copyAccounts();
+
+        for ( Account account : accounts )
+        {
+            account.setVersion( 1 );
+            next.put( account.getId(), new Account( account ) );
+        }
+
+        publish( next );
+
+        return new ArrayList<Account>( accounts );
+    }
+
+    public synchronized List<Account> updateAccounts( Collection<Account> accounts )
+        throws AccountPersistException
+    {
+        AccountSnapshot current = snapshot.get();
+        EmailClaims emails = new EmailClaims( current::isEmailTaken );
+
+        for ( Account account : accounts )
+        {
+            if ( current.get( account.getId() ) != null )
+            {
+                emails.claim( account );
+            }
+        }
+
+        Map<String, Account> next = current.copyAccounts();
+        List<Account> results = new ArrayList<Account>( accounts.size() );
+        boolean changed = false;
+
+        for ( Account account : accounts )
+        {
+            Account existing = next.get( account.getId() );
+
+            if ( existing == null )
+            {
+                results.add( null );
+            }
+            else
+            {
+                account.setVersion( existing.getVersion() + 1 );
+                next.put( account.getId(), new Account( account ) );
+                results.add( account );
+                changed = true;
+            }
+        }
+
+        if ( changed )
+        {
+            publish( next );
+        }
+
+        return results;
+    }
+
+    public synchronized List<Boolean> deleteAccounts( Collection<String> ids )
+        throws AccountPersistException
+    {
+        Map<String, Account> next = snapshot.get().copyAccounts();
+        List<Boolean> results = new ArrayList<Boolean>( ids.size() );
+
+        for ( String id : ids )
+        {
+            results.add( next.remove( id ) != null );
+        }
+
+        if ( results.contains( Boolean.TRUE ) )
+        {
+            publish( next );
+        }
+
+        return results;
+    }
+
+    public boolean isTransactional()
+    {
+        return true;
+    }
+
+    /**
+     * Applies every change to one copy of the snapshot and publishes it with a single write, so either all of them
+     * land or, when an update finds no account, a create or an update finds its email taken or the write fails, none.
+     * The accounts get their new versions once published.
+     */
+    public synchronized void applyChanges( List<AccountChange> changes )
+        throws AccountPersistException
+    {
+        AccountSnapshot current = snapshot.get();
+        EmailClaims emails = new EmailClaims( current::isEmailTaken );
+        Map<String, Account> next = current.copyAccounts();
+        long[] versions = new long[changes.size()];
+
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            AccountChange change = changes.get( i );
+
+            if ( change.getKind() == AccountChange.Kind.DELETE )
+            {
+                next.remove( change.getId() );
+                continue;
+            }
+
+            Account existing = next.get( change.getId() );
+            Account account = new Account( change.getAccount() );
+
+            if ( change.getKind() == AccountChange.Kind.CREATE )
+            {
+                emails.claim( account );
+                account.setVersion( 1 );
+            }
+            else if ( existing == null )
+            {
+                throw new AccountPersistException( "No account " + change.getId() + " to update" );
+            }
+            else
+            {
+                emails.claim( account );
+                account.setVersion( existing.getVersion() + 1 );
+            }
+
+            next.put( account.getId(), account );
+            versions[i] = account.getVersion();
+        }
+
+        publish( next );
+
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            if ( changes.get( i ).getAccount() != null )
+            {
+                changes.get( i ).getAccount().setVersion( versions[i] );
+            }
+        }
+    }
+
+    /**
+     * Applies changes someone else made to the file. Accounts that differ from the file are replaced, accounts no
+     * longer in it are dropped and the others keep their instances, then the result is published like a write, so
+     * readers carry on throughout. Does nothing when the file is as this service last wrote or read it. Returns the
+     * number of accounts that changed.
+     */
+    public synchronized int reload()
+        throws AccountPersistException
+    {
+        if ( !xmlFile.isChangedExternally() )
+        {
+            return 0;
+        }
+
+        AccountSnapshot current = snapshot.get();
+        Map<String, Account> loaded = xmlFile.readAccounts();
+        int changed = 0;
+
+        for ( Map.Entry<String, Account> entry : loaded.entrySet() )
+        {
+            Account existing = current.get( entry.getKey() );
+
+            if ( existing != null && AccountXmlFile.sameAccount( existing, entry.getValue() ) )
+            {
+                entry.setValue( existing );
+            }
+            else
+            {
+                changed++;
+            }
+        }
+
+        for ( Account account : current.accounts() )
+        {
+            if ( !loaded.containsKey( account.getId() ) )
+            {
+                changed++;
+            }
+        }
+
+        if ( changed > 0 )
+        {
+            snapshot.set( new AccountSnapshot( current.getVersion() + 1, loaded ) );
+        }
+
+        return changed;
+    }
+
+    /**
+     * Writes the accounts and makes them the current snapshot. Callers hold the monitor.
+     */
+    private void publish( Map<String, Account> accounts )
+        throws AccountPersistException
+    {
+        xmlFile.writeAccounts( accounts.values() );
+
+        snapshot.set( new AccountSnapshot( snapshot.get().getVersion() + 1, accounts ) );
+    }
+
+    private static Account copy( Account account )
+    {
+        return account == null ? null : new Account( account );
+    }
+}
@@ -0,0 +1,229 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches up to <code>maximumSize</code> accounts on the heap, admitting and evicting by W-TinyLFU: a new account
+ * enters a small LRU window, and leaving the window it only displaces the eviction candidate of the main segmented
+ * LRU when an {@link AccountFrequencySketch} says it was accessed more often recently. One-off reads, as of a scan or
+ * an attacker probing ids, thus pass through the window without flushing the accounts everybody logs into.
+ * <p>
+ * Lookups are lock free; the policy bookkeeping of a hit is skipped while another thread holds the policy lock,
+ * which costs a little precision rather than making readers wait.
+ */
+final class TinyLfuAccountCache
+    implements AccountCache
+{
+    /**
+     * A cached account and the region of the policy it is in.
+     */
+    private static final class Node
+    {
+        final String id;
+
+        final Account account;
+
+        Map<String, Node> region;
+
+        Node( String id, Account account )
+        {
+            this.id = id;
+            this.account = account;
+        }
+    }
+
+    private final int maximumSize;
+
+    private final int windowSize;
+
+    private final int protectedSize;
+
+    private final Map<String, Node> data = new ConcurrentHashMap<String, Node>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final AccountFrequencySketch sketch;
+
+    // the three policy regions, each an LRU list in access order, guarded by lock
+
+    private final LinkedHashMap<String, Node> window = new LinkedHashMap<String, Node>( 16, 0.75f, true );
+
+    private final LinkedHashMap<String, Node> probation = new LinkedHashMap<String, Node>( 16, 0.75f, true );
+
+    private final LinkedHashMap<String, Node> protect = new LinkedHashMap<String, Node>( 16, 0.75f, true );
+
+    TinyLfuAccountCache( int maximumSize )
+    {
+        this.maximumSize = maximumSize;
+
+        // 1% window and a main segment that is 80% protected, the split W-TinyLFU was tuned with
+        this.windowSize = Math.max( 1, maximumSize / 100 );
+        this.protectedSize = ( maximumSize - windowSize ) * 4 / 5;
+        this.sketch = new AccountFrequencySketch( maximumSize );
+    }
+
+    public Account get( String id )
+    {
+        Node node = data.get( id );
+
+        if ( node == null )
+        {
+            return null;
+        }
+
+        recordHit( node );
+
+        return new Account( node.account );
+    }
+
+    /**
+     * Adds the account to the window and lets whatever falls out of the window compete for the main segment.
+     */
+    public void put( Account account )
+    {
+        String id = account.getId();
+
+        lock.lock();
+
+        try
+        {
+            sketch.increment( id );
+
+            if ( data.containsKey( id ) )
+            {
+                return;
+            }
+
+            Node node = new Node( id, new Account( account ) );
+            data.put( id, node );
+            moveTo( window, node );
+
+            if ( window.size() > windowSize )
+            {
+                Node candidate = removeEldest( window );
+
+                if ( probation.size() + protect.size() < maximumSize - windowSize )
+                {
+                    moveTo( probation, candidate );
+                    return;
+                }
+
+                Map<String, Node> victims = probation.isEmpty() ? protect : probation;
+                Node victim = victims.isEmpty() ? null : victims.values().iterator().next();
+
+                if ( victim != null && sketch.frequency( candidate.id ) > sketch.frequency( victim.id ) )
+                {
+                    victims.remove( victim.id );
+                    evict( victim );
+                    moveTo( probation, candidate );
+                }
+                else
+                {
+                    evict( candidate );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void remove( String id )
+    {
+        lock.lock();
+
+        try
+        {
+            Node node = data.remove( id );
+
+            if ( node != null )
+            {
+                node.region.remove( id );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int size()
+    {
+        return data.size();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    private void recordHit( Node node )
+    {
+        if ( !lock.tryLock() )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( node.region == null || data.get( node.id ) != node )
+            {
+                return;
+            }
+
+            sketch.increment( node.id );
+
+            if ( node.region == probation )
+            {
+                // a second access promotes to the protected segment, which hands its oldest back to probation
+                probation.remove( node.id );
+                moveTo( protect, node );
+
+                if ( protect.size() > protectedSize )
+                {
+                    moveTo( probation, removeEldest( protect ) );
+                }
+            }
+            else
+            {
+                // moves the node to the most recently used end
+                node.region.get( node.id );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void evict( Node node )
+    {
+        data.remove( node.id );
+        node.region = null;
+
+        evictions.increment();
+    }
+
+    private static void moveTo( Map<String, Node> region, Node node )
+    {
+        region.put( node.id, node );
+        node.region = region;
+    }
+
+    private static Node removeEldest( LinkedHashMap<String, Node> region )
+    {
+        Iterator<Node> it = region.values().iterator();
+        Node eldest = it.next();
+        it.remove();
+
+        return eldest;
+    }
+}
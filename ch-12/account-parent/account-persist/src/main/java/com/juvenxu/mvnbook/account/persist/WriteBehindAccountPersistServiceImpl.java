@@ -0,0 +1,540 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Loads persist-data.xml once into an id keyed index and serves every read from memory. Mutations only touch the
+ * index; the file is rewritten in the background every <code>flushInterval</code> milliseconds, or as soon as
+ * <code>flushThreshold</code> mutations are pending, and once more synchronously when the bean is destroyed. The
+ * index also maps emails to ids, so {@link #findAccountByEmail(String)} is a hash lookup as well. Accounts are held
+ * as {@link CompactAccount}s and only materialized when read. Every flush also writes an {@link AccountIndexFile},
+ * so a restart loads the accounts without parsing the XML.
+ * <p>
+ * Changes someone else made to the file are merged in by id before a flush writes over them, see {@link #reload()},
+ * and with <code>watchFile</code> set as soon as the file changes.
+ */
+public class WriteBehindAccountPersistServiceImpl
+    implements AccountPersistService, InitializingBean, DisposableBean
+{
+    private String file;
+
+    private long flushInterval = 1000;
+
+    private int flushThreshold = 100;
+
+    private AccountXmlFile xmlFile;
+
+    private AccountIndexFile indexFile;
+
+    private final AccountIndex<CompactAccount> accounts = new AccountIndex<CompactAccount>();
+
+    private final CompactAccount.Domains domains = new CompactAccount.Domains();
+
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final Object flushLock = new Object();
+
+    private ScheduledExecutorService flusher;
+
+    private boolean watchFile;
+
+    private AccountFileWatcher watcher;
+
+    /**
+     * The accounts by id as the file held them when this service last wrote or read it, which tells the changes
+     * someone else made to the file apart from the writes still waiting for a flush. Guarded by flushLock.
+     */
+    private Map<String, CompactAccount> flushed = new HashMap<String, CompactAccount>();
+
+    /**
+     * Writers hold the read lock from their open check until their mutation is in the index and marked dirty, destroy
+     * takes the write lock to close, so its final flush sees every write that was let in.
+     */
+    private final ReadWriteLock lifecycle = new ReentrantReadWriteLock();
+
+    private boolean destroyed;
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public void setFile( String file )
+    {
+        this.file = file;
+    }
+
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+    public void setFlushInterval( long flushInterval )
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    public int getFlushThreshold()
+    {
+        return flushThreshold;
+    }
+
+    public void setFlushThreshold( int flushThreshold )
+    {
+        this.flushThreshold = flushThreshold;
+    }
+
+    public boolean isWatchFile()
+    {
+        return watchFile;
+    }
+
+    public void setWatchFile( boolean watchFile )
+    {
+        this.watchFile = watchFile;
+    }
+
+    public void afterPropertiesSet()
+        throws Exception
+    {
+        xmlFile = new AccountXmlFile( file );
+        indexFile = new AccountIndexFile( xmlFile );
+
+        for ( Account account : indexFile.loadAccounts().values() )
+        {
+            CompactAccount compact = CompactAccount.of( account, domains );
+
+            accounts.put( account.getId(), account.getEmail(), compact );
+            flushed.put( account.getId(), compact );
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, "account-persist-flusher" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+        flusher.scheduleWithFixedDelay( this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS );
+
+        if ( watchFile )
+        {
+            watcher = new AccountFileWatcher( new File( file ), AccountFileWatcher.DEFAULT_QUIET_PERIOD, this::reload );
+            watcher.start();
+        }
+    }
+
+    public void destroy()
+        throws Exception
+    {
+        if ( watcher != null )
+        {
+            watcher.close();
+        }
+
+        lifecycle.writeLock().lock();
+
+        try
+        {
+            destroyed = true;
+        }
+        finally
+        {
+            lifecycle.writeLock().unlock();
+        }
+
+        flusher.shutdown();
+
+        flusher.awaitTermination( flushInterval, TimeUnit.MILLISECONDS );
+
+        flush();
+    }
+
+    public Account createAccount( Account account )
+        throws AccountPersistException
+    {
+        lifecycle.readLock().lock();
+
+        try
+        {
+            checkOpen();
+
+            Account created = new Account( account );
+            created.setVersion( 1 );
+
+            if ( !accounts.putIfEmailFree( account.getId(), account.getEmail(),
+                                           CompactAccount.of( created, domains ) ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            account.setVersion( 1 );
+
+            markDirty();
+        }
+        finally
+        {
+            lifecycle.readLock().unlock();
+        }
+
+        return account;
+    }
+
+    public Account readAccount( String id )
+        throws AccountPersistException
+    {
+        CompactAccount account = accounts.get( id );
+
+        return account == null ? null : account.toAccount( domains );
+    }
+
+    public Account updateAccount( Account account )
+        throws AccountPersistException
+    {
+        lifecycle.readLock().lock();
+
+        try
+        {
+            checkOpen();
+
+            while ( true )
+            {
+                CompactAccount current = accounts.get( account.getId() );
+
+                if ( current == null )
+                {
+                    return null;
+                }
+
+                if ( replace( current, account ) )
+                {
+                    markDirty();
+
+                    return account;
+                }
+            }
+        }
+        finally
+        {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    public boolean compareAndUpdate( long expectedVersion, Account account )
+        throws AccountPersistException
+    {
+        lifecycle.readLock().lock();
+
+        try
+        {
+            checkOpen();
+
+            CompactAccount current = accounts.get( account.getId() );
+
+            if ( current == null || current.getVersion() != expectedVersion || !replace( current, account ) )
+            {
+                return false;
+            }
+
+            markDirty();
+
+            return true;
+        }
+        finally
+        {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    public void deleteAccount( String id )
+        throws AccountPersistException
+    {
+        lifecycle.readLock().lock();
+
+        try
+        {
+            checkOpen();
+
+            if ( accounts.remove( id ) != null )
+            {
+                markDirty();
+            }
+        }
+        finally
+        {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    public Account findAccountByEmail( String email )
+        throws AccountPersistException
+    {
+        String id = accounts.idForEmail( email );
+
+        return id == null ? null : readAccount( id );
+    }
+
+    /**
+     * Streams copies of the accounts in memory. Writes made meanwhile may or may not show up.
+     */
+    public Stream<Account> scanAccounts()
+        throws AccountPersistException
+    {
+        return accounts.stream().map( account -> account.toAccount( domains ) );
+    }
+
+    /**
+     * Writes the current index to the file if anything changed since the last flush, after merging in the changes
+     * someone else made to the file meanwhile.
+     */
+    public void flush()
+        throws AccountPersistException
+    {
+        synchronized ( flushLock )
+        {
+            mergeExternalChanges();
+
+            int pending = dirtyCount.getAndSet( 0 );
+
+            if ( pending == 0 )
+            {
+                return;
+            }
+
+            Map<String, CompactAccount> written = new HashMap<String, CompactAccount>( accounts.size() * 2 );
+
+            for ( String id : accounts.ids() )
+            {
+                CompactAccount account = accounts.get( id );
+
+                if ( account != null )
+                {
+                    written.put( id, account );
+                }
+            }
+
+            List<Account> current = materialize( written.values() );
+
+            try
+            {
+                xmlFile.writeAccounts( current );
+            }
+            catch ( AccountPersistException e )
+            {
+                dirtyCount.addAndGet( pending );
+
+                throw e;
+            }
+
+            flushed = written;
+
+            try
+            {
+                indexFile.write( current, xmlFile.getKnownStamp() );
+            }
+            catch ( AccountPersistException e )
+            {
+                // a stale index is detected and rebuilt on the next start
+            }
+        }
+    }
+
+    /**
+     * Merges the changes someone else made to the file into the accounts in memory, by id: an account the file added
+     * or changed replaces the one in memory with the next version, an account the file dropped is deleted. Accounts
+     * the file left alone keep the writes still waiting for a flush, so the next flush writes both. An added or
+     * changed account whose email another account took in memory meanwhile is left out. Does nothing when the file
+     * is as this service last wrote or read it. Returns the number of accounts merged.
+     */
+    public int reload()
+        throws AccountPersistException
+    {
+        synchronized ( flushLock )
+        {
+            return mergeExternalChanges();
+        }
+    }
+
+    /**
+     * Callers hold flushLock.
+     */
+    private int mergeExternalChanges()
+        throws AccountPersistException
+    {
+        if ( !xmlFile.isChangedExternally() )
+        {
+            return 0;
+        }
+
+        Map<String, Account> loaded = xmlFile.readAccounts();
+        Map<String, CompactAccount> seen = new HashMap<String, CompactAccount>( loaded.size() * 2 );
+        int merged = 0;
+
+        for ( Account account : loaded.values() )
+        {
+            CompactAccount known = flushed.get( account.getId() );
+
+            if ( known != null && AccountXmlFile.sameAccount( known.toAccount( domains ), account ) )
+            {
+                seen.put( account.getId(), known );
+            }
+            else
+            {
+                seen.put( account.getId(), CompactAccount.of( account, domains ) );
+
+                if ( merge( account ) )
+                {
+                    merged++;
+                }
+            }
+        }
+
+        for ( String id : flushed.keySet() )
+        {
+            if ( !loaded.containsKey( id ) && accounts.remove( id ) != null )
+            {
+                merged++;
+            }
+        }
+
+        flushed = seen;
+
+        return merged;
+    }
+
+    /**
+     * Puts an account changed in the file into memory with a version above both, so that compareAndUpdate notices
+     * the change, and marks it dirty to write that version back.
+     */
+    private boolean merge( Account changed )
+    {
+        while ( true )
+        {
+            CompactAccount current = accounts.get( changed.getId() );
+            Account next = new Account( changed );
+
+            if ( current != null )
+            {
+                next.setVersion( Math.max( current.getVersion(), changed.getVersion() ) + 1 );
+            }
+
+            CompactAccount compact = CompactAccount.of( next, domains );
+
+            boolean merged = current == null ? accounts.putIfEmailFree( changed.getId(), changed.getEmail(), compact )
+                            : accounts.replace( changed.getId(), changed.getEmail(), current, compact );
+
+            if ( merged )
+            {
+                markDirty();
+
+                return true;
+            }
+
+            if ( accounts.isEmailTaken( changed.getEmail(), changed.getId() ) )
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Swaps in a copy of the account with the next version, unless another writer replaced <code>current</code>
+     * first. Only the index bins of this id and its email are locked while doing so.
+     *
+     * @throws DuplicateEmailException if the email belongs to another account
+     */
+    private boolean replace( CompactAccount current, Account account )
+        throws DuplicateEmailException
+    {
+        Account next = new Account( account );
+        next.setVersion( current.getVersion() + 1 );
+
+        if ( !accounts.replace( account.getId(), account.getEmail(), current, CompactAccount.of( next, domains ) ) )
+        {
+            if ( accounts.isEmailTaken( account.getEmail(), account.getId() ) )
+            {
+                throw new DuplicateEmailException( account.getEmail() );
+            }
+
+            return false;
+        }
+
+        account.setVersion( next.getVersion() );
+
+        return true;
+    }
+
+    private List<Account> materialize( Collection<CompactAccount> compact )
+    {
+        List<Account> accounts = new ArrayList<Account>( compact.size() );
+
+        for ( CompactAccount account : compact )
+        {
+            accounts.add( account.toAccount( domains ) );
+        }
+
+        return accounts;
+    }
+
+    /**
+     * Writes are rejected once the bean is destroyed, before they touch the index, since nothing would flush them.
+     * Callers hold the read lock of {@link #lifecycle}.
+     */
+    private void checkOpen()
+        throws AccountPersistException
+    {
+        if ( destroyed )
+        {
+            throw new AccountPersistException( "Account persist service for " + file + " has been destroyed" );
+        }
+    }
+
+    private void markDirty()
+    {
+        if ( dirtyCount.incrementAndGet() >= flushThreshold && flushScheduled.compareAndSet( false, true ) )
+        {
+            try
+            {
+                flusher.execute( () -> {
+                    flushScheduled.set( false );
+                    flushQuietly();
+                } );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // destroyed meanwhile, its final flush writes the mutation
+                flushScheduled.set( false );
+            }
+        }
+    }
+
+    private void flushQuietly()
+    {
+        try
+        {
+            flush();
+        }
+        catch ( AccountPersistException e )
+        {
+            // the mutations stay dirty and are retried on the next tick, or surfaced by destroy()
+        }
+    }
+}
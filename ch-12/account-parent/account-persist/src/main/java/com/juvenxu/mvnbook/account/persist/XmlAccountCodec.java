@@ -0,0 +1,33 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import java.nio.charset.StandardCharsets;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+
+/**
+ * Encodes an account as the <code>account</code> element of persist-data.xml, built and read by the same code as the
+ * file, in UTF-8. Like the file it does not tell a null field from an empty one.
+ */
+public final class XmlAccountCodec
+    implements AccountCodec
+{
+    public byte[] encode( Account account )
+    {
+        return AccountXmlFile.buildAccountElement( account ).asXML().getBytes( StandardCharsets.UTF_8 );
+    }
+
+    public Account decode( byte[] data, int offset, int length )
+    {
+        try
+        {
+            String xml = new String( data, offset, length, StandardCharsets.UTF_8 );
+
+            return AccountXmlFile.buildAccount( DocumentHelper.parseText( xml ).getRootElement() );
+        }
+        catch ( DocumentException e )
+        {
+            throw new IllegalArgumentException( "Malformed account xml", e );
+        }
+    }
+}
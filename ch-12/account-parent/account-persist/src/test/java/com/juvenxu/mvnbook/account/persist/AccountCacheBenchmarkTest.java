@@ -0,0 +1,100 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the heap and the off-heap cache on the same working set: both must keep most of it, and the off-heap one
+ * must take a fraction of the heap the heap cache takes and spend no more time in garbage collection while reading.
+ * Runs with <code>-Pbenchmark</code> only.
+ */
+@Tag( "benchmark" )
+public class AccountCacheBenchmarkTest
+{
+    private static final int ACCOUNTS = 200000;
+
+    private static final int READS = 2000000;
+
+    private static final class Measurement
+    {
+        long heapBytes;
+
+        long gcMillis;
+
+        int hitPercent;
+    }
+
+    private Measurement measure( AccountCache cache )
+    {
+        Measurement measurement = new Measurement();
+
+        long heapBefore = usedHeap();
+
+        for ( int i = 0; i < ACCOUNTS; i++ )
+        {
+            Account account = createAccount( "account" + i );
+            account.setVersion( 1 );
+            cache.put( account );
+        }
+
+        measurement.heapBytes = Math.max( 0, usedHeap() - heapBefore );
+
+        // two passes, the first one warms up
+        for ( int pass = 0; pass < 2; pass++ )
+        {
+            Random random = new Random( 42 );
+            long gcBefore = gcMillis();
+            int found = 0;
+
+            for ( int i = 0; i < READS; i++ )
+            {
+                found += cache.get( "account" + random.nextInt( ACCOUNTS ) ) == null ? 0 : 1;
+            }
+
+            measurement.gcMillis = gcMillis() - gcBefore;
+            measurement.hitPercent = (int) ( found * 100L / READS );
+        }
+
+        return measurement;
+    }
+
+    @Test
+    public void testHeapAgainstOffHeap()
+    {
+        Measurement heap = measure( new TinyLfuAccountCache( ACCOUNTS ) );
+        Measurement offHeap = measure( new OffHeapAccountCache( ACCOUNTS * 160L ) );
+
+        assertTrue( heap.hitPercent >= 90, heap.hitPercent + "% hits on the heap" );
+        assertTrue( offHeap.hitPercent >= 90, offHeap.hitPercent + "% hits off the heap" );
+        assertTrue( offHeap.heapBytes * 2 < heap.heapBytes,
+                    offHeap.heapBytes / 1024 + " KB of heap off the heap against " + heap.heapBytes / 1024 + " KB" );
+        assertTrue( offHeap.gcMillis <= heap.gcMillis + 100,
+                    offHeap.gcMillis + " ms in GC off the heap against " + heap.gcMillis + " ms" );
+    }
+
+    private static long usedHeap()
+    {
+        System.gc();
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcMillis()
+    {
+        long millis = 0;
+
+        for ( GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans() )
+        {
+            millis += Math.max( 0, collector.getCollectionTime() );
+        }
+
+        return millis;
+    }
+}
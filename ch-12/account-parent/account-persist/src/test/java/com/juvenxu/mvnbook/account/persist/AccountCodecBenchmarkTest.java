@@ -0,0 +1,103 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the codecs on the same accounts: each one must take fewer bytes per account than the one before, and the
+ * binary codec must encode and decode faster than the XML one. Runs with <code>-Pbenchmark</code> only.
+ */
+@Tag( "benchmark" )
+public class AccountCodecBenchmarkTest
+{
+    private static final int ACCOUNTS = 10000;
+
+    private static final int ROUNDS = 10;
+
+    private List<Account> createAccounts()
+    {
+        List<Account> accounts = new ArrayList<Account>();
+
+        for ( int i = 0; i < ACCOUNTS; i++ )
+        {
+            Account account = new Account();
+            account.setId( "account" + i );
+            account.setName( "Name of account" + i );
+            account.setEmail( "account" + i + "@changeme.com" );
+            account.setPassword( "this_should_be_encrypted" );
+            account.setActivated( i % 2 == 0 );
+            account.setVersion( i % 7 + 1 );
+            accounts.add( account );
+        }
+
+        return accounts;
+    }
+
+    private static final class Measurement
+    {
+        long bytes;
+
+        long nanos;
+    }
+
+    private Measurement measure( AccountCodec codec, List<Account> accounts )
+    {
+        Measurement measurement = new Measurement();
+        byte[][] encoded = new byte[accounts.size()][];
+
+        // the first round warms up
+        for ( int round = 0; round <= ROUNDS; round++ )
+        {
+            long start = System.nanoTime();
+            for ( int i = 0; i < encoded.length; i++ )
+            {
+                encoded[i] = codec.encode( accounts.get( i ) );
+            }
+
+            for ( byte[] data : encoded )
+            {
+                assertNotNull( codec.decode( data, 0, data.length ) );
+            }
+
+            if ( round > 0 )
+            {
+                measurement.nanos += System.nanoTime() - start;
+            }
+        }
+
+        for ( byte[] data : encoded )
+        {
+            measurement.bytes += data.length;
+        }
+
+        return measurement;
+    }
+
+    @Test
+    public void testCodecs()
+    {
+        List<Account> accounts = createAccounts();
+        List<Measurement> measurements = new ArrayList<Measurement>();
+
+        for ( AccountCodec codec : Arrays.asList( new XmlAccountCodec(), new JsonAccountCodec(),
+                                                  new BinaryAccountCodec() ) )
+        {
+            measurements.add( measure( codec, accounts ) );
+        }
+
+        Measurement xml = measurements.get( 0 );
+        Measurement json = measurements.get( 1 );
+        Measurement binary = measurements.get( 2 );
+
+        assertTrue( xml.bytes > json.bytes && json.bytes > binary.bytes,
+                    xml.bytes + ", " + json.bytes + " and " + binary.bytes + " bytes for XML, JSON and binary" );
+        assertTrue( binary.nanos < xml.nanos,
+                    "binary took " + binary.nanos / 1000000 + " ms against " + xml.nanos / 1000000 + " ms for XML" );
+    }
+}
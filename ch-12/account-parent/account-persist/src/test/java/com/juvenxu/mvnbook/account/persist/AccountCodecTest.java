@@ -0,0 +1,122 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class AccountCodecTest
+{
+    private static final List<AccountCodec> CODECS =
+        Arrays.asList( new XmlAccountCodec(), new JsonAccountCodec(), new BinaryAccountCodec() );
+
+    private Account createAccount()
+    {
+        Account account = new Account();
+        account.setId( "juven" );
+        account.setName( "Juven \u5f90 \"the\" <maven> \\ guy\n" );
+        account.setEmail( "juven@changeme.com" );
+        account.setPassword( "p&ss<w>rd" );
+        account.setActivated( true );
+        account.setVersion( 1L << 40 );
+        return account;
+    }
+
+    @Test
+    public void testAccountsRoundTrip()
+    {
+        Account account = createAccount();
+
+        for ( AccountCodec codec : CODECS )
+        {
+            String name = codec.getClass().getSimpleName();
+            byte[] data = codec.encode( account );
+
+            // decodes from the middle of a larger buffer
+            byte[] padded = new byte[data.length + 6];
+            System.arraycopy( data, 0, padded, 3, data.length );
+            Account decoded = codec.decode( padded, 3, data.length );
+
+            assertEquals( "juven", decoded.getId(), name );
+            assertEquals( account.getName(), decoded.getName(), name );
+            assertEquals( "juven@changeme.com", decoded.getEmail(), name );
+            assertEquals( "p&ss<w>rd", decoded.getPassword(), name );
+            assertTrue( decoded.isActivated(), name );
+            assertEquals( 1L << 40, decoded.getVersion(), name );
+        }
+    }
+
+    @Test
+    public void testNullFieldsAndControlCharactersSurviveJsonAndBinary()
+    {
+        // XML tells neither null from empty nor carries control characters
+        Account account = new Account();
+        account.setId( "juven\u0001" );
+
+        for ( AccountCodec codec : Arrays.asList( new JsonAccountCodec(), new BinaryAccountCodec() ) )
+        {
+            byte[] data = codec.encode( account );
+            Account decoded = codec.decode( data, 0, data.length );
+
+            assertEquals( "juven\u0001", decoded.getId() );
+            assertNull( decoded.getName() );
+            assertNull( decoded.getEmail() );
+            assertNull( decoded.getPassword() );
+            assertFalse( decoded.isActivated() );
+        }
+    }
+
+    @Test
+    public void testJsonFromOtherTools()
+    {
+        byte[] json = ( " { \"version\" : 3, \"id\" : \"mike\", \"nickname\" : \"m\", \"activated\" : true,"
+            + " \"email\" : \"mike\\u0040changeme.com\" } " ).getBytes( StandardCharsets.UTF_8 );
+
+        Account account = new JsonAccountCodec().decode( json, 0, json.length );
+
+        assertEquals( "mike", account.getId() );
+        assertEquals( "mike@changeme.com", account.getEmail() );
+        assertEquals( 3, account.getVersion() );
+        assertTrue( account.isActivated() );
+        assertNull( account.getName() );
+    }
+
+    @Test
+    public void testMalformedInputIsRejected()
+    {
+        byte[] binary = new BinaryAccountCodec().encode( createAccount() );
+        byte[] json = "{\"id\":\"juven\"".getBytes( StandardCharsets.UTF_8 );
+        byte[] xml = "<account><id>juven</id>".getBytes( StandardCharsets.UTF_8 );
+
+        assertThrows( IllegalArgumentException.class,
+                      () -> new BinaryAccountCodec().decode( binary, 0, binary.length - 3 ) );
+        assertThrows( IllegalArgumentException.class, () -> new JsonAccountCodec().decode( json, 0, json.length ) );
+        assertThrows( IllegalArgumentException.class, () -> new XmlAccountCodec().decode( xml, 0, xml.length ) );
+    }
+
+    @Test
+    public void testBinaryDecodeStaysWithinItsLength()
+    {
+        byte[] binary = new BinaryAccountCodec().encode( createAccount() );
+
+        // the account followed by another one, which a truncated read must not run into
+        byte[] twice = new byte[binary.length * 2];
+        System.arraycopy( binary, 0, twice, 0, binary.length );
+        System.arraycopy( binary, 0, twice, binary.length, binary.length );
+
+        for ( int length = 0; length < binary.length; length++ )
+        {
+            int truncated = length;
+
+            assertThrows( IllegalArgumentException.class,
+                          () -> new BinaryAccountCodec().decode( twice, 0, truncated ) );
+        }
+
+        assertEquals( "juven", new BinaryAccountCodec().decode( twice, binary.length, binary.length ).getId() );
+        assertThrows( IllegalArgumentException.class,
+                      () -> new BinaryAccountCodec().decode( binary, binary.length, 1 ) );
+    }
+}
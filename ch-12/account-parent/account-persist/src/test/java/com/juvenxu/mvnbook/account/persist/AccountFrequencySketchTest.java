@@ -0,0 +1,46 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class AccountFrequencySketchTest
+{
+    @Test
+    public void testFrequentIdsEstimateHigher()
+    {
+        AccountFrequencySketch sketch = new AccountFrequencySketch( 1000 );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            sketch.increment( "account" + i );
+        }
+        for ( int i = 0; i < 10; i++ )
+        {
+            sketch.increment( "hot" );
+        }
+
+        assertEquals( 10, sketch.frequency( "hot" ) );
+        assertTrue( sketch.frequency( "account1" ) >= 1, "never underestimates" );
+        assertTrue( sketch.frequency( "account1" ) < 10 );
+    }
+
+    @Test
+    public void testCountersSaturateAndAge()
+    {
+        AccountFrequencySketch sketch = new AccountFrequencySketch( 16 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            sketch.increment( "hot" );
+        }
+        assertEquals( 15, sketch.frequency( "hot" ) );
+
+        // ten times the size in additions halves every counter
+        for ( int i = 0; i < 160; i++ )
+        {
+            sketch.increment( "other" + i );
+        }
+        assertTrue( sketch.frequency( "hot" ) < 15 );
+    }
+}
@@ -0,0 +1,51 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class AccountIdFilterTest
+{
+    @Test
+    public void testNoFalseNegatives()
+    {
+        List<String> ids = new ArrayList<String>();
+        for ( int i = 0; i < 5000; i++ )
+        {
+            ids.add( "account" + i );
+        }
+
+        AccountIdFilter filter = AccountIdFilter.of( ids, 0.01 );
+
+        for ( String id : ids )
+        {
+            assertTrue( filter.mightContain( id ), id );
+        }
+        assertFalse( filter.isFull() );
+    }
+
+    @Test
+    public void testFalsePositiveRateIsNearTheConfiguredOne()
+    {
+        AccountIdFilter filter = new AccountIdFilter( 10000, 0.01 );
+        for ( int i = 0; i < 10000; i++ )
+        {
+            filter.put( "account" + i );
+        }
+        assertTrue( filter.isFull() );
+
+        int falsePositives = 0;
+        for ( int i = 0; i < 100000; i++ )
+        {
+            if ( filter.mightContain( "unknown" + i ) )
+            {
+                falsePositives++;
+            }
+        }
+
+        assertTrue( falsePositives < 2000, falsePositives + " false positives in 100000" );
+    }
+}
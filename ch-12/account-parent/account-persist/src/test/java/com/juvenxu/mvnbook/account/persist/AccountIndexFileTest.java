@@ -0,0 +1,94 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AccountIndexFileTest
+{
+    @TempDir
+    File dir;
+
+    @Test
+    public void testIndexIsUsedWhileDataFileIsUnchanged()
+        throws Exception
+    {
+        File file = new File( dir, "persist-data.xml" );
+        AccountXmlFile xmlFile = new AccountXmlFile( file.getPath() );
+        xmlFile.writeAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "mike" ) ) );
+
+        AccountIndexFile indexFile = new AccountIndexFile( xmlFile );
+        assertNull( indexFile.read() );
+        assertEquals( 2, indexFile.loadAccounts().size() );
+        assertTrue( indexFile.getFile().exists() );
+
+        // same size, same time, same file: only the index can answer now
+        FileTime modified = Files.getLastModifiedTime( file.toPath() );
+        try ( RandomAccessFile data = new RandomAccessFile( file, "rw" ) )
+        {
+            data.write( new byte[(int) data.length()] );
+        }
+        Files.setLastModifiedTime( file.toPath(), modified );
+
+        Map<String, Account> accounts = new AccountIndexFile( xmlFile ).loadAccounts();
+        assertEquals( "Name of mike", accounts.get( "mike" ).getName() );
+        assertEquals( "juven@changeme.com", accounts.get( "juven" ).getEmail() );
+    }
+
+    @Test
+    public void testStaleOrCorruptIndexIsRebuilt()
+        throws Exception
+    {
+        AccountXmlFile xmlFile = new AccountXmlFile( new File( dir, "persist-data.xml" ).getPath() );
+        xmlFile.writeAccounts( Arrays.asList( createAccount( "juven" ) ) );
+
+        AccountIndexFile indexFile = new AccountIndexFile( xmlFile );
+        indexFile.loadAccounts();
+        assertNotNull( indexFile.read() );
+
+        xmlFile.writeAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "mike" ) ) );
+        assertNull( indexFile.read(), "the data file changed" );
+        assertEquals( 2, indexFile.loadAccounts().size() );
+        assertEquals( 2, indexFile.read().size() );
+
+        try ( RandomAccessFile index = new RandomAccessFile( indexFile.getFile(), "rw" ) )
+        {
+            index.seek( index.length() / 2 );
+            int b = index.read();
+            index.seek( index.length() / 2 );
+            index.write( b ^ 0xff );
+        }
+        assertNull( indexFile.read(), "the checksum does not match" );
+        assertEquals( 2, indexFile.loadAccounts().size() );
+    }
+
+    @Test
+    public void testIndexOfAccountsReadBeforeAChangeIsNotTrusted()
+        throws Exception
+    {
+        File file = new File( dir, "persist-data.xml" );
+        AccountXmlFile xmlFile = new AccountXmlFile( file.getPath() );
+        xmlFile.writeAccounts( Arrays.asList( createAccount( "juven" ) ) );
+
+        String stamp = xmlFile.stampQuietly();
+        Map<String, Account> accounts = xmlFile.readAccounts();
+
+        // another process rewrites the file between the read and the index write
+        new AccountXmlFile( file.getPath() ).writeAccounts(
+            Arrays.asList( createAccount( "juven" ), createAccount( "mike" ) ) );
+
+        AccountIndexFile indexFile = new AccountIndexFile( xmlFile );
+        indexFile.write( accounts.values(), stamp );
+        assertNull( indexFile.read(), "the index is stamped for the file as it was read" );
+        assertEquals( 2, indexFile.loadAccounts().size() );
+    }
+}
@@ -0,0 +1,64 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class AccountIndexTest
+{
+    @Test
+    public void testEmailIndexFollowsMutations()
+    {
+        AccountIndex<String> index = new AccountIndex<String>();
+
+        index.put( "juven", "Juven@ChangeMe.com", "juven-value" );
+        assertEquals( "juven", index.idForEmail( "juven@changeme.com" ) );
+        assertEquals( "juven", index.idForEmail( " JUVEN@changeme.com " ) );
+
+        index.put( "juven", "juven1@changeme.com", "juven-value-1" );
+        assertNull( index.idForEmail( "juven@changeme.com" ) );
+        assertEquals( "juven", index.idForEmail( "juven1@changeme.com" ) );
+        assertEquals( "juven-value-1", index.get( "juven" ) );
+
+        assertNull( index.replace( "mike", "mike@changeme.com", "mike-value" ) );
+        assertNull( index.idForEmail( "mike@changeme.com" ) );
+
+        index.remove( "juven" );
+        assertNull( index.idForEmail( "juven1@changeme.com" ) );
+        assertEquals( 0, index.size() );
+    }
+
+    @Test
+    public void testPutIfEmailFree()
+    {
+        AccountIndex<String> index = new AccountIndex<String>();
+
+        assertTrue( index.putIfEmailFree( "juven", "juven@changeme.com", "juven-value" ) );
+        assertFalse( index.putIfEmailFree( "mike", "Juven@ChangeMe.com", "mike-value" ) );
+        assertNull( index.get( "mike" ) );
+        assertTrue( index.isEmailTaken( "juven@changeme.com", "mike" ) );
+        assertFalse( index.isEmailTaken( "juven@changeme.com", "juven" ) );
+
+        assertTrue( index.putIfEmailFree( "juven", "juven1@changeme.com", "juven-value-1" ) );
+        assertFalse( index.isEmailTaken( "juven@changeme.com", "mike" ) );
+        assertTrue( index.putIfEmailFree( "mike", "juven@changeme.com", "mike-value" ) );
+        assertEquals( "mike", index.idForEmail( "juven@changeme.com" ) );
+        assertEquals( "juven", index.idForEmail( "juven1@changeme.com" ) );
+    }
+
+    @Test
+    public void testSharedEmail()
+    {
+        AccountIndex<String> index = new AccountIndex<String>();
+
+        index.put( "juven", "shared@changeme.com", "juven-value" );
+        index.put( "mike", "shared@changeme.com", "mike-value" );
+
+        index.remove( "juven" );
+        assertEquals( "mike", index.idForEmail( "shared@changeme.com" ) );
+
+        index.put( "tom", null, "tom-value" );
+        assertNull( index.idForEmail( null ) );
+        assertEquals( 2, index.size() );
+    }
+}
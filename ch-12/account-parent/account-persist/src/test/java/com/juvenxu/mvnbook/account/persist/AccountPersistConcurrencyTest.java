@@ -0,0 +1,479 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Hammers each persist service with create/read/update/delete from many threads, every thread owning its own ids,
+ * and checks that no thread lost a write made by itself, and that of several concurrent signups with one email only
+ * one gets through. How reads scale is checked by
+ * {@link AccountReadScalingBenchmarkTest}.
+ */
+public class AccountPersistConcurrencyTest
+{
+    private static final int THREADS = Math.max( 4, Runtime.getRuntime().availableProcessors() );
+
+    @TempDir
+    File dir;
+
+    /**
+     * Each thread creates its accounts, activates and renames all of them and deletes every other one, then the
+     * final state of every account is verified.
+     */
+    private void hammer( AccountPersistService service, int accountsPerThread )
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            final String prefix = "t" + t + "-";
+
+            futures.add( executor.submit( (Callable<Void>) () -> {
+                for ( int i = 0; i < accountsPerThread; i++ )
+                {
+                    service.createAccount( createAccount( prefix + i, false ) );
+                }
+
+                for ( int i = 0; i < accountsPerThread; i++ )
+                {
+                    Account account = service.readAccount( prefix + i );
+                    assertNotNull( account, "lost create of " + prefix + i );
+
+                    account.setActivated( true );
+                    account.setName( "Renamed " + prefix + i );
+                    assertNotNull( service.updateAccount( account ) );
+                }
+
+                for ( int i = 0; i < accountsPerThread; i += 2 )
+                {
+                    service.deleteAccount( prefix + i );
+                }
+
+                return null;
+            } ) );
+        }
+
+        for ( Future<?> future : futures )
+        {
+            future.get();
+        }
+
+        executor.shutdown();
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            for ( int i = 0; i < accountsPerThread; i++ )
+            {
+                String id = "t" + t + "-" + i;
+                Account account = service.readAccount( id );
+
+                if ( i % 2 == 0 )
+                {
+                    assertNull( account, "lost delete of " + id );
+                }
+                else
+                {
+                    assertNotNull( account, "lost account " + id );
+                    assertEquals( "Renamed " + id, account.getName(), "lost update of " + id );
+                    assertTrue( account.isActivated(), "lost update of " + id );
+                }
+            }
+        }
+
+        try ( Stream<Account> accounts = service.scanAccounts() )
+        {
+            List<Account> survivors = accounts.parallel()
+                .filter( account -> account.getId().matches( "t\\d+-\\d+" ) ).collect( Collectors.toList() );
+
+            assertEquals( THREADS * ( accountsPerThread / 2 ), survivors.size(), "scan disagrees with reads" );
+            survivors.forEach( account -> assertEquals( "Renamed " + account.getId(), account.getName() ) );
+        }
+    }
+
+    /**
+     * Every thread increments a counter kept in the name of one shared account through compareAndUpdate, retrying
+     * on conflicts; no increment may be lost.
+     */
+    private void incrementConcurrently( AccountPersistService service, int incrementsPerThread )
+        throws Exception
+    {
+        Account counter = createAccount( "counter", false );
+        counter.setName( "0" );
+        service.createAccount( counter );
+
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            futures.add( executor.submit( (Callable<Void>) () -> {
+                for ( int i = 0; i < incrementsPerThread; i++ )
+                {
+                    while ( true )
+                    {
+                        Account account = service.readAccount( "counter" );
+                        account.setName( String.valueOf( Integer.parseInt( account.getName() ) + 1 ) );
+
+                        if ( service.compareAndUpdate( account.getVersion(), account ) )
+                        {
+                            break;
+                        }
+                    }
+                }
+                return null;
+            } ) );
+        }
+
+        for ( Future<?> future : futures )
+        {
+            future.get();
+        }
+
+        executor.shutdown();
+
+        Account account = service.readAccount( "counter" );
+        assertEquals( String.valueOf( THREADS * incrementsPerThread ), account.getName() );
+        assertEquals( 1 + THREADS * incrementsPerThread, account.getVersion() );
+    }
+
+    /**
+     * Every thread signs up its own id with the same email, in a different case each; exactly one create may succeed.
+     */
+    private void signUpConcurrently( AccountPersistService service )
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            Account account = createAccount( "signup" + t, false );
+            account.setEmail( t % 2 == 0 ? "signup@changeme.com" : "SignUp@ChangeMe.com" );
+
+            futures.add( executor.submit( () -> {
+                try
+                {
+                    service.createAccount( account );
+                    return true;
+                }
+                catch ( DuplicateEmailException e )
+                {
+                    return false;
+                }
+            } ) );
+        }
+
+        String winner = null;
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            if ( futures.get( t ).get() )
+            {
+                assertNull( winner, "signup" + t + " and " + winner + " share an email" );
+                winner = "signup" + t;
+            }
+        }
+
+        executor.shutdown();
+
+        assertNotNull( winner );
+        assertEquals( winner, service.findAccountByEmail( "SIGNUP@changeme.com" ).getId() );
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            if ( !winner.equals( "signup" + t ) )
+            {
+                assertNull( service.readAccount( "signup" + t ) );
+            }
+        }
+    }
+
+    /**
+     * Every thread moves its own account to the same email, in a different case each; exactly one update may succeed
+     * and the others keep their old email.
+     */
+    private void moveEmailConcurrently( AccountPersistService service )
+        throws Exception
+    {
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            Account account = createAccount( "mover" + t, false );
+            account.setEmail( "mover" + t + "@changeme.com" );
+            service.createAccount( account );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            Account account = service.readAccount( "mover" + t );
+            account.setEmail( t % 2 == 0 ? "moved@changeme.com" : "Moved@ChangeMe.com" );
+
+            futures.add( executor.submit( () -> {
+                try
+                {
+                    return service.updateAccount( account ) != null;
+                }
+                catch ( DuplicateEmailException e )
+                {
+                    return false;
+                }
+            } ) );
+        }
+
+        String winner = null;
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            if ( futures.get( t ).get() )
+            {
+                assertNull( winner, "mover" + t + " and " + winner + " share an email" );
+                winner = "mover" + t;
+            }
+            else
+            {
+                Account loser = service.readAccount( "mover" + t );
+                assertEquals( "mover" + t + "@changeme.com", loser.getEmail() );
+                assertEquals( 1, loser.getVersion() );
+            }
+        }
+
+        executor.shutdown();
+
+        assertNotNull( winner );
+        assertEquals( winner, service.findAccountByEmail( "MOVED@changeme.com" ).getId() );
+
+        Account loser = service.readAccount( winner.equals( "mover0" ) ? "mover1" : "mover0" );
+        loser.setEmail( "moved@changeme.com" );
+
+        assertThrows( DuplicateEmailException.class, () -> service.compareAndUpdate( 1, loser ) );
+        assertThrows( DuplicateEmailException.class,
+                      () -> service.updateAccounts( Collections.singletonList( loser ) ) );
+
+        if ( service.isTransactional() )
+        {
+            AccountTransaction transaction = service.beginTransaction();
+            transaction.updateAccount( loser );
+            assertThrows( DuplicateEmailException.class, transaction::commit );
+        }
+
+        assertEquals( 1, service.readAccount( loser.getId() ).getVersion() );
+    }
+
+    @Test
+    public void testXmlService()
+        throws Exception
+    {
+        AccountPersistServiceImpl service = new AccountPersistServiceImpl();
+        service.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        service.setStreamingRead( true );
+
+        hammer( service, 10 );
+        incrementConcurrently( service, 5 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+    }
+
+    @Test
+    public void testShardedService()
+        throws Exception
+    {
+        ShardedAccountPersistServiceImpl service = new ShardedAccountPersistServiceImpl();
+        service.setDirectory( dir.getPath() );
+        service.setShardCount( 4 );
+        service.afterPropertiesSet();
+
+        hammer( service, 20 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+    }
+
+    @Test
+    public void testWriteBehindService()
+        throws Exception
+    {
+        WriteBehindAccountPersistServiceImpl service = new WriteBehindAccountPersistServiceImpl();
+        service.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        service.setFlushThreshold( 50 );
+        service.afterPropertiesSet();
+
+        hammer( service, 50 );
+        incrementConcurrently( service, 50 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+
+        service.destroy();
+    }
+
+    @Test
+    public void testSnapshotService()
+        throws Exception
+    {
+        SnapshotAccountPersistServiceImpl service = new SnapshotAccountPersistServiceImpl();
+        service.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        service.afterPropertiesSet();
+
+        hammer( service, 10 );
+        incrementConcurrently( service, 5 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+    }
+
+    @Test
+    public void testMvccService()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = new MvccAccountPersistServiceImpl();
+        service.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        service.afterPropertiesSet();
+
+        hammer( service, 10 );
+        incrementConcurrently( service, 5 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+    }
+
+    @Test
+    public void testLogService()
+        throws Exception
+    {
+        LogAccountPersistServiceImpl service = new LogAccountPersistServiceImpl();
+        service.setDirectory( dir.getPath() );
+        service.setSnapshotThreshold( 500 );
+        service.afterPropertiesSet();
+
+        hammer( service, 50 );
+        incrementConcurrently( service, 50 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+
+        service.destroy();
+    }
+
+    @Test
+    public void testMappedService()
+        throws Exception
+    {
+        MappedAccountPersistServiceImpl service = new MappedAccountPersistServiceImpl();
+        service.setFile( new File( dir, "accounts.dat" ).getPath() );
+        service.setInitialSlots( 16 );
+        service.afterPropertiesSet();
+
+        hammer( service, 50 );
+        incrementConcurrently( service, 50 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+
+        service.destroy();
+    }
+
+    @Test
+    public void testLsmService()
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = new LsmAccountPersistServiceImpl();
+        service.setDirectory( dir.getPath() );
+        service.setMemtableSize( 100 );
+        service.setCompactionThreshold( 3 );
+        service.afterPropertiesSet();
+
+        hammer( service, 50 );
+        incrementConcurrently( service, 50 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+
+        service.destroy();
+    }
+
+    @Test
+    public void testBTreeService()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = new BTreeAccountPersistServiceImpl();
+        service.setFile( new File( dir, "accounts.btree" ).getPath() );
+        service.setCachePages( 64 );
+        service.afterPropertiesSet();
+
+        hammer( service, 50 );
+        incrementConcurrently( service, 50 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+
+        service.destroy();
+    }
+
+    @Test
+    public void testCachingService()
+        throws Exception
+    {
+        SnapshotAccountPersistServiceImpl delegate = new SnapshotAccountPersistServiceImpl();
+        delegate.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        delegate.afterPropertiesSet();
+
+        CachingAccountPersistServiceImpl service = new CachingAccountPersistServiceImpl();
+        service.setAccountPersistService( delegate );
+        service.setMaximumSize( 100 );
+        service.afterPropertiesSet();
+
+        hammer( service, 20 );
+        incrementConcurrently( service, 20 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+        assertTrue( service.getHitRate() > 0 );
+    }
+
+    @Test
+    public void testOffHeapCachingService()
+        throws Exception
+    {
+        SnapshotAccountPersistServiceImpl delegate = new SnapshotAccountPersistServiceImpl();
+        delegate.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        delegate.afterPropertiesSet();
+
+        CachingAccountPersistServiceImpl service = new CachingAccountPersistServiceImpl();
+        service.setAccountPersistService( delegate );
+        service.setMaximumOffHeapBytes( 1024 * 1024 );
+        service.afterPropertiesSet();
+
+        hammer( service, 20 );
+        incrementConcurrently( service, 20 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+        assertTrue( service.getHitRate() > 0 );
+    }
+
+    @Test
+    public void testH2Service()
+        throws Exception
+    {
+        H2AccountPersistServiceImpl service = new H2AccountPersistServiceImpl();
+        service.setFile( new File( dir, "accounts" ).getPath() );
+        service.setPoolSize( 4 );
+        service.afterPropertiesSet();
+
+        hammer( service, 50 );
+        incrementConcurrently( service, 50 );
+        signUpConcurrently( service );
+        moveEmailConcurrently( service );
+        assertTrue( service.getOpenConnections() <= 4 );
+
+        service.destroy();
+    }
+}
@@ -3,6 +3,10 @@ package com.juvenxu.mvnbook.account.persist;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -99,4 +103,255 @@ public class AccountPersistServiceTest
         assertEquals( "this_still_should_be_encrypted", account.getPassword() );
         assertFalse( account.isActivated() );
     }
+
+    @Test
+    public void testUpdateAccountInPlace()
+        throws Exception
+    {
+        Account mike = new Account();
+        mike.setId( "mike" );
+        mike.setName( "Mike" );
+        mike.setEmail( "mike@changeme.com" );
+        mike.setPassword( "this_should_be_encrypted" );
+        service.createAccount( mike );
+
+        Account account = service.readAccount( "juven" );
+        account.setName( "Juven Xu 1" );
+        service.updateAccount( account );
+
+        assertEquals( "juven", service.readAccounts( Arrays.asList( "juven", "mike" ) ).get( 0 ).getId() );
+        assertEquals( 2, service.readAccount( "juven" ).getVersion() );
+    }
+
+    @Test
+    public void testCompareAndUpdate()
+        throws Exception
+    {
+        Account first = service.readAccount( "juven" );
+        Account second = service.readAccount( "juven" );
+        assertEquals( 1, first.getVersion() );
+
+        first.setActivated( false );
+        assertTrue( service.compareAndUpdate( first.getVersion(), first ) );
+        assertEquals( 2, first.getVersion() );
+
+        second.setName( "Stale" );
+        assertFalse( service.compareAndUpdate( second.getVersion(), second ) );
+
+        Account account = service.readAccount( "juven" );
+        assertEquals( "Juven Xu", account.getName() );
+        assertFalse( account.isActivated() );
+        assertEquals( 2, account.getVersion() );
+    }
+
+    @Test
+    public void testFindAccountByEmail()
+        throws Exception
+    {
+        assertEquals( "juven", service.findAccountByEmail( "Juven@ChangeMe.com" ).getId() );
+        assertNull( service.findAccountByEmail( "nobody@changeme.com" ) );
+    }
+
+    @Test
+    public void testCreateAccountWithTakenEmail()
+        throws Exception
+    {
+        Account mike = service.readAccount( "juven" );
+        mike.setId( "mike" );
+        mike.setEmail( "JUVEN@changeme.com" );
+
+        DuplicateEmailException e = assertThrows( DuplicateEmailException.class, () -> service.createAccount( mike ) );
+        assertEquals( "JUVEN@changeme.com", e.getEmail() );
+        assertNull( service.readAccount( "mike" ) );
+
+        Account juven = service.readAccount( "juven" );
+        juven.setEmail( "juven1@changeme.com" );
+        service.updateAccount( juven );
+        assertNull( service.findAccountByEmail( "juven@changeme.com" ) );
+
+        service.createAccount( mike );
+        assertEquals( "mike", service.findAccountByEmail( "juven@changeme.com" ).getId() );
+
+        Account tom = new Account( mike );
+        tom.setId( "tom" );
+        tom.setEmail( "tom@changeme.com" );
+        Account lucy = new Account( tom );
+        lucy.setId( "lucy" );
+
+        assertThrows( DuplicateEmailException.class, () -> service.createAccounts( Arrays.asList( tom, lucy ) ) );
+        assertNull( service.readAccount( "tom" ), "a batch with a taken email creates nothing" );
+    }
+
+    @Test
+    public void testUnknownIdIsAnsweredByIdFilter()
+        throws Exception
+    {
+        AccountPersistServiceImpl impl = (AccountPersistServiceImpl) service;
+        long saved = impl.getSavedLookups();
+
+        assertNull( service.readAccount( "nobody" ) );
+        assertEquals( saved + 1, impl.getSavedLookups() );
+
+        Account account = service.readAccount( "juven" );
+        account.setId( "nobody" );
+        account.setEmail( "nobody@changeme.com" );
+        service.createAccount( account );
+
+        assertNotNull( service.readAccount( "nobody" ) );
+        assertEquals( saved + 1, impl.getSavedLookups() );
+    }
+
+    @Test
+    public void testExternalChangeResetsIdFilter()
+        throws Exception
+    {
+        assertNull( service.readAccount( "lucy" ) );
+
+        Account lucy = service.readAccount( "juven" );
+        lucy.setId( "lucy" );
+        new AccountXmlFile( "target/test-classes/persist-data.xml" )
+            .writeAccounts( Arrays.asList( service.readAccount( "juven" ), lucy ) );
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( service.readAccount( "lucy" ) == null && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 50 );
+        }
+
+        assertNotNull( service.readAccount( "lucy" ) );
+    }
+
+    @Test
+    public void testIdFilterIsCheckedAgainstTheFile()
+        throws Exception
+    {
+        File file = new File( "target/test-classes/persist-data-unwatched.xml" );
+        file.delete();
+
+        AccountPersistServiceImpl unwatched = new AccountPersistServiceImpl();
+        unwatched.setFile( file.getPath() );
+        unwatched.createAccount( service.readAccount( "juven" ) );
+
+        assertNull( unwatched.readAccount( "lucy" ) );
+        long saved = unwatched.getSavedLookups();
+
+        Account lucy = service.readAccount( "juven" );
+        lucy.setId( "lucy" );
+        lucy.setEmail( "lucy@changeme.com" );
+        new AccountXmlFile( file.getPath() ).writeAccounts( Arrays.asList( service.readAccount( "juven" ), lucy ) );
+
+        assertNotNull( unwatched.readAccount( "lucy" ), "a file changed by someone else is read" );
+        assertEquals( "lucy", unwatched.findAccountByEmail( "lucy@changeme.com" ).getId() );
+
+        assertNull( unwatched.readAccount( "nobody" ) );
+        assertEquals( saved + 1, unwatched.getSavedLookups(), "the rebuilt filter is trusted again" );
+    }
+
+    @Test
+    public void testScanAndListAccounts()
+        throws Exception
+    {
+        for ( String id : Arrays.asList( "tom", "mike", "alice" ) )
+        {
+            Account account = service.readAccount( "juven" );
+            account.setId( id );
+            account.setEmail( id + "@changeme.com" );
+            service.createAccount( account );
+        }
+
+        try ( Stream<Account> accounts = service.scanAccounts() )
+        {
+            assertEquals( Arrays.asList( "alice", "juven", "mike", "tom" ),
+                          accounts.map( Account::getId ).sorted().collect( Collectors.toList() ) );
+        }
+
+        List<Account> page = service.listAccounts( null, 3 );
+        assertEquals( Arrays.asList( "alice", "juven", "mike" ),
+                      page.stream().map( Account::getId ).collect( Collectors.toList() ) );
+        assertEquals( "tom", service.listAccounts( "mike", 3 ).get( 0 ).getId() );
+        assertTrue( service.listAccounts( "tom", 3 ).isEmpty() );
+    }
+
+    @Test
+    public void testBatchOperations()
+        throws Exception
+    {
+        Account mike = new Account();
+        mike.setId( "mike" );
+        mike.setName( "Mike" );
+        mike.setEmail( "mike@changeme.com" );
+        mike.setPassword( "this_should_be_encrypted" );
+        mike.setActivated( false );
+
+        Account tom = new Account( mike );
+        tom.setId( "tom" );
+        tom.setName( "Tom" );
+        tom.setEmail( "tom@changeme.com" );
+
+        assertEquals( 2, service.createAccounts( Arrays.asList( mike, tom ) ).size() );
+
+        List<Account> accounts = service.readAccounts( Arrays.asList( "tom", "nonexistent", "mike" ) );
+        assertEquals( "Tom", accounts.get( 0 ).getName() );
+        assertNull( accounts.get( 1 ) );
+        assertEquals( "Mike", accounts.get( 2 ).getName() );
+
+        mike.setActivated( true );
+        Account ghost = new Account( mike );
+        ghost.setId( "nonexistent" );
+
+        List<Account> updated = service.updateAccounts( Arrays.asList( mike, ghost ) );
+        assertNotNull( updated.get( 0 ) );
+        assertNull( updated.get( 1 ) );
+        assertTrue( service.readAccount( "mike" ).isActivated() );
+
+        assertEquals( Arrays.asList( true, false, true ),
+                      service.deleteAccounts( Arrays.asList( "tom", "nonexistent", "juven" ) ) );
+        assertNull( service.readAccount( "tom" ) );
+        assertNull( service.readAccount( "juven" ) );
+        assertNotNull( service.readAccount( "mike" ) );
+    }
+
+    @Test
+    public void testTransaction()
+        throws Exception
+    {
+        Account mike = new Account();
+        mike.setId( "mike" );
+        mike.setName( "Mike" );
+        mike.setEmail( "mike@changeme.com" );
+        mike.setPassword( "this_should_be_encrypted" );
+
+        try ( AccountTransaction transaction = service.beginTransaction() )
+        {
+            transaction.createAccount( mike );
+            Account juven = transaction.readAccount( "juven" );
+            juven.setName( "Juven" );
+            transaction.updateAccount( juven );
+
+            assertEquals( "Mike", transaction.readAccount( "mike" ).getName() );
+            assertNull( service.readAccount( "mike" ), "nothing lands before commit" );
+
+            transaction.commit();
+            assertThrows( IllegalStateException.class, () -> transaction.deleteAccount( "mike" ) );
+        }
+
+        assertEquals( "Mike", service.readAccount( "mike" ).getName() );
+        assertEquals( "Juven", service.readAccount( "juven" ).getName() );
+        assertEquals( 2, service.readAccount( "juven" ).getVersion() );
+
+        Account ghost = new Account( mike );
+        ghost.setId( "ghost" );
+
+        AccountTransaction failing = service.beginTransaction();
+        failing.deleteAccount( "juven" );
+        failing.updateAccount( ghost );
+        assertThrows( AccountPersistException.class, failing::commit );
+        assertNotNull( service.readAccount( "juven" ), "a failed commit applies nothing" );
+
+        try ( AccountTransaction transaction = service.beginTransaction() )
+        {
+            transaction.deleteAccount( "mike" );
+        }
+        assertNotNull( service.readAccount( "mike" ), "closing without commit rolls back" );
+    }
 }
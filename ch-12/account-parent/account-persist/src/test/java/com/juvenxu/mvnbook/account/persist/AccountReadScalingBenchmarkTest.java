@@ -0,0 +1,113 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that readers of the services meant to read in parallel do not serialize each other: with several cores,
+ * reading with {@link #THREADS} threads must be at least half as many times faster as there are cores to run them.
+ * On a single core it must at least not collapse under contention. Runs with <code>-Pbenchmark</code> only.
+ */
+@Tag( "benchmark" )
+public class AccountReadScalingBenchmarkTest
+{
+    private static final int THREADS = Math.max( 4, Runtime.getRuntime().availableProcessors() );
+
+    @TempDir
+    File dir;
+
+    private void assertReadsScale( AccountPersistService service, int readsPerThread )
+        throws Exception
+    {
+        for ( int i = 0; i < 100; i++ )
+        {
+            service.createAccount( createAccount( "reader" + i ) );
+        }
+
+        // warms up, then measures
+        readThroughput( service, THREADS, readsPerThread );
+
+        double single = readThroughput( service, 1, readsPerThread );
+        double parallel = readThroughput( service, THREADS, readsPerThread );
+        double minimumSpeedup = Math.min( THREADS, Runtime.getRuntime().availableProcessors() ) / 2.0;
+
+        assertTrue( parallel >= single * minimumSpeedup, String.format(
+            "%.0f reads/s with %d threads against %.0f with 1, expected a speedup of at least %.1f", parallel,
+            THREADS, single, minimumSpeedup ) );
+    }
+
+    private double readThroughput( AccountPersistService service, int threads, int readsPerThread )
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        long start = System.nanoTime();
+
+        for ( int t = 0; t < threads; t++ )
+        {
+            futures.add( executor.submit( (Callable<Void>) () -> {
+                for ( int i = 0; i < readsPerThread; i++ )
+                {
+                    assertNotNull( service.readAccount( "reader" + ( i % 100 ) ) );
+                }
+                return null;
+            } ) );
+        }
+
+        for ( Future<?> future : futures )
+        {
+            future.get();
+        }
+
+        executor.shutdown();
+
+        return (double) threads * readsPerThread * 1000000000L / ( System.nanoTime() - start );
+    }
+
+    @Test
+    public void testXmlService()
+        throws Exception
+    {
+        AccountPersistServiceImpl service = new AccountPersistServiceImpl();
+        service.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        service.setStreamingRead( true );
+
+        // every read parses the file up to the account
+        assertReadsScale( service, 2000 );
+    }
+
+    @Test
+    public void testSnapshotService()
+        throws Exception
+    {
+        SnapshotAccountPersistServiceImpl service = new SnapshotAccountPersistServiceImpl();
+        service.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        service.afterPropertiesSet();
+
+        assertReadsScale( service, 20000 );
+    }
+
+    @Test
+    public void testMvccService()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = new MvccAccountPersistServiceImpl();
+        service.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        service.afterPropertiesSet();
+
+        assertReadsScale( service, 20000 );
+    }
+}
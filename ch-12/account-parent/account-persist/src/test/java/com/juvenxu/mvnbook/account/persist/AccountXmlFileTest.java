@@ -0,0 +1,79 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AccountXmlFileTest
+{
+    @TempDir
+    File dir;
+
+    @Test
+    public void testFindAccount()
+        throws Exception
+    {
+        AccountXmlFile xmlFile = new AccountXmlFile( new File( dir, "persist-data.xml" ).getPath() );
+        xmlFile.writeAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "mike" ) ) );
+
+        Account account = xmlFile.findAccount( "mike" );
+
+        assertEquals( "mike", account.getId() );
+        assertEquals( "Name of mike", account.getName() );
+        assertEquals( "mike@changeme.com", account.getEmail() );
+        assertEquals( "this_should_be_encrypted", account.getPassword() );
+        assertTrue( account.isActivated() );
+        assertNull( xmlFile.findAccount( "nonexistent" ) );
+    }
+
+    @Test
+    public void testFindAccountInMissingFile()
+        throws Exception
+    {
+        File file = new File( dir, "persist-data.xml" );
+
+        assertNull( new AccountXmlFile( file.getPath() ).findAccount( "juven" ) );
+        assertFalse( file.exists() );
+    }
+
+    @Test
+    public void testFindAccountStopsAtMatch()
+        throws Exception
+    {
+        File file = new File( dir, "persist-data.xml" );
+
+        try ( Writer out = new OutputStreamWriter( new FileOutputStream( file ), "utf-8" ) )
+        {
+            out.write( "<account-persist><accounts>"
+                + "<account><id>mike</id><name>Mike</name><activated>false</activated></account>"
+                + "<account><id>juven</id><name>Juven Xu</name><activated>true</activated></account>"
+                + "<account><id>broken" );
+        }
+
+        AccountXmlFile xmlFile = new AccountXmlFile( file.getPath() );
+
+        assertEquals( "Juven Xu", xmlFile.findAccount( "juven" ).getName() );
+        assertThrows( AccountPersistException.class, () -> xmlFile.findAccount( "nonexistent" ) );
+    }
+
+    @Test
+    public void testWriteLeavesNoTemporaryFiles()
+        throws Exception
+    {
+        AccountXmlFile xmlFile = new AccountXmlFile( new File( dir, "persist-data.xml" ).getPath() );
+
+        xmlFile.writeAccounts( Arrays.asList( createAccount( "juven" ) ) );
+        xmlFile.writeAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "mike" ) ) );
+
+        assertArrayEquals( new String[] { "persist-data.xml" }, dir.list() );
+        assertEquals( 2, xmlFile.readAccounts().size() );
+    }
+}
@@ -0,0 +1,194 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AsyncAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private AsyncAccountPersistServiceImpl createService( AccountPersistService delegate, int threads,
+                                                          int queueCapacity )
+        throws Exception
+    {
+        AsyncAccountPersistServiceImpl service = new AsyncAccountPersistServiceImpl();
+        service.setAccountPersistService( delegate );
+        service.setThreads( threads );
+        service.setQueueCapacity( queueCapacity );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    private LogAccountPersistServiceImpl createDelegate()
+        throws Exception
+    {
+        LogAccountPersistServiceImpl delegate = new LogAccountPersistServiceImpl();
+        delegate.setDirectory( dir.getPath() );
+        delegate.afterPropertiesSet();
+        return delegate;
+    }
+
+    @Test
+    public void testOperationsCompose()
+        throws Exception
+    {
+        AsyncAccountPersistServiceImpl service = createService( createDelegate(), 2, 10 );
+
+        Account activated = service.createAccount( createAccount( "juven", false ) )
+            .thenCompose( created -> service.readAccount( created.getId() ) )
+            .thenCompose( account -> {
+                account.setActivated( true );
+                return service.updateAccount( account );
+            } ).get();
+
+        assertEquals( 2, activated.getVersion() );
+        assertTrue( service.findAccountByEmail( "Juven@changeme.com" ).get().isActivated() );
+
+        service.deleteAccount( "juven" ).get();
+        assertNull( service.readAccount( "juven" ).get() );
+        service.destroy();
+    }
+
+    @Test
+    public void testCallbacksRunOffTheIoThreads()
+        throws Exception
+    {
+        AsyncAccountPersistServiceImpl service = createService( createDelegate(), 1, 10 );
+
+        String thread = service.createAccount( createAccount( "juven", false ) )
+            .thenApply( created -> Thread.currentThread().getName() ).get();
+
+        assertTrue( thread.startsWith( "account-persist-callback-" ), thread );
+        service.destroy();
+    }
+
+    @Test
+    public void testUncheckedFailuresFailTheFuture()
+        throws Exception
+    {
+        LogAccountPersistServiceImpl delegate = new LogAccountPersistServiceImpl()
+        {
+            public Account readAccount( String id )
+            {
+                throw new AssertionError( "broken delegate" );
+            }
+        };
+        delegate.setDirectory( dir.getPath() );
+        delegate.afterPropertiesSet();
+
+        AsyncAccountPersistServiceImpl service = createService( delegate, 1, 10 );
+
+        ExecutionException e = assertThrows( ExecutionException.class, () -> service.readAccount( "juven" ).get() );
+        assertTrue( e.getCause() instanceof AssertionError );
+        assertNull( service.findAccountByEmail( "juven@changeme.com" ).get(), "the I/O thread survives" );
+        service.destroy();
+    }
+
+    @Test
+    public void testFullQueueRefusesOperations()
+        throws Exception
+    {
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        LogAccountPersistServiceImpl delegate = new LogAccountPersistServiceImpl()
+        {
+            public Account readAccount( String id )
+                throws AccountPersistException
+            {
+                started.countDown();
+
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.readAccount( id );
+            }
+        };
+        delegate.setDirectory( dir.getPath() );
+        delegate.afterPropertiesSet();
+
+        AsyncAccountPersistServiceImpl service = createService( delegate, 1, 2 );
+
+        List<CompletableFuture<Account>> reads = new ArrayList<CompletableFuture<Account>>();
+        reads.add( service.readAccount( "juven" ) );
+        started.await();
+        reads.add( service.readAccount( "juven" ) );
+        reads.add( service.readAccount( "juven" ) );
+        assertEquals( 2, service.getQueueDepth() );
+
+        CompletableFuture<Account> refused = service.readAccount( "juven" );
+        assertTrue( refused.isCompletedExceptionally() );
+        ExecutionException e = assertThrows( ExecutionException.class, refused::get );
+        assertTrue( e.getCause() instanceof AccountPersistException );
+
+        release.countDown();
+        for ( CompletableFuture<Account> read : reads )
+        {
+            assertNull( read.get() );
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testDestroyFailsOperationsStillQueued()
+        throws Exception
+    {
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        LogAccountPersistServiceImpl delegate = new LogAccountPersistServiceImpl()
+        {
+            public Account readAccount( String id )
+                throws AccountPersistException
+            {
+                started.countDown();
+
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.readAccount( id );
+            }
+        };
+        delegate.setDirectory( dir.getPath() );
+        delegate.afterPropertiesSet();
+
+        AsyncAccountPersistServiceImpl service = createService( delegate, 1, 10 );
+        service.setShutdownTimeout( 100 );
+
+        CompletableFuture<Account> running = service.readAccount( "juven" );
+        started.await();
+        CompletableFuture<Account> queued = service.createAccount( createAccount( "juven", false ) );
+
+        service.destroy();
+
+        ExecutionException e = assertThrows( ExecutionException.class, queued::get );
+        assertTrue( e.getCause() instanceof AccountPersistException );
+        assertNull( running.get(), "the running operation is interrupted, not abandoned" );
+
+        release.countDown();
+        assertNull( delegate.readAccount( "juven" ), "the queued create never ran" );
+    }
+}
@@ -0,0 +1,309 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BTreeAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private BTreeAccountPersistServiceImpl createService()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = new BTreeAccountPersistServiceImpl();
+        service.setFile( new File( dir, "accounts.btree" ).getPath() );
+        service.setPageSize( 512 );
+        service.setCachePages( 8 );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    private List<String> shuffledIds( int count )
+    {
+        List<String> ids = new ArrayList<String>();
+        for ( int i = 0; i < count; i++ )
+        {
+            ids.add( "account" + i );
+        }
+        Collections.shuffle( ids, new Random( 42 ) );
+        return ids;
+    }
+
+    @Test
+    public void testSplitsKeepEveryAccountReachable()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = createService();
+
+        for ( String id : shuffledIds( 2000 ) )
+        {
+            service.createAccount( createAccount( id ) );
+        }
+
+        for ( int i = 0; i < 2000; i += 3 )
+        {
+            service.deleteAccount( "account" + i );
+        }
+
+        Account account = service.readAccount( "account1" );
+        account.setName( "Renamed" );
+        assertNotNull( service.updateAccount( account ) );
+        assertFalse( service.compareAndUpdate( 1, account ) );
+        assertTrue( service.compareAndUpdate( 2, account ) );
+        assertNull( service.updateAccount( createAccount( "nonexistent" ) ) );
+        service.destroy();
+
+        service = createService();
+        for ( int i = 0; i < 2000; i++ )
+        {
+            assertEquals( i % 3 != 0, service.readAccount( "account" + i ) != null, "account" + i );
+        }
+        assertEquals( "Renamed", service.readAccount( "account1" ).getName() );
+        assertEquals( 3, service.readAccount( "account1" ).getVersion() );
+        assertEquals( "account1999", service.findAccountByEmail( "Account1999@changeme.com" ).getId() );
+        assertNull( service.findAccountByEmail( "account3@changeme.com" ) );
+        service.destroy();
+    }
+
+    @Test
+    public void testScanSplitsAndPagesInIdOrder()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = createService();
+        List<String> expected = new ArrayList<String>();
+
+        for ( String id : shuffledIds( 1000 ) )
+        {
+            service.createAccount( createAccount( id ) );
+        }
+        for ( int i = 0; i < 1000; i++ )
+        {
+            if ( i >= 200 && i < 400 )
+            {
+                // leaves emptied by deletes are skipped
+                service.deleteAccount( "account" + i );
+            }
+            else
+            {
+                expected.add( "account" + i );
+            }
+        }
+        Collections.sort( expected );
+
+        try ( Stream<Account> accounts = service.scanAccounts() )
+        {
+            assertEquals( expected, accounts.parallel().map( Account::getId ).collect( Collectors.toList() ) );
+        }
+
+        List<String> paged = new ArrayList<String>();
+        List<Account> page = service.listAccounts( null, 33 );
+        while ( !page.isEmpty() )
+        {
+            page.forEach( account -> paged.add( account.getId() ) );
+            page = service.listAccounts( paged.get( paged.size() - 1 ), 33 );
+        }
+        assertEquals( expected, paged );
+        assertEquals( "account20", service.listAccounts( "account2", 1 ).get( 0 ).getId() );
+        service.destroy();
+    }
+
+    @Test
+    public void testEmptiedPagesAreReused()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = createService();
+        List<String> ids = shuffledIds( 1000 );
+
+        for ( String id : ids )
+        {
+            service.createAccount( createAccount( id ) );
+        }
+        int pages = service.getPageCount();
+
+        for ( String id : ids )
+        {
+            if ( !id.equals( "account500" ) )
+            {
+                service.deleteAccount( id );
+            }
+        }
+
+        try ( Stream<Account> accounts = service.scanAccounts() )
+        {
+            assertEquals( Collections.singletonList( "account500" ),
+                          accounts.map( Account::getId ).collect( Collectors.toList() ) );
+        }
+        service.deleteAccount( "account500" );
+        service.destroy();
+
+        // the free list survives a restart
+        service = createService();
+        for ( String id : ids )
+        {
+            service.createAccount( createAccount( id ) );
+        }
+
+        assertEquals( pages, service.getPageCount(), "pages of emptied leaves are taken before the file grows" );
+        for ( String id : ids )
+        {
+            assertNotNull( service.readAccount( id ), id );
+        }
+        try ( Stream<Account> accounts = service.scanAccounts() )
+        {
+            assertEquals( 1000, accounts.count() );
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testLookupReadsOnlyThePagesOnItsPath()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = createService();
+
+        for ( String id : shuffledIds( 5000 ) )
+        {
+            service.createAccount( createAccount( id ) );
+        }
+
+        service.clearCache();
+        long before = service.getPageReads();
+
+        assertNotNull( service.readAccount( "account4242" ) );
+        long reads = service.getPageReads() - before;
+        assertTrue( reads > 0 && reads <= 4, "one page per level, was " + reads );
+
+        before = service.getPageReads();
+        assertNotNull( service.readAccount( "account4242" ) );
+        assertEquals( before, service.getPageReads(), "the path is cached" );
+        service.destroy();
+    }
+
+    @Test
+    public void testTornJournalIsIgnored()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = createService();
+        service.createAccount( createAccount( "juven" ) );
+        service.destroy();
+
+        try ( FileOutputStream out = new FileOutputStream( new File( dir, "accounts.btree.journal" ) ) )
+        {
+            out.write( new byte[] { 0, 0, 0, 1, 0, 0, 0, 1, 42 } );
+        }
+
+        service = createService();
+        assertNotNull( service.readAccount( "juven" ) );
+        assertFalse( new File( dir, "accounts.btree.journal" ).exists() );
+        service.destroy();
+    }
+
+    @Test
+    public void testOversizedAccountIsRejected()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = createService();
+
+        Account account = createAccount( "juven" );
+        account.setName( new String( new char[200] ).replace( '\0', 'x' ) );
+
+        assertThrows( AccountPersistException.class, () -> service.createAccount( account ) );
+        assertNull( service.readAccount( "juven" ) );
+        service.destroy();
+    }
+
+    @Test
+    public void testBatchesApplyAllOrNothing()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = createService();
+        List<Account> accounts = new ArrayList<Account>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            accounts.add( createAccount( "account" + i ) );
+        }
+        service.createAccounts( accounts );
+
+        Account taken = createAccount( "account1" );
+        taken.setEmail( "ACCOUNT2@changeme.com" );
+        assertThrows( DuplicateEmailException.class,
+                      () -> service.updateAccounts( Arrays.asList( createAccount( "account0" ), taken ) ) );
+        assertEquals( 1, service.readAccount( "account0" ).getVersion(), "a taken email updates none" );
+
+        Account renamed = createAccount( "account0" );
+        renamed.setName( "Renamed" );
+        List<Account> updated = service.updateAccounts( Arrays.asList( renamed, createAccount( "ghost" ) ) );
+        assertSame( renamed, updated.get( 0 ) );
+        assertNull( updated.get( 1 ) );
+        assertEquals( 2, renamed.getVersion() );
+
+        List<Boolean> deleted = service.deleteAccounts( Arrays.asList( "account1", "ghost", "account1", "account2" ) );
+        assertEquals( Arrays.asList( true, false, false, true ), deleted );
+        assertNull( service.findAccountByEmail( "account2@changeme.com" ) );
+        service.destroy();
+
+        BTreeAccountPersistServiceImpl reopened = createService();
+        assertEquals( "Renamed", reopened.readAccount( "account0" ).getName() );
+        assertNull( reopened.readAccount( "account1" ) );
+        assertNull( reopened.readAccount( "account2" ) );
+        assertNotNull( reopened.readAccount( "account49" ) );
+        reopened.destroy();
+    }
+
+    @Test
+    public void testTransactionAppliesAllOrNothing()
+        throws Exception
+    {
+        BTreeAccountPersistServiceImpl service = createService();
+        service.createAccount( createAccount( "juven" ) );
+
+        // enough accounts to split pages, so the commit spans several of them
+        List<String> ids = shuffledIds( 50 );
+        AccountTransaction transaction = service.beginTransaction();
+        for ( String id : ids )
+        {
+            transaction.createAccount( createAccount( id ) );
+        }
+        transaction.updateAccount( createAccount( "ghost" ) );
+        assertThrows( AccountPersistException.class, transaction::commit );
+        assertNull( service.readAccount( ids.get( 0 ) ) );
+        assertNotNull( service.readAccount( "juven" ) );
+
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+
+        transaction = service.beginTransaction();
+        for ( String id : ids )
+        {
+            transaction.createAccount( createAccount( id ) );
+        }
+        transaction.updateAccount( juven );
+        transaction.deleteAccount( ids.get( 0 ) );
+        transaction.commit();
+        assertEquals( 2, juven.getVersion() );
+        service.destroy();
+
+        service = createService();
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertNull( service.readAccount( ids.get( 0 ) ) );
+        for ( String id : ids.subList( 1, ids.size() ) )
+        {
+            assertEquals( id, service.findAccountByEmail( id + "@changeme.com" ).getId() );
+        }
+        service.destroy();
+    }
+}
@@ -0,0 +1,132 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CachingAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private final AtomicInteger storageReads = new AtomicInteger();
+
+    private CachingAccountPersistServiceImpl createService( int maximumSize )
+        throws Exception
+    {
+        return createService( maximumSize, 0 );
+    }
+
+    private CachingAccountPersistServiceImpl createService( int maximumSize, long maximumOffHeapBytes )
+        throws Exception
+    {
+        LogAccountPersistServiceImpl delegate = new LogAccountPersistServiceImpl()
+        {
+            public Account readAccount( String id )
+                throws AccountPersistException
+            {
+                storageReads.incrementAndGet();
+                return super.readAccount( id );
+            }
+        };
+        delegate.setDirectory( dir.getPath() );
+        delegate.afterPropertiesSet();
+
+        CachingAccountPersistServiceImpl service = new CachingAccountPersistServiceImpl();
+        service.setAccountPersistService( delegate );
+        service.setMaximumSize( maximumSize );
+        service.setMaximumOffHeapBytes( maximumOffHeapBytes );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    @Test
+    public void testRepeatedReadsAreServedFromTheCache()
+        throws Exception
+    {
+        checkRepeatedReads( createService( 100 ) );
+    }
+
+    @Test
+    public void testRepeatedReadsAreServedOffHeap()
+        throws Exception
+    {
+        checkRepeatedReads( createService( 0, 1024 * 1024 ) );
+    }
+
+    private void checkRepeatedReads( CachingAccountPersistServiceImpl service )
+        throws Exception
+    {
+        service.createAccount( createAccount( "juven" ) );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertEquals( "Name of juven", service.readAccount( "juven" ).getName() );
+        }
+        assertEquals( 1, storageReads.get() );
+        assertEquals( 9, service.getHits() );
+        assertEquals( 1, service.getMisses() );
+
+        service.readAccount( "juven" ).setName( "changed by a caller" );
+        assertEquals( "Name of juven", service.readAccount( "juven" ).getName(), "hits hand out copies" );
+
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+        service.updateAccount( juven );
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName(), "writes invalidate" );
+
+        service.deleteAccount( "juven" );
+        assertNull( service.readAccount( "juven" ) );
+        assertEquals( 0, service.size() );
+
+        service.createAccounts( Arrays.asList( createAccount( "mike" ), createAccount( "lucy" ) ) );
+        List<Account> accounts = service.readAccounts( Arrays.asList( "mike", "nonexistent", "lucy" ) );
+        assertEquals( "mike", accounts.get( 0 ).getId() );
+        assertNull( accounts.get( 1 ) );
+        assertEquals( "lucy", accounts.get( 2 ).getId() );
+        assertEquals( "lucy", service.readAccounts( Arrays.asList( "lucy" ) ).get( 0 ).getId() );
+    }
+
+    @Test
+    public void testOneOffReadsDoNotFlushHotAccounts()
+        throws Exception
+    {
+        CachingAccountPersistServiceImpl service = createService( 100 );
+
+        for ( int i = 0; i < 2000; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+
+        for ( int round = 0; round < 5; round++ )
+        {
+            for ( int i = 0; i < 50; i++ )
+            {
+                service.readAccount( "account" + i );
+            }
+        }
+
+        // a scan reading each of the other accounts once
+        for ( int i = 50; i < 2000; i++ )
+        {
+            service.readAccount( "account" + i );
+        }
+
+        storageReads.set( 0 );
+        for ( int i = 0; i < 50; i++ )
+        {
+            service.readAccount( "account" + i );
+        }
+
+        assertTrue( storageReads.get() <= 5, storageReads.get() + " hot accounts were flushed" );
+        assertTrue( service.size() <= 100 );
+        assertTrue( service.getEvictions() >= 1900 );
+    }
+}
@@ -0,0 +1,69 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class CompactAccountTest
+{
+    private Account createAccount( String id, String email )
+    {
+        Account account = TestAccounts.createAccount( id );
+        account.setEmail( email );
+        account.setVersion( 300 );
+        return account;
+    }
+
+    private void assertSameAccount( Account expected, Account actual )
+    {
+        assertEquals( expected.getId(), actual.getId() );
+        assertEquals( expected.getName(), actual.getName() );
+        assertEquals( expected.getEmail(), actual.getEmail() );
+        assertEquals( expected.getPassword(), actual.getPassword() );
+        assertEquals( expected.isActivated(), actual.isActivated() );
+        assertEquals( expected.getVersion(), actual.getVersion() );
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        CompactAccount.Domains domains = new CompactAccount.Domains();
+
+        Account juven = createAccount( "juven", "Juven@ChangeMe.com" );
+        Account wide = createAccount( "\u8bb8\u6653\u658c", "xu@\u4f8b\u5b50.\u4e2d\u56fd" );
+        wide.setName( "\u8bb8 Juven" );
+        wide.setActivated( false );
+        Account bare = new Account();
+        bare.setId( "bare" );
+        bare.setEmail( "no-domain" );
+
+        for ( Account account : new Account[] { juven, wide, bare } )
+        {
+            CompactAccount compact = CompactAccount.of( account, domains );
+
+            assertEquals( account.getVersion(), compact.getVersion() );
+            assertSameAccount( account, compact.toAccount( domains ) );
+            assertNotSame( compact.toAccount( domains ), compact.toAccount( domains ) );
+        }
+    }
+
+    @Test
+    public void testEmailDomainsAreSharedAndPacked()
+    {
+        CompactAccount.Domains domains = new CompactAccount.Domains();
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            Account account = createAccount( "account" + i, "account" + i + "@changeme.com" );
+            CompactAccount compact = CompactAccount.of( account, domains );
+
+            assertSameAccount( account, compact.toAccount( domains ) );
+            // one byte per character, the domain only as a code
+            int characters = account.getId().length() + account.getName().length() + account.getEmail().length()
+                + account.getPassword().length();
+            assertTrue( compact.size() <= characters - "changeme.com".length() + 8, compact.size() + " bytes" );
+        }
+
+        assertEquals( 1, domains.size() );
+    }
+}
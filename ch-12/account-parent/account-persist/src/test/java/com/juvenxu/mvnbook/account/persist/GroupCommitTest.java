@@ -0,0 +1,173 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+public class GroupCommitTest
+{
+    private static final int THREADS = 8;
+
+    private static final int ROUNDS = 20;
+
+    private final Object lock = new Object();
+
+    private int state;
+
+    private List<Future<?>> submitConcurrently( GroupCommit<Integer> groupCommit, ExecutorService executor )
+    {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for ( int t = 0; t < THREADS; t++ )
+        {
+            futures.add( executor.submit( (Callable<Void>) () -> {
+                for ( int i = 0; i < ROUNDS; i++ )
+                {
+                    GroupCommit.Batch batch;
+
+                    synchronized ( lock )
+                    {
+                        batch = groupCommit.submit( ++state );
+                    }
+
+                    groupCommit.await( batch );
+                }
+                return null;
+            } ) );
+        }
+
+        return futures;
+    }
+
+    @Test
+    public void testConcurrentWritersShareCommits()
+        throws Exception
+    {
+        AtomicInteger writes = new AtomicInteger();
+        AtomicInteger lastWritten = new AtomicInteger();
+
+        GroupCommit<Integer> groupCommit = new GroupCommit<Integer>( value -> {
+            writes.incrementAndGet();
+            lastWritten.set( value );
+            try
+            {
+                Thread.sleep( 2 );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }, 1 );
+
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+
+        for ( Future<?> future : submitConcurrently( groupCommit, executor ) )
+        {
+            future.get();
+        }
+
+        executor.shutdown();
+
+        assertEquals( THREADS * ROUNDS, lastWritten.get() );
+        assertTrue( writes.get() < THREADS * ROUNDS, writes.get() + " writes for " + THREADS * ROUNDS + " commits" );
+        assertNull( groupCommit.pending() );
+    }
+
+    @Test
+    public void testFailedWriteReachesEveryWaiter()
+        throws Exception
+    {
+        GroupCommit<Integer> groupCommit = new GroupCommit<Integer>( value -> {
+            throw new AccountPersistException( "disk full" );
+        }, 1 );
+
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+
+        for ( Future<?> future : submitConcurrently( groupCommit, executor ) )
+        {
+            ExecutionException e = assertThrows( ExecutionException.class, () -> future.get() );
+            assertTrue( e.getCause() instanceof AccountPersistException );
+        }
+
+        executor.shutdown();
+
+        assertNull( groupCommit.pending() );
+    }
+
+    @Test
+    public void testInterruptedWaiterStillGetsItsStateWritten()
+        throws Exception
+    {
+        CountDownLatch writing = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        List<Integer> written = Collections.synchronizedList( new ArrayList<Integer>() );
+
+        GroupCommit<Integer> groupCommit = new GroupCommit<Integer>( value -> {
+            writing.countDown();
+            try
+            {
+                release.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            written.add( value );
+        }, 0 );
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        Future<?> leader = executor.submit( (Callable<Void>) () -> {
+            groupCommit.await( groupCommit.submit( 1 ) );
+            return null;
+        } );
+        writing.await();
+
+        GroupCommit.Batch batch = groupCommit.submit( 2 );
+        AtomicBoolean keptInterrupt = new AtomicBoolean();
+        AtomicReference<AccountPersistException> failure = new AtomicReference<AccountPersistException>();
+
+        Thread waiter = new Thread( () -> {
+            try
+            {
+                groupCommit.await( batch );
+                keptInterrupt.set( Thread.currentThread().isInterrupted() );
+            }
+            catch ( AccountPersistException e )
+            {
+                failure.set( e );
+            }
+        } );
+        waiter.start();
+
+        while ( waiter.getState() != Thread.State.WAITING )
+        {
+            Thread.sleep( 1 );
+        }
+        waiter.interrupt();
+        release.countDown();
+
+        leader.get();
+        waiter.join();
+        executor.shutdown();
+
+        assertNull( failure.get(), "an interrupted waiter does not give up its batch" );
+        assertTrue( keptInterrupt.get(), "the interrupt is kept for the caller" );
+        assertEquals( Arrays.asList( 1, 2 ), written );
+        assertNull( groupCommit.pending() );
+    }
+}
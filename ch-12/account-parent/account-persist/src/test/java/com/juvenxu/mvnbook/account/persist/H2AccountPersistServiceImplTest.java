@@ -0,0 +1,120 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class H2AccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private H2AccountPersistServiceImpl createService()
+        throws Exception
+    {
+        H2AccountPersistServiceImpl service = new H2AccountPersistServiceImpl();
+        service.setFile( new File( dir, "accounts" ).getPath() );
+        service.setPoolSize( 2 );
+        service.setConnectionTimeout( 200 );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    @Test
+    public void testAccountsSurviveRestart()
+        throws Exception
+    {
+        H2AccountPersistServiceImpl service = createService();
+        service.createAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "mike" ) ) );
+
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+        assertNotNull( service.updateAccount( juven ) );
+        assertEquals( 2, juven.getVersion() );
+        assertTrue( service.compareAndUpdate( 2, juven ) );
+        assertFalse( service.compareAndUpdate( 2, juven ) );
+        service.deleteAccount( "mike" );
+        service.destroy();
+
+        service = createService();
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertEquals( 3, service.readAccount( "juven" ).getVersion() );
+        assertNull( service.readAccount( "mike" ) );
+        assertEquals( "juven", service.findAccountByEmail( " JUVEN@changeme.com" ).getId() );
+        service.destroy();
+    }
+
+    @Test
+    public void testPagesFollowTheIdIndex()
+        throws Exception
+    {
+        H2AccountPersistServiceImpl service = createService();
+
+        for ( int i = 0; i < 25; i++ )
+        {
+            service.createAccount( createAccount( "account" + ( 100 + i ) ) );
+        }
+
+        assertEquals( Arrays.asList( "account110", "account111" ),
+                      service.listAccounts( "account109", 2 ).stream().map( Account::getId )
+                          .collect( Collectors.toList() ) );
+
+        try ( Stream<Account> accounts = service.scanAccounts() )
+        {
+            List<String> ids = accounts.map( Account::getId ).collect( Collectors.toList() );
+
+            assertEquals( 25, ids.size() );
+            assertEquals( "account100", ids.get( 0 ) );
+            assertEquals( "account124", ids.get( 24 ) );
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testCreateRejectsAnExistingId()
+        throws Exception
+    {
+        H2AccountPersistServiceImpl service = createService();
+        service.createAccount( createAccount( "juven" ) );
+
+        Account again = createAccount( "juven" );
+        again.setName( "Someone Else" );
+        again.setEmail( "someone@changeme.com" );
+        AccountPersistException e = assertThrows( AccountPersistException.class, () -> service.createAccount( again ) );
+        assertFalse( e instanceof DuplicateEmailException );
+        assertNotEquals( "Someone Else", service.readAccount( "juven" ).getName() );
+        assertNull( service.findAccountByEmail( "someone@changeme.com" ) );
+
+        Account twin = createAccount( "twin" );
+        twin.setEmail( "JUVEN@changeme.com" );
+        assertThrows( DuplicateEmailException.class, () -> service.createAccount( twin ) );
+        service.destroy();
+    }
+
+    @Test
+    public void testFailedTransactionLeavesNoTrace()
+        throws Exception
+    {
+        H2AccountPersistServiceImpl service = createService();
+        service.createAccount( createAccount( "juven" ) );
+
+        AccountTransaction transaction = service.beginTransaction();
+        transaction.createAccount( createAccount( "mike" ) );
+        transaction.deleteAccount( "juven" );
+        transaction.updateAccount( createAccount( "ghost" ) );
+        assertThrows( AccountPersistException.class, transaction::commit );
+
+        assertNotNull( service.readAccount( "juven" ) );
+        assertNull( service.readAccount( "mike" ) );
+        assertTrue( service.getOpenConnections() <= 2, "the pool stays bounded" );
+        service.destroy();
+    }
+}
@@ -0,0 +1,152 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LogAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private LogAccountPersistServiceImpl createService( int snapshotThreshold )
+        throws Exception
+    {
+        LogAccountPersistServiceImpl service = new LogAccountPersistServiceImpl();
+        service.setDirectory( dir.getPath() );
+        service.setSnapshotThreshold( snapshotThreshold );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    @Test
+    public void testReplayOnStartup()
+        throws Exception
+    {
+        LogAccountPersistServiceImpl service = createService( 1000 );
+        service.createAccount( createAccount( "juven" ) );
+        service.createAccount( createAccount( "mike" ) );
+        service.deleteAccount( "mike" );
+
+        Account account = service.readAccount( "juven" );
+        account.setName( "Juven Xu 1" );
+        account.setActivated( false );
+        service.updateAccount( account );
+        assertNull( service.updateAccount( createAccount( "nonexistent" ) ) );
+        service.destroy();
+
+        service = createService( 1000 );
+        account = service.readAccount( "juven" );
+        assertEquals( "Juven Xu 1", account.getName() );
+        assertEquals( "juven@changeme.com", account.getEmail() );
+        assertFalse( account.isActivated() );
+        assertNull( service.readAccount( "mike" ) );
+        assertNull( service.findAccountByEmail( "mike@changeme.com" ) );
+        assertEquals( "juven", service.findAccountByEmail( "juven@changeme.com" ).getId() );
+        service.destroy();
+    }
+
+    @Test
+    public void testSnapshotTruncatesLog()
+        throws Exception
+    {
+        LogAccountPersistServiceImpl service = createService( 10 );
+
+        for ( int i = 0; i < 25; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        service.destroy();
+
+        File logFile = new File( dir, LogAccountPersistServiceImpl.LOG_FILE );
+        File snapshotFile = new File( dir, LogAccountPersistServiceImpl.SNAPSHOT_FILE );
+        assertTrue( snapshotFile.exists() );
+        assertTrue( logFile.length() < snapshotFile.length(), "log holds only the records since the last snapshot" );
+
+        service = createService( 10 );
+        for ( int i = 0; i < 25; i++ )
+        {
+            assertNotNull( service.readAccount( "account" + i ) );
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testTornTailIsDiscarded()
+        throws Exception
+    {
+        LogAccountPersistServiceImpl service = createService( 1000 );
+        service.createAccount( createAccount( "juven" ) );
+        service.destroy();
+
+        try ( FileOutputStream out = new FileOutputStream( new File( dir, LogAccountPersistServiceImpl.LOG_FILE ),
+                                                           true ) )
+        {
+            out.write( new byte[] { 0, 0, 0, 42, 1, 2 } );
+        }
+
+        service = createService( 1000 );
+        assertNotNull( service.readAccount( "juven" ) );
+        service.createAccount( createAccount( "mike" ) );
+        service.destroy();
+
+        service = createService( 1000 );
+        assertNotNull( service.readAccount( "juven" ) );
+        assertNotNull( service.readAccount( "mike" ) );
+        service.destroy();
+    }
+
+    @Test
+    public void testTransactionIsOneRecord()
+        throws Exception
+    {
+        LogAccountPersistServiceImpl service = createService( 1000 );
+        service.createAccount( createAccount( "juven" ) );
+        service.createAccount( createAccount( "gone" ) );
+
+        Account ghost = createAccount( "ghost" );
+        AccountTransaction transaction = service.beginTransaction();
+        transaction.createAccount( createAccount( "mike" ) );
+        transaction.updateAccount( ghost );
+        assertThrows( AccountPersistException.class, transaction::commit );
+        assertNull( service.readAccount( "mike" ) );
+
+        Account mike = createAccount( "mike" );
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+
+        transaction = service.beginTransaction();
+        transaction.createAccount( mike );
+        transaction.updateAccount( juven );
+        transaction.deleteAccount( "gone" );
+        transaction.commit();
+        assertEquals( 1, mike.getVersion() );
+        assertEquals( 2, juven.getVersion() );
+        service.destroy();
+
+        service = createService( 1000 );
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertEquals( "mike", service.findAccountByEmail( "mike@changeme.com" ).getId() );
+        assertNull( service.readAccount( "gone" ) );
+        service.destroy();
+
+        // a torn transaction is dropped as a whole
+        File log = new File( dir, LogAccountPersistServiceImpl.LOG_FILE );
+        try ( RandomAccessFile file = new RandomAccessFile( log, "rw" ) )
+        {
+            file.setLength( file.length() - 1 );
+        }
+
+        service = createService( 1000 );
+        assertEquals( "Name of juven", service.readAccount( "juven" ).getName() );
+        assertNull( service.readAccount( "mike" ) );
+        assertNotNull( service.readAccount( "gone" ) );
+        service.destroy();
+    }
+}
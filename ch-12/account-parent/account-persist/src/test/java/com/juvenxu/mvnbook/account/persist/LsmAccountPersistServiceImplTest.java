@@ -0,0 +1,291 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LsmAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private LsmAccountPersistServiceImpl createService( int memtableSize, int compactionThreshold )
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = new LsmAccountPersistServiceImpl();
+        service.setDirectory( dir.getPath() );
+        service.setMemtableSize( memtableSize );
+        service.setCompactionThreshold( compactionThreshold );
+        service.setIndexInterval( 4 );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    @Test
+    public void testReadsAcrossMemtableAndSegments()
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = createService( 10, 100 );
+
+        for ( int i = 0; i < 35; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        service.flush();
+        assertTrue( service.segmentCount() >= 3 );
+
+        Account account = service.readAccount( "account3" );
+        account.setName( "Renamed" );
+        assertNotNull( service.updateAccount( account ) );
+        service.deleteAccount( "account7" );
+        assertNull( service.updateAccount( createAccount( "nonexistent" ) ) );
+
+        assertEquals( "Renamed", service.readAccount( "account3" ).getName() );
+        assertEquals( 2, service.readAccount( "account3" ).getVersion() );
+        assertNull( service.readAccount( "account7" ) );
+        assertNull( service.readAccount( "nonexistent" ) );
+        assertEquals( "account20", service.findAccountByEmail( "ACCOUNT20@changeme.com" ).getId() );
+        assertNull( service.findAccountByEmail( "account7@changeme.com" ) );
+
+        for ( int i = 0; i < 35; i++ )
+        {
+            assertEquals( i != 7, service.readAccount( "account" + i ) != null, "account" + i );
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testCompactionDropsDeletedAccounts()
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = createService( 10, 100 );
+
+        for ( int i = 0; i < 30; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        for ( int i = 0; i < 30; i += 2 )
+        {
+            service.deleteAccount( "account" + i );
+        }
+        service.flush();
+
+        service.compact();
+        assertEquals( 1, service.segmentCount() );
+
+        File[] segments = dir.listFiles( ( d, name ) -> name.endsWith( ".seg" ) );
+        assertEquals( 1, segments.length );
+        AccountSegment segment = AccountSegment.open( segments[0] );
+        assertEquals( 15, segment.size(), "tombstones are gone after a full compaction" );
+        segment.close();
+
+        for ( int i = 0; i < 30; i++ )
+        {
+            assertEquals( i % 2 == 1, service.readAccount( "account" + i ) != null, "account" + i );
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testCompactionMergesOneTierAtATime()
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = createService( 10, 4 );
+
+        for ( int i = 0; i < 40; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        service.flush();
+        service.awaitCompaction();
+        assertEquals( 1, service.segmentCount(), "four flushed segments form a tier" );
+
+        String[] oldTier = dir.list( ( d, name ) -> name.endsWith( ".seg" ) );
+        assertEquals( 1, oldTier.length );
+
+        for ( int i = 40; i < 79; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        service.deleteAccount( "account0" );
+        service.flush();
+        service.awaitCompaction();
+
+        assertEquals( 2, service.segmentCount(), "the new segments are merged, the older tier is left alone" );
+        assertTrue( new File( dir, oldTier[0] ).exists() );
+
+        assertNull( service.readAccount( "account0" ), "the tombstone still hides the older tier" );
+        for ( int i = 1; i < 79; i++ )
+        {
+            assertNotNull( service.readAccount( "account" + i ), "account" + i );
+        }
+        service.destroy();
+    }
+
+    @Test
+    public void testScanMergesMemtableAndSegments()
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = createService( 10, 100 );
+        List<String> expected = new ArrayList<String>();
+
+        for ( int i = 0; i < 95; i++ )
+        {
+            service.createAccount( createAccount( String.format( "account%03d", i ) ) );
+        }
+        service.flush();
+        for ( int i = 0; i < 95; i++ )
+        {
+            if ( i % 5 == 0 )
+            {
+                service.deleteAccount( String.format( "account%03d", i ) );
+            }
+            else
+            {
+                expected.add( String.format( "account%03d", i ) );
+            }
+        }
+
+        try ( Stream<Account> accounts = service.scanAccounts() )
+        {
+            service.compact();
+            assertEquals( 1, service.segmentCount() );
+
+            assertEquals( expected, accounts.parallel().map( Account::getId ).collect( Collectors.toList() ),
+                          "a scan keeps reading the segments it started with" );
+        }
+
+        List<String> paged = new ArrayList<String>();
+        List<Account> page = service.listAccounts( null, 7 );
+        while ( !page.isEmpty() )
+        {
+            assertTrue( page.size() <= 7 );
+            page.forEach( account -> paged.add( account.getId() ) );
+            page = service.listAccounts( paged.get( paged.size() - 1 ), 7 );
+        }
+        assertEquals( expected, paged );
+        assertEquals( 1, dir.listFiles( ( d, name ) -> name.endsWith( ".seg" ) ).length );
+        service.destroy();
+    }
+
+    @Test
+    public void testRecoversFromManifestAndLogs()
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = createService( 10, 3 );
+
+        for ( int i = 0; i < 45; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        service.deleteAccount( "account1" );
+        Account account = service.readAccount( "account2" );
+        assertTrue( service.compareAndUpdate( 1, account ) );
+        assertFalse( service.compareAndUpdate( 1, account ) );
+        service.destroy();
+
+        // a segment that never made it into the manifest is ignored
+        new File( dir, "segment-999999.seg" ).createNewFile();
+
+        service = createService( 10, 3 );
+        for ( int i = 0; i < 45; i++ )
+        {
+            assertEquals( i != 1, service.readAccount( "account" + i ) != null, "account" + i );
+        }
+        assertEquals( 2, service.readAccount( "account2" ).getVersion() );
+        assertFalse( new File( dir, "segment-999999.seg" ).exists() );
+
+        service.createAccount( createAccount( "juven" ) );
+        service.destroy();
+
+        service = createService( 10, 3 );
+        assertNotNull( service.readAccount( "juven" ) );
+        assertNull( service.readAccount( "account1" ) );
+        service.destroy();
+    }
+
+    @Test
+    public void testBatchesApplyAllOrNothing()
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = createService( 20, 4 );
+        List<Account> accounts = new ArrayList<Account>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            accounts.add( createAccount( "account" + i ) );
+        }
+        service.createAccounts( accounts );
+
+        Account taken = createAccount( "account1" );
+        taken.setEmail( "ACCOUNT2@changeme.com" );
+        assertThrows( DuplicateEmailException.class,
+                      () -> service.updateAccounts( Arrays.asList( createAccount( "account0" ), taken ) ) );
+        assertEquals( 1, service.readAccount( "account0" ).getVersion(), "a taken email updates none" );
+
+        Account renamed = createAccount( "account0" );
+        renamed.setName( "Renamed" );
+        List<Account> updated = service.updateAccounts( Arrays.asList( renamed, createAccount( "ghost" ) ) );
+        assertSame( renamed, updated.get( 0 ) );
+        assertNull( updated.get( 1 ) );
+        assertEquals( 2, renamed.getVersion() );
+
+        List<Boolean> deleted = service.deleteAccounts( Arrays.asList( "account1", "ghost", "account1", "account2" ) );
+        assertEquals( Arrays.asList( true, false, false, true ), deleted );
+        assertNull( service.findAccountByEmail( "account2@changeme.com" ) );
+        service.destroy();
+
+        LsmAccountPersistServiceImpl reopened = createService( 20, 4 );
+        assertEquals( "Renamed", reopened.readAccount( "account0" ).getName() );
+        assertNull( reopened.readAccount( "account1" ) );
+        assertNull( reopened.readAccount( "account2" ) );
+        assertNotNull( reopened.readAccount( "account49" ) );
+        reopened.destroy();
+    }
+
+    @Test
+    public void testTransactionAppliesAllOrNothing()
+        throws Exception
+    {
+        LsmAccountPersistServiceImpl service = createService( 100, 4 );
+        service.createAccount( createAccount( "juven" ) );
+        service.createAccount( createAccount( "gone" ) );
+        service.flush();
+
+        Account twin = createAccount( "twin" );
+        twin.setEmail( "Juven@ChangeMe.com" );
+        AccountTransaction transaction = service.beginTransaction();
+        transaction.createAccount( createAccount( "mike" ) );
+        transaction.createAccount( twin );
+        assertThrows( DuplicateEmailException.class, transaction::commit );
+        assertNull( service.readAccount( "mike" ) );
+        assertNull( service.findAccountByEmail( "mike@changeme.com" ) );
+
+        Account mike = createAccount( "mike" );
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+
+        transaction = service.beginTransaction();
+        transaction.createAccount( mike );
+        transaction.updateAccount( juven );
+        transaction.deleteAccount( "gone" );
+        transaction.commit();
+        assertEquals( 1, mike.getVersion() );
+        assertEquals( 2, juven.getVersion() );
+        service.destroy();
+
+        service = createService( 100, 4 );
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertEquals( "mike", service.findAccountByEmail( "mike@changeme.com" ).getId() );
+        assertNull( service.readAccount( "gone" ) );
+        service.destroy();
+    }
+}
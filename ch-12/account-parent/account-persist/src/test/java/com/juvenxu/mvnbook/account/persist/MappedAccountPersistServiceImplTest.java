@@ -0,0 +1,220 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private MappedAccountPersistServiceImpl createService( File file )
+        throws Exception
+    {
+        MappedAccountPersistServiceImpl service = new MappedAccountPersistServiceImpl();
+        service.setFile( file.getPath() );
+        service.setInitialSlots( 4 );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    @Test
+    public void testCrudSurvivesReopenAndGrowth()
+        throws Exception
+    {
+        File file = new File( dir, "accounts.dat" );
+
+        MappedAccountPersistServiceImpl service = createService( file );
+        for ( int i = 0; i < 10; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        service.deleteAccount( "account3" );
+
+        Account account = service.readAccount( "account5" );
+        account.setName( "Renamed" );
+        account.setActivated( false );
+        service.updateAccount( account );
+        assertNull( service.updateAccount( createAccount( "nonexistent" ) ) );
+        service.destroy();
+
+        service = createService( file );
+        assertNull( service.readAccount( "account3" ) );
+        assertNull( service.findAccountByEmail( "account3@changeme.com" ) );
+        assertEquals( "account9", service.findAccountByEmail( "account9@changeme.com" ).getId() );
+        assertEquals( "Renamed", service.readAccount( "account5" ).getName() );
+        assertFalse( service.readAccount( "account5" ).isActivated() );
+        assertEquals( "account9@changeme.com", service.readAccount( "account9" ).getEmail() );
+        service.destroy();
+    }
+
+    @Test
+    public void testDeletedSlotIsReused()
+        throws Exception
+    {
+        File file = new File( dir, "accounts.dat" );
+
+        MappedAccountPersistServiceImpl service = createService( file );
+        for ( int i = 0; i < 4; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        long length = file.length();
+
+        service.deleteAccount( "account1" );
+        service.createAccount( createAccount( "mike" ) );
+        service.destroy();
+
+        assertEquals( length, file.length() );
+    }
+
+    @Test
+    public void testFileIsMappedInChunks()
+        throws Exception
+    {
+        File file = new File( dir, "accounts.dat" );
+
+        MappedAccountPersistServiceImpl service = new MappedAccountPersistServiceImpl();
+        service.setFile( file.getPath() );
+        service.setInitialSlots( 4 );
+        service.setChunkSize( 1000 );
+        service.afterPropertiesSet();
+
+        // three 256 byte slots to a chunk, growing to 32 slots in 11 chunks
+        for ( int i = 0; i < 20; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+        Account account = service.readAccount( "account7" );
+        account.setName( "Renamed" );
+        service.updateAccount( account );
+        service.destroy();
+
+        assertEquals( MappedAccountPersistServiceImpl.HEADER_SIZE + 32 * 256, file.length() );
+
+        service = createService( file );
+        for ( int i = 0; i < 20; i++ )
+        {
+            assertEquals( "account" + i + "@changeme.com", service.readAccount( "account" + i ).getEmail() );
+        }
+        assertEquals( "Renamed", service.readAccount( "account7" ).getName() );
+        assertEquals( 2, service.readAccount( "account7" ).getVersion() );
+        service.destroy();
+    }
+
+    @Test
+    public void testTornUpdateKeepsPreviousVersion()
+        throws Exception
+    {
+        File file = new File( dir, "accounts.dat" );
+
+        // juven goes to slot 0, the update to slot 1, then slot 0 is freed
+        MappedAccountPersistServiceImpl service = createService( file );
+        service.createAccount( createAccount( "juven" ) );
+        Account account = service.readAccount( "juven" );
+        account.setName( "Renamed" );
+        service.updateAccount( account );
+        service.destroy();
+
+        int slot0 = MappedAccountPersistServiceImpl.HEADER_SIZE;
+        int slot1 = slot0 + 256;
+
+        // a crash before slot 0 was freed keeps both copies, the newer one wins
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+        {
+            raf.seek( slot0 );
+            raf.write( 1 );
+        }
+
+        service = createService( file );
+        assertEquals( "Renamed", service.readAccount( "juven" ).getName() );
+        service.destroy();
+
+        // a crash in the middle of writing slot 1 leaves it failing its checksum
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+        {
+            raf.seek( slot0 );
+            raf.write( 1 );
+            raf.seek( slot1 + 20 );
+            raf.write( 0 );
+        }
+
+        service = createService( file );
+        assertEquals( "Name of juven", service.readAccount( "juven" ).getName() );
+        assertEquals( 1, service.readAccount( "juven" ).getVersion() );
+        service.createAccount( createAccount( "mike" ) );
+        service.createAccount( createAccount( "jason" ) );
+        assertEquals( "Name of juven", service.readAccount( "juven" ).getName() );
+        service.destroy();
+    }
+
+    @Test
+    public void testOversizedAccountIsRejected()
+        throws Exception
+    {
+        MappedAccountPersistServiceImpl service = createService( new File( dir, "accounts.dat" ) );
+
+        char[] name = new char[300];
+        Arrays.fill( name, 'x' );
+
+        Account account = createAccount( "juven" );
+        account.setName( new String( name ) );
+
+        assertThrows( AccountPersistException.class, () -> service.createAccount( account ) );
+        assertNull( service.readAccount( "juven" ) );
+        service.destroy();
+    }
+
+    @Test
+    public void testRejectedCreateLeavesTheAccountAlone()
+        throws Exception
+    {
+        MappedAccountPersistServiceImpl service = createService( new File( dir, "accounts.dat" ) );
+        service.createAccount( createAccount( "juven" ) );
+
+        Account duplicate = createAccount( "mike" );
+        duplicate.setEmail( "juven@changeme.com" );
+        assertThrows( DuplicateEmailException.class, () -> service.createAccount( duplicate ) );
+        assertEquals( 0, duplicate.getVersion() );
+        assertNull( service.readAccount( "mike" ) );
+
+        assertEquals( 1, service.createAccount( createAccount( "mike" ) ).getVersion() );
+        service.destroy();
+    }
+
+    @Test
+    public void testConvertFromXml()
+        throws Exception
+    {
+        String xmlFile = new File( dir, "persist-data.xml" ).getPath();
+        File mappedFile = new File( dir, "accounts.dat" );
+
+        new AccountXmlFile( xmlFile ).writeAccounts( Arrays.asList( createAccount( "juven" ),
+                                                                    createAccount( "mike" ) ) );
+
+        assertEquals( 2, MappedAccountFileConverter.convert( xmlFile, mappedFile.getPath(), 256 ) );
+
+        MappedAccountPersistServiceImpl service = createService( mappedFile );
+        assertEquals( "Name of juven", service.readAccount( "juven" ).getName() );
+        assertEquals( "mike@changeme.com", service.readAccount( "mike" ).getEmail() );
+        service.destroy();
+    }
+
+    @Test
+    public void testTransactionIsRefused()
+        throws Exception
+    {
+        MappedAccountPersistServiceImpl service = createService( new File( dir, "accounts.dat" ) );
+
+        assertFalse( service.isTransactional() );
+        assertThrows( UnsupportedOperationException.class, service::beginTransaction );
+        service.destroy();
+    }
+}
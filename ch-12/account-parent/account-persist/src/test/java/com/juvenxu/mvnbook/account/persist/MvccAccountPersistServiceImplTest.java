@@ -0,0 +1,225 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MvccAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private MvccAccountPersistServiceImpl createService()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = new MvccAccountPersistServiceImpl();
+        service.setFile( new File( dir, "persist-data.xml" ).getPath() );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    private Set<String> ids( AccountReadTransaction transaction )
+    {
+        Set<String> ids = new HashSet<String>();
+        for ( Account account : transaction )
+        {
+            ids.add( account.getId() );
+        }
+        return ids;
+    }
+
+    @Test
+    public void testReadTransactionSeesItsSnapshot()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = createService();
+        service.createAccount( createAccount( "juven" ) );
+        service.createAccount( createAccount( "mike" ) );
+
+        AccountReadTransaction transaction = service.beginReadTransaction();
+
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+        service.updateAccount( juven );
+        service.deleteAccount( "mike" );
+        service.createAccount( createAccount( "lucy" ) );
+
+        assertEquals( "Name of juven", transaction.readAccount( "juven" ).getName() );
+        assertNotNull( transaction.readAccount( "mike" ) );
+        assertNull( transaction.readAccount( "lucy" ) );
+        assertEquals( "mike", transaction.findAccountByEmail( "MIKE@changeme.com" ).getId() );
+        assertEquals( new HashSet<String>( Arrays.asList( "juven", "mike" ) ), ids( transaction ) );
+
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertNull( service.readAccount( "mike" ) );
+        assertEquals( 2, service.versionCount( "juven" ) );
+
+        transaction.close();
+
+        assertEquals( 1, service.versionCount( "juven" ) );
+        assertEquals( 0, service.versionCount( "mike" ) );
+        assertThrows( IllegalStateException.class, () -> transaction.readAccount( "juven" ) );
+
+        AccountReadTransaction latest = service.beginReadTransaction();
+        assertEquals( new HashSet<String>( Arrays.asList( "juven", "lucy" ) ), ids( latest ) );
+        latest.close();
+    }
+
+    @Test
+    public void testTransactionIsOneCommit()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = createService();
+        service.createAccount( createAccount( "juven" ) );
+
+        AccountReadTransaction before = service.beginReadTransaction();
+
+        Account lucy = createAccount( "lucy" );
+        AccountTransaction transaction = service.beginTransaction();
+        transaction.createAccount( lucy );
+        lucy.setName( "Lucy" );
+        transaction.updateAccount( lucy );
+        transaction.deleteAccount( "juven" );
+        transaction.commit();
+
+        assertEquals( 2, lucy.getVersion() );
+        assertEquals( "Lucy", service.readAccount( "lucy" ).getName() );
+        assertNull( service.readAccount( "juven" ) );
+        assertEquals( 1, service.versionCount( "lucy" ), "the whole transaction is a single version" );
+        assertEquals( new HashSet<String>( Arrays.asList( "juven" ) ), ids( before ) );
+        before.close();
+
+        transaction = service.beginTransaction();
+        transaction.deleteAccount( "lucy" );
+        transaction.updateAccount( lucy );
+        assertThrows( AccountPersistException.class, transaction::commit );
+        assertNotNull( service.readAccount( "lucy" ) );
+    }
+
+    @Test
+    public void testBatchesAreOneCommit()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = createService();
+        service.createAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "mike" ),
+                                               createAccount( "lucy" ) ) );
+
+        AccountReadTransaction before = service.beginReadTransaction();
+
+        Account first = createAccount( "juven" );
+        first.setName( "Juven" );
+        Account second = createAccount( "juven" );
+        second.setName( "Juven Xu" );
+        List<Account> updated = service.updateAccounts( Arrays.asList( first, createAccount( "ghost" ), second ) );
+        assertNull( updated.get( 1 ) );
+        assertEquals( 2, first.getVersion() );
+        assertEquals( 3, second.getVersion() );
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertEquals( 2, service.versionCount( "juven" ), "the whole batch is a single version" );
+
+        List<Boolean> deleted = service.deleteAccounts( Arrays.asList( "mike", "lucy", "mike" ) );
+        assertEquals( Arrays.asList( true, true, false ), deleted );
+        assertNull( service.readAccount( "mike" ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "juven", "mike", "lucy" ) ), ids( before ) );
+        before.close();
+    }
+
+    @Test
+    public void testReloadCommitsExternalChanges()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = createService();
+        service.createAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "mike" ) ) );
+        assertEquals( 0, service.reload(), "own writes are not external changes" );
+
+        AccountReadTransaction transaction = service.beginReadTransaction();
+
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+        new AccountXmlFile( new File( dir, "persist-data.xml" ).getPath() )
+            .writeAccounts( Arrays.asList( juven, createAccount( "lucy" ) ) );
+
+        assertEquals( 3, service.reload() );
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertNull( service.readAccount( "mike" ) );
+        assertEquals( "lucy", service.findAccountByEmail( "lucy@changeme.com" ).getId() );
+
+        assertEquals( new HashSet<String>( Arrays.asList( "juven", "mike" ) ), ids( transaction ) );
+        assertEquals( "Name of juven", transaction.readAccount( "juven" ).getName() );
+        transaction.close();
+
+        assertEquals( 0, service.reload() );
+    }
+
+    @Test
+    public void testOldVersionsAreCollectedWithoutTransactions()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = createService();
+        service.createAccount( createAccount( "juven" ) );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            Account account = service.readAccount( "juven" );
+            assertTrue( service.compareAndUpdate( account.getVersion(), account ) );
+        }
+
+        assertEquals( 1, service.versionCount( "juven" ) );
+        assertEquals( 6, service.readAccount( "juven" ).getVersion() );
+
+        service = createService();
+        assertEquals( 6, service.readAccount( "juven" ).getVersion() );
+    }
+
+    @Test
+    public void testIterationIsConsistentWhileWritersContinue()
+        throws Exception
+    {
+        MvccAccountPersistServiceImpl service = createService();
+        for ( int i = 0; i < 50; i++ )
+        {
+            service.createAccount( createAccount( "account" + i ) );
+        }
+
+        AccountReadTransaction transaction = service.beginReadTransaction();
+
+        Thread writer = new Thread( () -> {
+            try
+            {
+                for ( int i = 0; i < 50; i++ )
+                {
+                    service.deleteAccount( "account" + i );
+                    service.createAccount( createAccount( "other" + i ) );
+                }
+            }
+            catch ( AccountPersistException e )
+            {
+                throw new IllegalStateException( e );
+            }
+        } );
+        writer.start();
+
+        for ( int pass = 0; pass < 5; pass++ )
+        {
+            Set<String> ids = ids( transaction );
+            assertEquals( 50, ids.size() );
+            assertTrue( ids.contains( "account0" ) );
+        }
+
+        writer.join();
+        assertEquals( 50, ids( transaction ).size() );
+        transaction.close();
+
+        assertEquals( 0, service.versionCount( "account0" ) );
+        assertNull( service.readAccount( "account0" ) );
+        assertNotNull( service.readAccount( "other0" ) );
+    }
+}
@@ -0,0 +1,114 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class OffHeapAccountCacheTest
+{
+    @Test
+    public void testAccountsRoundTrip()
+    {
+        OffHeapAccountCache cache = new OffHeapAccountCache( 1024 * 1024 );
+
+        Account juven = createAccount( "juven" );
+        juven.setName( "Juven \u5f90" );
+        juven.setPassword( null );
+        juven.setVersion( 1 );
+        cache.put( juven );
+
+        Account cached = cache.get( "juven" );
+        assertEquals( "Juven \u5f90", cached.getName() );
+        assertNull( cached.getPassword() );
+        assertEquals( "juven@changeme.com", cached.getEmail() );
+        assertTrue( cached.isActivated() );
+        assertEquals( 1, cached.getVersion() );
+        assertNotSame( cached, cache.get( "juven" ) );
+
+        juven.setVersion( 2 );
+        cache.put( juven );
+        assertEquals( 2, cache.get( "juven" ).getVersion() );
+        assertEquals( 1, cache.size() );
+
+        cache.remove( "juven" );
+        assertNull( cache.get( "juven" ) );
+        assertEquals( 0, cache.size() );
+        assertTrue( cache.capacity() <= 1024 * 1024 + 16 * 8 * 1024 );
+    }
+
+    @Test
+    public void testEvictionKeepsReadEntries()
+    {
+        OffHeapAccountCache cache = new OffHeapAccountCache( 64 * 1024 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            cache.put( createAccount( "hot" + i ) );
+        }
+
+        for ( int i = 0; i < 20000; i++ )
+        {
+            cache.put( createAccount( "cold" + i ) );
+
+            if ( i % 100 == 0 )
+            {
+                for ( int j = 0; j < 100; j++ )
+                {
+                    assertNotNull( cache.get( "hot" + j ), "hot" + j + " after " + i );
+                }
+            }
+        }
+
+        assertTrue( cache.getEvictions() > 19000 );
+        assertTrue( cache.size() < 1000 );
+    }
+
+    @Test
+    public void testRandomOperationsMatchAMap()
+    {
+        OffHeapAccountCache cache = new OffHeapAccountCache( 256 * 1024 );
+        Map<String, Long> versions = new HashMap<String, Long>();
+        Random random = new Random( 42 );
+
+        for ( int i = 0; i < 200000; i++ )
+        {
+            String id = "account" + random.nextInt( 5000 );
+            int op = random.nextInt( 10 );
+
+            if ( op < 4 )
+            {
+                Account account = createAccount( id );
+                account.setVersion( i );
+                cache.put( account );
+                versions.put( id, (long) i );
+            }
+            else if ( op < 5 )
+            {
+                cache.remove( id );
+                versions.remove( id );
+            }
+            else
+            {
+                Account cached = cache.get( id );
+
+                if ( cached != null )
+                {
+                    assertEquals( id, cached.getId() );
+                    assertEquals( versions.get( id ), Long.valueOf( cached.getVersion() ), id );
+                }
+            }
+        }
+
+        int cached = 0;
+        for ( String id : versions.keySet() )
+        {
+            cached += cache.get( id ) == null ? 0 : 1;
+        }
+        assertEquals( cached, cache.size() );
+    }
+}
@@ -0,0 +1,113 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShardedAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private ShardedAccountPersistServiceImpl createService( int shardCount )
+        throws Exception
+    {
+        ShardedAccountPersistServiceImpl service = new ShardedAccountPersistServiceImpl();
+        service.setDirectory( dir.getPath() );
+        service.setShardCount( shardCount );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    @Test
+    public void testAccountsAreSpreadOverShards()
+        throws Exception
+    {
+        ShardedAccountPersistServiceImpl service = createService( 4 );
+
+        for ( int i = 0; i < 40; i++ )
+        {
+            service.createAccount( createAccount( "account" + i, false ) );
+        }
+
+        int nonEmptyShards = 0;
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            File shardFile = new File( dir, String.format( "persist-data-%03d.xml", i ) );
+
+            if ( shardFile.exists() && !new AccountXmlFile( shardFile.getPath() ).readAccounts().isEmpty() )
+            {
+                nonEmptyShards++;
+            }
+        }
+
+        assertEquals( 4, nonEmptyShards );
+
+        for ( int i = 0; i < 40; i++ )
+        {
+            assertEquals( "Name of account" + i, service.readAccount( "account" + i ).getName() );
+        }
+
+        service.deleteAccount( "account7" );
+        assertNull( service.readAccount( "account7" ) );
+        assertNull( service.findAccountByEmail( "account7@changeme.com" ) );
+        assertEquals( "account13", service.findAccountByEmail( "account13@changeme.com" ).getId() );
+
+        Account account = service.readAccount( "account8" );
+        account.setActivated( true );
+        service.updateAccount( account );
+        assertTrue( createService( 4 ).readAccount( "account8" ).isActivated() );
+    }
+
+    @Test
+    public void testBatchResultsKeepInputOrder()
+        throws Exception
+    {
+        ShardedAccountPersistServiceImpl service = createService( 4 );
+
+        List<Account> accounts = new ArrayList<Account>();
+        List<String> ids = new ArrayList<String>();
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            accounts.add( createAccount( "account" + i, false ) );
+            ids.add( "account" + i );
+        }
+
+        service.createAccounts( accounts );
+        ids.add( 5, "nonexistent" );
+
+        List<Account> read = service.readAccounts( ids );
+        for ( int i = 0; i < ids.size(); i++ )
+        {
+            if ( i == 5 )
+            {
+                assertNull( read.get( i ) );
+            }
+            else
+            {
+                assertEquals( ids.get( i ), read.get( i ).getId() );
+            }
+        }
+
+        List<Boolean> deleted = service.deleteAccounts( Arrays.asList( "account3", "nonexistent", "account11" ) );
+        assertEquals( Arrays.asList( true, false, true ), deleted );
+    }
+
+    @Test
+    public void testShardCountCannotChange()
+        throws Exception
+    {
+        createService( 4 );
+
+        assertThrows( AccountPersistException.class, () -> createService( 8 ) );
+    }
+}
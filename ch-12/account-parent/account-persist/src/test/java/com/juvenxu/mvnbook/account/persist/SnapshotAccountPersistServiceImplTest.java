@@ -0,0 +1,142 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private SnapshotAccountPersistServiceImpl createService( String file )
+        throws Exception
+    {
+        SnapshotAccountPersistServiceImpl service = new SnapshotAccountPersistServiceImpl();
+        service.setFile( file );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    @Test
+    public void testExternalChangesAreReloaded()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        SnapshotAccountPersistServiceImpl service = new SnapshotAccountPersistServiceImpl();
+        service.setFile( file );
+        service.setWatchFile( true );
+        service.afterPropertiesSet();
+        service.createAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "mike" ) ) );
+        assertEquals( 0, service.reload(), "own writes are not external changes" );
+
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+        new AccountXmlFile( file ).writeAccounts( Arrays.asList( juven, createAccount( "lucy" ) ) );
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( service.readAccount( "lucy" ) == null && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 50 );
+        }
+
+        assertNotNull( service.readAccount( "lucy" ), "the watcher reloads the file" );
+        assertNull( service.readAccount( "mike" ) );
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertEquals( 0, service.reload() );
+        service.destroy();
+    }
+
+    @Test
+    public void testWritesArePublishedAfterReachingTheFile()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        SnapshotAccountPersistServiceImpl service = createService( file );
+        service.createAccount( createAccount( "juven" ) );
+        service.createAccounts( Arrays.asList( createAccount( "mike" ), createAccount( "lucy" ) ) );
+        service.deleteAccount( "mike" );
+
+        Account account = service.readAccount( "juven" );
+        account.setName( "Juven Xu" );
+        assertTrue( service.compareAndUpdate( 1, account ) );
+        assertFalse( service.compareAndUpdate( 1, account ) );
+
+        assertEquals( 2, new AccountXmlFile( file ).readAccounts().size() );
+        assertEquals( "Juven Xu", new AccountXmlFile( file ).findAccount( "juven" ).getName() );
+
+        service = createService( file );
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertEquals( 2, service.readAccount( "juven" ).getVersion() );
+        assertNull( service.readAccount( "mike" ) );
+        assertEquals( "lucy", service.findAccountByEmail( "LUCY@changeme.com" ).getId() );
+    }
+
+    @Test
+    public void testTransactionIsPublishedAtOnce()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        SnapshotAccountPersistServiceImpl service = createService( file );
+        service.createAccount( createAccount( "juven" ) );
+
+        Account mike = createAccount( "mike" );
+        Account juven = service.readAccount( "juven" );
+        juven.setName( "Juven Xu" );
+
+        AccountTransaction transaction = service.beginTransaction();
+        transaction.createAccount( mike );
+        transaction.updateAccount( juven );
+        transaction.deleteAccount( "nonexistent" );
+        transaction.commit();
+
+        assertEquals( 1, mike.getVersion() );
+        assertEquals( 2, juven.getVersion() );
+        assertEquals( 2, new AccountXmlFile( file ).readAccounts().size() );
+
+        Account twin = createAccount( "twin" );
+        twin.setEmail( "Mike@ChangeMe.com" );
+        transaction = service.beginTransaction();
+        transaction.updateAccount( juven );
+        transaction.createAccount( twin );
+        assertThrows( DuplicateEmailException.class, transaction::commit );
+        assertNull( service.readAccount( "twin" ) );
+        assertEquals( 2, juven.getVersion() );
+
+        Account ghost = createAccount( "ghost" );
+        transaction = service.beginTransaction();
+        transaction.updateAccount( juven );
+        transaction.updateAccount( ghost );
+        assertThrows( AccountPersistException.class, transaction::commit );
+        assertEquals( 2, juven.getVersion(), "versions are only set once committed" );
+        assertEquals( 2, createService( file ).readAccount( "juven" ).getVersion() );
+    }
+
+    @Test
+    public void testReadsCannotChangeTheSnapshot()
+        throws Exception
+    {
+        SnapshotAccountPersistServiceImpl service = createService( new File( dir, "persist-data.xml" ).getPath() );
+
+        Account created = createAccount( "juven" );
+        service.createAccount( created );
+        created.setName( "changed after create" );
+
+        Account read = service.readAccount( "juven" );
+        read.setName( "changed after read" );
+
+        List<Account> batch = service.readAccounts( Arrays.asList( "juven", "nonexistent" ) );
+        assertNull( batch.get( 1 ) );
+        assertEquals( "Name of juven", batch.get( 0 ).getName() );
+        assertEquals( "Name of juven", service.readAccount( "juven" ).getName() );
+    }
+}
@@ -0,0 +1,30 @@
+package com.juvenxu.mvnbook.account.persist;
+
+/**
+ * The accounts the tests persist, each derived from its id.
+ */
+final class TestAccounts
+{
+    private TestAccounts()
+    {
+    }
+
+    static Account createAccount( String id )
+    {
+        return createAccount( id, true );
+    }
+
+    /**
+     * An account that starts out not activated lets a test tell whether its activation was lost.
+     */
+    static Account createAccount( String id, boolean activated )
+    {
+        Account account = new Account();
+        account.setId( id );
+        account.setName( "Name of " + id );
+        account.setEmail( id + "@changeme.com" );
+        account.setPassword( "this_should_be_encrypted" );
+        account.setActivated( activated );
+        return account;
+    }
+}
@@ -0,0 +1,267 @@
+package com.juvenxu.mvnbook.account.persist;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static com.juvenxu.mvnbook.account.persist.TestAccounts.createAccount;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WriteBehindAccountPersistServiceImplTest
+{
+    @TempDir
+    File dir;
+
+    private WriteBehindAccountPersistServiceImpl createService( String file, int flushThreshold )
+        throws Exception
+    {
+        WriteBehindAccountPersistServiceImpl service = new WriteBehindAccountPersistServiceImpl();
+        service.setFile( file );
+        service.setFlushInterval( 60000 );
+        service.setFlushThreshold( flushThreshold );
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    private int awaitFlushedAccounts( String file, int expected )
+        throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        int flushed = 0;
+
+        while ( flushed < expected && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+
+            flushed = new AccountXmlFile( file ).readAccounts().size();
+        }
+
+        return flushed;
+    }
+
+    @Test
+    public void testReadsAreServedFromMemory()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        WriteBehindAccountPersistServiceImpl service = createService( file, 100 );
+        service.createAccount( createAccount( "juven" ) );
+
+        assertEquals( "Name of juven", service.readAccount( "juven" ).getName() );
+        assertNull( new AccountXmlFile( file ).readAccounts().get( "juven" ) );
+
+        service.destroy();
+    }
+
+    @Test
+    public void testFindAccountByEmail()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        WriteBehindAccountPersistServiceImpl service = createService( file, 100 );
+        service.createAccount( createAccount( "juven" ) );
+
+        Account account = service.readAccount( "juven" );
+        account.setEmail( "juven1@changeme.com" );
+        service.updateAccount( account );
+
+        assertNull( service.findAccountByEmail( "juven@changeme.com" ) );
+        assertEquals( "juven", service.findAccountByEmail( "JUVEN1@changeme.com" ).getId() );
+        service.destroy();
+
+        WriteBehindAccountPersistServiceImpl reloaded = createService( file, 100 );
+        assertEquals( "juven", reloaded.findAccountByEmail( "juven1@changeme.com" ).getId() );
+        reloaded.deleteAccount( "juven" );
+        assertNull( reloaded.findAccountByEmail( "juven1@changeme.com" ) );
+        reloaded.destroy();
+    }
+
+    @Test
+    public void testReturnedAccountsAreCopies()
+        throws Exception
+    {
+        WriteBehindAccountPersistServiceImpl service =
+            createService( new File( dir, "persist-data.xml" ).getPath(), 100 );
+        service.createAccount( createAccount( "juven" ) );
+
+        service.readAccount( "juven" ).setActivated( false );
+
+        assertTrue( service.readAccount( "juven" ).isActivated() );
+
+        service.destroy();
+    }
+
+    @Test
+    public void testDestroyFlushesPendingMutations()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        WriteBehindAccountPersistServiceImpl service = createService( file, 100 );
+        service.createAccount( createAccount( "juven" ) );
+        service.createAccount( createAccount( "mike" ) );
+        service.deleteAccount( "mike" );
+
+        Account account = service.readAccount( "juven" );
+        account.setActivated( false );
+        assertNotNull( service.updateAccount( account ) );
+        assertNull( service.updateAccount( createAccount( "nonexistent" ) ) );
+
+        service.destroy();
+
+        WriteBehindAccountPersistServiceImpl reloaded = createService( file, 100 );
+        assertFalse( reloaded.readAccount( "juven" ).isActivated() );
+        assertNull( reloaded.readAccount( "mike" ) );
+        reloaded.destroy();
+    }
+
+    @Test
+    public void testExternalEditsAreMergedBeforeFlushing()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        WriteBehindAccountPersistServiceImpl service = createService( file, 1000 );
+        service.createAccount( createAccount( "juven" ) );
+        service.createAccount( createAccount( "mike" ) );
+        service.createAccount( createAccount( "tom" ) );
+        service.flush();
+        assertEquals( 0, service.reload(), "own writes are not external changes" );
+
+        Account mike = service.readAccount( "mike" );
+        mike.setName( "Mike Smith" );
+        service.updateAccount( mike );
+
+        Map<String, Account> external = new AccountXmlFile( file ).readAccounts();
+        external.get( "juven" ).setName( "Juven Xu" );
+        external.remove( "tom" );
+        external.put( "lucy", createAccount( "lucy" ) );
+        new AccountXmlFile( file ).writeAccounts( new ArrayList<Account>( external.values() ) );
+
+        service.flush();
+
+        Map<String, Account> flushed = new AccountXmlFile( file ).readAccounts();
+        assertEquals( "Juven Xu", flushed.get( "juven" ).getName() );
+        assertEquals( "Mike Smith", flushed.get( "mike" ).getName() );
+        assertNotNull( flushed.get( "lucy" ) );
+        assertNull( flushed.get( "tom" ) );
+        assertEquals( "Juven Xu", service.readAccount( "juven" ).getName() );
+        assertNotNull( service.readAccount( "lucy" ) );
+        assertNull( service.readAccount( "tom" ) );
+        assertEquals( 0, service.reload() );
+        service.destroy();
+    }
+
+    @Test
+    public void testWatcherMergesExternalEdits()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        WriteBehindAccountPersistServiceImpl service = new WriteBehindAccountPersistServiceImpl();
+        service.setFile( file );
+        service.setWatchFile( true );
+        service.afterPropertiesSet();
+        service.createAccount( createAccount( "juven" ) );
+        service.flush();
+
+        new AccountXmlFile( file ).writeAccounts( Arrays.asList( createAccount( "juven" ), createAccount( "lucy" ) ) );
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( service.readAccount( "lucy" ) == null && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 50 );
+        }
+
+        assertNotNull( service.readAccount( "lucy" ), "the watcher merges the file" );
+        assertNotNull( service.readAccount( "juven" ) );
+        service.destroy();
+    }
+
+    @Test
+    public void testThresholdTriggersFlush()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        WriteBehindAccountPersistServiceImpl service = createService( file, 2 );
+        service.createAccount( createAccount( "juven" ) );
+        service.createAccount( createAccount( "mike" ) );
+
+        assertEquals( 2, awaitFlushedAccounts( file, 2 ) );
+
+        service.destroy();
+    }
+
+    @Test
+    public void testWritesAfterDestroyAreRejected()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        WriteBehindAccountPersistServiceImpl service = createService( file, 1 );
+        service.createAccount( createAccount( "juven" ) );
+        service.destroy();
+
+        assertThrows( AccountPersistException.class, () -> service.createAccount( createAccount( "mike" ) ) );
+        assertThrows( AccountPersistException.class, () -> service.deleteAccount( "juven" ) );
+        assertNull( service.readAccount( "mike" ) );
+        assertNotNull( service.readAccount( "juven" ) );
+    }
+
+    @Test
+    public void testWritesRacingDestroyAreFlushedOrRejected()
+        throws Exception
+    {
+        String file = new File( dir, "persist-data.xml" ).getPath();
+
+        WriteBehindAccountPersistServiceImpl service = createService( file, 1000000 );
+        List<String> acknowledged = Collections.synchronizedList( new ArrayList<String>() );
+        List<Thread> writers = new ArrayList<Thread>();
+
+        for ( int t = 0; t < 4; t++ )
+        {
+            String prefix = "t" + t + "-";
+
+            writers.add( new Thread( () -> {
+                for ( int i = 0;; i++ )
+                {
+                    try
+                    {
+                        service.createAccount( createAccount( prefix + i ) );
+                    }
+                    catch ( AccountPersistException e )
+                    {
+                        return;
+                    }
+
+                    acknowledged.add( prefix + i );
+                }
+            } ) );
+        }
+
+        writers.forEach( Thread::start );
+        Thread.sleep( 50 );
+        service.destroy();
+
+        for ( Thread writer : writers )
+        {
+            writer.join();
+        }
+
+        Map<String, Account> flushed = new AccountXmlFile( file ).readAccounts();
+        assertFalse( acknowledged.isEmpty() );
+        for ( String id : acknowledged )
+        {
+            assertTrue( flushed.containsKey( id ), id + " was acknowledged but not flushed" );
+        }
+    }
+}
@@ -11,6 +11,7 @@ import com.juvenxu.mvnbook.account.email.AccountEmailService;
 import com.juvenxu.mvnbook.account.persist.Account;
 import com.juvenxu.mvnbook.account.persist.AccountPersistException;
 import com.juvenxu.mvnbook.account.persist.AccountPersistService;
+import com.juvenxu.mvnbook.account.persist.DuplicateEmailException;
 
 public class AccountServiceImpl
     implements AccountService
@@ -118,6 +119,11 @@ public class AccountServiceImpl
         {
             throw new AccountServiceException( "Unable to validate captcha.", e );
         }
+        catch ( DuplicateEmailException e )
+        {
+            // the persist service checks the email in the same step as it creates the account
+            throw new AccountServiceException( "Email is already registered.", e );
+        }
         catch ( AccountPersistException e )
         {
             throw new AccountServiceException( "Unable to create account.", e );
@@ -141,9 +147,23 @@ public class AccountServiceImpl
 
         try
         {
-            Account account = accountPersistService.readAccount( accountId );
-            account.setActivated( true );
-            accountPersistService.updateAccount( account );
+            // retry on a concurrent change instead of overwriting it
+            while ( true )
+            {
+                Account account = accountPersistService.readAccount( accountId );
+
+                if ( account == null )
+                {
+                    throw new AccountServiceException( "Account does not exist." );
+                }
+
+                account.setActivated( true );
+
+                if ( accountPersistService.compareAndUpdate( account.getVersion(), account ) )
+                {
+                    break;
+                }
+            }
         }
         catch ( AccountPersistException e )
         {